@@ -134,6 +134,7 @@ public final class Constants {
         public static final String TEXT_USE_COMPRESSION = "useTextCompression";
         public static final String TEXT_SELF_ENCRYPT = "textSelfEncrypt";
         public static final String USE_ARMOR = "useArmor";
+        public static final String DECRYPT_PARALLELISM = "decryptParallelism";
         // proxy settings
         public static final String USE_NORMAL_PROXY = "useNormalProxy";
         public static final String USE_TOR_PROXY = "useTorProxy";
@@ -153,6 +154,8 @@ public final class Constants {
         public static final String EXPERIMENTAL_SMARTPGP_AUTHORITIES = "smartpgp_authorities";
 
         public static final String KEY_SIGNATURES_TABLE_INITIALIZED = "key_signatures_table_initialized";
+        public static final String CRYPTO_PROVIDER_SELECTION = "cryptoProviderSelection";
+        public static final String S2K_CALIBRATION = "s2kCalibration";
 
         public static final class Theme {
             public static final String LIGHT = "light";
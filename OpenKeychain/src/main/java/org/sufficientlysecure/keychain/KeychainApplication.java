@@ -35,9 +35,12 @@ import android.support.annotation.Nullable;
 import android.widget.Toast;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.keyimport.KeyserverSearchCache;
 import org.sufficientlysecure.keychain.network.TlsCertificatePinning;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
+import org.sufficientlysecure.keychain.service.KeyPairPoolJobService;
 import org.sufficientlysecure.keychain.service.KeyserverSyncAdapterService;
 import org.sufficientlysecure.keychain.ui.util.FormattingUtils;
 import org.sufficientlysecure.keychain.util.PRNGFixes;
@@ -109,11 +112,18 @@ public class KeychainApplication extends Application {
         // Upgrade preferences as needed
         preferences.upgradePreferences(this);
 
+        // pre-generates key pairs for new keys while the device is idle and charging
+        KeyPairPoolJobService.scheduleRefill(this);
+
         TlsCertificatePinning.addPinnedCertificate("hkps.pool.sks-keyservers.net", getAssets(), "hkps.pool.sks-keyservers.net.CA.cer");
         TlsCertificatePinning.addPinnedCertificate("pgp.mit.edu", getAssets(), "pgp.mit.edu.cer");
         TlsCertificatePinning.addPinnedCertificate("api.keybase.io", getAssets(), "api.keybase.io.CA.cer");
         TlsCertificatePinning.addPinnedCertificate("keyserver.ubuntu.com", getAssets(), "DigiCertGlobalRootCA.cer");
 
+        // read lazily on first search, so this doesn't touch the disk here
+        KeyserverSearchCache.getInstance().setCacheDir(getCacheDir());
+        OperationLog.setSpillDirectory(getCacheDir());
+
         new Handler().postDelayed(() -> TemporaryFileProvider.cleanUp(getApplicationContext()), 1000);
     }
 
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.util.List;
+
+import org.sufficientlysecure.keychain.util.ParcelableProxy;
+
+
+/**
+ * Wraps a {@link KeyserverClient}, answering repeated searches from the {@link KeyserverSearchCache}.
+ * Only successful searches are cached, get and add are passed through as is.
+ */
+public class CachingKeyserverClient implements KeyserverClient {
+    private final KeyserverClient mDelegate;
+    private final String mSource;
+    private final KeyserverSearchCache mCache;
+
+    public static CachingKeyserverClient wrap(KeyserverClient delegate, String source) {
+        return new CachingKeyserverClient(delegate, source, KeyserverSearchCache.getInstance());
+    }
+
+    CachingKeyserverClient(KeyserverClient delegate, String source, KeyserverSearchCache cache) {
+        mDelegate = delegate;
+        mSource = source;
+        mCache = cache;
+    }
+
+    @Override
+    public List<ImportKeysListEntry> search(String query, ParcelableProxy proxy)
+            throws QueryFailedException, QueryNeedsRepairException {
+        List<ImportKeysListEntry> cachedResult = mCache.get(mSource, query, proxy);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+
+        List<ImportKeysListEntry> result = mDelegate.search(query, proxy);
+        mCache.put(mSource, query, proxy, result);
+        return result;
+    }
+
+    @Override
+    public String get(String keyIdHex, ParcelableProxy proxy) throws QueryFailedException {
+        return mDelegate.get(keyIdHex, proxy);
+    }
+
+    @Override
+    public void add(String armoredKey, ParcelableProxy proxy) throws AddKeyException {
+        mDelegate.add(armoredKey, proxy);
+    }
+}
@@ -43,16 +43,18 @@ public class CloudSearch {
         final Vector<KeyserverClient.CloudSearchFailureException> problems = new Vector<>();
 
         if (cloudPrefs.isKeyserverEnabled()) {
-            servers.add(HkpKeyserverClient.fromHkpKeyserverAddress(cloudPrefs.getKeyserver()));
+            HkpKeyserverAddress keyserver = cloudPrefs.getKeyserver();
+            servers.add(CachingKeyserverClient.wrap(
+                    HkpKeyserverClient.fromHkpKeyserverAddress(keyserver), "hkp:" + keyserver.getUrl()));
         }
         if (cloudPrefs.isKeybaseEnabled()) {
-            servers.add(KeybaseKeyserverClient.getInstance());
+            servers.add(CachingKeyserverClient.wrap(KeybaseKeyserverClient.getInstance(), "keybase"));
         }
         if (cloudPrefs.isFacebookEnabled()) {
-            servers.add(FacebookKeyserverClient.getInstance());
+            servers.add(CachingKeyserverClient.wrap(FacebookKeyserverClient.getInstance(), "facebook"));
         }
         if (cloudPrefs.isWebKeyDirectoryEnabled()) {
-            servers.add(WebKeyDirectoryClient.getInstance());
+            servers.add(CachingKeyserverClient.wrap(WebKeyDirectoryClient.getInstance(), "wkd"));
         }
 
         int numberOfServers = servers.size();
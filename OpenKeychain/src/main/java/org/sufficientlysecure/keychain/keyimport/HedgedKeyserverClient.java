@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import org.sufficientlysecure.keychain.util.ParcelableProxy;
+import timber.log.Timber;
+
+
+/**
+ * A {@link KeyserverClient} backed by a pool of HKP keyservers.
+ * <p/>
+ * Key lookups are sent to the primary keyserver first. If it hasn't answered within its p95
+ * latency as measured by {@link KeyserverLatencyTracker}, or if it fails, the same lookup is sent
+ * to the next keyserver of the pool, and the first valid response wins. Keyservers whose circuit
+ * breaker is open are skipped. Searches and uploads only go to the primary keyserver.
+ * <p/>
+ * The pool only consists of keyservers the user configured. Over Tor, lookups are never hedged:
+ * asking several keyservers for the same key from one exit would let them link the requests.
+ */
+public class HedgedKeyserverClient implements KeyserverClient {
+    private static final int MAX_REQUESTS_PER_LOOKUP = 3;
+    // shared by all lookups, requests beyond this wait for a free thread
+    private static final int MAX_LOOKUP_THREADS = 8;
+
+    private static final ThreadPoolExecutor sLookupExecutor = createLookupExecutor();
+
+    private final HkpKeyserverAddress mPrimaryKeyserver;
+    private final List<HkpKeyserverAddress> mKeyservers;
+    private final KeyserverLatencyTracker mLatencyTracker;
+
+    /**
+     * @param primaryKeyserver     the keyserver which is asked first
+     * @param secondaryKeyservers  keyservers for hedged requests, in order of preference. May
+     *                             contain the primary keyserver, which is ignored.
+     */
+    public static HedgedKeyserverClient create(@NonNull HkpKeyserverAddress primaryKeyserver,
+            List<HkpKeyserverAddress> secondaryKeyservers) {
+        return new HedgedKeyserverClient(primaryKeyserver, secondaryKeyservers,
+                KeyserverLatencyTracker.getInstance());
+    }
+
+    @VisibleForTesting
+    HedgedKeyserverClient(HkpKeyserverAddress primaryKeyserver,
+            List<HkpKeyserverAddress> secondaryKeyservers, KeyserverLatencyTracker latencyTracker) {
+        mPrimaryKeyserver = primaryKeyserver;
+        mLatencyTracker = latencyTracker;
+
+        mKeyservers = new ArrayList<>();
+        mKeyservers.add(primaryKeyserver);
+        for (HkpKeyserverAddress keyserver : secondaryKeyservers) {
+            if (!mKeyservers.contains(keyserver)) {
+                mKeyservers.add(keyserver);
+            }
+        }
+    }
+
+    @Override
+    public List<ImportKeysListEntry> search(String query, ParcelableProxy proxy)
+            throws QueryFailedException, QueryNeedsRepairException {
+        return createClient(mPrimaryKeyserver).search(query, proxy);
+    }
+
+    @Override
+    public void add(String armoredKey, ParcelableProxy proxy) throws AddKeyException {
+        createClient(mPrimaryKeyserver).add(armoredKey, proxy);
+    }
+
+    @Override
+    public String get(String keyIdHex, ParcelableProxy proxy) throws QueryFailedException {
+        if (proxy.isTorEnabled()) {
+            return createClient(mPrimaryKeyserver).get(keyIdHex, proxy);
+        }
+
+        List<HkpKeyserverAddress> candidates = getAvailableKeyservers();
+        int maxRequests = Math.min(MAX_REQUESTS_PER_LOOKUP, candidates.size());
+
+        ExecutorCompletionService<String> completionService = new ExecutorCompletionService<>(sLookupExecutor);
+        ArrayList<Future<String>> futures = new ArrayList<>();
+
+        QueryNotFoundException notFoundException = null;
+        QueryFailedException failedException = null;
+        try {
+            futures.add(completionService.submit(createLookup(candidates.get(0), keyIdHex, proxy)));
+
+            int finishedRequests = 0;
+            while (finishedRequests < futures.size()) {
+                Future<String> done;
+                if (futures.size() < maxRequests) {
+                    HkpKeyserverAddress lastKeyserver = candidates.get(futures.size() - 1);
+                    done = completionService.poll(
+                            mLatencyTracker.getHedgeDelayMillis(lastKeyserver), TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        HkpKeyserverAddress nextKeyserver = candidates.get(futures.size());
+                        Timber.d("No answer from " + lastKeyserver.getUrl() + " yet, hedging to "
+                                + nextKeyserver.getUrl());
+                        futures.add(completionService.submit(createLookup(nextKeyserver, keyIdHex, proxy)));
+                        continue;
+                    }
+                } else {
+                    done = completionService.take();
+                }
+
+                finishedRequests += 1;
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof QueryNotFoundException) {
+                        notFoundException = (QueryNotFoundException) cause;
+                    } else if (cause instanceof QueryFailedException) {
+                        failedException = (QueryFailedException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else {
+                        failedException = new QueryFailedException("lookup failed", cause);
+                    }
+                }
+
+                // no valid response from this keyserver, don't wait for the hedge delay
+                if (futures.size() < maxRequests) {
+                    futures.add(completionService.submit(
+                            createLookup(candidates.get(futures.size()), keyIdHex, proxy)));
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new QueryFailedException("interrupted");
+        } finally {
+            for (Future<String> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        // a keyserver that was reachable but doesn't know the key takes precedence over network errors
+        if (notFoundException != null) {
+            throw notFoundException;
+        }
+        throw failedException;
+    }
+
+    private List<HkpKeyserverAddress> getAvailableKeyservers() {
+        ArrayList<HkpKeyserverAddress> available = new ArrayList<>();
+        for (HkpKeyserverAddress keyserver : mKeyservers) {
+            if (mLatencyTracker.isAvailable(keyserver)) {
+                available.add(keyserver);
+            }
+        }
+        if (available.isEmpty()) {
+            // all circuits are open, better to try the primary than to fail right away
+            available.add(mPrimaryKeyserver);
+        }
+        return available;
+    }
+
+    private Callable<String> createLookup(final HkpKeyserverAddress keyserver, final String keyIdHex,
+            final ParcelableProxy proxy) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws QueryFailedException {
+                long startTime = SystemClock.elapsedRealtime();
+                try {
+                    String result = createClient(keyserver).get(keyIdHex, proxy);
+                    mLatencyTracker.recordSuccess(keyserver, SystemClock.elapsedRealtime() - startTime);
+                    return result;
+                } catch (QueryNotFoundException e) {
+                    // the keyserver did answer, so this counts towards its latency
+                    mLatencyTracker.recordSuccess(keyserver, SystemClock.elapsedRealtime() - startTime);
+                    throw e;
+                } catch (QueryFailedException e) {
+                    mLatencyTracker.recordFailure(keyserver);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    @VisibleForTesting
+    KeyserverClient createClient(HkpKeyserverAddress keyserver) {
+        return HkpKeyserverClient.fromHkpKeyserverAddress(keyserver);
+    }
+
+    private static ThreadPoolExecutor createLookupExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_LOOKUP_THREADS, MAX_LOOKUP_THREADS,
+                30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+}
@@ -29,6 +29,10 @@ public interface KeyserverClient {
             super(message);
         }
 
+        public CloudSearchFailureException(String message, Throwable cause) {
+            super(message, cause);
+        }
+
         public CloudSearchFailureException() {
             super();
         }
@@ -40,6 +44,10 @@ public interface KeyserverClient {
         public QueryFailedException(String message) {
             super(message);
         }
+
+        public QueryFailedException(String message, Throwable cause) {
+            super(message, cause);
+        }
     }
 
     class QueryNotFoundException extends QueryFailedException {
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+
+import timber.log.Timber;
+
+
+/**
+ * Keeps a small latency histogram and a circuit breaker per keyserver.
+ * <p/>
+ * The p95 of recent successful requests is used by {@link HedgedKeyserverClient} as the delay
+ * before a hedged request to a secondary keyserver is started. A keyserver failing
+ * {@link #FAILURES_UNTIL_OPEN} times in a row is skipped for {@link #OPEN_CIRCUIT_MILLIS}, after
+ * which a single request is let through again.
+ */
+public class KeyserverLatencyTracker {
+    private static final int SAMPLE_COUNT = 32;
+    private static final int MIN_SAMPLES_FOR_PERCENTILE = 5;
+
+    public static final long DEFAULT_HEDGE_DELAY_MILLIS = 3000;
+    @VisibleForTesting
+    static final long MIN_HEDGE_DELAY_MILLIS = 500;
+    @VisibleForTesting
+    static final long MAX_HEDGE_DELAY_MILLIS = 10000;
+
+    @VisibleForTesting
+    static final int FAILURES_UNTIL_OPEN = 3;
+    @VisibleForTesting
+    static final long OPEN_CIRCUIT_MILLIS = 60 * 1000;
+
+    private static KeyserverLatencyTracker sInstance;
+
+    private final HashMap<String, ServerStats> mStats = new HashMap<>();
+
+    public static synchronized KeyserverLatencyTracker getInstance() {
+        if (sInstance == null) {
+            sInstance = new KeyserverLatencyTracker();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    KeyserverLatencyTracker() {
+    }
+
+    public synchronized void recordSuccess(HkpKeyserverAddress keyserver, long latencyMillis) {
+        ServerStats stats = getStats(keyserver);
+        stats.mLatencies[stats.mNextSample] = latencyMillis;
+        stats.mNextSample = (stats.mNextSample + 1) % SAMPLE_COUNT;
+        stats.mSampleCount = Math.min(stats.mSampleCount + 1, SAMPLE_COUNT);
+
+        stats.mConsecutiveFailures = 0;
+        stats.mOpenUntil = 0;
+    }
+
+    public synchronized void recordFailure(HkpKeyserverAddress keyserver) {
+        ServerStats stats = getStats(keyserver);
+        stats.mConsecutiveFailures += 1;
+        if (stats.mConsecutiveFailures >= FAILURES_UNTIL_OPEN) {
+            Timber.d("Keyserver " + keyserver.getUrl() + " failed " + stats.mConsecutiveFailures
+                    + " times in a row, skipping it for a while");
+            stats.mOpenUntil = SystemClock.elapsedRealtime() + OPEN_CIRCUIT_MILLIS;
+        }
+    }
+
+    /**
+     * @return false if the circuit breaker for this keyserver is currently open
+     */
+    public synchronized boolean isAvailable(HkpKeyserverAddress keyserver) {
+        ServerStats stats = mStats.get(keyserver.getUrl());
+        return stats == null || SystemClock.elapsedRealtime() >= stats.mOpenUntil;
+    }
+
+    /**
+     * @return the time to wait for an answer from this keyserver before sending a hedged request
+     */
+    public synchronized long getHedgeDelayMillis(HkpKeyserverAddress keyserver) {
+        ServerStats stats = mStats.get(keyserver.getUrl());
+        if (stats == null || stats.mSampleCount < MIN_SAMPLES_FOR_PERCENTILE) {
+            return DEFAULT_HEDGE_DELAY_MILLIS;
+        }
+
+        long p95 = getPercentile(stats, 95);
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, Math.min(MAX_HEDGE_DELAY_MILLIS, p95));
+    }
+
+    private static long getPercentile(ServerStats stats, int percentile) {
+        long[] sorted = Arrays.copyOf(stats.mLatencies, stats.mSampleCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    private ServerStats getStats(HkpKeyserverAddress keyserver) {
+        ServerStats stats = mStats.get(keyserver.getUrl());
+        if (stats == null) {
+            stats = new ServerStats();
+            mStats.put(keyserver.getUrl(), stats);
+        }
+        return stats;
+    }
+
+    private static class ServerStats {
+        final long[] mLatencies = new long[SAMPLE_COUNT];
+        int mNextSample;
+        int mSampleCount;
+
+        int mConsecutiveFailures;
+        long mOpenUntil;
+    }
+
+}
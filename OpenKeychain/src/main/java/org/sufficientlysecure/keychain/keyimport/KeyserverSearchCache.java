@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import org.sufficientlysecure.keychain.util.LruCache;
+import org.sufficientlysecure.keychain.util.ParcelableProxy;
+import timber.log.Timber;
+
+
+/**
+ * Size-bounded cache of search results from {@link KeyserverClient#search}, keyed by
+ * (source, normalized query, proxy mode).
+ * <p/>
+ * Results are stored in marshalled form, so every hit hands out fresh {@link ImportKeysListEntry}
+ * objects which callers are free to modify. Entries expire after {@link #DEFAULT_TTL_MILLIS}, and
+ * if a cache dir is set the cache is additionally persisted there and read back lazily on first
+ * use. Writes happen in the background, at most once per {@link #WRITE_DELAY_MILLIS}, so a burst
+ * of searches costs a single write. Results of searches over Tor are kept in memory only, the
+ * queries of a Tor user must not end up on disk.
+ */
+public class KeyserverSearchCache {
+    private static final String CACHE_FILENAME = "keyserver_search.pcl";
+    private static final int CACHE_FILE_VERSION = 1;
+
+    public static final long DEFAULT_TTL_MILLIS = 15 * 60 * 1000;
+    private static final int MAX_ENTRIES = 64;
+    private static final int MAX_TOTAL_BYTES = 512 * 1024;
+    private static final long WRITE_DELAY_MILLIS = 5 * 1000;
+    private static final String PROXY_MODE_TOR = "tor";
+
+    private static final ScheduledThreadPoolExecutor sWriteExecutor = createWriteExecutor();
+
+    private static KeyserverSearchCache sInstance;
+
+    private final LruCache<String, CachedResult> mCache = new LruCache<>(MAX_ENTRIES);
+    private final long mTtlMillis;
+    private final int mMaxTotalBytes;
+    private int mTotalBytes;
+
+    private File mCacheDir;
+    private boolean mLoadedFromDisk;
+    private boolean mWriteScheduled;
+    // held while the cache file is written or deleted, always before the cache's own lock
+    private final Object mDiskLock = new Object();
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writeToDisk();
+        }
+    };
+
+    private long mHitCount;
+    private long mMissCount;
+
+    public static synchronized KeyserverSearchCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new KeyserverSearchCache(DEFAULT_TTL_MILLIS, MAX_TOTAL_BYTES);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    KeyserverSearchCache(long ttlMillis, int maxTotalBytes) {
+        mTtlMillis = ttlMillis;
+        mMaxTotalBytes = maxTotalBytes;
+    }
+
+    /**
+     * Enables persistence of this cache to the given directory. The file is not read until the
+     * cache is first accessed, so this is safe to call from the main thread.
+     */
+    public synchronized void setCacheDir(@Nullable File cacheDir) {
+        mCacheDir = cacheDir;
+        mLoadedFromDisk = false;
+    }
+
+    @Nullable
+    public synchronized List<ImportKeysListEntry> get(String source, String query, ParcelableProxy proxy) {
+        loadFromDiskIfNecessary();
+
+        String key = createKey(source, query, proxy);
+        CachedResult cached = mCache.get(key);
+        if (cached != null && isExpired(cached, System.currentTimeMillis())) {
+            removeEntry(key);
+            cached = null;
+        }
+
+        if (cached == null) {
+            mMissCount++;
+            return null;
+        }
+
+        mHitCount++;
+        Timber.d("Keyserver search cache hit for " + key + " (hit rate " + getHitRate() + ")");
+        return unmarshallEntries(cached.mData);
+    }
+
+    public synchronized void put(String source, String query, ParcelableProxy proxy,
+            List<ImportKeysListEntry> entries) {
+        loadFromDiskIfNecessary();
+
+        byte[] data = marshallEntries(entries);
+        if (data.length > mMaxTotalBytes) {
+            Timber.d("Not caching oversized keyserver search result (" + data.length + " bytes)");
+            return;
+        }
+
+        String key = createKey(source, query, proxy);
+        boolean persist = !proxy.isTorEnabled();
+        removeEntry(key);
+        addEntry(key, new CachedResult(System.currentTimeMillis(), data, persist));
+
+        if (persist) {
+            scheduleWrite();
+        }
+    }
+
+    public void clear() {
+        File cacheDir;
+        synchronized (this) {
+            mCache.clear();
+            mTotalBytes = 0;
+            cacheDir = mCacheDir;
+        }
+        if (cacheDir != null) {
+            // waits for a write in progress, which might otherwise put the file back
+            synchronized (mDiskLock) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(cacheDir, CACHE_FILENAME).delete();
+            }
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return fraction of lookups answered from the cache, or 0 if there were no lookups yet
+     */
+    public synchronized float getHitRate() {
+        long lookups = mHitCount + mMissCount;
+        return lookups == 0 ? 0f : (float) mHitCount / lookups;
+    }
+
+    public synchronized int size() {
+        return mCache.size();
+    }
+
+    @VisibleForTesting
+    static String createKey(String source, String query, ParcelableProxy proxy) {
+        return source + "|" + normalizeQuery(query) + "|" + getProxyMode(proxy);
+    }
+
+    private static String normalizeQuery(String query) {
+        return query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ENGLISH);
+    }
+
+    private static String getProxyMode(ParcelableProxy proxy) {
+        if (proxy.isTorEnabled()) {
+            return PROXY_MODE_TOR;
+        }
+        return proxy.getProxy() == Proxy.NO_PROXY ? "direct" : "proxy";
+    }
+
+    private boolean isExpired(CachedResult cached, long now) {
+        // also treat timestamps from the future as expired, the clock may have been changed
+        return now < cached.mTimestamp || now - cached.mTimestamp > mTtlMillis;
+    }
+
+    private void addEntry(String key, CachedResult cached) {
+        mCache.put(key, cached);
+        // entries evicted by the LruCache itself aren't reported back to us
+        recalculateTotalBytes();
+
+        // the LruCache only bounds the number of entries, evict by size here
+        Iterator<Map.Entry<String, CachedResult>> it = mCache.entrySet().iterator();
+        while (mTotalBytes > mMaxTotalBytes && it.hasNext()) {
+            Map.Entry<String, CachedResult> eldest = it.next();
+            mTotalBytes -= eldest.getValue().mData.length;
+            it.remove();
+        }
+    }
+
+    private void removeEntry(String key) {
+        CachedResult removed = mCache.remove(key);
+        if (removed != null) {
+            mTotalBytes -= removed.mData.length;
+        }
+    }
+
+    private void recalculateTotalBytes() {
+        int totalBytes = 0;
+        for (CachedResult cached : mCache.values()) {
+            totalBytes += cached.mData.length;
+        }
+        mTotalBytes = totalBytes;
+    }
+
+    private static byte[] marshallEntries(List<ImportKeysListEntry> entries) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeTypedList(entries);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static List<ImportKeysListEntry> unmarshallEntries(byte[] data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            ArrayList<ImportKeysListEntry> entries = new ArrayList<>();
+            parcel.readTypedList(entries, ImportKeysListEntry.CREATOR);
+            return entries;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private void loadFromDiskIfNecessary() {
+        if (mLoadedFromDisk || mCacheDir == null) {
+            return;
+        }
+        mLoadedFromDisk = true;
+
+        File cacheFile = new File(mCacheDir, CACHE_FILENAME);
+        if (!cacheFile.exists()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (in.readInt() != CACHE_FILE_VERSION) {
+                Timber.d("Discarding keyserver search cache with unknown version");
+                return;
+            }
+            int numEntries = in.readInt();
+            boolean hasTorEntries = false;
+            for (int i = 0; i < numEntries; i++) {
+                String key = in.readUTF();
+                long timestamp = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+
+                // written by versions which still persisted those, rewrite the file without them
+                if (key.endsWith("|" + PROXY_MODE_TOR)) {
+                    hasTorEntries = true;
+                    continue;
+                }
+                CachedResult cached = new CachedResult(timestamp, data, true);
+                if (!isExpired(cached, now) && !mCache.containsKey(key)) {
+                    addEntry(key, cached);
+                }
+            }
+            Timber.d("Loaded " + mCache.size() + " keyserver search results from cache");
+            if (hasTorEntries) {
+                scheduleWrite();
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Error reading keyserver search cache, discarding");
+            mCache.clear();
+            mTotalBytes = 0;
+            //noinspection ResultOfMethodCallIgnored
+            cacheFile.delete();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void scheduleWrite() {
+        if (mCacheDir == null || mWriteScheduled) {
+            return;
+        }
+        mWriteScheduled = true;
+        sWriteExecutor.schedule(mWriteRunnable, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes all persistable entries to the cache dir. Only the snapshot is taken with the cache
+     * locked, so searches aren't held up by the write.
+     */
+    @VisibleForTesting
+    void writeToDisk() {
+        synchronized (mDiskLock) {
+            File cacheDir;
+            ArrayList<String> keys = new ArrayList<>();
+            ArrayList<CachedResult> results = new ArrayList<>();
+            synchronized (this) {
+                mWriteScheduled = false;
+                cacheDir = mCacheDir;
+                if (cacheDir == null) {
+                    return;
+                }
+                for (Map.Entry<String, CachedResult> entry : mCache.entrySet()) {
+                    if (entry.getValue().mPersist) {
+                        keys.add(entry.getKey());
+                        results.add(entry.getValue());
+                    }
+                }
+            }
+
+            File cacheFile = new File(cacheDir, CACHE_FILENAME);
+            File tempFile = new File(cacheDir, CACHE_FILENAME + ".tmp");
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+                out.writeInt(CACHE_FILE_VERSION);
+                out.writeInt(keys.size());
+                for (int i = 0; i < keys.size(); i++) {
+                    CachedResult cached = results.get(i);
+                    out.writeUTF(keys.get(i));
+                    out.writeLong(cached.mTimestamp);
+                    out.writeInt(cached.mData.length);
+                    out.write(cached.mData);
+                }
+                out.close();
+                out = null;
+
+                if (!tempFile.renameTo(cacheFile)) {
+                    Timber.e("Could not move keyserver search cache into place");
+                }
+            } catch (IOException e) {
+                Timber.e(e, "Error writing keyserver search cache");
+            } finally {
+                closeQuietly(out);
+            }
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor createWriteExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setKeepAliveTime(30L, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nvm
+        }
+    }
+
+    private static class CachedResult {
+        final long mTimestamp;
+        @NonNull
+        final byte[] mData;
+        /** false for results which must never be written to disk */
+        final boolean mPersist;
+
+        CachedResult(long timestamp, @NonNull byte[] data, boolean persist) {
+            mTimestamp = timestamp;
+            mData = data;
+            mPersist = persist;
+        }
+    }
+
+}
@@ -5,6 +5,8 @@ import android.content.Context;
 
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.PregeneratedKeyPool;
+import org.sufficientlysecure.keychain.pgp.S2KCalibration;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.ui.keyview.loader.AsyncTaskLiveData;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
@@ -32,7 +34,9 @@ public class PgpKeyGenerationLiveData extends AsyncTaskLiveData<PgpEditKeyResult
             return null;
         }
 
-        PgpKeyOperation keyOperations = new PgpKeyOperation(new ProgressScaler());
+        PgpKeyOperation keyOperations = new PgpKeyOperation(new ProgressScaler(), null,
+                PregeneratedKeyPool.getInstance(getContext()));
+        keyOperations.setSecretKeyS2KCount(S2KCalibration.getInstance(getContext()).getSecretKeyS2KCount());
         return keyOperations.createSecretKeyRing(saveKeyringParcel);
     }
 }
@@ -20,6 +20,9 @@ package org.sufficientlysecure.keychain.network;
 
 import java.net.Proxy;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.CertificatePinner;
@@ -27,6 +30,7 @@ import okhttp3.OkHttpClient;
 
 public class OkHttpClientFactory {
     private static OkHttpClient client;
+    private static HashMap<List<Object>, OkHttpClient> sPinnedIfAvailableClients = new HashMap<>();
 
     public static OkHttpClient getSimpleClient() {
         if (client == null) {
@@ -55,7 +59,22 @@ public class OkHttpClientFactory {
         return getClientPinnedIfAvailable(url, proxy, true);
     }
 
-    private static OkHttpClient getClientPinnedIfAvailable(URL url, Proxy proxy, boolean followRedirects) {
+    /**
+     * Clients are shared per host and proxy, so consecutive requests to the same server, like
+     * uploading many keys, reuse its connection pool instead of connecting anew each time.
+     */
+    private static synchronized OkHttpClient getClientPinnedIfAvailable(URL url, Proxy proxy,
+            boolean followRedirects) {
+        List<Object> clientKey = Arrays.<Object>asList(url.getProtocol(), url.getHost(), proxy, followRedirects);
+        OkHttpClient pinnedClient = sPinnedIfAvailableClients.get(clientKey);
+        if (pinnedClient == null) {
+            pinnedClient = buildClientPinnedIfAvailable(url, proxy, followRedirects);
+            sPinnedIfAvailableClients.put(clientKey, pinnedClient);
+        }
+        return pinnedClient;
+    }
+
+    private static OkHttpClient buildClientPinnedIfAvailable(URL url, Proxy proxy, boolean followRedirects) {
         OkHttpClient.Builder builder = new OkHttpClient.Builder();
 
         builder.followRedirects(followRedirects)
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+
+
+/**
+ * Encodes the key blocks of a backup on a pool of worker threads, and writes them to the output
+ * stream in the order they were submitted.
+ * <p/>
+ * Encoded blocks are held in memory until it's their turn to be written, but submit() blocks
+ * while {@link #MAX_PENDING_PER_THREAD} blocks per thread are pending, so memory use is bounded
+ * regardless of the number of keys. All methods must be called from the same thread, which is
+ * also the only one writing to the output stream.
+ */
+class BackupEncodingPipeline {
+    private static final int MAX_THREADS = 4;
+    private static final int MAX_PENDING_PER_THREAD = 4;
+
+    interface BlockEncoder {
+        /**
+         * Called on a worker thread. Log entries must go to the given log, which is appended to
+         * the operation's log in order.
+         */
+        void encode(OperationLog log, OutputStream out) throws IOException;
+    }
+
+    private final OutputStream mOutStream;
+    private final OperationLog mLog;
+    private final ExecutorService mExecutor;
+    private final int mMaxPending;
+    private final ArrayDeque<Future<EncodedBlock>> mPending = new ArrayDeque<>();
+
+    BackupEncodingPipeline(OutputStream outStream, OperationLog log) {
+        this(outStream, log, Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS));
+    }
+
+    BackupEncodingPipeline(OutputStream outStream, OperationLog log, int numThreads) {
+        mOutStream = outStream;
+        mLog = log;
+        mExecutor = new ThreadPoolExecutor(numThreads, numThreads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mMaxPending = numThreads * MAX_PENDING_PER_THREAD;
+    }
+
+    void submit(final BlockEncoder encoder) throws IOException {
+        while (mPending.size() >= mMaxPending) {
+            writeNext();
+        }
+
+        mPending.add(mExecutor.submit(new Callable<EncodedBlock>() {
+            @Override
+            public EncodedBlock call() throws IOException {
+                OperationLog log = new OperationLog();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                encoder.encode(log, out);
+                return new EncodedBlock(out.toByteArray(), log);
+            }
+        }));
+    }
+
+    /**
+     * Writes out all pending blocks.
+     */
+    void finish() throws IOException {
+        while (!mPending.isEmpty()) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Stops the workers, discarding all blocks that weren't written yet. Must always be called,
+     * also after {@link #finish()}.
+     */
+    void close() {
+        for (Future<EncodedBlock> future : mPending) {
+            future.cancel(true);
+        }
+        mPending.clear();
+        mExecutor.shutdown();
+    }
+
+    private void writeNext() throws IOException {
+        EncodedBlock block;
+        try {
+            block = mPending.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while encoding backup", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+
+        mLog.addAll(block.mLog);
+        mOutStream.write(block.mData);
+    }
+
+    private static class EncodedBlock {
+        final byte[] mData;
+        final OperationLog mLog;
+
+        EncodedBlock(byte[] data, OperationLog log) {
+            mData = data;
+            mLog = log;
+        }
+    }
+
+}
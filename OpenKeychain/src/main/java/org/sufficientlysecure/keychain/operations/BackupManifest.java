@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import timber.log.Timber;
+
+
+/**
+ * Record of the most recent backup in a chain of incremental backups, kept in the app's private
+ * files dir. It holds a digest of each key in that backup, so the next increment only needs to
+ * include keys that were added or changed since.
+ * <p/>
+ * A chain starts with a full backup of generation 0. Each backup is self-describing: the first
+ * armored block of the archive carries an {@link ArchiveHeader} with the backup's id and
+ * generation, the id of the backup it builds upon, and the keys deleted since.
+ */
+class BackupManifest {
+    private static final String MANIFEST_FILENAME = "backup_manifest";
+    private static final int MANIFEST_VERSION = 1;
+
+    final long mBackupId;
+    final int mGeneration;
+    final boolean mIncludesSecret;
+    private final HashMap<Long, byte[]> mDigests;
+
+    BackupManifest(long backupId, int generation, boolean includesSecret, HashMap<Long, byte[]> digests) {
+        mBackupId = backupId;
+        mGeneration = generation;
+        mIncludesSecret = includesSecret;
+        mDigests = digests;
+    }
+
+    static long createBackupId() {
+        return new SecureRandom().nextLong();
+    }
+
+    @Nullable
+    byte[] getDigest(long masterKeyId) {
+        return mDigests.get(masterKeyId);
+    }
+
+    Collection<Long> getMasterKeyIds() {
+        return mDigests.keySet();
+    }
+
+    @Nullable
+    static BackupManifest load(Context context) {
+        File manifestFile = new File(context.getFilesDir(), MANIFEST_FILENAME);
+        if (!manifestFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)));
+            if (in.readInt() != MANIFEST_VERSION) {
+                return null;
+            }
+            long backupId = in.readLong();
+            int generation = in.readInt();
+            boolean includesSecret = in.readBoolean();
+
+            int numKeys = in.readInt();
+            HashMap<Long, byte[]> digests = new HashMap<>(numKeys);
+            for (int i = 0; i < numKeys; i++) {
+                long masterKeyId = in.readLong();
+                byte[] digest = new byte[in.readUnsignedByte()];
+                in.readFully(digest);
+                digests.put(masterKeyId, digest);
+            }
+
+            return new BackupManifest(backupId, generation, includesSecret, digests);
+        } catch (IOException e) {
+            Timber.e(e, "Error reading backup manifest, next backup will be a full one");
+            return null;
+        } finally {
+            if (in != null) try {
+                in.close();
+            } catch (IOException e) {
+                // nvm
+            }
+        }
+    }
+
+    /**
+     * Saves this manifest as the base for the next incremental backup. If that fails, any previous
+     * manifest is removed as well, since increments on top of it would no longer form a chain.
+     */
+    void save(Context context) throws IOException {
+        File manifestFile = new File(context.getFilesDir(), MANIFEST_FILENAME);
+        File tempFile = new File(context.getFilesDir(), MANIFEST_FILENAME + ".tmp");
+
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+            try {
+                out.writeInt(MANIFEST_VERSION);
+                out.writeLong(mBackupId);
+                out.writeInt(mGeneration);
+                out.writeBoolean(mIncludesSecret);
+
+                out.writeInt(mDigests.size());
+                for (HashMap.Entry<Long, byte[]> entry : mDigests.entrySet()) {
+                    out.writeLong(entry.getKey());
+                    out.writeByte(entry.getValue().length);
+                    out.write(entry.getValue());
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tempFile.renameTo(manifestFile)) {
+                throw new IOException("could not move backup manifest into place!");
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            manifestFile.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Describes a backup's place in its chain, stored as armor headers of its first key block.
+     */
+    static class ArchiveHeader {
+        static final String HEADER_ID = "Backup-Id";
+        static final String HEADER_GENERATION = "Backup-Generation";
+        static final String HEADER_BASE = "Backup-Base";
+        static final String HEADER_DELETED = "Backup-Deleted";
+
+        // the headers are read while the archive stream is marked, see read()
+        private static final int MAX_HEADER_BYTES = 64 * 1024;
+        // keeps the header well below MAX_HEADER_BYTES
+        static final int MAX_DELETED_KEYS = 2048;
+
+        final long mBackupId;
+        final int mGeneration;
+        final long mBaseBackupId;
+        @NonNull
+        final List<Long> mDeletedMasterKeyIds;
+
+        ArchiveHeader(long backupId, int generation, long baseBackupId, @NonNull List<Long> deletedMasterKeyIds) {
+            mBackupId = backupId;
+            mGeneration = generation;
+            mBaseBackupId = baseBackupId;
+            mDeletedMasterKeyIds = deletedMasterKeyIds;
+        }
+
+        List<String> toHeaders() {
+            ArrayList<String> headers = new ArrayList<>();
+            headers.add(HEADER_ID + ": " + KeyFormattingUtils.convertKeyIdToHex(mBackupId));
+            headers.add(HEADER_GENERATION + ": " + mGeneration);
+            if (mGeneration > 0) {
+                headers.add(HEADER_BASE + ": " + KeyFormattingUtils.convertKeyIdToHex(mBaseBackupId));
+            }
+            if (!mDeletedMasterKeyIds.isEmpty()) {
+                ArrayList<String> deleted = new ArrayList<>(mDeletedMasterKeyIds.size());
+                for (long masterKeyId : mDeletedMasterKeyIds) {
+                    deleted.add(KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+                }
+                headers.add(HEADER_DELETED + ": " + TextUtils.join(",", deleted));
+            }
+            return headers;
+        }
+
+        /**
+         * Reads the header of an archive without consuming any of it.
+         *
+         * @return the header, or null if the archive is not part of a backup chain
+         */
+        @Nullable
+        static ArchiveHeader read(BufferedInputStream in) throws IOException {
+            in.mark(MAX_HEADER_BYTES);
+            String[] armorHeaders;
+            try {
+                armorHeaders = new ArmoredInputStream(in).getArmorHeaders();
+            } finally {
+                in.reset();
+            }
+            if (armorHeaders == null) {
+                return null;
+            }
+
+            Long backupId = null, baseBackupId = null;
+            Integer generation = null;
+            ArrayList<Long> deletedMasterKeyIds = new ArrayList<>();
+            try {
+                for (String header : armorHeaders) {
+                    int sep = header.indexOf(": ");
+                    if (sep < 0) {
+                        continue;
+                    }
+                    String name = header.substring(0, sep);
+                    String value = header.substring(sep + 2).trim();
+                    switch (name) {
+                        case HEADER_ID:
+                            backupId = KeyFormattingUtils.convertKeyIdHexToKeyId(value);
+                            break;
+                        case HEADER_GENERATION:
+                            generation = Integer.parseInt(value);
+                            break;
+                        case HEADER_BASE:
+                            baseBackupId = KeyFormattingUtils.convertKeyIdHexToKeyId(value);
+                            break;
+                        case HEADER_DELETED:
+                            for (String masterKeyId : value.split(",")) {
+                                deletedMasterKeyIds.add(KeyFormattingUtils.convertKeyIdHexToKeyId(masterKeyId));
+                            }
+                            break;
+                    }
+                }
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                throw new IOException("malformed backup header", e);
+            }
+
+            if (backupId == null || generation == null || (generation > 0 && baseBackupId == null)) {
+                return null;
+            }
+            return new ArchiveHeader(backupId, generation, baseBackupId == null ? 0 : baseBackupId,
+                    deletedMasterKeyIds);
+        }
+    }
+
+}
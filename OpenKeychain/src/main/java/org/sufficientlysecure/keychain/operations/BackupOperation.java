@@ -19,21 +19,38 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
@@ -41,6 +58,8 @@ import android.text.TextUtils;
 import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.operations.BackupEncodingPipeline.BlockEncoder;
+import org.sufficientlysecure.keychain.operations.BackupManifest.ArchiveHeader;
 import org.sufficientlysecure.keychain.operations.results.ExportResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
@@ -56,14 +75,13 @@ import org.sufficientlysecure.keychain.provider.KeyRepository;
 import org.sufficientlysecure.keychain.provider.KeyRepository.NotFoundException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
-import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.BackupKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Numeric9x4PassphraseUtil;
-import org.sufficientlysecure.keychain.util.CountingOutputStream;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
 import timber.log.Timber;
 
 
@@ -76,6 +94,9 @@ import timber.log.Timber;
  * see org.sufficientlysecure.keychain.ui.adapter.ImportKeysAdapter#getSelectedEntries()
  * For the backup operation, the input consists of a set of key ids and
  * either the name of a file or an output uri to write to.
+ * <p/>
+ * Incremental backups always include all keys, but only write those that were added or changed
+ * since the previous incremental backup. See {@link BackupManifest} for how these are chained.
  */
 public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
 
@@ -89,6 +110,8 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
     // this is a very simple matcher, we only need basic sanitization
     private static final Pattern HEADER_PATTERN = Pattern.compile("[a-zA-Z0-9_-]+: [^\\n]+");
 
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+
     public BackupOperation(Context context, KeyRepository keyRepository, Progressable
             progressable) {
         super(context, keyRepository, progressable);
@@ -108,6 +131,10 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
     public ExportResult execute(@NonNull BackupKeyringParcel backupInput, @Nullable CryptoInputParcel cryptoInput,
                                 OutputStream outputStream) {
 
+        if (backupInput.getIsIncremental() && backupInput.getMasterKeyIds() != null) {
+            throw new IllegalArgumentException("Incremental backups must include all keys!");
+        }
+
         OperationLog log = new OperationLog();
         if (backupInput.getMasterKeyIds() != null) {
             log.add(LogType.MSG_BACKUP, 0, backupInput.getMasterKeyIds().length);
@@ -116,64 +143,104 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         }
 
         try {
-            Uri plainUri = null;
-            OutputStream plainOut;
-            if (backupInput.getIsEncrypted()) {
-                if (cryptoInput == null) {
-                    throw new IllegalStateException("Encrypted backup must supply cryptoInput parameter");
-                }
-
-                plainUri = TemporaryFileProvider.createFile(mContext);
-                plainOut = mContext.getContentResolver().openOutputStream(plainUri);
-            } else {
+            if (!backupInput.getIsEncrypted()) {
                 if (backupInput.getOutputUri() == null || outputStream != null) {
                     throw new IllegalArgumentException("Unencrypted export to output stream is not supported!");
-                } else {
-                    plainOut = mContext.getContentResolver().openOutputStream(backupInput.getOutputUri());
                 }
-            }
-
-            CountingOutputStream outStream = new CountingOutputStream(new BufferedOutputStream(plainOut));
-            boolean backupSuccess = exportKeysToStream(log, backupInput.getMasterKeyIds(),
-                    backupInput.getExportSecret(), backupInput.getExportPublic(), outStream, backupInput.getExtraHeaders());
 
-            if (!backupSuccess) {
-                // if there was an error, it will be in the log so we just have to return
-                return new ExportResult(ExportResult.RESULT_ERROR, log);
-            }
+                OutputStream plainOut = mContext.getContentResolver().openOutputStream(backupInput.getOutputUri());
+                ExportTask exportTask = new ExportTask(backupInput, log, new BufferedOutputStream(plainOut),
+                        mProgressable != null ? mProgressable : new ProgressScaler());
+                if (!exportTask.call()) {
+                    // if there was an error, it will be in the log so we just have to return
+                    return new ExportResult(ExportResult.RESULT_ERROR, log);
+                }
 
-            if (!backupInput.getIsEncrypted()) {
                 // log.add(LogType.MSG_EXPORT_NO_ENCRYPT, 1);
+                saveManifest(log, exportTask.mManifest);
                 log.add(LogType.MSG_BACKUP_SUCCESS, 1);
                 return new ExportResult(ExportResult.RESULT_OK, log);
             }
 
-            long exportedDataSize = outStream.getCount();
-            PgpSignEncryptResult encryptResult =
-                    encryptBackupData(backupInput, cryptoInput, outputStream, plainUri, exportedDataSize);
+            if (cryptoInput == null) {
+                throw new IllegalStateException("Encrypted backup must supply cryptoInput parameter");
+            }
+
+            // export on a separate thread, while this one encrypts the exported data as it comes in.
+            // this way, the plaintext is never stored as a whole, neither in memory nor on disk.
+            PipedInputStream plainIn = new PipedInputStream(PIPE_BUFFER_SIZE);
+            ExportProgress exportProgress = new ExportProgress();
+            // the export gets its own log, its errors may only be a consequence of failed encryption
+            OperationLog exportLog = new OperationLog();
+            ExportTask exportTask = new ExportTask(backupInput, exportLog,
+                    new BufferedOutputStream(new PipedOutputStream(plainIn)), exportProgress);
+            ExecutorService exportExecutor = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            Future<Boolean> exportFuture = exportExecutor.submit(exportTask);
+            exportExecutor.shutdown();
+
+            PgpSignEncryptResult encryptResult;
+            boolean backupSuccess;
+            try {
+                encryptResult = encryptBackupData(backupInput, cryptoInput, outputStream,
+                        new ProgressReportingInputStream(plainIn, exportProgress));
+            } finally {
+                // unblocks the export in case encryption stopped early
+                closeQuietly(plainIn);
+                // the export writes to the log, so we need to wait for it in any case
+                backupSuccess = awaitExport(exportFuture);
+            }
+            exportProgress.reportTo(mProgressable);
 
             if (!encryptResult.success()) {
+                // closing the pipe makes a running export fail with an IO error, which says
+                // nothing about the cause. the export's log is only kept if it was done already.
+                if (backupSuccess) {
+                    log.addAll(exportLog);
+                }
                 log.addByMerge(encryptResult, 1);
                 // log.add(LogType.MSG_EXPORT_ERROR_ENCRYPT, 1);
                 return new ExportResult(ExportResult.RESULT_ERROR, log);
             }
 
+            log.addAll(exportLog);
+            if (!backupSuccess) {
+                // if there was an error, it will be in the log so we just have to return
+                return new ExportResult(ExportResult.RESULT_ERROR, log);
+            }
+
             log.add(encryptResult, 1);
+            saveManifest(log, exportTask.mManifest);
             log.add(LogType.MSG_BACKUP_SUCCESS, 1);
             return new ExportResult(ExportResult.RESULT_OK, log);
 
         } catch (FileNotFoundException e) {
             log.add(LogType.MSG_BACKUP_ERROR_URI_OPEN, 1);
             return new ExportResult(ExportResult.RESULT_ERROR, log);
+        } catch (IOException e) {
+            log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
         }
 
     }
 
+    private static boolean awaitExport(Future<Boolean> exportFuture) {
+        try {
+            return exportFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     @NonNull
     private PgpSignEncryptResult encryptBackupData(@NonNull BackupKeyringParcel backupInput,
-            @NonNull CryptoInputParcel cryptoInput, @Nullable OutputStream outputStream, Uri plainUri, long exportedDataSize)
+            @NonNull CryptoInputParcel cryptoInput, @Nullable OutputStream outputStream, InputStream plainIn)
             throws FileNotFoundException {
-        PgpSignEncryptOperation signEncryptOperation = new PgpSignEncryptOperation(mContext, mKeyRepository, mProgressable, mCancelled);
+        // progress is reported for the export, which runs at the same pace, see ProgressReportingInputStream
+        PgpSignEncryptOperation signEncryptOperation = new PgpSignEncryptOperation(mContext, mKeyRepository, null, mCancelled);
 
         PgpSignEncryptData.Builder builder = PgpSignEncryptData.builder();
         Passphrase passphrase = cryptoInput.getPassphrase();
@@ -187,8 +254,6 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         }
         PgpSignEncryptData pgpSignEncryptData = builder.build();
 
-        InputStream inStream = mContext.getContentResolver().openInputStream(plainUri);
-
         String filename;
         long[] masterKeyIds = backupInput.getMasterKeyIds();
         if (masterKeyIds != null && masterKeyIds.length == 1) {
@@ -200,7 +265,7 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         }
         filename += backupInput.getExportSecret() ? Constants.FILE_EXTENSION_BACKUP_SECRET : Constants.FILE_EXTENSION_BACKUP_PUBLIC;
 
-        InputData inputData = new InputData(inStream, exportedDataSize, filename);
+        InputData inputData = new InputData(plainIn, InputData.UNKNOWN_FILESIZE, filename);
 
         OutputStream outStream;
         if (backupInput.getOutputUri() == null) {
@@ -219,79 +284,379 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
                 pgpSignEncryptData, CryptoInputParcel.createCryptoInputParcel(), inputData, outStream);
     }
 
+    /**
+     * Runs the export for a backup. For incremental backups, the manifest of the written backup
+     * is available afterwards.
+     */
+    private class ExportTask implements Callable<Boolean> {
+        private final BackupKeyringParcel mBackupInput;
+        private final OperationLog mLog;
+        private final OutputStream mOutStream;
+        private final Progressable mProgressable;
+
+        BackupManifest mManifest;
+
+        ExportTask(BackupKeyringParcel backupInput, OperationLog log, OutputStream outStream,
+                Progressable progressable) {
+            mBackupInput = backupInput;
+            mLog = log;
+            mOutStream = outStream;
+            mProgressable = progressable;
+        }
+
+        @Override
+        public Boolean call() {
+            if (mBackupInput.getIsIncremental()) {
+                mManifest = exportIncrementalToStream(mLog, BackupManifest.load(mContext),
+                        mBackupInput.getExportSecret(), mOutStream, mProgressable);
+                return mManifest != null;
+            }
+            return exportKeysToStream(mLog, mBackupInput.getMasterKeyIds(), mBackupInput.getExportSecret(),
+                    mBackupInput.getExportPublic(), mOutStream, mBackupInput.getExtraHeaders(), mProgressable);
+        }
+    }
+
+    /**
+     * Records the progress of an export running on another thread, to be reported from the
+     * operation thread. Progress can only be sent from there, see KeychainService.
+     */
+    private class ExportProgress implements Progressable {
+        private final AtomicInteger mCurrent = new AtomicInteger();
+        private volatile int mTotal;
+        private volatile String mMessage;
+
+        private int mReportedCurrent = -1;
+        private String mReportedMessage;
+
+        @Override
+        public void setProgress(String message, int current, int total) {
+            mMessage = message;
+            setProgress(current, total);
+        }
+
+        @Override
+        public void setProgress(int resourceId, int current, int total) {
+            setProgress(mContext.getString(resourceId), current, total);
+        }
+
+        @Override
+        public void setProgress(int current, int total) {
+            mTotal = total;
+            mCurrent.set(current);
+        }
+
+        @Override
+        public void setPreventCancel() {
+            // the export can be cancelled up to the end
+        }
+
+        /** Reports the latest progress to the given progressable, if it changed. Operation thread only. */
+        void reportTo(@Nullable Progressable progressable) {
+            int current = mCurrent.get();
+            String message = mMessage;
+            boolean messageChanged = !TextUtils.equals(message, mReportedMessage);
+            if (progressable == null || (current == mReportedCurrent && !messageChanged)) {
+                return;
+            }
+            if (messageChanged) {
+                progressable.setProgress(message, current, mTotal);
+            } else {
+                progressable.setProgress(current, mTotal);
+            }
+            mReportedCurrent = current;
+            mReportedMessage = message;
+        }
+    }
+
+    /**
+     * Reports the export progress whenever the encryption reads exported data. Both run at the
+     * same pace, and this way progress is reported from the operation thread.
+     */
+    private class ProgressReportingInputStream extends FilterInputStream {
+        private final ExportProgress mExportProgress;
+
+        ProgressReportingInputStream(InputStream in, ExportProgress exportProgress) {
+            super(in);
+            mExportProgress = exportProgress;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            mExportProgress.reportTo(mProgressable);
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            mExportProgress.reportTo(mProgressable);
+            return read;
+        }
+    }
+
     boolean exportKeysToStream(OperationLog log, long[] masterKeyIds, boolean exportSecret, boolean exportPublic,
             OutputStream outStream, List<String> extraSecretKeyHeaders) {
-        // noinspection unused TODO use these in a log entry
-        int okSecret = 0, okPublic = 0;
+        return exportKeysToStream(log, masterKeyIds, exportSecret, exportPublic, outStream, extraSecretKeyHeaders,
+                mProgressable != null ? mProgressable : new ProgressScaler());
+    }
 
+    private boolean exportKeysToStream(OperationLog log, long[] masterKeyIds, boolean exportSecret,
+            boolean exportPublic, OutputStream outStream, List<String> extraSecretKeyHeaders,
+            Progressable progressable) {
         int progress = 0;
 
         Cursor cursor = queryForKeys(masterKeyIds);
 
         if (cursor == null || !cursor.moveToFirst()) {
             log.add(LogType.MSG_BACKUP_ERROR_DB, 1);
+            if (cursor != null) {
+                cursor.close();
+            }
+            closeQuietly(outStream);
             return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
         }
 
+        BackupEncodingPipeline pipeline = new BackupEncodingPipeline(outStream, log);
         try {
 
             int numKeys = cursor.getCount();
 
-            updateProgress(mContext.getResources().getQuantityString(R.plurals.progress_exporting_key, numKeys),
-                    0, numKeys);
+            progressable.setProgress(
+                    mContext.getResources().getQuantityString(R.plurals.progress_exporting_key, numKeys), 0, numKeys);
 
             // For each public masterKey id
             while (!cursor.isAfterLast()) {
 
                 long masterKeyId = cursor.getLong(INDEX_MASTER_KEY_ID);
+                boolean exportSecretKey = exportSecret && cursor.getInt(INDEX_HAS_ANY_SECRET) > 0;
+
+                pipeline.submit(createKeyEncoder(masterKeyId, exportPublic, exportSecretKey,
+                        null, exportSecretKey ? extraSecretKeyHeaders : null));
+                if (exportSecretKey) {
+                    extraSecretKeyHeaders = null;
+                }
+
+                progressable.setProgress(progress++, numKeys);
+                cursor.moveToNext();
+            }
+
+            pipeline.finish();
+            progressable.setProgress(R.string.progress_done, numKeys, numKeys);
+
+        } catch (IOException e) {
+            log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
+            return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
+        } finally {
+            pipeline.close();
+            // Make sure the stream is closed
+            closeQuietly(outStream);
+            cursor.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Creates an encoder for the armored blocks of a single key, to be run on the pipeline.
+     */
+    private BlockEncoder createKeyEncoder(final long masterKeyId, final boolean exportPublic,
+            final boolean exportSecretKey, final List<String> publicKeyHeaders, final List<String> secretKeyHeaders) {
+        return new BlockEncoder() {
+            @Override
+            public void encode(OperationLog log, OutputStream out) throws IOException {
                 log.add(LogType.MSG_BACKUP_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
 
                 boolean publicKeyWriteOk = false;
                 if (exportPublic) {
-                    publicKeyWriteOk = writePublicKeyToStream(masterKeyId, log, outStream);
-                    if (publicKeyWriteOk) {
-                        okPublic += 1;
-                    }
+                    publicKeyWriteOk = writePublicKeyToStream(masterKeyId, log, out, publicKeyHeaders);
+                }
+
+                if ((publicKeyWriteOk || !exportPublic) && exportSecretKey) {
+                    log.add(LogType.MSG_BACKUP_SECRET, 2, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+                    writeSecretKeyToStream(masterKeyId, log, out, secretKeyHeaders);
                 }
+            }
+        };
+    }
+
+    /**
+     * Writes an incremental backup of all keys, see {@link BackupManifest}.
+     *
+     * @param baseManifest manifest of the previous backup in the chain, or null to start a new one
+     * @return the manifest of the written backup, or null if there was an error
+     */
+    @Nullable
+    BackupManifest exportIncrementalToStream(OperationLog log, @Nullable BackupManifest baseManifest,
+            boolean exportSecret, OutputStream outStream) {
+        return exportIncrementalToStream(log, baseManifest, exportSecret, outStream,
+                mProgressable != null ? mProgressable : new ProgressScaler());
+    }
+
+    @Nullable
+    private BackupManifest exportIncrementalToStream(OperationLog log, @Nullable BackupManifest baseManifest,
+            boolean exportSecret, OutputStream outStream, Progressable progressable) {
+        if (baseManifest != null && baseManifest.mIncludesSecret != exportSecret) {
+            baseManifest = null;
+        }
+
+        Cursor cursor = queryForKeys(null);
+
+        if (cursor == null || !cursor.moveToFirst()) {
+            log.add(LogType.MSG_BACKUP_ERROR_DB, 1);
+            if (cursor != null) {
+                cursor.close();
+            }
+            closeQuietly(outStream);
+            return null;
+        }
 
-                if (publicKeyWriteOk || !exportPublic) {
-                    boolean hasSecret = cursor.getInt(INDEX_HAS_ANY_SECRET) > 0;
-                    if (exportSecret && hasSecret) {
-                        log.add(LogType.MSG_BACKUP_SECRET, 2, KeyFormattingUtils.beautifyKeyId(masterKeyId));
-                        if (writeSecretKeyToStream(masterKeyId, log, outStream, extraSecretKeyHeaders)) {
-                            okSecret += 1;
-                        }
-                        extraSecretKeyHeaders = null;
+        BackupEncodingPipeline pipeline = new BackupEncodingPipeline(outStream, log);
+        try {
+
+            ArrayList<Long> deletedMasterKeyIds = new ArrayList<>();
+            if (baseManifest != null) {
+                HashSet<Long> masterKeyIds = new HashSet<>();
+                do {
+                    masterKeyIds.add(cursor.getLong(INDEX_MASTER_KEY_ID));
+                } while (cursor.moveToNext());
+                cursor.moveToFirst();
+
+                for (Long masterKeyId : baseManifest.getMasterKeyIds()) {
+                    if (!masterKeyIds.contains(masterKeyId)) {
+                        deletedMasterKeyIds.add(masterKeyId);
                     }
                 }
 
-                updateProgress(progress++, numKeys);
+                // too many deletions to list in the header, it's better to start over anyways
+                if (deletedMasterKeyIds.size() > ArchiveHeader.MAX_DELETED_KEYS) {
+                    baseManifest = null;
+                    deletedMasterKeyIds.clear();
+                }
+            }
+
+            long backupId = BackupManifest.createBackupId();
+            ArchiveHeader archiveHeader;
+            if (baseManifest == null) {
+                log.add(LogType.MSG_BACKUP_INCREMENTAL_FULL, 1);
+                archiveHeader = new ArchiveHeader(backupId, 0, 0, deletedMasterKeyIds);
+            } else {
+                log.add(LogType.MSG_BACKUP_INCREMENTAL, 1, baseManifest.mGeneration + 1);
+                archiveHeader = new ArchiveHeader(backupId, baseManifest.mGeneration + 1,
+                        baseManifest.mBackupId, deletedMasterKeyIds);
+            }
+            // the header goes on the first written key block
+            List<String> pendingHeaders = archiveHeader.toHeaders();
+
+            int numKeys = cursor.getCount();
+            int progress = 0, changedKeys = 0;
+            HashMap<Long, byte[]> digests = new HashMap<>(numKeys);
+            // every archive must contain at least one key block to carry the header
+            Long carrierMasterKeyId = null;
+            boolean carrierExportSecret = false;
+
+            progressable.setProgress(
+                    mContext.getResources().getQuantityString(R.plurals.progress_exporting_key, numKeys), 0, numKeys);
+
+            while (!cursor.isAfterLast()) {
+
+                long masterKeyId = cursor.getLong(INDEX_MASTER_KEY_ID);
+                boolean exportSecretKey = exportSecret && cursor.getInt(INDEX_HAS_ANY_SECRET) > 0;
+
+                byte[] digest = null;
+                try {
+                    digest = digestKeyRing(masterKeyId, exportSecretKey);
+                    digests.put(masterKeyId, digest);
+                } catch (NotFoundException e) {
+                    log.add(LogType.MSG_UPLOAD_ERROR_IO, 2);
+                }
+
+                boolean unchanged = baseManifest != null
+                        && Arrays.equals(digest, baseManifest.getDigest(masterKeyId));
+
+                if (digest != null && !unchanged) {
+                    pipeline.submit(createKeyEncoder(masterKeyId, true, exportSecretKey, pendingHeaders, null));
+                    pendingHeaders = null;
+                    changedKeys += 1;
+                } else if (digest != null && carrierMasterKeyId == null) {
+                    carrierMasterKeyId = masterKeyId;
+                    carrierExportSecret = exportSecretKey;
+                }
+
+                progressable.setProgress(progress++, numKeys);
                 cursor.moveToNext();
             }
 
-            updateProgress(R.string.progress_done, numKeys, numKeys);
+            if (pendingHeaders != null) {
+                if (carrierMasterKeyId == null) {
+                    // not a single key could be read
+                    log.add(LogType.MSG_BACKUP_ERROR_DB, 1);
+                    return null;
+                }
+                // nothing changed, an unchanged key is written again just for the header
+                pipeline.submit(createKeyEncoder(carrierMasterKeyId, true, carrierExportSecret, pendingHeaders, null));
+                changedKeys += 1;
+            }
+
+            pipeline.finish();
+            log.add(LogType.MSG_BACKUP_INCREMENTAL_CHANGES, 1, changedKeys, deletedMasterKeyIds.size());
+            progressable.setProgress(R.string.progress_done, numKeys, numKeys);
+
+            return new BackupManifest(backupId, archiveHeader.mGeneration, exportSecret, digests);
 
         } catch (IOException e) {
             log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
-            return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
+            return null;
         } finally {
-            // Make sure the stream is closed
-            if (outStream != null) try {
-                outStream.close();
-            } catch (Exception e) {
-                Timber.e(e, "error closing stream");
-            }
+            pipeline.close();
+            closeQuietly(outStream);
             cursor.close();
         }
+    }
 
-        return true;
+    private byte[] digestKeyRing(long masterKeyId, boolean includeSecret) throws NotFoundException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available");
+        }
+        digest.update(mKeyRepository.loadPublicKeyRingData(masterKeyId));
+        if (includeSecret) {
+            digest.update(mKeyRepository.loadSecretKeyRingData(masterKeyId));
+        }
+        return digest.digest();
     }
 
-    private boolean writePublicKeyToStream(long masterKeyId, OperationLog log, OutputStream outStream) throws IOException {
+    private void saveManifest(OperationLog log, @Nullable BackupManifest manifest) {
+        if (manifest == null) {
+            return;
+        }
+        try {
+            manifest.save(mContext);
+        } catch (IOException e) {
+            Timber.e(e, "Error saving backup manifest");
+            log.add(LogType.MSG_BACKUP_INCREMENTAL_WARN_MANIFEST, 1);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            Timber.e(e, "error closing stream");
+        }
+    }
+
+    private boolean writePublicKeyToStream(long masterKeyId, OperationLog log, OutputStream outStream,
+            List<String> extraHeaders) throws IOException {
         ArmoredOutputStream arOutStream = null;
 
         try {
             arOutStream = new ArmoredOutputStream(outStream);
+            if (extraHeaders != null) {
+                addExtraHeadersToStream(arOutStream, extraHeaders);
+            }
             byte[] data = mKeyRepository.loadPublicKeyRingData(masterKeyId);
             UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(data);
             CanonicalizedPublicKeyRing ring = (CanonicalizedPublicKeyRing) uncachedKeyRing.canonicalize(log, 2, true);
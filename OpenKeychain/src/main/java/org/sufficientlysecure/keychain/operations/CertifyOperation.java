@@ -19,11 +19,22 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import android.content.ContentProviderOperation;
 import android.content.Context;
 import android.support.annotation.NonNull;
 
+import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.results.CertifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
@@ -62,6 +73,10 @@ import org.sufficientlysecure.keychain.util.Passphrase;
  * @see CertifyActionsParcel
  */
 public class CertifyOperation extends BaseReadWriteOperation<CertifyActionsParcel> {
+    private static final int MAX_CERTIFY_THREADS = 4;
+    // uploads mostly wait for the network, and share the keyserver's connection pool
+    private static final int MAX_UPLOAD_THREADS = 4;
+
     private final LastUpdateInteractor lastUpdateInteractor;
 
     public CertifyOperation(Context context, KeyWritableRepository databaseInteractor, Progressable progressable, AtomicBoolean
@@ -140,8 +155,6 @@ public class CertifyOperation extends BaseReadWriteOperation<CertifyActionsParce
             return new CertifyResult(CertifyResult.RESULT_ERROR, log);
         }
 
-        ArrayList<UncachedKeyRing> certifiedKeys = new ArrayList<>();
-
         log.add(LogType.MSG_CRT_CERTIFYING, 1);
 
         int certifyOk = 0, certifyError = 0, uploadOk = 0, uploadError = 0;
@@ -149,31 +162,59 @@ public class CertifyOperation extends BaseReadWriteOperation<CertifyActionsParce
         SecurityTokenSignOperationsBuilder allRequiredInput = new SecurityTokenSignOperationsBuilder(
                 cryptoInput.getSignatureTime(), masterKeyId, masterKeyId);
 
-        // Work through all requested certifications
-        for (CertifyAction action : parcel.getCertifyActions()) {
+        // Work through all requested certifications. Certificates are generated in parallel with
+        // the unlocked key, while the next public keyrings are loaded.
+        List<CertifyAction> certifyActions = parcel.getCertifyActions();
+        LinkedHashMap<Long, UncachedKeyRing> certifiedKeys = new LinkedHashMap<>();
+        ArrayList<PendingCertification> pendingCertifications = new ArrayList<>(certifyActions.size());
+        ExecutorService certifyExecutor = createExecutor(certifyActions.size(), MAX_CERTIFY_THREADS);
+        try {
+            for (CertifyAction action : certifyActions) {
 
-            // Check if we were cancelled
-            if (checkCancelled()) {
-                log.add(LogType.MSG_OPERATION_CANCELLED, 0);
-                return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
-            }
+                // Check if we were cancelled
+                if (checkCancelled()) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
+                }
 
-            try {
+                PendingCertification pendingCertification = new PendingCertification();
+                pendingCertifications.add(pendingCertification);
 
                 if (action.getMasterKeyId() == parcel.getMasterKeyId()) {
-                    log.add(LogType.MSG_CRT_ERROR_SELF, 2);
-                    certifyError += 1;
+                    pendingCertification.mLog.add(LogType.MSG_CRT_ERROR_SELF, 2);
                     continue;
                 }
 
-                CanonicalizedPublicKeyRing publicRing =
-                        mKeyRepository.getCanonicalizedPublicKeyRing(action.getMasterKeyId());
+                try {
+                    CanonicalizedPublicKeyRing publicRing =
+                            mKeyRepository.getCanonicalizedPublicKeyRing(action.getMasterKeyId());
+                    pendingCertification.mResult = certifyExecutor.submit(createCertifyTask(certificationKey,
+                            publicRing, pendingCertification.mLog, action, cryptoInput));
+                } catch (NotFoundException e) {
+                    pendingCertification.mLog.add(LogType.MSG_CRT_WARN_NOT_FOUND, 3);
+                }
 
-                PgpCertifyOperation op = new PgpCertifyOperation();
-                PgpCertifyResult result = op.certify(certificationKey, publicRing,
-                        log, 2, action, cryptoInput.getCryptoData(), cryptoInput.getSignatureTime());
+            }
 
-                if (!result.success()) {
+            // collect in order, so the log follows the order of the certify actions
+            for (int i = 0; i < pendingCertifications.size(); i++) {
+                updateProgress(R.string.progress_certifying, i, pendingCertifications.size());
+                PendingCertification pendingCertification = pendingCertifications.get(i);
+
+                PgpCertifyResult result = null;
+                if (pendingCertification.mResult != null) {
+                    try {
+                        result = pendingCertification.mResult.get();
+                    } catch (InterruptedException e) {
+                        log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                        return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException(e.getCause());
+                    }
+                }
+                log.addAll(pendingCertification.mLog);
+
+                if (result == null || !result.success()) {
                     certifyError += 1;
                     continue;
                 }
@@ -183,13 +224,20 @@ public class CertifyOperation extends BaseReadWriteOperation<CertifyActionsParce
                     continue;
                 }
 
-                certifiedKeys.add(result.getCertifiedRing());
-
-            } catch (NotFoundException e) {
-                certifyError += 1;
-                log.add(LogType.MSG_CRT_WARN_NOT_FOUND, 3);
+                UncachedKeyRing certifiedRing = result.getCertifiedRing();
+                UncachedKeyRing previousRing = certifiedKeys.get(certifiedRing.getMasterKeyId());
+                if (previousRing != null) {
+                    // several actions for the same key, those must be saved together
+                    certifiedRing = previousRing.merge(certifiedRing, log, 2);
+                    if (certifiedRing == null) {
+                        certifyError += 1;
+                        continue;
+                    }
+                }
+                certifiedKeys.put(certifiedRing.getMasterKeyId(), certifiedRing);
             }
-
+        } finally {
+            certifyExecutor.shutdownNow();
         }
 
         if (!allRequiredInput.isEmpty()) {
@@ -205,14 +253,13 @@ public class CertifyOperation extends BaseReadWriteOperation<CertifyActionsParce
             return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
         }
 
-        // these variables are used inside the following loop, but they need to be created only once
-        UploadOperation uploadOperation = null;
-        if (parcel.getParcelableKeyServer() != null) {
-            uploadOperation = new UploadOperation(mContext, mKeyRepository, mProgressable, mCancelled);
-        }
-
-        // Write all certified keys into the database
-        for (UncachedKeyRing certifiedKey : certifiedKeys) {
+        // Write all certified keys into the database, in a single transaction. The trust of the
+        // certified keys is updated as part of saving them.
+        ArrayList<ContentProviderOperation> batchOperations = new ArrayList<>();
+        ArrayList<Long> savedMasterKeyIds = new ArrayList<>();
+        // logs of keys in the batch, they only become true once the batch was applied
+        ArrayList<SaveKeyringResult> savedResults = new ArrayList<>();
+        for (UncachedKeyRing certifiedKey : certifiedKeys.values()) {
 
             // Check if we were cancelled
             if (checkCancelled()) {
@@ -221,34 +268,81 @@ public class CertifyOperation extends BaseReadWriteOperation<CertifyActionsParce
                         uploadError);
             }
 
-            log.add(LogType.MSG_CRT_SAVE, 2,
-                    KeyFormattingUtils.convertKeyIdToHex(certifiedKey.getMasterKeyId()));
             // store the signed key in our local cache
             mKeyRepository.clearLog();
-            SaveKeyringResult result = mKeyWritableRepository.savePublicKeyRing(certifiedKey);
-
-            if (uploadOperation != null) {
-                UploadKeyringParcel uploadInput = UploadKeyringParcel.createWithKeyId(
-                        parcel.getParcelableKeyServer(), certifiedKey.getMasterKeyId());
-                UploadResult uploadResult = uploadOperation.execute(uploadInput, cryptoInput);
-                log.add(uploadResult, 2);
-
-                if (uploadResult.success()) {
-                    lastUpdateInteractor.renewKeyLastUpdatedTime(certifiedKey.getMasterKeyId(), true);
+            SaveKeyringResult result = mKeyWritableRepository.savePublicKeyRingToBatch(certifiedKey, batchOperations);
 
-                    uploadOk += 1;
-                } else {
-                    uploadError += 1;
-                }
+            if (result.success()) {
+                savedMasterKeyIds.add(certifiedKey.getMasterKeyId());
+                savedResults.add(result);
+            } else {
+                log.add(LogType.MSG_CRT_SAVE, 2,
+                        KeyFormattingUtils.convertKeyIdToHex(certifiedKey.getMasterKeyId()));
+                log.add(LogType.MSG_CRT_WARN_SAVE_FAILED, 3);
+                log.add(result, 2);
             }
+        }
 
-            if (result.success()) {
-                certifyOk += 1;
+        // this can't be cancelled anymore, since the transaction is applied as a whole
+        setPreventCancel();
+        boolean batchApplied = mKeyWritableRepository.applyKeyRingBatch(batchOperations);
+        for (int i = 0; i < savedMasterKeyIds.size(); i++) {
+            log.add(LogType.MSG_CRT_SAVE, 2, KeyFormattingUtils.convertKeyIdToHex(savedMasterKeyIds.get(i)));
+            if (batchApplied) {
+                log.add(savedResults.get(i), 2);
             } else {
+                // none of the keys in the batch were saved, whatever their own logs say
                 log.add(LogType.MSG_CRT_WARN_SAVE_FAILED, 3);
+                log.add(LogType.MSG_IP_ERROR_OP_EXC, 3);
             }
+        }
+        if (batchApplied) {
+            certifyOk = savedMasterKeyIds.size();
+        } else {
+            log.add(LogType.MSG_CRT_WARN_SAVE_FAILED, 2);
+            savedMasterKeyIds.clear();
+        }
+
+        // Upload all saved keys, several at once over the same connections
+        if (parcel.getParcelableKeyServer() != null && !savedMasterKeyIds.isEmpty()) {
+            UploadOperation uploadOperation = new UploadOperation(mContext, mKeyRepository, null, mCancelled);
 
-            log.add(result, 2);
+            ArrayList<Future<UploadResult>> uploadResults = new ArrayList<>(savedMasterKeyIds.size());
+            ExecutorService uploadExecutor = createExecutor(savedMasterKeyIds.size(), MAX_UPLOAD_THREADS);
+            try {
+                for (long savedMasterKeyId : savedMasterKeyIds) {
+                    UploadKeyringParcel uploadInput = UploadKeyringParcel.createWithKeyId(
+                            parcel.getParcelableKeyServer(), savedMasterKeyId);
+                    uploadResults.add(uploadExecutor.submit(
+                            createUploadTask(uploadOperation, uploadInput, cryptoInput)));
+                }
+
+                for (int i = 0; i < uploadResults.size(); i++) {
+                    updateProgress(R.string.progress_uploading, i, uploadResults.size());
+
+                    UploadResult uploadResult;
+                    try {
+                        uploadResult = uploadResults.get(i).get();
+                    } catch (InterruptedException e) {
+                        log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                        return new CertifyResult(CertifyResult.RESULT_CANCELLED, log, certifyOk, certifyError,
+                                uploadOk, uploadError);
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException(e.getCause());
+                    }
+                    log.add(uploadResult, 2);
+
+                    if (uploadResult.success()) {
+                        lastUpdateInteractor.renewKeyLastUpdatedTime(savedMasterKeyIds.get(i), true);
+
+                        uploadOk += 1;
+                    } else {
+                        uploadError += 1;
+                    }
+                }
+            } finally {
+                uploadExecutor.shutdownNow();
+            }
         }
 
         if (certifyOk == 0) {
@@ -270,4 +364,40 @@ public class CertifyOperation extends BaseReadWriteOperation<CertifyActionsParce
 
     }
 
+    private static Callable<PgpCertifyResult> createCertifyTask(final CanonicalizedSecretKey certificationKey,
+            final CanonicalizedPublicKeyRing publicRing, final OperationLog log, final CertifyAction action,
+            final CryptoInputParcel cryptoInput) {
+        return new Callable<PgpCertifyResult>() {
+            @Override
+            public PgpCertifyResult call() {
+                PgpCertifyOperation op = new PgpCertifyOperation();
+                return op.certify(certificationKey, publicRing,
+                        log, 2, action, cryptoInput.getCryptoData(), cryptoInput.getSignatureTime());
+            }
+        };
+    }
+
+    private static Callable<UploadResult> createUploadTask(final UploadOperation uploadOperation,
+            final UploadKeyringParcel uploadInput, final CryptoInputParcel cryptoInput) {
+        return new Callable<UploadResult>() {
+            @Override
+            public UploadResult call() {
+                return uploadOperation.execute(uploadInput, cryptoInput);
+            }
+        };
+    }
+
+    private static ExecutorService createExecutor(int numTasks, int maxThreads) {
+        int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), maxThreads);
+        numThreads = Math.max(1, Math.min(numThreads, numTasks));
+        return new ThreadPoolExecutor(numThreads, numThreads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+    }
+
+    /** A certify action with its own log, which is merged once its certificates are generated. */
+    private static class PendingCertification {
+        final OperationLog mLog = new OperationLog();
+        Future<PgpCertifyResult> mResult;
+    }
+
 }
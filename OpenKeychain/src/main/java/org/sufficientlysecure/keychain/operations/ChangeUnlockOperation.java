@@ -28,6 +28,7 @@ import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.S2KCalibration;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
 import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
@@ -57,6 +58,7 @@ public class ChangeUnlockOperation extends BaseReadWriteOperation<ChangeUnlockPa
         {
             PgpKeyOperation keyOperations =
                     new PgpKeyOperation(new ProgressScaler(mProgressable, 0, 70, 100));
+            keyOperations.setSecretKeyS2KCount(S2KCalibration.getInstance(mContext).getSecretKeyS2KCount());
 
             try {
                     log.add(OperationResult.LogType.MSG_ED_FETCHING, 1,
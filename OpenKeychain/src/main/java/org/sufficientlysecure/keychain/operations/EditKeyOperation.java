@@ -33,6 +33,8 @@ import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.operations.results.UploadResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.PregeneratedKeyPool;
+import org.sufficientlysecure.keychain.pgp.S2KCalibration;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.provider.KeyRepository.NotFoundException;
@@ -91,7 +93,9 @@ public class EditKeyOperation extends BaseReadWriteOperation<SaveKeyringParcel>
         PgpEditKeyResult modifyResult;
         {
             PgpKeyOperation keyOperations =
-                    new PgpKeyOperation(new ProgressScaler(mProgressable, 10, 60, 100), mCancelled);
+                    new PgpKeyOperation(new ProgressScaler(mProgressable, 10, 60, 100), mCancelled,
+                            PregeneratedKeyPool.getInstance(mContext));
+            keyOperations.setSecretKeyS2KCount(S2KCalibration.getInstance(mContext).getSecretKeyS2KCount());
 
             // If a key id is specified, fetch and edit
             if (!isNewKey) {
@@ -18,32 +18,54 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
+import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import org.bouncycastle.bcpg.BCPGInputStream;
+import org.bouncycastle.bcpg.Packet;
+import org.bouncycastle.bcpg.PublicKeyPacket;
+import org.bouncycastle.bcpg.SecretKeyPacket;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.FacebookKeyserverClient;
+import org.sufficientlysecure.keychain.keyimport.HedgedKeyserverClient;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserverAddress;
-import org.sufficientlysecure.keychain.keyimport.HkpKeyserverClient;
 import org.sufficientlysecure.keychain.keyimport.KeybaseKeyserverClient;
 import org.sufficientlysecure.keychain.keyimport.KeyserverClient;
 import org.sufficientlysecure.keychain.keyimport.KeyserverClient.QueryNotFoundException;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.network.orbot.OrbotHelper;
+import org.sufficientlysecure.keychain.operations.BackupManifest.ArchiveHeader;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
@@ -53,6 +75,7 @@ import org.sufficientlysecure.keychain.operations.results.UpdateTrustResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
 import org.sufficientlysecure.keychain.provider.LastUpdateInteractor;
@@ -63,6 +86,7 @@ import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.IteratorWithSize;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.CacheReader;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
@@ -87,14 +111,21 @@ import timber.log.Timber;
 public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel> {
 
     private static final int MAX_THREADS = 10;
+    // below this, splitting an import from file isn't worth the additional threads
+    private static final int MIN_KEYS_PER_SLICE = 50;
+    private static final long SLICE_PROGRESS_POLL_MS = 100;
 
     public static final String CACHE_FILE_NAME = "key_import.pcl";
+    private static final String BACKUP_CHAIN_CACHE_FILE_NAME = "backup_chain_import.pcl";
 
     private final LastUpdateInteractor lastUpdateInteractor;
 
     private FacebookKeyserverClient facebookServer;
     private KeybaseKeyserverClient keybaseServer;
 
+    // keyservers for hedged requests, in case the requested keyserver is slow
+    private List<HkpKeyserverAddress> secondaryKeyservers = Collections.emptyList();
+
     public ImportOperation(Context context, KeyWritableRepository databaseInteractor, Progressable progressable) {
         super(context, databaseInteractor, progressable);
 
@@ -115,15 +146,12 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
     }
 
     @NonNull
-    private ImportKeyResult serialKeyRingImport(ParcelableFileCache<ParcelableKeyRing> cache,
-                                                HkpKeyserverAddress keyserver, ParcelableProxy proxy, boolean skipSave) {
+    private ImportKeyResult cachedKeyRingImport(ParcelableFileCache<ParcelableKeyRing> cache, boolean skipSave) {
 
         // get entries from cached file
+        CacheReader<ParcelableKeyRing> reader;
         try {
-            IteratorWithSize<ParcelableKeyRing> it = cache.readCache();
-            int numEntries = it.getSize();
-
-            return serialKeyRingImport(it, numEntries, keyserver, mProgressable, proxy, skipSave);
+            reader = cache.openCache();
         } catch (IOException e) {
 
             // Special treatment here, we need a lot
@@ -134,6 +162,352 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
             return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log);
         }
 
+        try {
+            int numSlices = Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS);
+            numSlices = Math.min(numSlices, reader.getSize() / MIN_KEYS_PER_SLICE);
+            if (numSlices <= 1) {
+                IteratorWithSize<ParcelableKeyRing> it = reader.iterator();
+                return serialKeyRingImport(it, it.getSize(), null, mProgressable, null, skipSave);
+            }
+
+            return slicedKeyRingImport(splitByMasterKeyId(reader, numSlices), reader.getSize(), skipSave);
+        } finally {
+            try {
+                cache.delete();
+            } catch (IOException e) {
+                // nvm
+            }
+        }
+    }
+
+    /**
+     * Splits the entries of a key list into at most numSlices slices, such that all entries of the
+     * same master key end up in the same slice, in their original order. Otherwise, the public
+     * and secret keyring of a key could be saved by two slices at the same time.
+     */
+    private static List<IteratorWithSize<ParcelableKeyRing>> splitByMasterKeyId(
+            CacheReader<ParcelableKeyRing> reader, int numSlices) {
+        int size = reader.getSize();
+        int[] sliceOfEntry = new int[size];
+        int[] sliceSizes = new int[numSlices];
+        HashMap<Long, Integer> sliceOfMasterKeyId = new HashMap<>();
+
+        IteratorWithSize<ParcelableKeyRing> it = reader.iterator();
+        for (int i = 0; i < size; i++) {
+            Long masterKeyId = readMasterKeyId(it.next());
+            Integer slice = masterKeyId != null ? sliceOfMasterKeyId.get(masterKeyId) : null;
+            if (slice == null) {
+                // new keys go to the smallest slice, to keep them balanced
+                slice = 0;
+                for (int j = 1; j < numSlices; j++) {
+                    if (sliceSizes[j] < sliceSizes[slice]) {
+                        slice = j;
+                    }
+                }
+                if (masterKeyId != null) {
+                    sliceOfMasterKeyId.put(masterKeyId, slice);
+                }
+            }
+            sliceOfEntry[i] = slice;
+            sliceSizes[slice] += 1;
+        }
+
+        List<IteratorWithSize<ParcelableKeyRing>> slices = new ArrayList<>(numSlices);
+        for (int slice = 0; slice < numSlices; slice++) {
+            int[] indices = new int[sliceSizes[slice]];
+            for (int i = 0, j = 0; i < size; i++) {
+                if (sliceOfEntry[i] == slice) {
+                    indices[j++] = i;
+                }
+            }
+            slices.add(reader.iterator(indices));
+        }
+        return slices;
+    }
+
+    /**
+     * Reads the master key id from the first packet of an entry, without decoding the rest of
+     * the keyring. Returns null if the entry can't be read, its import will report the error.
+     */
+    @Nullable
+    private static Long readMasterKeyId(ParcelableKeyRing entry) {
+        if (entry.getBytes() == null) {
+            return null;
+        }
+        try {
+            BCPGInputStream in = new BCPGInputStream(
+                    PGPUtil.getDecoderStream(new ByteArrayInputStream(entry.getBytes())));
+            Packet packet = in.readPacket();
+            PublicKeyPacket publicKeyPacket;
+            if (packet instanceof SecretKeyPacket) {
+                publicKeyPacket = ((SecretKeyPacket) packet).getPublicKeyPacket();
+            } else if (packet instanceof PublicKeyPacket) {
+                publicKeyPacket = (PublicKeyPacket) packet;
+            } else {
+                return null;
+            }
+            return new PGPPublicKey(publicKeyPacket, new JcaKeyFingerprintCalculator()).getKeyID();
+        } catch (IOException | PGPException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Imports disjoint slices of a key list concurrently, one worker per slice. Each worker reads
+     * its slice lazily, so the key list is never held in memory as a whole. Progress is reported
+     * from the calling thread, and secret keys are consolidated once after all slices are done.
+     */
+    @NonNull
+    private ImportKeyResult slicedKeyRingImport(List<IteratorWithSize<ParcelableKeyRing>> slices,
+                                                final int numTotalKeys, final boolean skipSave) {
+        Timber.d("Importing " + numTotalKeys + " keys in " + slices.size() + " slices");
+
+        if (mProgressable != null) {
+            mProgressable.setProgress(R.string.progress_importing, 0, numTotalKeys);
+        }
+
+        ExecutorService importExecutor = new ThreadPoolExecutor(0, slices.size(), 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        final AtomicInteger keysProcessed = new AtomicInteger();
+        final List<Long> secretMasterKeyIds = Collections.synchronizedList(new ArrayList<Long>());
+
+        ArrayList<Future<ImportKeyResult>> sliceResults = new ArrayList<>(slices.size());
+        for (final IteratorWithSize<ParcelableKeyRing> slice : slices) {
+            sliceResults.add(importExecutor.submit(new Callable<ImportKeyResult>() {
+                @Override
+                public ImportKeyResult call() {
+                    SliceProgressable progressable = new SliceProgressable(keysProcessed);
+                    return serialKeyRingImport(slice, slice.getSize(), null, progressable, null, skipSave,
+                            secretMasterKeyIds);
+                }
+            }));
+        }
+        importExecutor.shutdown();
+
+        // accumulate in slice order, so the log follows the order of the key list
+        KeyImportAccumulator accumulator = new KeyImportAccumulator(slices.size(), null);
+        int reportedKeys = 0;
+        for (Future<ImportKeyResult> sliceResult : sliceResults) {
+            try {
+                ImportKeyResult result = null;
+                while (result == null) {
+                    try {
+                        result = sliceResult.get(SLICE_PROGRESS_POLL_MS, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        // not done yet, report progress in the meantime
+                    }
+                    reportedKeys = reportSliceProgress(keysProcessed, reportedKeys, numTotalKeys);
+                }
+                accumulator.accumulateKeyImport(result);
+            } catch (InterruptedException | ExecutionException e) {
+                Timber.e(e, "A slice of keys could not be imported");
+                if (e instanceof ExecutionException) {
+                    // same as in multiThreadedKeyImport
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        ImportKeyResult result = accumulator.getConsolidatedResult();
+
+        // Special: consolidate on secret key import, once for all slices (cannot be cancelled!)
+        if (!skipSave && !secretMasterKeyIds.isEmpty()) {
+            setPreventCancel();
+            synchronized (mKeyRepository) {
+                Progressable progressable = mProgressable != null ? mProgressable : new ProgressScaler();
+                UpdateTrustResult trustResult = mKeyWritableRepository.updateTrustDb(
+                        new ArrayList<>(secretMasterKeyIds), progressable);
+                result.getLog().add(trustResult, 1);
+            }
+        }
+
+        return result;
+    }
+
+    private int reportSliceProgress(AtomicInteger keysProcessed, int reportedKeys, int numTotalKeys) {
+        int processedKeys = keysProcessed.get();
+        if (mProgressable != null && processedKeys != reportedKeys) {
+            mProgressable.setProgress(processedKeys, numTotalKeys);
+        }
+        return processedKeys;
+    }
+
+    /** Restores a chain of incremental backups from the decrypted archives at the given uris. */
+    @NonNull
+    private ImportKeyResult importBackupChainFromUris(List<Uri> archiveUris, boolean skipSave) {
+        ArrayList<InputStream> archives = new ArrayList<>(archiveUris.size());
+        try {
+            for (Uri archiveUri : archiveUris) {
+                InputStream in = mContext.getContentResolver().openInputStream(archiveUri);
+                if (in == null) {
+                    throw new FileNotFoundException("Error opening backup archive!");
+                }
+                archives.add(in);
+            }
+            return importBackupChain(archives, skipSave);
+        } catch (FileNotFoundException e) {
+            Timber.e(e, "Error opening backup chain");
+
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_IMPORT, 0, 0);
+            log.add(LogType.MSG_IMPORT_ERROR_IO, 0, 0);
+
+            return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log);
+        } finally {
+            for (InputStream in : archives) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nvm
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores a chain of incremental backups, see {@link BackupManifest}. The archives must be
+     * given decrypted, in any order, and must include the full backup. Only the most recent
+     * version of each key in the chain is imported, and keys deleted in a later increment are
+     * skipped. Keys that are already in the database are never deleted.
+     */
+    @NonNull
+    public ImportKeyResult importBackupChain(List<InputStream> archives, boolean skipSave) {
+        // archives are sorted by generation, which makes their order as selected irrelevant
+        BufferedInputStream[] streams = new BufferedInputStream[archives.size()];
+        ArchiveHeader[] headers = new ArchiveHeader[archives.size()];
+        try {
+            for (InputStream archive : archives) {
+                BufferedInputStream in = new BufferedInputStream(archive);
+                ArchiveHeader header = ArchiveHeader.read(in);
+
+                boolean isInChain = header != null && header.mGeneration >= 0
+                        && header.mGeneration < headers.length && headers[header.mGeneration] == null;
+                if (!isInChain) {
+                    return createBackupChainErrorResult();
+                }
+
+                streams[header.mGeneration] = in;
+                headers[header.mGeneration] = header;
+            }
+
+            for (int generation = 1; generation < headers.length; generation++) {
+                if (headers[generation].mBaseBackupId != headers[generation - 1].mBackupId) {
+                    return createBackupChainErrorResult();
+                }
+            }
+
+            // write out the keys to import first, so they don't need to be held in memory
+            ParcelableFileCache<ParcelableKeyRing> cache =
+                    new ParcelableFileCache<>(mContext, BACKUP_CHAIN_CACHE_FILE_NAME);
+            BackupChainIterator it = new BackupChainIterator(Arrays.asList(streams), Arrays.asList(headers));
+            cache.writeCache(0, it);
+            if (it.mException != null) {
+                throw it.mException;
+            }
+
+            return cachedKeyRingImport(cache, skipSave);
+        } catch (IOException e) {
+            Timber.e(e, "Error reading backup chain");
+
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_IMPORT, 0, 0);
+            log.add(LogType.MSG_IMPORT_ERROR_IO, 0, 0);
+
+            return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log);
+        }
+    }
+
+    private static ImportKeyResult createBackupChainErrorResult() {
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT, 0, 0);
+        log.add(LogType.MSG_IMPORT_ERROR_BACKUP_CHAIN, 1);
+        return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log);
+    }
+
+    /**
+     * Walks a backup chain from the newest archive to the oldest, returning each key only from
+     * the newest archive that contains it. A key ring and its secret key ring are always in the
+     * same archive, in that order.
+     */
+    private static class BackupChainIterator implements Iterator<ParcelableKeyRing> {
+        private final List<BufferedInputStream> mArchives;
+        private final List<ArchiveHeader> mHeaders;
+        private final HashSet<Long> mDoneMasterKeyIds = new HashSet<>();
+
+        private int mArchiveIndex;
+        private IteratorWithIOThrow<UncachedKeyRing> mRings;
+        private HashSet<Long> mArchiveMasterKeyIds;
+        private ParcelableKeyRing mNext;
+
+        IOException mException;
+
+        BackupChainIterator(List<BufferedInputStream> archives, List<ArchiveHeader> headers) {
+            mArchives = archives;
+            mHeaders = headers;
+            mArchiveIndex = archives.size();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (mNext != null) {
+                return true;
+            }
+            try {
+                while (mException == null) {
+                    if (mRings == null || !mRings.hasNext()) {
+                        if (!nextArchive()) {
+                            return false;
+                        }
+                        continue;
+                    }
+
+                    UncachedKeyRing ring = mRings.next();
+                    long masterKeyId = ring.getMasterKeyId();
+                    if (mDoneMasterKeyIds.contains(masterKeyId)) {
+                        continue;
+                    }
+                    mArchiveMasterKeyIds.add(masterKeyId);
+                    mNext = ParcelableKeyRing.createFromEncodedBytes(ring.getEncoded());
+                    return true;
+                }
+            } catch (IOException e) {
+                mException = e;
+            }
+            return false;
+        }
+
+        private boolean nextArchive() {
+            if (mArchiveMasterKeyIds != null) {
+                mDoneMasterKeyIds.addAll(mArchiveMasterKeyIds);
+            }
+            if (mArchiveIndex == 0) {
+                mRings = null;
+                return false;
+            }
+
+            mArchiveIndex -= 1;
+            mRings = UncachedKeyRing.fromStream(mArchives.get(mArchiveIndex));
+            mArchiveMasterKeyIds = new HashSet<>();
+            // keys deleted in this increment are gone from all older archives
+            mDoneMasterKeyIds.addAll(mHeaders.get(mArchiveIndex).mDeletedMasterKeyIds);
+            return true;
+        }
+
+        @Override
+        public ParcelableKeyRing next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return mNext;
+            } finally {
+                mNext = null;
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
     /**
@@ -150,6 +524,18 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
     private ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int numTotalKeys,
                                                 HkpKeyserverAddress hkpKeyserver, Progressable progressable,
                                                 @NonNull ParcelableProxy proxy, boolean skipSave) {
+        return serialKeyRingImport(entries, numTotalKeys, hkpKeyserver, progressable, proxy, skipSave, null);
+    }
+
+    /**
+     * @param deferredSecretMasterKeyIds if not null, imported secret keys are added to this list
+     *                                   instead of being consolidated here
+     */
+    @NonNull
+    private ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int numTotalKeys,
+                                                HkpKeyserverAddress hkpKeyserver, Progressable progressable,
+                                                @NonNull ParcelableProxy proxy, boolean skipSave,
+                                                @Nullable List<Long> deferredSecretMasterKeyIds) {
         if (progressable != null) {
             progressable.setProgress(R.string.progress_importing, 0, 100);
         }
@@ -269,7 +655,9 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         // synchronized on mProviderHelper to prevent
         // https://github.com/open-keychain/open-keychain/issues/1221 since a consolidate deletes
         // and re-inserts keys, which could conflict with a parallel db key update
-        if (!skipSave && !secretMasterKeyIds.isEmpty()) {
+        if (deferredSecretMasterKeyIds != null) {
+            deferredSecretMasterKeyIds.addAll(secretMasterKeyIds);
+        } else if (!skipSave && !secretMasterKeyIds.isEmpty()) {
             setPreventCancel();
             synchronized (mKeyRepository) {
                 UpdateTrustResult result = mKeyWritableRepository.updateTrustDb(secretMasterKeyIds, progressable);
@@ -385,7 +773,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
             byte[] data;
             log.add(LogType.MSG_IMPORT_KEYSERVER, 1, hkpKeyserver);
 
-            HkpKeyserverClient keyserverInteractor = HkpKeyserverClient.fromHkpKeyserverAddress(hkpKeyserver);
+            KeyserverClient keyserverInteractor = HedgedKeyserverClient.create(hkpKeyserver, secondaryKeyservers);
 
             // Download by fingerprint, or keyId - whichever is available
             if (entry.getExpectedFingerprint() != null) {
@@ -492,10 +880,12 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         boolean skipSave = importInput.isSkipSave();
 
         ImportKeyResult result;
-        if (keyList == null) {// import from file, do serially
+        if (importInput.getBackupChainUris() != null) {
+            result = importBackupChainFromUris(importInput.getBackupChainUris(), skipSave);
+        } else if (keyList == null) {// import from file
             ParcelableFileCache<ParcelableKeyRing> cache =
                     new ParcelableFileCache<>(mContext, CACHE_FILE_NAME);
-            result = serialKeyRingImport(cache, null, null, skipSave);
+            result = cachedKeyRingImport(cache, skipSave);
         } else {
             ParcelableProxy proxy;
             if (cryptoInput.getParcelableProxy() == null) {
@@ -510,6 +900,8 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
                 proxy = cryptoInput.getParcelableProxy();
             }
 
+            secondaryKeyservers = Preferences.getPreferences(mContext).getKeyServers();
+
             result = multiThreadedKeyImport(keyList, keyServer, proxy, skipSave);
         }
 
@@ -577,6 +969,45 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         return accumulator.getConsolidatedResult();
     }
 
+    /**
+     * Counts the keys processed by one slice of a sliced import. The count is shared by all slices,
+     * and reported by the operation thread, since progress can only be sent from there.
+     */
+    private static class SliceProgressable implements Progressable {
+        private final AtomicInteger mKeysProcessed;
+
+        private boolean mImporting;
+        private int mSliceKeysProcessed;
+
+        SliceProgressable(AtomicInteger keysProcessed) {
+            mKeysProcessed = keysProcessed;
+        }
+
+        @Override
+        public void setProgress(String message, int current, int total) {
+            mImporting = false;
+        }
+
+        @Override
+        public void setProgress(int resourceId, int current, int total) {
+            mImporting = resourceId == R.string.progress_importing;
+        }
+
+        @Override
+        public void setProgress(int current, int total) {
+            if (!mImporting || current <= mSliceKeysProcessed) {
+                return;
+            }
+            mKeysProcessed.addAndGet(current - mSliceKeysProcessed);
+            mSliceKeysProcessed = current;
+        }
+
+        @Override
+        public void setPreventCancel() {
+            // slices don't consolidate, see slicedKeyRingImport
+        }
+    }
+
     /**
      * Used to accumulate the results of individual key imports
      */
@@ -627,7 +1058,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
 
             boolean notCancelledOrFirstCancelled = !result.cancelled() || !mHasCancelledResult;
             if (notCancelledOrFirstCancelled) {
-                mImportLog.addAll(result.getLog().toList()); //accumulates log
+                mImportLog.addAll(result.getLog()); //accumulates log
                 if (result.cancelled()) {
                     mHasCancelledResult = true;
                 }
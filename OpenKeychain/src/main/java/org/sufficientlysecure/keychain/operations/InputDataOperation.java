@@ -19,16 +19,28 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.ClipDescription;
 import android.content.Context;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
 import android.webkit.MimeTypeMap;
 
@@ -47,6 +59,8 @@ import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.InputDataResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.CryptoProviderSelector;
+import org.sufficientlysecure.keychain.pgp.DetachedSignatureDigest;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
@@ -54,7 +68,9 @@ import org.sufficientlysecure.keychain.provider.KeyRepository;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.InputDataParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.CharsetVerifier;
+import timber.log.Timber;
 
 
 /** This operation deals with input data, trying to determine its type as it goes.
@@ -66,381 +82,841 @@ import org.sufficientlysecure.keychain.util.CharsetVerifier;
  * - encrypted multipart/signed mime data
  * - multipart/signed mime data (WIP)
  *
+ * Encrypted data which may be mime is parsed while it is decrypted, so body parts are written
+ * straight into their output files. The content of multipart/signed parts is parsed and hashed
+ * with the algorithm named by micalg on its way through, so the signature that follows it can be
+ * checked without reading the content again.
+ *
  */
 public class InputDataOperation extends BaseOperation<InputDataParcel> {
 
-    private final byte[] buf = new byte[256];
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+    // data read before the first mime header is complete, kept in case this is no mime data
+    private static final int MAX_RECORDED_HEADER_SIZE = 1024 * 1024;
+    private static final int MAX_DETACHED_SIGNATURE_SIZE = 4096;
+
+    // each parser must run alongside its decryption, so parse tasks are never queued. idle
+    // threads are kept around for a while, for the next message of a list
+    private static final ExecutorService PARSE_EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            30L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+
+    // obtained from the BufferPool for the duration of execute()
+    private byte[] buf;
 
     public InputDataOperation(Context context, KeyRepository keyRepository, Progressable progressable) {
         super(context, keyRepository, progressable);
     }
 
-    Uri mSignedDataUri;
-    DecryptVerifyResult mSignedDataResult;
-
     @NonNull
     @Override
     public InputDataResult execute(InputDataParcel input, final CryptoInputParcel cryptoInput) {
+        BufferPool bufferPool = BufferPool.getInstance();
+        buf = bufferPool.obtain();
+        try {
+            return executeInternal(input, cryptoInput);
+        } finally {
+            bufferPool.release(buf);
+            buf = null;
+        }
+    }
+
+    @NonNull
+    private InputDataResult executeInternal(InputDataParcel input, CryptoInputParcel cryptoInput) {
 
         final OperationLog log = new OperationLog();
 
         log.add(LogType.MSG_DATA, 0);
 
-        Uri currentInputUri;
-
-        DecryptVerifyResult decryptResult = null;
-
         PgpDecryptVerifyInputParcel decryptInput = input.getDecryptInput();
 
         if (!input.getMimeDecode() && decryptInput == null) {
             throw new AssertionError("no decryption or mime decoding, this is probably a bug");
         }
 
-        if (decryptInput != null) {
+        if (decryptInput == null) {
+            return parseMimeInput(log, input.getInputUri());
+        }
 
-            log.add(LogType.MSG_DATA_OPENPGP, 1);
+        log.add(LogType.MSG_DATA_OPENPGP, 1);
+
+        decryptInput = decryptInput.toBuilder()
+                .setInputUri(input.getInputUri())
+                .build();
+
+        if (input.getMimeDecode()) {
+            return decryptAndParseMime(log, decryptInput, cryptoInput);
+        }
+
+        Uri plainDataUri = TemporaryFileProvider.createFile(mContext);
+        DecryptVerifyResult decryptResult = decryptToFile(decryptInput, cryptoInput, plainDataUri);
+        if (decryptResult.isPending()) {
+            return new InputDataResult(log, decryptResult);
+        }
+        log.addByMerge(decryptResult, 1);
+
+        if ( ! decryptResult.success()) {
+            return new InputDataResult(InputDataResult.RESULT_ERROR, log);
+        }
+
+        // If we aren't supposed to attempt mime decode after decryption, we are done here
+        return createSkipMimeResult(log, plainDataUri, decryptResult);
+
+    }
+
+    private InputDataResult parseMimeInput(OperationLog log, Uri inputUri) {
+
+        log.add(LogType.MSG_DATA_MIME, 1);
+
+        MimeStreamParser parser = createParser();
+        MimeContentHandler handler = new MimeContentHandler(parser, log, false, mProgressable, null);
+        parser.setContentHandler(handler);
+
+        InputStream in = null;
+        try {
 
+            // open current uri for input
+            in = mContext.getContentResolver().openInputStream(inputUri);
+            if (in == null) {
+                throw new IOException("Error opening input uri!");
+            }
+            parser.parse(in);
+
+        } catch (MimeException e) {
+            // a mime error likely means that this wasn't mime data, after all
+            Timber.d(e, "mime parsing failed");
+            log.add(LogType.MSG_DATA_MIME_BAD, 2);
+        } catch (IOException e) {
+            Timber.e(e, "error reading input data");
+            log.add(LogType.MSG_DATA_ERROR_IO, 2);
+            return new InputDataResult(InputDataResult.RESULT_ERROR, log);
+        } finally {
+            closeQuietly(in);
+        }
+
+        return createMimeResult(log, handler, null, inputUri);
+
+    }
+
+    private InputDataResult decryptAndParseMime(OperationLog log, PgpDecryptVerifyInputParcel decryptInput,
+            CryptoInputParcel cryptoInput) {
+
+        PipedInputStream plainIn = new PipedInputStream(PIPE_BUFFER_SIZE);
+        PipedOutputStream plainOut;
+        try {
+            plainOut = new PipedOutputStream(plainIn);
+        } catch (IOException e) {
+            throw new AssertionError("a new pipe can always be connected");
+        }
+
+        // the mime parser gets its own thread, so decryption stays in this one, which is the only
+        // one we can report progress from
+        OperationLog mimeLog = new OperationLog();
+        MimeParseTask parseTask = new MimeParseTask(plainIn, mimeLog);
+        Future<Boolean> parseFuture = PARSE_EXECUTOR.submit(parseTask);
+
+        DecryptVerifyResult decryptResult;
+        try {
             PgpDecryptVerifyOperation op =
                     new PgpDecryptVerifyOperation(mContext, mKeyRepository, mProgressable);
+            decryptResult = op.execute(decryptInput, cryptoInput, plainOut);
+        } finally {
+            // signals the end of data to the parser, no matter how decryption ended
+            closeQuietly(plainOut);
+        }
 
-            currentInputUri = TemporaryFileProvider.createFile(mContext);
+        boolean parseSuccess = awaitParse(parseFuture, plainIn);
+        MimeContentHandler handler = parseTask.mHandler;
+        Uri plainDataUri = parseTask.mPlainDataUri;
 
-            decryptInput = decryptInput.toBuilder()
-                    .setInputUri(input.getInputUri())
-                    .setOutputUri(currentInputUri)
-                    .build();
+        if (decryptResult.isPending()) {
+            deleteTemporaryFile(plainDataUri);
+            return new InputDataResult(log, decryptResult);
+        }
+        log.addByMerge(decryptResult, 1);
 
-            decryptResult = op.execute(decryptInput, cryptoInput);
-            if (decryptResult.isPending()) {
-                return new InputDataResult(log, decryptResult);
+        if ( ! decryptResult.success() || ! parseSuccess) {
+            // parts were written before the data was verified, none of this must be used!
+            if (handler != null) {
+                handler.deleteOutputFiles();
+            }
+            deleteTemporaryFile(plainDataUri);
+            if (decryptResult.success()) {
+                log.add(LogType.MSG_DATA_ERROR_IO, 2);
             }
-            log.addByMerge(decryptResult, 1);
+            return new InputDataResult(InputDataResult.RESULT_ERROR, log);
+        }
 
-            if ( ! decryptResult.success()) {
+        // don't even attempt if we know the data isn't suitable for mime content, or if we have a filename
+        OpenPgpMetadata metadata = decryptResult.getDecryptionMetadata();
+        boolean skipMimeParsing = isMimeUnsuitable(metadata);
+        boolean needsPlainData = skipMimeParsing || !handler.hasContent();
+
+        if (needsPlainData && plainDataUri == null) {
+            // the data looked like mime, so it wasn't kept. this is rare enough that decrypting
+            // again is preferable to storing every decrypted message twice
+            plainDataUri = TemporaryFileProvider.createFile(mContext);
+            CryptoInputParcel cachedCryptoInput = decryptResult.getCachedCryptoInputParcel();
+            DecryptVerifyResult plainResult = decryptToFile(decryptInput,
+                    cachedCryptoInput != null ? cachedCryptoInput : cryptoInput, plainDataUri);
+            if (plainResult.isPending()) {
+                // without a cached input, the first input may not be enough to decrypt again
+                handler.deleteOutputFiles();
+                deleteTemporaryFile(plainDataUri);
+                return new InputDataResult(log, plainResult);
+            }
+            if ( ! plainResult.success()) {
+                handler.deleteOutputFiles();
+                deleteTemporaryFile(plainDataUri);
+                log.add(LogType.MSG_DATA_ERROR_IO, 2);
                 return new InputDataResult(InputDataResult.RESULT_ERROR, log);
             }
-
+        } else if (plainDataUri != null && metadata != null) {
             // inform the storage provider about the mime type for this uri
-            if (decryptResult.getDecryptionMetadata() != null) {
-                OpenPgpMetadata meta = decryptResult.getDecryptionMetadata();
-                TemporaryFileProvider.setName(mContext, currentInputUri, meta.getFilename());
-                TemporaryFileProvider.setMimeType(mContext, currentInputUri, meta.getMimeType());
-            }
+            TemporaryFileProvider.setName(mContext, plainDataUri, metadata.getFilename());
+            TemporaryFileProvider.setMimeType(mContext, plainDataUri, metadata.getMimeType());
+        }
 
-        } else {
-            currentInputUri = input.getInputUri();
+        if (skipMimeParsing) {
+            handler.deleteOutputFiles();
+            return createSkipMimeResult(log, plainDataUri, decryptResult);
         }
 
-        // don't even attempt if we know the data isn't suitable for mime content, or if we have a filename
-        boolean skipMimeParsing = false;
-        if (decryptResult != null && decryptResult.getDecryptionMetadata() != null) {
-            OpenPgpMetadata metadata = decryptResult.getDecryptionMetadata();
-            String fileName = metadata.getFilename();
-            String contentType = metadata.getMimeType();
-            if (!TextUtils.isEmpty(fileName)
-                    || contentType != null
-                        && !contentType.startsWith("multipart/")
-                        && !contentType.startsWith("text/")
-                        && !"application/octet-stream".equals(contentType)) {
-                skipMimeParsing = true;
-            }
+        log.addAll(mimeLog);
+        return createMimeResult(log, handler, decryptResult, plainDataUri);
+
+    }
+
+    private DecryptVerifyResult decryptToFile(PgpDecryptVerifyInputParcel decryptInput,
+            CryptoInputParcel cryptoInput, Uri outputUri) {
+
+        PgpDecryptVerifyOperation op =
+                new PgpDecryptVerifyOperation(mContext, mKeyRepository, mProgressable);
+
+        decryptInput = decryptInput.toBuilder()
+                .setOutputUri(outputUri)
+                .build();
+
+        DecryptVerifyResult decryptResult = op.execute(decryptInput, cryptoInput);
+
+        // inform the storage provider about the mime type for this uri
+        if (decryptResult.success() && decryptResult.getDecryptionMetadata() != null) {
+            OpenPgpMetadata meta = decryptResult.getDecryptionMetadata();
+            TemporaryFileProvider.setName(mContext, outputUri, meta.getFilename());
+            TemporaryFileProvider.setMimeType(mContext, outputUri, meta.getMimeType());
         }
 
-        // If we aren't supposed to attempt mime decode after decryption, we are done here
-        if (skipMimeParsing || !input.getMimeDecode()) {
+        return decryptResult;
+
+    }
+
+    private static boolean isMimeUnsuitable(@Nullable OpenPgpMetadata metadata) {
+        if (metadata == null) {
+            return false;
+        }
+        String fileName = metadata.getFilename();
+        String contentType = metadata.getMimeType();
+        return !TextUtils.isEmpty(fileName)
+                || contentType != null
+                    && !contentType.startsWith("multipart/")
+                    && !contentType.startsWith("text/")
+                    && !"application/octet-stream".equals(contentType);
+    }
 
-            log.add(LogType.MSG_DATA_SKIP_MIME, 1);
+    private InputDataResult createSkipMimeResult(OperationLog log, Uri plainDataUri,
+            DecryptVerifyResult decryptResult) {
 
-            ArrayList<Uri> uris = new ArrayList<>();
-            uris.add(currentInputUri);
-            ArrayList<OpenPgpMetadata> metadatas = new ArrayList<>();
-            metadatas.add(decryptResult.getDecryptionMetadata());
+        log.add(LogType.MSG_DATA_SKIP_MIME, 1);
+
+        ArrayList<Uri> uris = new ArrayList<>();
+        uris.add(plainDataUri);
+        ArrayList<OpenPgpMetadata> metadatas = new ArrayList<>();
+        metadatas.add(decryptResult.getDecryptionMetadata());
+
+        log.add(LogType.MSG_DATA_OK, 1);
+        return new InputDataResult(InputDataResult.RESULT_OK, log, decryptResult, uris, metadatas);
+
+    }
+
+    private InputDataResult createMimeResult(OperationLog log, MimeContentHandler handler,
+            DecryptVerifyResult decryptResult, Uri plainDataUri) {
+
+        Uri currentInputUri = plainDataUri;
+
+        if (handler.mSignedDataUri != null) {
+
+            if (decryptResult != null) {
+                decryptResult.setSignatureResult(handler.mSignedDataResult.getSignatureResult());
+            } else {
+                decryptResult = handler.mSignedDataResult;
+            }
+
+            // the actual content is the signed data now (and will be passed verbatim, if parsing failed)
+            currentInputUri = handler.mSignedDataUri;
+
+        }
+
+        ArrayList<Uri> outputUris = handler.getContentOutputUris();
+        ArrayList<OpenPgpMetadata> metadatas = handler.getContentMetadatas();
+
+        // if we found data, return success
+        if (!outputUris.isEmpty()) {
+            log.add(LogType.MSG_DATA_MIME_OK, 2);
 
             log.add(LogType.MSG_DATA_OK, 1);
-            return new InputDataResult(InputDataResult.RESULT_OK, log, decryptResult, uris, metadatas);
+            return new InputDataResult(InputDataResult.RESULT_OK, log, decryptResult, outputUris, metadatas);
+        }
 
+        // if no mime data parsed, just return the raw data as fallback
+        log.add(LogType.MSG_DATA_MIME_NONE, 2);
+
+        OpenPgpMetadata metadata;
+        if (decryptResult != null) {
+            metadata = decryptResult.getDecryptionMetadata();
+        } else {
+            // if we neither decrypted nor mime-decoded, should this be treated as an error?
+            // either way, we know nothing about the data
+            metadata = new OpenPgpMetadata();
         }
 
-        final MimeStreamParser parser = new MimeStreamParser((MimeConfig) null);
+        outputUris.add(currentInputUri);
+        metadatas.add(metadata);
+
+        log.add(LogType.MSG_DATA_OK, 1);
+        return new InputDataResult(InputDataResult.RESULT_OK, log, decryptResult, outputUris, metadatas);
 
-        final ArrayList<Uri> outputUris = new ArrayList<>();
-        final ArrayList<OpenPgpMetadata> metadatas = new ArrayList<>();
+    }
 
+    private static MimeStreamParser createParser() {
+        MimeStreamParser parser = new MimeStreamParser((MimeConfig) null);
         parser.setContentDecoding(true);
         parser.setRecurse();
-        parser.setContentHandler(new AbstractContentHandler() {
-            private boolean mFoundContentTypeHeader = false;
-            private Uri uncheckedSignedDataUri;
-            String mFilename;
-
-            @Override
-            public void startMultipart(BodyDescriptor bd) throws MimeException {
-                if ("signed".equals(bd.getSubType())) {
-                    if (mSignedDataUri != null) {
-                        // recursive signed data is not supported, and will just be parsed as-is
-                        log.add(LogType.MSG_DATA_DETACHED_NESTED, 2);
-                        return;
-                    }
-                    log.add(LogType.MSG_DATA_DETACHED, 2);
-                    if (!outputUris.isEmpty()) {
-                        // we can't have previous data if we parse a detached signature!
-                        log.add(LogType.MSG_DATA_DETACHED_CLEAR, 3);
-                        outputUris.clear();
-                        metadatas.clear();
-                    }
-                    // this is signed data, we require the next part raw
-                    parser.setRaw();
+        return parser;
+    }
+
+    /**
+     * Waits for the parser to finish. If interrupted, the parser is stopped by closing its input,
+     * and still waited for: it uses our buffer, which must not be released while it runs.
+     */
+    private static boolean awaitParse(Future<Boolean> parseFuture, InputStream plainIn) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    Boolean parseSuccess = parseFuture.get();
+                    return parseSuccess && !interrupted;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    closeQuietly(plainIn);
                 }
             }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-            @Override
-            public void raw(InputStream is) throws MimeException, IOException {
+    private OutputStream openOutputFile(Uri uri) throws IOException {
+        OutputStream out = mContext.getContentResolver().openOutputStream(uri, "w");
+        if (out == null) {
+            throw new IOException("Error getting file for writing!");
+        }
+        return out;
+    }
 
-                if (uncheckedSignedDataUri != null) {
-                    throw new AssertionError("raw parts must only be received as first part of multipart/signed!");
-                }
+    private void deleteTemporaryFile(@Nullable Uri uri) {
+        if (uri != null) {
+            mContext.getContentResolver().delete(uri, null, null);
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nvm
+        }
+    }
+
+    /**
+     * Parses decrypted data from a pipe. If the data turns out not to be mime, it is stored in
+     * mPlainDataUri instead. The pipe is always read to its end, so decryption can finish.
+     */
+    private class MimeParseTask implements Callable<Boolean> {
+        private final InputStream mPlainIn;
+        private final OperationLog mLog;
 
-                log.add(LogType.MSG_DATA_DETACHED_RAW, 3);
+        MimeContentHandler mHandler;
+        Uri mPlainDataUri;
 
-                uncheckedSignedDataUri = TemporaryFileProvider.createFile(mContext, mFilename, "text/plain");
-                OutputStream out = mContext.getContentResolver().openOutputStream(uncheckedSignedDataUri, "w");
+        MimeParseTask(InputStream plainIn, OperationLog log) {
+            mPlainIn = plainIn;
+            mLog = log;
+        }
+
+        @Override
+        public Boolean call() {
+            OutputStream plainDataOut = null;
+            try {
+
+                mLog.add(LogType.MSG_DATA_MIME, 1);
 
-                if (out == null) {
-                    throw new IOException("Error getting file for writing!");
+                RecordingInputStream in = new RecordingInputStream(mPlainIn, MAX_RECORDED_HEADER_SIZE);
+
+                // progress can't be reported from this thread
+                MimeStreamParser parser = createParser();
+                mHandler = new MimeContentHandler(parser, mLog, false, null, in);
+                parser.setContentHandler(mHandler);
+
+                try {
+                    parser.parse(in);
+                } catch (MimeException e) {
+                    // a mime error likely means that this wasn't mime data, after all
+                    Timber.d(e, "mime parsing failed");
+                    mLog.add(LogType.MSG_DATA_MIME_BAD, 2);
                 }
 
+                if (!in.isRecording()) {
+                    // mime it is, the rest is of no interest
+                    while (mPlainIn.read(buf) > 0) {
+                        // skip
+                    }
+                    return true;
+                }
+
+                // not mime data after all, store everything so it can be passed on as is
+                mPlainDataUri = TemporaryFileProvider.createFile(mContext);
+                plainDataOut = openOutputFile(mPlainDataUri);
+                in.writeRecordedTo(plainDataOut);
                 int len;
-                while ((len = is.read(buf)) > 0) {
-                    out.write(buf, 0, len);
+                while ((len = mPlainIn.read(buf)) > 0) {
+                    plainDataOut.write(buf, 0, len);
                 }
+                plainDataOut.close();
+                plainDataOut = null;
+
+                return true;
+
+            } catch (IOException e) {
+                Timber.e(e, "error parsing decrypted data");
+                return false;
+            } finally {
+                closeQuietly(plainDataOut);
+                // if we stopped early, this makes the decrypting side fail rather than block
+                closeQuietly(mPlainIn);
+            }
+        }
+    }
 
-                out.close();
-                // continue to next body part the usual way
-                parser.setFlat();
+    private class MimeContentHandler extends AbstractContentHandler {
+        private final MimeStreamParser mParser;
+        private final OperationLog mLog;
+        // true for the content of a multipart/signed part, which can't be signed again
+        private final boolean mIsSignedContent;
+        private final Progressable mVerifyProgressable;
+        private final RecordingInputStream mRecordingInput;
+
+        private final ArrayList<Uri> mOutputUris = new ArrayList<>();
+        private final ArrayList<OpenPgpMetadata> mMetadatas = new ArrayList<>();
+
+        private boolean mFoundContentTypeHeader = false;
+        private String mFilename;
+        private String mMicalg;
+
+        private DetachedSignatureDigest mSignedDataDigest;
+        private Uri mUncheckedSignedDataUri;
+        private MimeContentHandler mUncheckedSignedContent;
+
+        Uri mSignedDataUri;
+        DecryptVerifyResult mSignedDataResult;
+        private MimeContentHandler mSignedContent;
+
+        MimeContentHandler(MimeStreamParser parser, OperationLog log, boolean isSignedContent,
+                Progressable verifyProgressable, RecordingInputStream recordingInput) {
+            mParser = parser;
+            mLog = log;
+            mIsSignedContent = isSignedContent;
+            mVerifyProgressable = verifyProgressable;
+            mRecordingInput = recordingInput;
+        }
 
-            }
+        /** Returns true if there is content to return, even if it's only verified signed data. */
+        boolean hasContent() {
+            return mSignedDataUri != null || !mOutputUris.isEmpty();
+        }
+
+        ArrayList<Uri> getContentOutputUris() {
+            return mSignedContent != null ? mSignedContent.mOutputUris : mOutputUris;
+        }
 
-            @Override
-            public void startHeader() throws MimeException {
-                mFilename = null;
+        ArrayList<OpenPgpMetadata> getContentMetadatas() {
+            return mSignedContent != null ? mSignedContent.mMetadatas : mMetadatas;
+        }
+
+        void deleteOutputFiles() {
+            for (Uri uri : mOutputUris) {
+                deleteTemporaryFile(uri);
+            }
+            mOutputUris.clear();
+            mMetadatas.clear();
+            if (mSignedContent != null) {
+                mSignedContent.deleteOutputFiles();
+                deleteTemporaryFile(mSignedDataUri);
             }
+        }
 
-            @Override
-            public void endHeader() throws MimeException {
-                if (!mFoundContentTypeHeader) {
-                    parser.stop();
+        @Override
+        public void startMultipart(BodyDescriptor bd) throws MimeException {
+            if ("signed".equals(bd.getSubType())) {
+                if (mIsSignedContent || mSignedDataUri != null) {
+                    // recursive signed data is not supported, and will just be parsed as-is
+                    mLog.add(LogType.MSG_DATA_DETACHED_NESTED, 2);
+                    return;
+                }
+                mSignedDataDigest = DetachedSignatureDigest.fromMicalg(mMicalg,
+                        CryptoProviderSelector.getInstance(mContext));
+                if (mSignedDataDigest == null) {
+                    // without the hash algorithm, the signed part can't be hashed as it goes by
+                    mLog.add(LogType.MSG_DATA_DETACHED_UNSUPPORTED, 2);
+                    return;
                 }
+                mLog.add(LogType.MSG_DATA_DETACHED, 2);
+                if (!mOutputUris.isEmpty()) {
+                    // we can't have previous data if we parse a detached signature!
+                    mLog.add(LogType.MSG_DATA_DETACHED_CLEAR, 3);
+                    for (Uri uri : mOutputUris) {
+                        deleteTemporaryFile(uri);
+                    }
+                    mOutputUris.clear();
+                    mMetadatas.clear();
+                }
+                // this is signed data, we require the next part raw
+                mParser.setRaw();
             }
+        }
 
-            @Override
-            public void field(Field field) throws MimeException {
-                field = DefaultFieldParser.getParser().parse(field, DecodeMonitor.SILENT);
-                if (field instanceof ContentDispositionField) {
-                    mFilename = ((ContentDispositionField) field).getFilename();
+        @Override
+        public void raw(InputStream is) throws MimeException, IOException {
+
+            if (mUncheckedSignedDataUri != null) {
+                throw new AssertionError("raw parts must only be received as first part of multipart/signed!");
+            }
+
+            mLog.add(LogType.MSG_DATA_DETACHED_RAW, 3);
+
+            mUncheckedSignedDataUri = TemporaryFileProvider.createFile(mContext, mFilename, "text/plain");
+            OutputStream out = openOutputFile(mUncheckedSignedDataUri);
+
+            try {
+                // parse the signed content while it is stored for verification, its parts are
+                // only used once the signature turns out to be good
+                MimeStreamParser signedContentParser = createParser();
+                mUncheckedSignedContent = new MimeContentHandler(
+                        signedContentParser, mLog, true, mVerifyProgressable, null);
+                signedContentParser.setContentHandler(mUncheckedSignedContent);
+
+                InputStream teeIn = new TeeInputStream(is, out, mSignedDataDigest);
+                try {
+                    signedContentParser.parse(teeIn);
+                } catch (MimeException e) {
+                    // the signed data is passed verbatim in this case
+                    Timber.d(e, "mime parsing of signed content failed");
+                    mLog.add(LogType.MSG_DATA_MIME_BAD, 2);
                 }
-                if (field instanceof ContentTypeField) {
-                    mFoundContentTypeHeader = true;
+
+                // the parser may have stopped early, store the remaining data as well
+                while (teeIn.read(buf) > 0) {
+                    // tee only
                 }
+            } finally {
+                out.close();
             }
 
-            private void bodySignature(BodyDescriptor bd, InputStream is) throws MimeException, IOException {
+            // continue to next body part the usual way
+            mParser.setFlat();
 
-                if (!"application/pgp-signature".equals(bd.getMimeType())) {
-                    log.add(LogType.MSG_DATA_DETACHED_UNSUPPORTED, 3);
-                    uncheckedSignedDataUri = null;
-                    parser.setRecurse();
-                    return;
-                }
+        }
+
+        @Override
+        public void startHeader() throws MimeException {
+            mFilename = null;
+            mMicalg = null;
+        }
+
+        @Override
+        public void endHeader() throws MimeException {
+            if (!mFoundContentTypeHeader) {
+                mParser.stop();
+                return;
+            }
+            if (mRecordingInput != null) {
+                // this is mime data, no need to keep a copy for the fallback
+                mRecordingInput.stopRecording();
+            }
+        }
+
+        @Override
+        public void field(Field field) throws MimeException {
+            field = DefaultFieldParser.getParser().parse(field, DecodeMonitor.SILENT);
+            if (field instanceof ContentDispositionField) {
+                mFilename = ((ContentDispositionField) field).getFilename();
+            }
+            if (field instanceof ContentTypeField) {
+                mFoundContentTypeHeader = true;
+                mMicalg = ((ContentTypeField) field).getParameter("micalg");
+            }
+        }
 
-                log.add(LogType.MSG_DATA_DETACHED_SIG, 3);
+        private void bodySignature(BodyDescriptor bd, InputStream is) throws MimeException, IOException {
+
+            if (!"application/pgp-signature".equals(bd.getMimeType())) {
+                mLog.add(LogType.MSG_DATA_DETACHED_UNSUPPORTED, 3);
+                mUncheckedSignedContent.deleteOutputFiles();
+                mUncheckedSignedContent = null;
+                deleteTemporaryFile(mUncheckedSignedDataUri);
+                mUncheckedSignedDataUri = null;
+                mSignedDataDigest = null;
+                mParser.setRecurse();
+                return;
+            }
 
-                ByteArrayOutputStream detachedSig = new ByteArrayOutputStream();
+            mLog.add(LogType.MSG_DATA_DETACHED_SIG, 3);
 
-                int len, totalLength = 0;
-                while ((len = is.read(buf)) > 0) {
-                    totalLength += len;
-                    detachedSig.write(buf, 0, len);
-                    if (totalLength > 4096) {
-                        throw new IOException("detached signature is unreasonably large!");
-                    }
+            ByteArrayOutputStream detachedSig = new ByteArrayOutputStream();
+
+            int len, totalLength = 0;
+            while ((len = is.read(buf)) > 0) {
+                totalLength += len;
+                detachedSig.write(buf, 0, len);
+                if (totalLength > MAX_DETACHED_SIGNATURE_SIZE) {
+                    throw new IOException("detached signature is unreasonably large!");
                 }
-                detachedSig.close();
+            }
+            detachedSig.close();
+
+            // the signed data was hashed while it went by, only the signature is left to check
+            PgpDecryptVerifyInputParcel decryptInput = PgpDecryptVerifyInputParcel.builder()
+                .setDetachedSignature(detachedSig.toByteArray())
+                .build();
+
+            PgpDecryptVerifyOperation op =
+                    new PgpDecryptVerifyOperation(mContext, mKeyRepository, mVerifyProgressable);
+            DecryptVerifyResult verifyResult = op.verifyDetachedSignature(decryptInput, mSignedDataDigest);
 
-                PgpDecryptVerifyInputParcel decryptInput = PgpDecryptVerifyInputParcel.builder()
-                    .setInputUri(uncheckedSignedDataUri)
-                    .setDetachedSignature(detachedSig.toByteArray())
-                    .build();
+            mLog.addByMerge(verifyResult, 4);
 
-                PgpDecryptVerifyOperation op =
-                        new PgpDecryptVerifyOperation(mContext, mKeyRepository, mProgressable);
-                DecryptVerifyResult verifyResult = op.execute(decryptInput, cryptoInput);
+            mSignedDataUri = mUncheckedSignedDataUri;
+            mSignedDataResult = verifyResult;
+            mSignedContent = mUncheckedSignedContent;
 
-                log.addByMerge(verifyResult, 4);
+            // reset parser state
+            mUncheckedSignedDataUri = null;
+            mUncheckedSignedContent = null;
+            mSignedDataDigest = null;
+            mParser.setRecurse();
 
-                mSignedDataUri = uncheckedSignedDataUri;
-                mSignedDataResult = verifyResult;
+        }
 
-                // reset parser state
-                uncheckedSignedDataUri = null;
-                parser.setRecurse();
+        @Override
+        public void body(BodyDescriptor bd, InputStream is) throws MimeException, IOException {
 
+            // if we have signed data waiting, we expect a signature for checking
+            if (mUncheckedSignedDataUri != null) {
+                bodySignature(bd, is);
+                return;
             }
 
-            @Override
-            public void body(BodyDescriptor bd, InputStream is) throws MimeException, IOException {
+            // we read first, no need to create an output file if nothing was read!
+            int len = is.read(buf);
+            if (len < 0) {
+                return;
+            }
 
-                // if we have signed data waiting, we expect a signature for checking
-                if (uncheckedSignedDataUri != null) {
-                    bodySignature(bd, is);
-                    return;
-                }
+            // If mSignedDataUri is non-null, we already parsed a signature, so this is trailing data - skip it!
+            if (mSignedDataUri != null) {
+                mLog.add(LogType.MSG_DATA_DETACHED_TRAILING, 2);
+                return;
+            }
 
-                // we read first, no need to create an output file if nothing was read!
-                int len = is.read(buf);
-                if (len < 0) {
-                    return;
-                }
+            mLog.add(LogType.MSG_DATA_MIME_PART, 2);
 
-                // If mSignedDataUri is non-null, we already parsed a signature. If mSignedDataResult is non-null
-                // too, we are still in the same parsing stage, so this is trailing data - skip it!
-                if (mSignedDataUri != null && mSignedDataResult != null) {
-                    log.add(LogType.MSG_DATA_DETACHED_TRAILING, 2);
-                    return;
-                }
+            String mimeType = bd.getMimeType();
 
-                log.add(LogType.MSG_DATA_MIME_PART, 2);
-
-                String mimeType = bd.getMimeType();
-
-                if (mFilename != null) {
-                    log.add(LogType.MSG_DATA_MIME_FILENAME, 3, mFilename);
-                    boolean isGenericMimeType = ClipDescription.compareMimeTypes(mimeType, "application/octet-stream")
-                            || ClipDescription.compareMimeTypes(mimeType, "application/x-download");
-                    if (isGenericMimeType) {
-                        String extension = MimeTypeMap.getFileExtensionFromUrl(mFilename);
-                        String extMimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
-                        if (extMimeType != null) {
-                            mimeType = extMimeType;
-                            log.add(LogType.MSG_DATA_MIME_FROM_EXTENSION, 3);
-                        }
+            if (mFilename != null) {
+                mLog.add(LogType.MSG_DATA_MIME_FILENAME, 3, mFilename);
+                boolean isGenericMimeType = ClipDescription.compareMimeTypes(mimeType, "application/octet-stream")
+                        || ClipDescription.compareMimeTypes(mimeType, "application/x-download");
+                if (isGenericMimeType) {
+                    String extension = MimeTypeMap.getFileExtensionFromUrl(mFilename);
+                    String extMimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+                    if (extMimeType != null) {
+                        mimeType = extMimeType;
+                        mLog.add(LogType.MSG_DATA_MIME_FROM_EXTENSION, 3);
                     }
                 }
-                log.add(LogType.MSG_DATA_MIME_TYPE, 3, mimeType);
-
-                Uri uri = TemporaryFileProvider.createFile(mContext, mFilename, mimeType);
-                OutputStream out = mContext.getContentResolver().openOutputStream(uri, "w");
+            }
+            mLog.add(LogType.MSG_DATA_MIME_TYPE, 3, mimeType);
 
-                if (out == null) {
-                    throw new IOException("Error getting file for writing!");
-                }
+            Uri uri = TemporaryFileProvider.createFile(mContext, mFilename, mimeType);
+            OutputStream out = openOutputFile(uri);
 
-                // If this data looks like text, we pipe the incoming data into a charset
-                // decoder, to see if the data is legal for the assumed charset.
-                String charset = bd.getCharset();
-                CharsetVerifier charsetVerifier = new CharsetVerifier(buf, mimeType, charset);
+            // If this data looks like text, we pipe the incoming data into a charset
+            // decoder, to see if the data is legal for the assumed charset.
+            String charset = bd.getCharset();
+            CharsetVerifier charsetVerifier = new CharsetVerifier(buf, mimeType, charset);
 
-                int totalLength = 0;
-                do {
-                    totalLength += len;
-                    out.write(buf, 0, len);
-                    charsetVerifier.readBytesFromBuffer(0, len);
-                } while ((len = is.read(buf)) > 0);
+            int totalLength = 0;
+            do {
+                totalLength += len;
+                out.write(buf, 0, len);
+                charsetVerifier.readBytesFromBuffer(0, len);
+            } while ((len = is.read(buf)) > 0);
 
-                log.add(LogType.MSG_DATA_MIME_LENGTH, 3, Long.toString(totalLength));
+            mLog.add(LogType.MSG_DATA_MIME_LENGTH, 3, Long.toString(totalLength));
 
-                OpenPgpMetadata metadata;
-                if (charsetVerifier.isDefinitelyBinary()) {
-                    metadata = new OpenPgpMetadata(mFilename, mimeType, 0L, totalLength);
+            OpenPgpMetadata metadata;
+            if (charsetVerifier.isDefinitelyBinary()) {
+                metadata = new OpenPgpMetadata(mFilename, mimeType, 0L, totalLength);
+            } else {
+                if (charsetVerifier.isCharsetFaulty() && charsetVerifier.isCharsetGuessed()) {
+                    mLog.add(LogType.MSG_DATA_MIME_CHARSET_UNKNOWN, 3, charsetVerifier.getMaybeFaultyCharset());
+                } else if (charsetVerifier.isCharsetFaulty()) {
+                    mLog.add(LogType.MSG_DATA_MIME_CHARSET_FAULTY, 3, charsetVerifier.getCharset());
+                } else if (charsetVerifier.isCharsetGuessed()) {
+                    mLog.add(LogType.MSG_DATA_MIME_CHARSET_GUESS, 3, charsetVerifier.getCharset());
                 } else {
-                    if (charsetVerifier.isCharsetFaulty() && charsetVerifier.isCharsetGuessed()) {
-                        log.add(LogType.MSG_DATA_MIME_CHARSET_UNKNOWN, 3, charsetVerifier.getMaybeFaultyCharset());
-                    } else if (charsetVerifier.isCharsetFaulty()) {
-                        log.add(LogType.MSG_DATA_MIME_CHARSET_FAULTY, 3, charsetVerifier.getCharset());
-                    } else if (charsetVerifier.isCharsetGuessed()) {
-                        log.add(LogType.MSG_DATA_MIME_CHARSET_GUESS, 3, charsetVerifier.getCharset());
-                    } else {
-                        log.add(LogType.MSG_DATA_MIME_CHARSET, 3, charsetVerifier.getCharset());
-                    }
-
-                    metadata = new OpenPgpMetadata(mFilename, charsetVerifier.getGuessedMimeType(), 0L, totalLength,
-                            charsetVerifier.getCharset());
+                    mLog.add(LogType.MSG_DATA_MIME_CHARSET, 3, charsetVerifier.getCharset());
                 }
 
-                out.close();
-                outputUris.add(uri);
-                metadatas.add(metadata);
-
+                metadata = new OpenPgpMetadata(mFilename, charsetVerifier.getGuessedMimeType(), 0L, totalLength,
+                        charsetVerifier.getCharset());
             }
 
-        });
+            out.close();
+            mOutputUris.add(uri);
+            mMetadatas.add(metadata);
 
-        try {
+        }
 
-            log.add(LogType.MSG_DATA_MIME, 1);
+    }
 
-            try {
+    /**
+     * Keeps a copy of all data read until told otherwise. Once the limit of recorded data is
+     * reached, this stream pretends to be at its end.
+     */
+    @VisibleForTesting
+    static class RecordingInputStream extends FilterInputStream {
+        private final int mLimit;
+        private ByteArrayOutputStream mRecorded = new ByteArrayOutputStream();
+
+        RecordingInputStream(InputStream in, int limit) {
+            super(in);
+            mLimit = limit;
+        }
 
-                // open current uri for input
-                InputStream in = mContext.getContentResolver().openInputStream(currentInputUri);
-                parser.parse(in);
+        boolean isRecording() {
+            return mRecorded != null;
+        }
 
-                if (mSignedDataUri != null) {
+        void stopRecording() {
+            mRecorded = null;
+        }
 
-                    if (decryptResult != null) {
-                        decryptResult.setSignatureResult(mSignedDataResult.getSignatureResult());
-                    } else {
-                        decryptResult = mSignedDataResult;
-                    }
+        void writeRecordedTo(OutputStream out) throws IOException {
+            mRecorded.writeTo(out);
+        }
 
-                    // the actual content is the signed data now (and will be passed verbatim, if parsing fails)
-                    currentInputUri = mSignedDataUri;
-                    in = mContext.getContentResolver().openInputStream(currentInputUri);
-                    // reset signed data result, to indicate to the parser that it is in the inner part
-                    mSignedDataResult = null;
-                    parser.parse(in);
+        @Override
+        public int read() throws IOException {
+            if (isLimitReached()) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0 && mRecorded != null) {
+                mRecorded.write(b);
+            }
+            return b;
+        }
 
-                }
-            } catch (MimeException e) {
-                // a mime error likely means that this wasn't mime data, after all
-                e.printStackTrace();
-                log.add(LogType.MSG_DATA_MIME_BAD, 2);
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (isLimitReached()) {
+                return -1;
+            }
+            int read = super.read(b, off, len);
+            if (read > 0 && mRecorded != null) {
+                mRecorded.write(b, off, read);
             }
+            return read;
+        }
 
-            // if we found data, return success
-            if (!outputUris.isEmpty()) {
-                log.add(LogType.MSG_DATA_MIME_OK, 2);
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped data must be recorded as well
+            byte[] skipBuf = new byte[(int) Math.min(n, 4096)];
+            int read = read(skipBuf, 0, skipBuf.length);
+            return read < 0 ? 0 : read;
+        }
 
-                log.add(LogType.MSG_DATA_OK, 1);
-                return new InputDataResult(InputDataResult.RESULT_OK, log, decryptResult, outputUris, metadatas);
-            }
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
 
-            // if no mime data parsed, just return the raw data as fallback
-            log.add(LogType.MSG_DATA_MIME_NONE, 2);
+        private boolean isLimitReached() {
+            return mRecorded != null && mRecorded.size() >= mLimit;
+        }
+    }
 
-            OpenPgpMetadata metadata;
-            if (decryptResult != null) {
-                metadata = decryptResult.getDecryptionMetadata();
-            } else {
-                // if we neither decrypted nor mime-decoded, should this be treated as an error?
-                // either way, we know nothing about the data
-                metadata = new OpenPgpMetadata();
-            }
+    /** Writes all data read from it to the given stream, and into the given digest. */
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream mOut;
+        private final DetachedSignatureDigest mDigest;
+        private final byte[] mSingleByte = new byte[1];
 
-            outputUris.add(currentInputUri);
-            metadatas.add(metadata);
+        TeeInputStream(InputStream in, OutputStream out, DetachedSignatureDigest digest) {
+            super(in);
+            mOut = out;
+            mDigest = digest;
+        }
 
-            log.add(LogType.MSG_DATA_OK, 1);
-            return new InputDataResult(InputDataResult.RESULT_OK, log, decryptResult, outputUris, metadatas);
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                mOut.write(b);
+                mSingleByte[0] = (byte) b;
+                mDigest.update(mSingleByte, 0, 1);
+            }
+            return b;
+        }
 
-        } catch (FileNotFoundException e) {
-            log.add(LogType.MSG_DATA_ERROR_IO, 2);
-            return new InputDataResult(InputDataResult.RESULT_ERROR, log);
-        } catch (IOException e) {
-            e.printStackTrace();
-            log.add(LogType.MSG_DATA_ERROR_IO, 2);
-            return new InputDataResult(InputDataResult.RESULT_ERROR, log);
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                mOut.write(b, off, read);
+                mDigest.update(b, off, read);
+            }
+            return read;
         }
 
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] skipBuf = new byte[(int) Math.min(n, 4096)];
+            int read = read(skipBuf, 0, skipBuf.length);
+            return read < 0 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
     }
 
 }
@@ -0,0 +1,518 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import android.support.annotation.VisibleForTesting;
+
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import timber.log.Timber;
+
+
+/**
+ * Compact storage for the entries of an {@link OperationResult.OperationLog}.
+ * <p/>
+ * Type and indent of each entry are packed into a single int, parameters and sub results are kept
+ * in fixed-size chunks and only where present. Parameters are stored as typed values in flat
+ * arrays: ints and longs inline, everything else by its string representation, which is all that
+ * formatting a log message uses.
+ * <p/>
+ * Once a log and the logs of its sub results grow past a threshold, the parameters of its
+ * completed chunks and of all its sub logs are written to a file in the cache dir, and read back
+ * one chunk at a time when accessed. The file is shared with the sub logs, and closed once none
+ * of them uses it anymore. It is unlinked right after it is opened, so closing it is what deletes
+ * it, and a crashed process can't leave it behind. {@link #releaseSpillFile()} reads all
+ * parameters back and closes the file, this happens when the log is handed off in a parcel.
+ */
+class OperationLogStore {
+    private static final String SPILL_FILE_PREFIX = "oplog-";
+    private static final String SPILL_FILE_SUFFIX = ".spill";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int INDENT_BITS = 8;
+    private static final int MAX_INDENT = (1 << INDENT_BITS) - 1;
+
+    @VisibleForTesting
+    static final int CHUNK_SIZE = 1024;
+    private static final int SPILL_THRESHOLD = 8 * CHUNK_SIZE;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_STRING = 3;
+
+    private static final LogType[] LOG_TYPES = LogType.values();
+
+    private static File sSpillDir;
+
+    private int[] mPackedEntries = new int[16];
+    private int mSize;
+    private final ArrayList<Chunk> mChunks = new ArrayList<>();
+    // entries of this log and its sub logs, and how many of them were added since the last spill
+    private int mTotalSize;
+    private int mUnspilledSize;
+
+    private final int mSpillThreshold;
+    private SpillFile mSpillFile;
+    private boolean mSpillFailed;
+
+    // the most recently read spilled chunk, so sequential access doesn't hit the disk per entry
+    private Chunk mLoadedChunk;
+    private Parameters mLoadedParameters;
+
+    /**
+     * Sets the directory spill files are written to. Without one, logs are kept in memory.
+     */
+    static synchronized void setSpillDirectory(File spillDir) {
+        sSpillDir = spillDir;
+    }
+
+    OperationLogStore() {
+        this(SPILL_THRESHOLD);
+    }
+
+    @VisibleForTesting
+    OperationLogStore(int spillThreshold) {
+        mSpillThreshold = spillThreshold;
+    }
+
+    synchronized void add(LogType type, int indent, Object[] parameters, OperationResult subResult) {
+        if (mSize == mPackedEntries.length) {
+            int[] grown = new int[mPackedEntries.length * 2];
+            System.arraycopy(mPackedEntries, 0, grown, 0, mSize);
+            mPackedEntries = grown;
+        }
+        mPackedEntries[mSize] = (type.ordinal() << INDENT_BITS) | Math.min(indent, MAX_INDENT);
+
+        int indexInChunk = mSize % CHUNK_SIZE;
+        if (indexInChunk == 0) {
+            mChunks.add(new Chunk());
+        }
+        Chunk chunk = mChunks.get(mChunks.size() - 1);
+        if (chunk.mSpilled) {
+            // a parent log spilled this one before it was complete
+            unspill(chunk);
+        }
+        if (chunk.mParameters == null && parameters != null && parameters.length > 0) {
+            chunk.mParameters = new Parameters();
+        }
+        if (chunk.mParameters != null) {
+            chunk.mParameters.put(indexInChunk, parameters);
+        }
+
+        int addedSize = 1;
+        if (subResult != null) {
+            if (chunk.mSubResults == null) {
+                chunk.mSubResults = new OperationResult[CHUNK_SIZE];
+            }
+            chunk.mSubResults[indexInChunk] = subResult;
+
+            OperationLogStore subStore = getStore(subResult);
+            if (subStore != null) {
+                addedSize += subStore.getTotalSize();
+            }
+        }
+
+        mSize += 1;
+        mTotalSize += addedSize;
+        mUnspilledSize += addedSize;
+
+        if (mUnspilledSize >= mSpillThreshold) {
+            spill();
+        }
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized LogType getType(int index) {
+        checkIndex(index);
+        return LOG_TYPES[mPackedEntries[index] >>> INDENT_BITS];
+    }
+
+    synchronized int getIndent(int index) {
+        checkIndex(index);
+        return mPackedEntries[index] & MAX_INDENT;
+    }
+
+    synchronized OperationResult getSubResult(int index) {
+        checkIndex(index);
+        Chunk chunk = mChunks.get(index / CHUNK_SIZE);
+        return chunk.mSubResults != null ? chunk.mSubResults[index % CHUNK_SIZE] : null;
+    }
+
+    synchronized Object[] getParameters(int index) {
+        checkIndex(index);
+        Chunk chunk = mChunks.get(index / CHUNK_SIZE);
+        Parameters parameters = chunk.mSpilled ? loadSpilledParameters(chunk) : chunk.mParameters;
+        return parameters != null ? parameters.get(index % CHUNK_SIZE) : null;
+    }
+
+    synchronized boolean isSpilled() {
+        return mSpillFile != null;
+    }
+
+    synchronized void clear() {
+        mSize = 0;
+        mTotalSize = 0;
+        mUnspilledSize = 0;
+        mChunks.clear();
+        mLoadedChunk = null;
+        mLoadedParameters = null;
+        if (mSpillFile != null) {
+            mSpillFile.release();
+            mSpillFile = null;
+        }
+    }
+
+    /**
+     * Reads the spilled parameters of this log and its sub logs back into memory, and closes the
+     * spill file once no other log uses it.
+     */
+    synchronized void releaseSpillFile() {
+        for (Chunk chunk : mChunks) {
+            if (chunk.mSpilled) {
+                unspill(chunk);
+            }
+            if (chunk.mSubResults == null) {
+                continue;
+            }
+            for (OperationResult subResult : chunk.mSubResults) {
+                OperationLogStore subStore = getStore(subResult);
+                if (subStore != null) {
+                    subStore.releaseSpillFile();
+                }
+            }
+        }
+
+        mLoadedChunk = null;
+        mLoadedParameters = null;
+        mUnspilledSize = 0;
+        if (mSpillFile != null) {
+            mSpillFile.release();
+            mSpillFile = null;
+        }
+    }
+
+    private synchronized int getTotalSize() {
+        return mTotalSize;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+    }
+
+    private static OperationLogStore getStore(OperationResult result) {
+        return result != null && result.mLog != null ? result.mLog.getStore() : null;
+    }
+
+    private void spill() {
+        File spillDir;
+        synchronized (OperationLogStore.class) {
+            spillDir = sSpillDir;
+        }
+        if (mSpillFailed || spillDir == null) {
+            return;
+        }
+
+        try {
+            if (mSpillFile == null) {
+                mSpillFile = SpillFile.create(spillDir);
+            }
+            spillInto(mSpillFile, false);
+        } catch (IOException e) {
+            // no harm done, chunks which weren't written are simply kept in memory
+            Timber.e(e, "Could not spill operation log to disk, keeping it in memory");
+            mSpillFailed = true;
+        }
+        mUnspilledSize = mSize % CHUNK_SIZE;
+    }
+
+    /**
+     * Writes the parameters of this log to the spill file, including the last chunk only if it's
+     * complete or this is a sub log, and those of all sub logs. Uses the given file unless this
+     * log has one already.
+     */
+    private synchronized void spillInto(SpillFile spillFile, boolean includeLastChunk) throws IOException {
+        if (mSpillFile == null) {
+            spillFile.acquire();
+            mSpillFile = spillFile;
+        }
+
+        int lastIndex = mChunks.size() - 1;
+        for (int i = 0; i <= lastIndex; i++) {
+            Chunk chunk = mChunks.get(i);
+            boolean complete = i < lastIndex || mSize % CHUNK_SIZE == 0;
+            if (!chunk.mSpilled && chunk.mParameters != null && (complete || includeLastChunk)) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                chunk.mParameters.writeTo(out);
+                out.close();
+
+                byte[] data = bytes.toByteArray();
+                chunk.mSpillOffset = mSpillFile.append(data);
+                chunk.mSpillLength = data.length;
+                chunk.mParameters = null;
+                chunk.mSpilled = true;
+            }
+
+            if (chunk.mSubResults == null) {
+                continue;
+            }
+            for (OperationResult subResult : chunk.mSubResults) {
+                OperationLogStore subStore = getStore(subResult);
+                if (subStore != null) {
+                    subStore.spillInto(mSpillFile, true);
+                }
+            }
+        }
+        mUnspilledSize = 0;
+    }
+
+    private void unspill(Chunk chunk) {
+        chunk.mParameters = loadSpilledParameters(chunk);
+        chunk.mSpilled = false;
+        if (mLoadedChunk == chunk) {
+            mLoadedChunk = null;
+            mLoadedParameters = null;
+        }
+    }
+
+    private Parameters loadSpilledParameters(Chunk chunk) {
+        if (mLoadedChunk == chunk) {
+            return mLoadedParameters;
+        }
+
+        try {
+            byte[] data = new byte[chunk.mSpillLength];
+            mSpillFile.read(chunk.mSpillOffset, data);
+
+            mLoadedParameters = Parameters.readFrom(new DataInputStream(new ByteArrayInputStream(data)));
+            mLoadedChunk = chunk;
+            return mLoadedParameters;
+        } catch (IOException e) {
+            // show the entries without parameters rather than failing altogether
+            Timber.e(e, "Could not read spilled operation log!");
+            return null;
+        }
+    }
+
+    private static class Chunk {
+        Parameters mParameters;
+        OperationResult[] mSubResults;
+
+        boolean mSpilled;
+        long mSpillOffset;
+        int mSpillLength;
+    }
+
+    /**
+     * The parameters of the entries of one chunk. Entries are put in order, and own the values
+     * up to their end index.
+     */
+    private static class Parameters {
+        private int[] mEnds = new int[16];
+        private int mEntryCount;
+
+        private byte[] mTypes = new byte[16];
+        // ints and longs, or for strings the index into mStrings
+        private long[] mValues = new long[16];
+        private int mValueCount;
+        private final ArrayList<String> mStrings = new ArrayList<>();
+
+        void put(int index, Object[] parameters) {
+            if (index >= mEnds.length) {
+                int[] grown = new int[Math.min(Math.max(mEnds.length * 2, index + 1), CHUNK_SIZE)];
+                System.arraycopy(mEnds, 0, grown, 0, mEntryCount);
+                mEnds = grown;
+            }
+            // entries skipped since the last put have no parameters
+            for (int i = mEntryCount; i < index; i++) {
+                mEnds[i] = mValueCount;
+            }
+            if (parameters != null) {
+                for (Object parameter : parameters) {
+                    putValue(parameter);
+                }
+            }
+            mEnds[index] = mValueCount;
+            mEntryCount = index + 1;
+        }
+
+        private void putValue(Object value) {
+            if (mValueCount == mTypes.length) {
+                byte[] grownTypes = new byte[mTypes.length * 2];
+                System.arraycopy(mTypes, 0, grownTypes, 0, mValueCount);
+                mTypes = grownTypes;
+                long[] grownValues = new long[mValues.length * 2];
+                System.arraycopy(mValues, 0, grownValues, 0, mValueCount);
+                mValues = grownValues;
+            }
+
+            if (value == null) {
+                mTypes[mValueCount] = TYPE_NULL;
+            } else if (value instanceof Integer) {
+                mTypes[mValueCount] = TYPE_INT;
+                mValues[mValueCount] = (Integer) value;
+            } else if (value instanceof Long) {
+                mTypes[mValueCount] = TYPE_LONG;
+                mValues[mValueCount] = (Long) value;
+            } else {
+                mTypes[mValueCount] = TYPE_STRING;
+                mValues[mValueCount] = mStrings.size();
+                mStrings.add(value.toString());
+            }
+            mValueCount += 1;
+        }
+
+        Object[] get(int index) {
+            if (index >= mEntryCount) {
+                return null;
+            }
+            int start = index == 0 ? 0 : mEnds[index - 1];
+            int end = mEnds[index];
+            if (start == end) {
+                return null;
+            }
+
+            Object[] parameters = new Object[end - start];
+            for (int i = start; i < end; i++) {
+                switch (mTypes[i]) {
+                    case TYPE_INT:
+                        parameters[i - start] = (int) mValues[i];
+                        break;
+                    case TYPE_LONG:
+                        parameters[i - start] = mValues[i];
+                        break;
+                    case TYPE_STRING:
+                        parameters[i - start] = mStrings.get((int) mValues[i]);
+                        break;
+                }
+            }
+            return parameters;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(mEntryCount);
+            for (int i = 0; i < mEntryCount; i++) {
+                out.writeInt(mEnds[i]);
+            }
+            out.writeInt(mValueCount);
+            out.write(mTypes, 0, mValueCount);
+            for (int i = 0; i < mValueCount; i++) {
+                if (mTypes[i] == TYPE_INT || mTypes[i] == TYPE_LONG) {
+                    out.writeLong(mValues[i]);
+                } else if (mTypes[i] == TYPE_STRING) {
+                    // not writeUTF, which is limited to 64k
+                    byte[] string = mStrings.get((int) mValues[i]).getBytes(UTF8);
+                    out.writeInt(string.length);
+                    out.write(string);
+                }
+            }
+        }
+
+        static Parameters readFrom(DataInputStream in) throws IOException {
+            Parameters parameters = new Parameters();
+
+            parameters.mEntryCount = in.readInt();
+            parameters.mEnds = new int[Math.max(parameters.mEntryCount, 1)];
+            for (int i = 0; i < parameters.mEntryCount; i++) {
+                parameters.mEnds[i] = in.readInt();
+            }
+
+            parameters.mValueCount = in.readInt();
+            parameters.mTypes = new byte[Math.max(parameters.mValueCount, 1)];
+            parameters.mValues = new long[parameters.mTypes.length];
+            in.readFully(parameters.mTypes, 0, parameters.mValueCount);
+            for (int i = 0; i < parameters.mValueCount; i++) {
+                if (parameters.mTypes[i] == TYPE_INT || parameters.mTypes[i] == TYPE_LONG) {
+                    parameters.mValues[i] = in.readLong();
+                } else if (parameters.mTypes[i] == TYPE_STRING) {
+                    byte[] string = new byte[in.readInt()];
+                    in.readFully(string);
+                    parameters.mValues[i] = parameters.mStrings.size();
+                    parameters.mStrings.add(new String(string, UTF8));
+                }
+            }
+            return parameters;
+        }
+    }
+
+    /**
+     * A spill file, shared by a log and its sub logs. It is unlinked right after it is created,
+     * and closed by the last {@link #release()}.
+     */
+    private static class SpillFile {
+        private final RandomAccessFile mAccess;
+        private int mReferences = 1;
+
+        private SpillFile(RandomAccessFile access) {
+            mAccess = access;
+        }
+
+        static SpillFile create(File spillDir) throws IOException {
+            File file = File.createTempFile(SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX, spillDir);
+            RandomAccessFile access = new RandomAccessFile(file, "rw");
+            // the open file stays accessible, and is cleaned up by the OS once it's closed
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return new SpillFile(access);
+        }
+
+        synchronized void acquire() {
+            mReferences += 1;
+        }
+
+        synchronized void release() {
+            mReferences -= 1;
+            if (mReferences == 0) {
+                try {
+                    mAccess.close();
+                } catch (IOException e) {
+                    // nvm
+                }
+            }
+        }
+
+        synchronized long append(byte[] data) throws IOException {
+            long offset = mAccess.length();
+            mAccess.seek(offset);
+            mAccess.write(data);
+            return offset;
+        }
+
+        synchronized void read(long offset, byte[] data) throws IOException {
+            mAccess.seek(offset);
+            mAccess.readFully(data);
+        }
+    }
+
+}
@@ -30,14 +30,16 @@ import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.Notify.ActionListener;
 import org.sufficientlysecure.keychain.ui.util.Notify.Showable;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
-import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.ParcelableCache;
+import org.sufficientlysecure.keychain.util.ParcelableCache.EvictionPolicy;
 import timber.log.Timber;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Represent the result of an operation.
@@ -54,13 +56,35 @@ public abstract class OperationResult implements Parcelable {
 
     public static final String EXTRA_RESULT = "operation_result";
 
+    private static final int LOG_CACHE_MAX_ENTRIES = 100000;
+    private static final int TRUNCATED_LOG_HEAD_ENTRIES = 10;
+    private static final int TRUNCATED_LOG_TAIL_ENTRIES = 50;
+
     /**
      * Instead of parceling the logs, they are cached to overcome the 1 MB boundary of
      * Android's Binder. See ParcelableCache
      */
     private static ParcelableCache<OperationLog> logCache;
     static {
-        logCache = new ParcelableCache<>();
+        logCache = new ParcelableCache<>(new EvictionPolicy<OperationLog>() {
+            @Override
+            public int getWeight(OperationLog log) {
+                // sub logs aren't counted, the number of top level entries is a good enough estimate
+                return log.size();
+            }
+
+            @Override
+            public OperationLog truncate(OperationLog log) {
+                return log.truncate(TRUNCATED_LOG_HEAD_ENTRIES, TRUNCATED_LOG_TAIL_ENTRIES);
+            }
+
+            @Override
+            public OperationLog createFallback() {
+                OperationLog log = new OperationLog();
+                log.add(LogType.MSG_LOG_UNAVAILABLE, 0);
+                return log;
+            }
+        }, LOG_CACHE_MAX_ENTRIES, ParcelableCache.DEFAULT_MAX_AGE_MILLIS);
     }
 
     /** Holds the overall result, the number specifying varying degrees of success:
@@ -120,7 +144,6 @@ public abstract class OperationResult implements Parcelable {
             mType = type;
             mParameters = parameters;
             mIndent = indent;
-            Timber.v("log: " + this);
         }
 
         /** Clones this LogEntryParcel, adding extra indent. Note that the parameter array is NOT cloned! */
@@ -203,8 +226,6 @@ public abstract class OperationResult implements Parcelable {
         public SubLogEntryParcel(@NonNull OperationResult subResult, LogType type, int indent, Object... parameters) {
             super(type, indent, parameters);
             mSubResult = subResult;
-
-            Timber.v("log: " + this);
         }
 
         public SubLogEntryParcel(Parcel source) {
@@ -329,6 +350,8 @@ public abstract class OperationResult implements Parcelable {
 
         MSG_INTERNAL_ERROR (LogLevel.ERROR, R.string.msg_internal_error),
         MSG_OPERATION_CANCELLED (LogLevel.CANCELLED, R.string.msg_cancelled),
+        MSG_LOG_TRUNCATED (LogLevel.WARN, R.plurals.msg_log_truncated),
+        MSG_LOG_UNAVAILABLE (LogLevel.WARN, R.string.msg_log_unavailable),
 
         // import public
         MSG_IP(LogLevel.START, R.string.msg_ip),
@@ -518,6 +541,7 @@ public abstract class OperationResult implements Parcelable {
 
         // secret key create
         MSG_CR (LogLevel.START, R.string.msg_cr),
+        MSG_CR_POOLED_KEY (LogLevel.DEBUG, R.string.msg_cr_pooled_key),
         MSG_CR_ERROR_NO_MASTER (LogLevel.ERROR, R.string.msg_cr_error_no_master),
         MSG_CR_ERROR_NO_USER_ID (LogLevel.ERROR, R.string.msg_cr_error_no_user_id),
         MSG_CR_ERROR_NO_CERTIFY (LogLevel.ERROR, R.string.msg_cr_error_no_certify),
@@ -696,6 +720,9 @@ public abstract class OperationResult implements Parcelable {
         MSG_PSE_ERROR_OUTPUT_URI_NOT_FOUND (LogLevel.ERROR, R.string.msg_se_error_output_uri_not_found),
         MSG_PSE_ASYMMETRIC (LogLevel.INFO, R.string.msg_pse_asymmetric),
         MSG_PSE_COMPRESSING (LogLevel.DEBUG, R.string.msg_pse_compressing),
+        MSG_PSE_COMPRESSING_FAST (LogLevel.DEBUG, R.string.msg_pse_compressing_fast),
+        MSG_PSE_COMPRESSING_SKIPPED (LogLevel.DEBUG, R.string.msg_pse_compressing_skipped),
+        MSG_PSE_COMPRESSING_STRONG (LogLevel.DEBUG, R.string.msg_pse_compressing_strong),
         MSG_PSE_ENCRYPTING (LogLevel.DEBUG, R.string.msg_pse_encrypting),
         MSG_PSE_ERROR_BAD_PASSPHRASE (LogLevel.ERROR, R.string.msg_pse_error_bad_passphrase),
         MSG_PSE_ERROR_IO (LogLevel.ERROR, R.string.msg_pse_error_io),
@@ -768,6 +795,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_IMPORT_MERGE_ERROR (LogLevel.ERROR, R.string.msg_import_merge_error),
         MSG_IMPORT_ERROR (LogLevel.ERROR, R.string.msg_import_error),
         MSG_IMPORT_ERROR_IO (LogLevel.ERROR, R.string.msg_import_error_io),
+        MSG_IMPORT_ERROR_BACKUP_CHAIN (LogLevel.ERROR, R.string.msg_import_error_backup_chain),
         MSG_IMPORT_PARTIAL (LogLevel.ERROR, R.string.msg_import_partial),
         MSG_IMPORT_SUCCESS (LogLevel.OK, R.string.msg_import_success),
 
@@ -779,6 +807,10 @@ public abstract class OperationResult implements Parcelable {
         MSG_BACKUP_ERROR_DB(LogLevel.ERROR, R.string.msg_backup_error_db),
         MSG_BACKUP_ERROR_IO(LogLevel.ERROR, R.string.msg_backup_error_io),
         MSG_BACKUP_SUCCESS(LogLevel.OK, R.string.msg_backup_success),
+        MSG_BACKUP_INCREMENTAL(LogLevel.INFO, R.string.msg_backup_incremental),
+        MSG_BACKUP_INCREMENTAL_FULL(LogLevel.INFO, R.string.msg_backup_incremental_full),
+        MSG_BACKUP_INCREMENTAL_CHANGES(LogLevel.INFO, R.string.msg_backup_incremental_changes),
+        MSG_BACKUP_INCREMENTAL_WARN_MANIFEST(LogLevel.WARN, R.string.msg_backup_incremental_warn_manifest),
 
         MSG_UPLOAD(LogLevel.START, R.string.msg_upload),
         MSG_UPLOAD_KEY(LogLevel.INFO, R.string.msg_upload_key),
@@ -964,37 +996,49 @@ public abstract class OperationResult implements Parcelable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeInt(mResult);
+        if (mLog != null) {
+            // the log is read from the cache from now on, don't keep its spill file open for it
+            mLog.mEntries.releaseSpillFile();
+        }
         // cache log and write UUID to dest
         logCache.cacheAndWriteToParcel(mLog, dest);
     }
 
     public static class OperationLog implements Iterable<LogEntryParcel> {
 
-        private final List<LogEntryParcel> mParcels = new ArrayList<>();
+        private final OperationLogStore mEntries = new OperationLogStore();
+
+        /**
+         * Sets the directory large logs are spilled to, see {@link OperationLogStore}.
+         */
+        public static void setSpillDirectory(File spillDir) {
+            OperationLogStore.setSpillDirectory(spillDir);
+        }
 
         /// Simple convenience method
         public void add(LogType type, int indent, Object... parameters) {
-            mParcels.add(new OperationResult.LogEntryParcel(type, indent, parameters));
+            Timber.v("log: %s, indent %d", type, indent);
+            mEntries.add(type, indent, parameters, null);
         }
 
         public void add(LogType type, int indent) {
-            mParcels.add(new OperationResult.LogEntryParcel(type, indent, (Object[]) null));
+            Timber.v("log: %s, indent %d", type, indent);
+            mEntries.add(type, indent, null, null);
         }
 
         public void add(OperationResult subResult, int indent) {
             OperationLog subLog = subResult.getLog();
-            mParcels.add(new SubLogEntryParcel(subResult, subLog.getFirst().mType, indent, subLog.getFirst().mParameters));
+            LogEntryParcel first = subLog.getFirst();
+            Timber.v("log: sub result %s, indent %d", first.mType, indent);
+            mEntries.add(first.mType, indent, first.mParameters, subResult);
         }
 
         public void addByMerge(OperationResult subResult, int indent) {
-            OperationLog subLog = subResult.getLog();
-            for (LogEntryParcel entry : subLog) {
-                mParcels.add(new LogEntryParcel(entry, indent));
-            }
+            addByMerge(subResult.getLog(), indent);
         }
 
         public SubLogEntryParcel getSubResultIfSingle() {
-            if (mParcels.size() != 1) {
+            if (mEntries.size() != 1) {
                 return null;
             }
             LogEntryParcel first = getFirst();
@@ -1005,12 +1049,43 @@ public abstract class OperationResult implements Parcelable {
         }
 
         public void clear() {
-            mParcels.clear();
+            mEntries.clear();
+        }
+
+        OperationLogStore getStore() {
+            return mEntries;
+        }
+
+        /**
+         * Returns a copy of this log with only its first and last entries, and a note about the
+         * entries in between. Returns this log if it is short enough already.
+         */
+        public OperationLog truncate(int headEntries, int tailEntries) {
+            int size = mEntries.size();
+            if (size <= headEntries + tailEntries + 1) {
+                return this;
+            }
+
+            OperationLog truncated = new OperationLog();
+            for (int i = 0; i < headEntries; i++) {
+                truncated.copyEntry(this, i);
+            }
+            truncated.mEntries.add(LogType.MSG_LOG_TRUNCATED, getIndent(headEntries),
+                    new Object[] { size - headEntries - tailEntries }, null);
+            for (int i = size - tailEntries; i < size; i++) {
+                truncated.copyEntry(this, i);
+            }
+            return truncated;
+        }
+
+        private void copyEntry(OperationLog log, int index) {
+            mEntries.add(log.mEntries.getType(index), log.mEntries.getIndent(index),
+                    log.mEntries.getParameters(index), log.mEntries.getSubResult(index));
         }
 
         public boolean containsType(LogType type) {
-            for(LogEntryParcel entry : new IterableIterator<>(mParcels.iterator())) {
-                if (entry.mType == type) {
+            for (int i = 0; i < mEntries.size(); i++) {
+                if (mEntries.getType(i) == type) {
                     return true;
                 }
             }
@@ -1018,8 +1093,9 @@ public abstract class OperationResult implements Parcelable {
         }
 
         public boolean containsWarnings() {
-            for(LogEntryParcel entry : new IterableIterator<>(mParcels.iterator())) {
-                if (entry.mType.mLevel == LogLevel.WARN || entry.mType.mLevel == LogLevel.ERROR) {
+            for (int i = 0; i < mEntries.size(); i++) {
+                LogLevel level = mEntries.getType(i).mLevel;
+                if (level == LogLevel.WARN || level == LogLevel.ERROR) {
                     return true;
                 }
             }
@@ -1027,38 +1103,107 @@ public abstract class OperationResult implements Parcelable {
         }
 
         public void addAll(List<LogEntryParcel> parcels) {
-            mParcels.addAll(parcels);
+            for (LogEntryParcel entry : parcels) {
+                OperationResult subResult = entry instanceof SubLogEntryParcel
+                        ? ((SubLogEntryParcel) entry).getSubResult() : null;
+                mEntries.add(entry.mType, entry.mIndent, entry.mParameters, subResult);
+            }
+        }
+
+        public void addAll(OperationLog log) {
+            addByMerge(log, 0);
+        }
+
+        private void addByMerge(OperationLog log, int indent) {
+            for (int i = 0; i < log.size(); i++) {
+                mEntries.add(log.mEntries.getType(i), log.mEntries.getIndent(i) + indent,
+                        log.mEntries.getParameters(i), log.mEntries.getSubResult(i));
+            }
         }
 
+        /**
+         * Materializes all entries of this log. For large logs, prefer paging through it
+         * using {@link #size()} and {@link #get(int)}.
+         */
         public List<LogEntryParcel> toList() {
-            return mParcels;
+            ArrayList<LogEntryParcel> list = new ArrayList<>(mEntries.size());
+            for (int i = 0; i < mEntries.size(); i++) {
+                list.add(get(i));
+            }
+            return list;
+        }
+
+        public int size() {
+            return mEntries.size();
+        }
+
+        /**
+         * Returns the entry at the given position. Entries are created on access, so the same
+         * position may return different (but equal) instances.
+         */
+        public LogEntryParcel get(int index) {
+            OperationResult subResult = mEntries.getSubResult(index);
+            if (subResult != null) {
+                return new SubLogEntryParcel(subResult, mEntries.getType(index),
+                        mEntries.getIndent(index), mEntries.getParameters(index));
+            }
+            return new LogEntryParcel(mEntries.getType(index), mEntries.getIndent(index),
+                    mEntries.getParameters(index));
+        }
+
+        /**
+         * Returns the indent of the entry at the given position, without reading its parameters.
+         */
+        public int getIndent(int index) {
+            return mEntries.getIndent(index);
         }
 
         public boolean isEmpty() {
-            return mParcels.isEmpty();
+            return mEntries.size() == 0;
         }
 
         public LogEntryParcel getFirst() {
-            if (mParcels.isEmpty()) {
+            if (isEmpty()) {
                 return null;
             }
-            return mParcels.get(0);
+            return get(0);
         }
 
         public LogEntryParcel getLast() {
-            if (mParcels.isEmpty()) {
+            if (isEmpty()) {
                 return null;
             }
-            LogEntryParcel last = mParcels.get(mParcels.size() -1);
-            if (last instanceof SubLogEntryParcel) {
-                return ((SubLogEntryParcel) last).getSubResult().getLog().getLast();
+            int lastIndex = mEntries.size() - 1;
+            OperationResult lastSubResult = mEntries.getSubResult(lastIndex);
+            if (lastSubResult != null) {
+                return lastSubResult.getLog().getLast();
             }
-            return last;
+            return get(lastIndex);
         }
 
         @Override
         public Iterator<LogEntryParcel> iterator() {
-            return mParcels.iterator();
+            return new Iterator<LogEntryParcel>() {
+                int mNext = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return mNext < mEntries.size();
+                }
+
+                @Override
+                public LogEntryParcel next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return get(mNext++);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
         }
 
         /**
@@ -34,6 +34,10 @@ public class PgpSignEncryptResult extends InputPendingResult {
     // this is the micalg parameter used in PGP/MIME, see RFC3156:
     // https://tools.ietf.org/html/rfc3156#section-5
     private String mMicAlgDigestName;
+    // only set if compression was chosen adaptively
+    private int mCompressionAlgorithm = -1;
+    private int mCompressionLevel = -1;
+    private float mCompressionRatio = -1;
 
     public void setDetachedSignature(byte[] detachedSignature) {
         mDetachedSignature = detachedSignature;
@@ -55,6 +59,9 @@ public class PgpSignEncryptResult extends InputPendingResult {
     public PgpSignEncryptResult(Parcel source) {
         super(source);
         mDetachedSignature = source.readInt() != 0 ? source.createByteArray() : null;
+        mCompressionAlgorithm = source.readInt();
+        mCompressionLevel = source.readInt();
+        mCompressionRatio = source.readFloat();
     }
 
     public void setOutputBytes(byte[] outputBytes) {
@@ -77,6 +84,9 @@ public class PgpSignEncryptResult extends InputPendingResult {
         } else {
             dest.writeInt(0);
         }
+        dest.writeInt(mCompressionAlgorithm);
+        dest.writeInt(mCompressionLevel);
+        dest.writeFloat(mCompressionRatio);
     }
 
     public static final Creator<PgpSignEncryptResult> CREATOR = new Creator<PgpSignEncryptResult>() {
@@ -96,4 +106,25 @@ public class PgpSignEncryptResult extends InputPendingResult {
     public String getMicAlgDigestName() {
         return mMicAlgDigestName;
     }
+
+    public void setCompressionEstimate(int compressionAlgorithm, int compressionLevel, float compressionRatio) {
+        mCompressionAlgorithm = compressionAlgorithm;
+        mCompressionLevel = compressionLevel;
+        mCompressionRatio = compressionRatio;
+    }
+
+    /** @return the compression algorithm chosen adaptively, or -1 if it was fixed. */
+    public int getCompressionAlgorithm() {
+        return mCompressionAlgorithm;
+    }
+
+    /** @return the deflate level chosen adaptively, or -1 if it was fixed. */
+    public int getCompressionLevel() {
+        return mCompressionLevel;
+    }
+
+    /** @return the estimated compressed size relative to the input, or -1 if not estimated. */
+    public float getCompressionRatio() {
+        return mCompressionRatio;
+    }
 }
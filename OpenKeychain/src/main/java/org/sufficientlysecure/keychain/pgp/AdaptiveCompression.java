@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+import android.support.annotation.VisibleForTesting;
+
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
+
+
+/**
+ * Decides how to compress data, based on a sample from its beginning.
+ * <p/>
+ * Compressing data that is already compressed, like images, videos or archives, costs a lot
+ * of time for no gain at all. The sample is first checked for its byte entropy, which rules out
+ * such data cheaply. Otherwise it is compressed on trial with the fastest setting: data that
+ * barely shrinks is left uncompressed, highly redundant data like text is compressed with the
+ * strongest setting, where it still pays off, and everything in between with the fastest one.
+ */
+public class AdaptiveCompression {
+    @VisibleForTesting
+    static final int SAMPLE_SIZE = 1 << 16;
+
+    // bits per byte, anything above this is practically random
+    private static final double MAX_COMPRESSIBLE_ENTROPY = 7.9;
+    // compressed size relative to the sample
+    private static final float MAX_COMPRESSIBLE_RATIO = 0.9f;
+    private static final float MAX_HIGHLY_COMPRESSIBLE_RATIO = 0.4f;
+
+    private final int mAlgorithm;
+    private final int mLevel;
+    private final float mSampleRatio;
+
+    private AdaptiveCompression(int algorithm, int level, float sampleRatio) {
+        mAlgorithm = algorithm;
+        mLevel = level;
+        mSampleRatio = sampleRatio;
+    }
+
+    /**
+     * Samples the beginning of the given stream, which must support {@link InputStream#mark}.
+     * The stream is reset to its beginning afterwards.
+     */
+    public static AdaptiveCompression estimate(InputStream in, int algorithm) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+
+        in.mark(SAMPLE_SIZE);
+        int read;
+        while (length < sample.length && (read = in.read(sample, length, sample.length - length)) > 0) {
+            length += read;
+        }
+        in.reset();
+
+        return estimate(sample, length, algorithm);
+    }
+
+    @VisibleForTesting
+    static AdaptiveCompression estimate(byte[] sample, int length, int algorithm) {
+        if (length == 0 || algorithm == CompressionAlgorithmTags.UNCOMPRESSED) {
+            return new AdaptiveCompression(CompressionAlgorithmTags.UNCOMPRESSED, Deflater.NO_COMPRESSION, 1f);
+        }
+
+        if (getEntropy(sample, length) > MAX_COMPRESSIBLE_ENTROPY) {
+            return new AdaptiveCompression(CompressionAlgorithmTags.UNCOMPRESSED, Deflater.NO_COMPRESSION, 1f);
+        }
+
+        float ratio = (float) getCompressedSize(sample, length) / length;
+        if (ratio > MAX_COMPRESSIBLE_RATIO) {
+            return new AdaptiveCompression(CompressionAlgorithmTags.UNCOMPRESSED, Deflater.NO_COMPRESSION, ratio);
+        }
+        if (ratio > MAX_HIGHLY_COMPRESSIBLE_RATIO) {
+            return new AdaptiveCompression(algorithm, Deflater.BEST_SPEED, ratio);
+        }
+        return new AdaptiveCompression(algorithm, Deflater.BEST_COMPRESSION, ratio);
+    }
+
+    private static double getEntropy(byte[] sample, int length) {
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[sample[i] & 0xff]++;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    private static int getCompressedSize(byte[] sample, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+
+            byte[] buffer = new byte[8192];
+            int compressedSize = 0;
+            while (!deflater.finished()) {
+                compressedSize += deflater.deflate(buffer);
+            }
+            return compressedSize;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public boolean isCompressing() {
+        return mAlgorithm != CompressionAlgorithmTags.UNCOMPRESSED;
+    }
+
+    public boolean isStrong() {
+        return mLevel == Deflater.BEST_COMPRESSION;
+    }
+
+    public int getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /** Compressed size of the sample relative to its original size, 1 if it wasn't compressed. */
+    public float getSampleRatio() {
+        return mSampleRatio;
+    }
+
+    public PGPCompressedDataGenerator createGenerator() {
+        if (!isCompressing()) {
+            throw new IllegalStateException("no compression selected!");
+        }
+        return new PGPCompressedDataGenerator(mAlgorithm, mLevel);
+    }
+
+}
@@ -221,17 +221,24 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
     }
 
     private PGPContentSignerBuilder getContentSignerBuilder(int hashAlgo, Map<ByteBuffer, byte[]> signedHashes) {
+        return getContentSignerBuilder(hashAlgo, signedHashes, Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+    }
+
+    private PGPContentSignerBuilder getContentSignerBuilder(int hashAlgo, Map<ByteBuffer, byte[]> signedHashes,
+            String digestProviderName) {
         if (mPrivateKeyState == PRIVATE_KEY_STATE_DIVERT_TO_CARD) {
             // use synchronous "NFC based" SignerBuilder
             return new NfcSyncPGPContentSignerBuilder(
                     mSecretKey.getPublicKey().getAlgorithm(), hashAlgo,
                     mSecretKey.getKeyID(), signedHashes)
-                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                    .setDigestProvider(digestProviderName);
         } else {
             // content signer based on signing key algorithm and chosen hash algorithm
             return new JcaPGPContentSignerBuilder(
                     mSecretKey.getPublicKey().getAlgorithm(), hashAlgo)
-                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                    .setDigestProvider(digestProviderName);
         }
     }
 
@@ -289,8 +296,12 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
         }
     }
 
+    /**
+     * @param digestProviderName JCA provider for the digest of the signed data, see
+     *                           {@link CryptoProviderSelector#getDigestProviderName}
+     */
     public PGPSignatureGenerator getDataSignatureGenerator(int hashAlgo, boolean cleartext,
-            Map<ByteBuffer, byte[]> signedHashes, Date creationTimestamp)
+            Map<ByteBuffer, byte[]> signedHashes, Date creationTimestamp, String digestProviderName)
             throws PgpGeneralException {
         if (mPrivateKeyState == PRIVATE_KEY_STATE_LOCKED) {
             throw new PrivateKeyNotUnlockedException();
@@ -307,7 +318,8 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
             creationTimestamp = new Date();
         }
 
-        PGPContentSignerBuilder contentSignerBuilder = getContentSignerBuilder(hashAlgo, signedHashes);
+        PGPContentSignerBuilder contentSignerBuilder =
+                getContentSignerBuilder(hashAlgo, signedHashes, digestProviderName);
 
         int signatureType;
         if (cleartext) {
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+
+import android.support.annotation.VisibleForTesting;
+
+import org.sufficientlysecure.keychain.Constants;
+import timber.log.Timber;
+
+
+/**
+ * Provides AES in CFB mode, built on the AES/ECB cipher of another provider.
+ * <p/>
+ * Conscrypt, the platform's OpenSSL backed provider, offers AES in ECB, CBC, CTR and GCM mode,
+ * but not the CFB mode OpenPGP uses. This provider adds it, so the platform's AES can compete in
+ * the benchmark of the {@link CryptoProviderSelector}. Decryption passes all blocks of a chunk to
+ * the block cipher in one call, because the keystream only depends on ciphertext that is already
+ * known. Encryption has to feed back each block before the next one can be encrypted, so it
+ * calls the block cipher once per block, and will usually lose the benchmark.
+ */
+class CfbOverEcbProvider extends Provider {
+    private static final String NAME_SUFFIX = "+CFB";
+    private static final String CFB_TRANSFORMATION = "AES/CFB/NoPadding";
+    private static final String ECB_TRANSFORMATION = "AES/ECB/NoPadding";
+    private static final int BLOCK_SIZE = 16;
+
+    @VisibleForTesting
+    CfbOverEcbProvider(final Provider ecbProvider) {
+        super(ecbProvider.getName() + NAME_SUFFIX, 1.0,
+                "AES/CFB on top of AES/ECB of " + ecbProvider.getName());
+
+        putService(new Service(this, "Cipher", CFB_TRANSFORMATION, CfbCipherSpi.class.getName(), null, null) {
+            @Override
+            public Object newInstance(Object constructorParameter) {
+                return new CfbCipherSpi(ecbProvider);
+            }
+
+            @Override
+            public boolean supportsParameter(Object parameter) {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Adds a CFB provider for every installed provider which has AES/ECB, but no AES/CFB. The
+     * added providers go to the end of the list, so they are only ever used when asked for by
+     * name.
+     */
+    static synchronized void install() {
+        for (Provider provider : Security.getProviders()) {
+            if (provider instanceof CfbOverEcbProvider
+                    || Constants.BOUNCY_CASTLE_PROVIDER_NAME.equals(provider.getName())
+                    || Security.getProvider(provider.getName() + NAME_SUFFIX) != null) {
+                continue;
+            }
+            if (provides(provider, CFB_TRANSFORMATION) || !provides(provider, ECB_TRANSFORMATION)) {
+                continue;
+            }
+            Timber.d("Adding AES/CFB on top of AES/ECB of " + provider.getName());
+            Security.addProvider(new CfbOverEcbProvider(provider));
+        }
+    }
+
+    private static boolean provides(Provider provider, String transformation) {
+        try {
+            Cipher.getInstance(transformation, provider);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /** CFB with full block feedback, as used for integrity protected data. */
+    static class CfbCipherSpi extends CipherSpi {
+        private final Provider mEcbProvider;
+
+        private Cipher mEcb;
+        private boolean mEncrypt;
+        private byte[] mIv;
+        // the previous ciphertext block, and the keystream computed from it
+        private final byte[] mFeedback = new byte[BLOCK_SIZE];
+        private final byte[] mKeystream = new byte[BLOCK_SIZE];
+        // position in the current block, the keystream is only valid if this isn't 0
+        private int mBlockOffset;
+        private byte[] mChunkKeystream = new byte[0];
+
+        CfbCipherSpi(Provider ecbProvider) {
+            mEcbProvider = ecbProvider;
+        }
+
+        @Override
+        protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+            if (!"CFB".equalsIgnoreCase(mode)) {
+                throw new NoSuchAlgorithmException("only CFB mode is supported");
+            }
+        }
+
+        @Override
+        protected void engineSetPadding(String padding) throws NoSuchPaddingException {
+            if (!"NoPadding".equalsIgnoreCase(padding)) {
+                throw new NoSuchPaddingException("only NoPadding is supported");
+            }
+        }
+
+        @Override
+        protected int engineGetBlockSize() {
+            return BLOCK_SIZE;
+        }
+
+        @Override
+        protected int engineGetOutputSize(int inputLen) {
+            return inputLen;
+        }
+
+        @Override
+        protected byte[] engineGetIV() {
+            return mIv == null ? null : mIv.clone();
+        }
+
+        @Override
+        protected AlgorithmParameters engineGetParameters() {
+            return null;
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, SecureRandom random) throws InvalidKeyException {
+            if (opmode != Cipher.ENCRYPT_MODE) {
+                throw new InvalidKeyException("an IV is required for decryption");
+            }
+            byte[] iv = new byte[BLOCK_SIZE];
+            (random != null ? random : new SecureRandom()).nextBytes(iv);
+            init(opmode, key, iv);
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params, SecureRandom random)
+                throws InvalidKeyException, InvalidAlgorithmParameterException {
+            if (params == null) {
+                engineInit(opmode, key, random);
+                return;
+            }
+            if (!(params instanceof IvParameterSpec)) {
+                throw new InvalidAlgorithmParameterException("only an IvParameterSpec is supported");
+            }
+            byte[] iv = ((IvParameterSpec) params).getIV();
+            if (iv.length != BLOCK_SIZE) {
+                throw new InvalidAlgorithmParameterException("IV must be " + BLOCK_SIZE + " bytes");
+            }
+            init(opmode, key, iv);
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random)
+                throws InvalidKeyException, InvalidAlgorithmParameterException {
+            try {
+                engineInit(opmode, key,
+                        params == null ? null : params.getParameterSpec(IvParameterSpec.class), random);
+            } catch (InvalidParameterSpecException e) {
+                throw new InvalidAlgorithmParameterException(e);
+            }
+        }
+
+        private void init(int opmode, Key key, byte[] iv) throws InvalidKeyException {
+            if (opmode != Cipher.ENCRYPT_MODE && opmode != Cipher.DECRYPT_MODE) {
+                throw new InvalidKeyException("only encryption and decryption are supported");
+            }
+            try {
+                if (mEcb == null) {
+                    mEcb = Cipher.getInstance(ECB_TRANSFORMATION, mEcbProvider);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new InvalidKeyException("AES/ECB not available", e);
+            }
+            // CFB only ever uses the forward direction of the block cipher
+            mEcb.init(Cipher.ENCRYPT_MODE, key);
+            mEncrypt = opmode == Cipher.ENCRYPT_MODE;
+            mIv = iv.clone();
+            reset();
+        }
+
+        private void reset() {
+            System.arraycopy(mIv, 0, mFeedback, 0, BLOCK_SIZE);
+            mBlockOffset = 0;
+        }
+
+        @Override
+        protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+            byte[] output = new byte[inputLen];
+            process(input, inputOffset, inputLen, output, 0);
+            return output;
+        }
+
+        @Override
+        protected int engineUpdate(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+                throws ShortBufferException {
+            if (output.length - outputOffset < inputLen) {
+                throw new ShortBufferException();
+            }
+            process(input, inputOffset, inputLen, output, outputOffset);
+            return inputLen;
+        }
+
+        @Override
+        protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen)
+                throws IllegalBlockSizeException, BadPaddingException {
+            byte[] output = engineUpdate(input, inputOffset, inputLen);
+            reset();
+            return output;
+        }
+
+        @Override
+        protected int engineDoFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+                throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+            int length = engineUpdate(input, inputOffset, inputLen, output, outputOffset);
+            reset();
+            return length;
+        }
+
+        private void process(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+            if (mEcb == null) {
+                throw new IllegalStateException("cipher not initialized");
+            }
+            if (input == null || inputLen == 0) {
+                return;
+            }
+            // input and output may be the same array, so ciphertext is taken into the feedback
+            // register before the output overwrites it
+            int end = inputOffset + inputLen;
+            while (inputOffset < end) {
+                int remaining = end - inputOffset;
+                if (!mEncrypt && mBlockOffset == 0 && remaining >= BLOCK_SIZE) {
+                    int length = remaining - remaining % BLOCK_SIZE;
+                    decryptBlocks(input, inputOffset, length, output, outputOffset);
+                    inputOffset += length;
+                    outputOffset += length;
+                } else {
+                    output[outputOffset++] = processByte(input[inputOffset++]);
+                }
+            }
+        }
+
+        private byte processByte(byte in) {
+            if (mBlockOffset == 0) {
+                encryptBlock(mFeedback, 0, mKeystream, 0, BLOCK_SIZE);
+            }
+            byte out = (byte) (in ^ mKeystream[mBlockOffset]);
+            mFeedback[mBlockOffset] = mEncrypt ? out : in;
+            mBlockOffset = (mBlockOffset + 1) % BLOCK_SIZE;
+            return out;
+        }
+
+        /** Decrypts full blocks, starting at a block boundary. */
+        private void decryptBlocks(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) {
+            if (mChunkKeystream.length < length) {
+                mChunkKeystream = new byte[length];
+            }
+            // the keystream of each block is the encrypted ciphertext block before it
+            System.arraycopy(mFeedback, 0, mChunkKeystream, 0, BLOCK_SIZE);
+            System.arraycopy(input, inputOffset, mChunkKeystream, BLOCK_SIZE, length - BLOCK_SIZE);
+            System.arraycopy(input, inputOffset + length - BLOCK_SIZE, mFeedback, 0, BLOCK_SIZE);
+            encryptBlock(mChunkKeystream, 0, mChunkKeystream, 0, length);
+            for (int i = 0; i < length; i++) {
+                output[outputOffset + i] = (byte) (input[inputOffset + i] ^ mChunkKeystream[i]);
+            }
+        }
+
+        private void encryptBlock(byte[] input, int inputOffset, byte[] output, int outputOffset, int length) {
+            try {
+                if (mEcb.update(input, inputOffset, length, output, outputOffset) != length) {
+                    throw new IllegalStateException("ECB cipher must not buffer full blocks");
+                }
+            } catch (ShortBufferException e) {
+                throw new AssertionError("output always has room for the input");
+            }
+        }
+    }
+
+}
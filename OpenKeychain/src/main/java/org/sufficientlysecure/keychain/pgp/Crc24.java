@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+/**
+ * Table driven CRC-24 as used for the checksum of ASCII armor, see RFC 4880, Section 6.1.
+ * <p/>
+ * The register is exactly three bytes wide, so three input bytes can be xored into it and
+ * folded at once with one lookup per byte. This is the slice-by-3 variant of the usual byte
+ * wise table algorithm, and fits base64 which works on groups of three bytes as well.
+ */
+class Crc24 {
+    private static final int CRC24_INIT = 0xb704ce;
+    private static final int CRC24_POLY = 0x1864cfb;
+
+    // TABLE_n[b] is the crc of byte b followed by n zero bytes, starting from a zero register
+    private static final int[] TABLE_0 = new int[256];
+    private static final int[] TABLE_1 = new int[256];
+    private static final int[] TABLE_2 = new int[256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int crc = b << 16;
+            for (int i = 0; i < 8; i++) {
+                crc <<= 1;
+                if ((crc & 0x1000000) != 0) {
+                    crc ^= CRC24_POLY;
+                }
+            }
+            TABLE_0[b] = crc;
+        }
+        for (int b = 0; b < 256; b++) {
+            TABLE_1[b] = shiftByte(TABLE_0[b]);
+            TABLE_2[b] = shiftByte(TABLE_1[b]);
+        }
+    }
+
+    private static int shiftByte(int crc) {
+        return ((crc << 8) ^ TABLE_0[crc >>> 16]) & 0xffffff;
+    }
+
+    private int mCrc = CRC24_INIT;
+
+    void update(int b) {
+        mCrc = ((mCrc << 8) ^ TABLE_0[((mCrc >>> 16) ^ b) & 0xff]) & 0xffffff;
+    }
+
+    void update(byte[] buf, int off, int len) {
+        int crc = mCrc;
+        int end = off + len;
+        for (int groupEnd = end - 2; off < groupEnd; off += 3) {
+            int v = crc ^ ((buf[off] & 0xff) << 16 | (buf[off + 1] & 0xff) << 8 | (buf[off + 2] & 0xff));
+            crc = TABLE_2[v >>> 16] ^ TABLE_1[(v >>> 8) & 0xff] ^ TABLE_0[v & 0xff];
+        }
+        for (; off < end; off++) {
+            crc = ((crc << 8) ^ TABLE_0[((crc >>> 16) ^ buf[off]) & 0xff]) & 0xffffff;
+        }
+        mCrc = crc;
+    }
+
+    int getValue() {
+        return mCrc;
+    }
+
+    void reset() {
+        mCrc = CRC24_INIT;
+    }
+
+}
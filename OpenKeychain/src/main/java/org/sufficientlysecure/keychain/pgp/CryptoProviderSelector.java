@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.content.Context;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.openpgp.operator.jcajce.CachingDataDecryptorFactory.DataProviderChooser;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Preferences;
+import timber.log.Timber;
+
+
+/**
+ * Chooses the JCA providers for the bulk work of encryption, decryption and signatures.
+ * <p/>
+ * Bouncy Castle is our provider for everything, but other providers may be faster at AES and at
+ * hashing. For each AES key size and direction, and for each hash algorithm, every installed
+ * provider offering it is checked to produce the same output as Bouncy Castle, and benchmarked
+ * once. The fastest one is then used for the data path. The selection is kept in the preferences
+ * until the system or the set of providers changes. The benchmark runs in the background on first
+ * use, operations until it is done use Bouncy Castle.
+ * <p/>
+ * Conscrypt, the platform's OpenSSL backed provider, has no AES in CFB mode, so the
+ * {@link CfbOverEcbProvider} builds it on top of Conscrypt's AES/ECB. CFB encryption can only use
+ * the block cipher one block at a time while decryption can use it for many blocks at once, so
+ * the two directions are benchmarked, and routed, separately.
+ * <p/>
+ * Only the CFB cipher of integrity protected data and the digests over signed data are routed this
+ * way. Packet parsing, key handling and the signature algorithms stay on Bouncy Castle, as do the
+ * other symmetric algorithms, which have no accelerated implementations anyway.
+ */
+public class CryptoProviderSelector implements DataProviderChooser {
+    private static final String CIPHER_TRANSFORMATION = "AES/CFB/NoPadding";
+
+    // selections are stored by algorithm, offset by what they are used for
+    private static final int SELECTION_DECRYPTION = 0;
+    private static final int SELECTION_ENCRYPTION = 1 << 8;
+    private static final int SELECTION_DIGEST = 2 << 8;
+    private static final int ALGORITHM_MASK = 0xff;
+
+    private static final int BENCHMARK_DATA_SIZE = 512 * 1024;
+    private static final int BENCHMARK_CHUNK_SIZE = 1 << 16;
+    private static final int BENCHMARK_ROUNDS = 3;
+    // Bouncy Castle is the known quantity, only leave it for a significant speedup
+    private static final float MIN_SPEEDUP = 1.2f;
+
+    private static CryptoProviderSelector sInstance;
+
+    private final Preferences mPreferences;
+    private final Executor mSelectionExecutor;
+    private final SparseArray<String> mSelectedProviders = new SparseArray<>();
+    private final SparseBooleanArray mPendingSelections = new SparseBooleanArray();
+    private boolean mLoaded;
+
+    public static synchronized CryptoProviderSelector getInstance(Context context) {
+        if (sInstance == null) {
+            CfbOverEcbProvider.install();
+
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            sInstance = new CryptoProviderSelector(Preferences.getPreferences(context), executor);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    CryptoProviderSelector(Preferences preferences, Executor selectionExecutor) {
+        mPreferences = preferences;
+        mSelectionExecutor = selectionExecutor;
+    }
+
+    /** Returns the provider for decryption of integrity protected data. */
+    @Override
+    public String getDataProviderName(int symmetricAlgorithm) {
+        if (getAesKeySize(symmetricAlgorithm) == 0) {
+            return Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        }
+        return getSelectedProvider(SELECTION_DECRYPTION | symmetricAlgorithm);
+    }
+
+    /** Returns the provider for encryption of integrity protected data. */
+    public String getEncryptionProviderName(int symmetricAlgorithm) {
+        if (getAesKeySize(symmetricAlgorithm) == 0) {
+            return Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        }
+        return getSelectedProvider(SELECTION_ENCRYPTION | symmetricAlgorithm);
+    }
+
+    /** Returns the provider for digests of signed data. */
+    public String getDigestProviderName(int hashAlgorithm) {
+        if (getDigestName(hashAlgorithm) == null) {
+            return Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        }
+        return getSelectedProvider(SELECTION_DIGEST | hashAlgorithm);
+    }
+
+    private String getSelectedProvider(int selection) {
+        synchronized (this) {
+            loadIfNecessary();
+            String providerName = mSelectedProviders.get(selection);
+            if (providerName != null && Security.getProvider(providerName) != null) {
+                return providerName;
+            }
+            scheduleSelection(selection);
+        }
+        // don't hold up this operation for the benchmark
+        return Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+    }
+
+    private void scheduleSelection(final int selection) {
+        if (mPendingSelections.get(selection)) {
+            return;
+        }
+        mPendingSelections.put(selection, true);
+
+        mSelectionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String providerName = selectProvider(selection);
+                synchronized (CryptoProviderSelector.this) {
+                    mPendingSelections.delete(selection);
+                    mSelectedProviders.put(selection, providerName);
+                    save();
+                }
+            }
+        });
+    }
+
+    private static String selectProvider(int selection) {
+        int algorithm = selection & ALGORITHM_MASK;
+        switch (selection & ~ALGORITHM_MASK) {
+            case SELECTION_ENCRYPTION:
+                return selectCipherProvider(getAesKeySize(algorithm), Cipher.ENCRYPT_MODE);
+            case SELECTION_DIGEST:
+                return selectDigestProvider(getDigestName(algorithm));
+            default:
+                return selectCipherProvider(getAesKeySize(algorithm), Cipher.DECRYPT_MODE);
+        }
+    }
+
+    private static int getAesKeySize(int symmetricAlgorithm) {
+        switch (symmetricAlgorithm) {
+            case SymmetricKeyAlgorithmTags.AES_128:
+                return 16;
+            case SymmetricKeyAlgorithmTags.AES_192:
+                return 24;
+            case SymmetricKeyAlgorithmTags.AES_256:
+                return 32;
+            default:
+                return 0;
+        }
+    }
+
+    /** Returns the JCA name of a hash algorithm, as Bouncy Castle asks providers for it. */
+    @Nullable
+    static String getDigestName(int hashAlgorithm) {
+        switch (hashAlgorithm) {
+            case HashAlgorithmTags.SHA1:
+                return "SHA1";
+            case HashAlgorithmTags.RIPEMD160:
+                return "RIPEMD160";
+            case HashAlgorithmTags.SHA224:
+                return "SHA224";
+            case HashAlgorithmTags.SHA256:
+                return "SHA256";
+            case HashAlgorithmTags.SHA384:
+                return "SHA384";
+            case HashAlgorithmTags.SHA512:
+                return "SHA512";
+            default:
+                return null;
+        }
+    }
+
+    @VisibleForTesting
+    static String selectCipherProvider(int keySize, int mode) {
+        byte[] key = new byte[keySize];
+        byte[] plaintext = createBenchmarkData();
+        Arrays.fill(key, (byte) 0x42);
+        String description = "AES-" + (keySize * 8) + (mode == Cipher.ENCRYPT_MODE ? " encryption" : " decryption");
+
+        String selectedProvider = Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        byte[] expectedCiphertext;
+        long selectedTime;
+        try {
+            Provider bouncyCastle = Security.getProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            expectedCiphertext = encrypt(bouncyCastle, key, plaintext);
+            selectedTime = benchmarkCipher(bouncyCastle, key, mode,
+                    mode == Cipher.ENCRYPT_MODE ? plaintext : expectedCiphertext);
+        } catch (GeneralSecurityException e) {
+            Timber.e(e, "Bouncy Castle can't do AES, this is a bug!");
+            return Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        }
+
+        for (Provider provider : Security.getProviders()) {
+            if (Constants.BOUNCY_CASTLE_PROVIDER_NAME.equals(provider.getName())) {
+                continue;
+            }
+            if (!providesAesCfb(provider)) {
+                Timber.d("Provider " + provider.getName() + " has no " + CIPHER_TRANSFORMATION + ", skipping");
+                continue;
+            }
+            try {
+                // a different answer than Bouncy Castle's would be a bug, not a quirk
+                if (!Arrays.equals(expectedCiphertext, encrypt(provider, key, plaintext))
+                        || !Arrays.equals(plaintext, decrypt(provider, key, expectedCiphertext))) {
+                    Timber.e("Provider " + provider.getName() + " computes AES incorrectly, ignoring!");
+                    continue;
+                }
+
+                long time = benchmarkCipher(provider, key, mode,
+                        mode == Cipher.ENCRYPT_MODE ? plaintext : expectedCiphertext);
+                Timber.d(description + " with " + provider.getName() + ": " + time / 1000 + "µs");
+                if (time * MIN_SPEEDUP < selectedTime) {
+                    selectedProvider = provider.getName();
+                    selectedTime = time;
+                }
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // provider doesn't support AES/CFB with a raw key
+                Timber.d(e, "Provider " + provider.getName() + " failed " + CIPHER_TRANSFORMATION + ", skipping");
+            }
+        }
+
+        Timber.d("Selected " + selectedProvider + " for " + description);
+        return selectedProvider;
+    }
+
+    @VisibleForTesting
+    static String selectDigestProvider(String digestName) {
+        byte[] data = createBenchmarkData();
+
+        String selectedProvider = Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        byte[] expectedDigest;
+        long selectedTime;
+        try {
+            Provider bouncyCastle = Security.getProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            expectedDigest = MessageDigest.getInstance(digestName, bouncyCastle).digest(data);
+            selectedTime = benchmarkDigest(bouncyCastle, digestName, data);
+        } catch (GeneralSecurityException e) {
+            Timber.e(e, "Bouncy Castle can't do " + digestName + ", this is a bug!");
+            return Constants.BOUNCY_CASTLE_PROVIDER_NAME;
+        }
+
+        for (Provider provider : Security.getProviders()) {
+            if (Constants.BOUNCY_CASTLE_PROVIDER_NAME.equals(provider.getName())) {
+                continue;
+            }
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance(digestName, provider);
+            } catch (GeneralSecurityException e) {
+                Timber.d("Provider " + provider.getName() + " has no " + digestName + ", skipping");
+                continue;
+            }
+            try {
+                // digests of data in progress get cloned, e.g. for text signatures
+                digest.update(data);
+                MessageDigest clonedDigest = (MessageDigest) digest.clone();
+                if (!Arrays.equals(expectedDigest, digest.digest())
+                        || !Arrays.equals(expectedDigest, clonedDigest.digest())) {
+                    Timber.e("Provider " + provider.getName() + " computes " + digestName + " incorrectly, ignoring!");
+                    continue;
+                }
+
+                long time = benchmarkDigest(provider, digestName, data);
+                Timber.d(digestName + " with " + provider.getName() + ": " + time / 1000 + "µs");
+                if (time * MIN_SPEEDUP < selectedTime) {
+                    selectedProvider = provider.getName();
+                    selectedTime = time;
+                }
+            } catch (GeneralSecurityException | CloneNotSupportedException | RuntimeException e) {
+                Timber.d(e, "Provider " + provider.getName() + " failed " + digestName + ", skipping");
+            }
+        }
+
+        Timber.d("Selected " + selectedProvider + " for " + digestName);
+        return selectedProvider;
+    }
+
+    /**
+     * Checks if the provider registers AES in CFB mode without padding, either as this exact
+     * transformation or as AES with CFB among its supported modes.
+     */
+    @VisibleForTesting
+    static boolean providesAesCfb(Provider provider) {
+        try {
+            Cipher.getInstance(CIPHER_TRANSFORMATION, provider);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    private static byte[] createBenchmarkData() {
+        byte[] data = new byte[BENCHMARK_DATA_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    private static byte[] encrypt(Provider provider, byte[] key, byte[] input) throws GeneralSecurityException {
+        return createCipher(provider, Cipher.ENCRYPT_MODE, key).doFinal(input);
+    }
+
+    private static byte[] decrypt(Provider provider, byte[] key, byte[] input) throws GeneralSecurityException {
+        return createCipher(provider, Cipher.DECRYPT_MODE, key).doFinal(input);
+    }
+
+    /** Returns the best time of a few rounds processing the input in chunks, in nanoseconds. */
+    private static long benchmarkCipher(Provider provider, byte[] key, int mode, byte[] input)
+            throws GeneralSecurityException {
+        byte[] output = new byte[BENCHMARK_CHUNK_SIZE];
+        long bestTime = Long.MAX_VALUE;
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            long startTime = System.nanoTime();
+            Cipher cipher = createCipher(provider, mode, key);
+            for (int offset = 0; offset < input.length; offset += BENCHMARK_CHUNK_SIZE) {
+                cipher.update(input, offset, Math.min(BENCHMARK_CHUNK_SIZE, input.length - offset), output);
+            }
+            bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+        }
+        return bestTime;
+    }
+
+    /** Returns the best time of a few rounds hashing the input in chunks, in nanoseconds. */
+    private static long benchmarkDigest(Provider provider, String digestName, byte[] input)
+            throws GeneralSecurityException {
+        long bestTime = Long.MAX_VALUE;
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            long startTime = System.nanoTime();
+            MessageDigest digest = MessageDigest.getInstance(digestName, provider);
+            for (int offset = 0; offset < input.length; offset += BENCHMARK_CHUNK_SIZE) {
+                digest.update(input, offset, Math.min(BENCHMARK_CHUNK_SIZE, input.length - offset));
+            }
+            digest.digest();
+            bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+        }
+        return bestTime;
+    }
+
+    private static Cipher createCipher(Provider provider, int mode, byte[] key) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION, provider);
+        // integrity protected data uses plain CFB with an all-zero IV
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[cipher.getBlockSize()]));
+        return cipher;
+    }
+
+    private void loadIfNecessary() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        String selection = mPreferences.getCryptoProviderSelection();
+        if (selection == null) {
+            return;
+        }
+        String[] lines = selection.split("\n");
+        if (!getEnvironment().equals(lines[0])) {
+            Timber.d("System or crypto providers changed, selecting providers again");
+            return;
+        }
+        for (int i = 1; i < lines.length; i++) {
+            String[] entry = lines[i].split("=", 2);
+            if (entry.length == 2) {
+                try {
+                    mSelectedProviders.put(Integer.parseInt(entry[0]), entry[1]);
+                } catch (NumberFormatException e) {
+                    // skip
+                }
+            }
+        }
+    }
+
+    private void save() {
+        StringBuilder selection = new StringBuilder(getEnvironment());
+        for (int i = 0; i < mSelectedProviders.size(); i++) {
+            selection.append('\n').append(mSelectedProviders.keyAt(i)).append('=')
+                    .append(mSelectedProviders.valueAt(i));
+        }
+        mPreferences.setCryptoProviderSelection(selection.toString());
+    }
+
+    /** Describes everything the selection depends on. */
+    private static String getEnvironment() {
+        StringBuilder environment = new StringBuilder(String.valueOf(Build.FINGERPRINT));
+        for (Provider provider : Security.getProviders()) {
+            environment.append(' ').append(provider.getName()).append('/').append(provider.getVersion());
+        }
+        return environment.toString();
+    }
+
+}
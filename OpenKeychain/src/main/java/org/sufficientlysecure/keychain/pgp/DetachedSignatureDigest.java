@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Locale;
+
+import android.support.annotation.Nullable;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.teletrust.TeleTrusTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.DigestInfo;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.jcajce.provider.asymmetric.eddsa.EdDSAEngine;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.util.Arrays;
+import org.bouncycastle.util.BigIntegers;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+
+
+/**
+ * Digest of data signed by a detached signature, computed while the data passes by.
+ * <p/>
+ * A multipart/signed message names the hash algorithm of its signature in the micalg parameter,
+ * so the signed part can be hashed on its way through the parser, before the signature that
+ * follows it is known. The signature is then checked against this digest, instead of reading the
+ * signed data once more.
+ * <p/>
+ * Text signatures are made over data with CRLF line endings. Signed mime parts should have those
+ * already, so a second digest of canonicalized data is only started at the first line ending
+ * that isn't CRLF.
+ */
+public class DetachedSignatureDigest {
+    private static final int ED25519_VALUE_LENGTH = 32;
+
+    private final int mHashAlgorithm;
+    private final MessageDigest mBinaryDigest;
+    private MessageDigest mTextDigest;
+    private int mLastByte = -1;
+
+    private DetachedSignatureDigest(int hashAlgorithm, MessageDigest digest) {
+        mHashAlgorithm = hashAlgorithm;
+        mBinaryDigest = digest;
+    }
+
+    /**
+     * @param micalg the micalg parameter of a multipart/signed part, e.g. "pgp-sha256"
+     * @return a digest for the named algorithm, or null if it is missing or not supported
+     */
+    @Nullable
+    public static DetachedSignatureDigest fromMicalg(@Nullable String micalg,
+            CryptoProviderSelector providerSelector) {
+        if (micalg == null) {
+            return null;
+        }
+        int hashAlgorithm;
+        switch (micalg.trim().toLowerCase(Locale.ENGLISH)) {
+            case "pgp-sha1":
+                hashAlgorithm = HashAlgorithmTags.SHA1;
+                break;
+            case "pgp-ripemd160":
+                hashAlgorithm = HashAlgorithmTags.RIPEMD160;
+                break;
+            case "pgp-sha224":
+                hashAlgorithm = HashAlgorithmTags.SHA224;
+                break;
+            case "pgp-sha256":
+                hashAlgorithm = HashAlgorithmTags.SHA256;
+                break;
+            case "pgp-sha384":
+                hashAlgorithm = HashAlgorithmTags.SHA384;
+                break;
+            case "pgp-sha512":
+                hashAlgorithm = HashAlgorithmTags.SHA512;
+                break;
+            default:
+                // md5 and friends, which we wouldn't accept anyways
+                return null;
+        }
+        try {
+            return new DetachedSignatureDigest(hashAlgorithm, MessageDigest.getInstance(
+                    CryptoProviderSelector.getDigestName(hashAlgorithm),
+                    providerSelector.getDigestProviderName(hashAlgorithm)));
+        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+            throw new AssertionError("the selected provider was checked to provide this digest");
+        }
+    }
+
+    public int getHashAlgorithm() {
+        return mHashAlgorithm;
+    }
+
+    public void update(byte[] b, int off, int len) {
+        if (mTextDigest != null) {
+            mBinaryDigest.update(b, off, len);
+            updateText(b, off, len);
+            return;
+        }
+
+        int last = mLastByte;
+        for (int i = off; i < off + len; i++) {
+            boolean crWithoutLf = last == '\r' && b[i] != '\n';
+            boolean lfWithoutCr = last != '\r' && b[i] == '\n';
+            if (crWithoutLf || lfWithoutCr) {
+                // up to here, both digests are the same
+                mBinaryDigest.update(b, off, i - off);
+                mTextDigest = cloneDigest(mBinaryDigest);
+                if (crWithoutLf) {
+                    mTextDigest.update((byte) '\n');
+                }
+                mLastByte = last;
+                mBinaryDigest.update(b, i, off + len - i);
+                updateText(b, i, off + len - i);
+                return;
+            }
+            last = b[i];
+        }
+        mBinaryDigest.update(b, off, len);
+        mLastByte = last;
+    }
+
+    /** Canonicalizes line endings the same way PGPSignature does for text signatures. */
+    private void updateText(byte[] b, int off, int len) {
+        int runStart = off;
+        for (int i = off; i < off + len; i++) {
+            if (b[i] == '\r') {
+                mTextDigest.update(b, runStart, i + 1 - runStart);
+                mTextDigest.update((byte) '\n');
+                runStart = i + 1;
+            } else if (b[i] == '\n') {
+                mTextDigest.update(b, runStart, i - runStart);
+                if (mLastByte != '\r') {
+                    mTextDigest.update((byte) '\r');
+                    mTextDigest.update((byte) '\n');
+                }
+                runStart = i + 1;
+            }
+            mLastByte = b[i];
+        }
+        mTextDigest.update(b, runStart, off + len - runStart);
+    }
+
+    /**
+     * Checks a signature against the digest of all data so far. The signature must be made with
+     * the hash algorithm this digest was created for.
+     */
+    boolean verify(PGPSignature signature, CanonicalizedPublicKey signingKey) throws PGPException {
+        if (signature.getHashAlgorithm() != mHashAlgorithm) {
+            // micalg must name the hash of the signature, anything else is not what was signed
+            return false;
+        }
+
+        MessageDigest digest;
+        if (signature.getSignatureType() == PGPSignature.CANONICAL_TEXT_DOCUMENT) {
+            if (mTextDigest != null) {
+                digest = cloneDigest(mTextDigest);
+            } else {
+                digest = cloneDigest(mBinaryDigest);
+                if (mLastByte == '\r') {
+                    digest.update((byte) '\n');
+                }
+            }
+        } else {
+            digest = cloneDigest(mBinaryDigest);
+        }
+        digest.update(signature.getSignatureTrailer());
+        byte[] hash = digest.digest();
+
+        try {
+            PublicKey publicKey = signingKey.getJcaPublicKey();
+            switch (signature.getKeyAlgorithm()) {
+                case PublicKeyAlgorithmTags.RSA_GENERAL:
+                case PublicKeyAlgorithmTags.RSA_SIGN: {
+                    Signature verifier = Signature.getInstance("NONEwithRSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    verifier.initVerify(publicKey);
+                    verifier.update(encodeDigestInfo(hash));
+                    return verifier.verify(signature.getSignature());
+                }
+                case PublicKeyAlgorithmTags.DSA: {
+                    Signature verifier = Signature.getInstance("NONEwithDSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    verifier.initVerify(publicKey);
+                    verifier.update(hash);
+                    return verifier.verify(signature.getSignature());
+                }
+                case PublicKeyAlgorithmTags.ECDSA: {
+                    Signature verifier =
+                            Signature.getInstance("NONEwithECDSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    verifier.initVerify(publicKey);
+                    verifier.update(hash);
+                    return verifier.verify(signature.getSignature());
+                }
+                case PublicKeyAlgorithmTags.EDDSA: {
+                    // OpenPGP's EdDSA signs the hash, which Ed25519 hashes once more internally
+                    Signature verifier = new EdDSAEngine(MessageDigest.getInstance("SHA-512"));
+                    verifier.setParameter(EdDSAEngine.ONE_SHOT_MODE);
+                    verifier.initVerify(publicKey);
+                    verifier.update(hash);
+                    return verifier.verify(encodeEdDsaSignature(signature.getSignature()));
+                }
+                default:
+                    throw new PGPException("unsupported signature algorithm " + signature.getKeyAlgorithm());
+            }
+        } catch (GeneralSecurityException | PgpGeneralException | IOException e) {
+            throw new PGPException("error verifying signature", e);
+        }
+    }
+
+    private byte[] encodeDigestInfo(byte[] hash) throws IOException {
+        ASN1ObjectIdentifier oid;
+        switch (mHashAlgorithm) {
+            case HashAlgorithmTags.SHA1:
+                oid = OIWObjectIdentifiers.idSHA1;
+                break;
+            case HashAlgorithmTags.RIPEMD160:
+                oid = TeleTrusTObjectIdentifiers.ripemd160;
+                break;
+            case HashAlgorithmTags.SHA224:
+                oid = NISTObjectIdentifiers.id_sha224;
+                break;
+            case HashAlgorithmTags.SHA256:
+                oid = NISTObjectIdentifiers.id_sha256;
+                break;
+            case HashAlgorithmTags.SHA384:
+                oid = NISTObjectIdentifiers.id_sha384;
+                break;
+            case HashAlgorithmTags.SHA512:
+                oid = NISTObjectIdentifiers.id_sha512;
+                break;
+            default:
+                throw new IOException("unsupported hash algorithm " + mHashAlgorithm);
+        }
+        return new DigestInfo(new AlgorithmIdentifier(oid, DERNull.INSTANCE), hash).getEncoded(ASN1Encoding.DER);
+    }
+
+    /**
+     * Depending on how it was parsed, the signature comes as R and S in a DER sequence, or as
+     * their plain concatenation. Ed25519 expects the latter, with fixed length values.
+     */
+    private static byte[] encodeEdDsaSignature(byte[] signature) throws PGPException {
+        try {
+            ASN1Sequence values = ASN1Sequence.getInstance(signature);
+            if (values.size() == 2) {
+                BigInteger r = ASN1Integer.getInstance(values.getObjectAt(0)).getValue();
+                BigInteger s = ASN1Integer.getInstance(values.getObjectAt(1)).getValue();
+                return Arrays.concatenate(BigIntegers.asUnsignedByteArray(ED25519_VALUE_LENGTH, r),
+                        BigIntegers.asUnsignedByteArray(ED25519_VALUE_LENGTH, s));
+            }
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            // not a sequence
+        }
+        if (signature.length != 2 * ED25519_VALUE_LENGTH) {
+            throw new PGPException("malformed EdDSA signature");
+        }
+        return signature;
+    }
+
+    private static MessageDigest cloneDigest(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError("bouncy castle digests can be cloned");
+        }
+    }
+
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.support.annotation.NonNull;
+
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.util.Strings;
+
+
+/**
+ * Reads ASCII armored data, like Bouncy Castle's ArmoredInputStream, but a whole buffer at a
+ * time.
+ * <p/>
+ * The armor header line and headers are parsed on construction and available through the same
+ * methods as in the ArmoredInputStream. Lines may end in LF, CRLF, CR, or the CRCRLF produced
+ * by some Windows tools. After that, base64 is decoded from an input buffer with a lookup
+ * table, and the checksum is computed with {@link Crc24} and checked when the armor ends.
+ * <p/>
+ * If the underlying stream supports mark/reset, it is left positioned right after the armor
+ * footer line, so further armored blocks can be read from it. Otherwise, it may have been read
+ * beyond that. Cleartext signatures are not supported, see {@link #getDecoderStream}.
+ */
+public class FastArmoredInputStream extends InputStream {
+    private static final int INPUT_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_HEADER_PEEK = 1024;
+
+    private static final String ARMOR_HEADER_PREFIX = "-----BEGIN PGP ";
+    private static final String CLEARTEXT_HEADER_LINE = "-----BEGIN PGP SIGNED MESSAGE-----";
+
+    private static final byte INVALID = -1;
+    private static final byte WHITESPACE = -2;
+    private static final byte[] DECODE_TABLE = new byte[256];
+
+    static {
+        Arrays.fill(DECODE_TABLE, INVALID);
+        for (int i = 0; i < FastArmoredOutputStream.ENCODE_TABLE.length; i++) {
+            DECODE_TABLE[FastArmoredOutputStream.ENCODE_TABLE[i]] = (byte) i;
+        }
+        DECODE_TABLE[' '] = WHITESPACE;
+        DECODE_TABLE['\t'] = WHITESPACE;
+        DECODE_TABLE['\r'] = WHITESPACE;
+        DECODE_TABLE['\n'] = WHITESPACE;
+    }
+
+    private final InputStream mIn;
+    private final byte[] mInBuffer = new byte[INPUT_BUFFER_SIZE];
+    private int mInPos;
+    private int mInLength;
+    private boolean mLastLineEndedInCr;
+
+    private final String mArmorHeaderLine;
+    private final String[] mArmorHeaders;
+
+    // each group of four characters decodes to three bytes
+    private final byte[] mOutBuffer = new byte[INPUT_BUFFER_SIZE / 4 * 3 + 3];
+    private int mOutPos;
+    private int mOutLength;
+
+    private final Crc24 mCrc = new Crc24();
+    private int mQuantum;
+    private int mQuantumLength;
+    private boolean mEndOfData;
+
+    /**
+     * Returns a FastArmoredInputStream if the stream starts with an armor header line. Anything
+     * else, binary data as well as cleartext signatures, is handed to PGPUtil.getDecoderStream().
+     */
+    public static InputStream getDecoderStream(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+
+        in.mark(MAX_HEADER_PEEK);
+        boolean isArmored = false;
+        try {
+            int c;
+            int skipped = 0;
+            do {
+                c = in.read();
+            } while (c >= 0 && DECODE_TABLE[c] == WHITESPACE
+                    && ++skipped < MAX_HEADER_PEEK - CLEARTEXT_HEADER_LINE.length());
+
+            StringBuilder start = new StringBuilder();
+            while (c >= 0 && start.length() < CLEARTEXT_HEADER_LINE.length()) {
+                start.append((char) c);
+                c = in.read();
+            }
+            String headerStart = start.toString();
+            isArmored = headerStart.startsWith(ARMOR_HEADER_PREFIX)
+                    && !headerStart.equals(CLEARTEXT_HEADER_LINE);
+        } finally {
+            in.reset();
+        }
+
+        if (isArmored) {
+            return new FastArmoredInputStream(in);
+        }
+        return PGPUtil.getDecoderStream(in);
+    }
+
+    public FastArmoredInputStream(InputStream in) throws IOException {
+        mIn = in;
+
+        int c;
+        while ((c = peekByte()) >= 0 && DECODE_TABLE[c] == WHITESPACE) {
+            mInPos++;
+        }
+
+        mArmorHeaderLine = readLine();
+        if (mArmorHeaderLine == null || !mArmorHeaderLine.startsWith(ARMOR_HEADER_PREFIX)) {
+            throw new IOException("invalid armor header");
+        }
+
+        ArrayList<String> headers = new ArrayList<>();
+        String line;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            if (line.indexOf(':') < 0) {
+                throw new IOException("invalid armor header");
+            }
+            headers.add(line);
+        }
+        mArmorHeaders = headers.toArray(new String[headers.size()]);
+    }
+
+    public String getArmorHeaderLine() {
+        return mArmorHeaderLine;
+    }
+
+    public String[] getArmorHeaders() {
+        return mArmorHeaders;
+    }
+
+    private boolean fillInBuffer() throws IOException {
+        if (mIn.markSupported()) {
+            mIn.mark(INPUT_BUFFER_SIZE);
+        }
+        mInPos = 0;
+        mInLength = Math.max(0, mIn.read(mInBuffer, 0, mInBuffer.length));
+        return mInLength > 0;
+    }
+
+    private int peekByte() throws IOException {
+        if (mInPos == mInLength && !fillInBuffer()) {
+            return -1;
+        }
+        return mInBuffer[mInPos] & 0xff;
+    }
+
+    private int readByte() throws IOException {
+        int c = peekByte();
+        if (c >= 0) {
+            mInPos++;
+        }
+        return c;
+    }
+
+    /** Reads a header line, returns null at the end of the stream. */
+    private String readLine() throws IOException {
+        while (true) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = readByte()) >= 0 && c != '\r' && c != '\n') {
+                line.write(c);
+            }
+            if (c < 0 && line.size() == 0) {
+                return null;
+            }
+
+            boolean endedInCr = c == '\r';
+            if (endedInCr && peekByte() == '\n') {
+                mInPos++;
+                endedInCr = false;
+            }
+
+            // the CRLF of a CRCRLF line ending looks like an empty line
+            boolean isCrCrLfRemainder = mLastLineEndedInCr && line.size() == 0 && c == '\r' && !endedInCr;
+            mLastLineEndedInCr = endedInCr;
+            if (!isCrCrLfRemainder) {
+                return Strings.fromByteArray(line.toByteArray());
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mOutPos == mOutLength && !fillOutBuffer()) {
+            return -1;
+        }
+        return mOutBuffer[mOutPos++] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (mOutPos == mOutLength && !fillOutBuffer()) {
+            return -1;
+        }
+        int count = Math.min(len, mOutLength - mOutPos);
+        System.arraycopy(mOutBuffer, mOutPos, b, off, count);
+        mOutPos += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mOutLength - mOutPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /** @return false if the end of the armored data was reached */
+    private boolean fillOutBuffer() throws IOException {
+        mOutPos = 0;
+        mOutLength = 0;
+        while (mOutLength == 0 && !mEndOfData) {
+            if (mInPos == mInLength && !fillInBuffer()) {
+                // no footer, but a truncated packet will be noticed by the parser anyway
+                mEndOfData = true;
+                break;
+            }
+            decodeInBuffer();
+        }
+        return mOutLength > 0;
+    }
+
+    private void decodeInBuffer() throws IOException {
+        byte[] in = mInBuffer;
+        byte[] out = mOutBuffer;
+        int pos = mInPos;
+        int end = mInLength;
+        int outLength = 0;
+        int quantum = mQuantum;
+        int quantumLength = mQuantumLength;
+
+        while (pos < end) {
+            byte value = DECODE_TABLE[in[pos] & 0xff];
+            if (value >= 0) {
+                quantum = quantum << 6 | value;
+                if (++quantumLength == 4) {
+                    out[outLength] = (byte) (quantum >> 16);
+                    out[outLength + 1] = (byte) (quantum >> 8);
+                    out[outLength + 2] = (byte) quantum;
+                    outLength += 3;
+                    quantum = 0;
+                    quantumLength = 0;
+                }
+            } else if (value != WHITESPACE) {
+                break;
+            }
+            pos++;
+        }
+
+        mInPos = pos;
+        mQuantum = quantum;
+        mQuantumLength = quantumLength;
+        mOutLength = outLength;
+        mCrc.update(out, 0, outLength);
+
+        if (pos < end) {
+            finishData();
+        }
+    }
+
+    /** Handles padding, checksum and footer at the end of the base64 data. */
+    private void finishData() throws IOException {
+        mEndOfData = true;
+
+        int c = readByte();
+        if (c == '=' && mQuantumLength >= 2) {
+            // padding, decode the remaining one or two bytes
+            int start = mOutLength;
+            if (mQuantumLength == 2) {
+                mOutBuffer[mOutLength++] = (byte) (mQuantum >> 4);
+                // second padding character, careful not to take the checksum's
+                if (peekByte() == '=') {
+                    mInPos++;
+                }
+            } else {
+                mOutBuffer[mOutLength++] = (byte) (mQuantum >> 10);
+                mOutBuffer[mOutLength++] = (byte) (mQuantum >> 2);
+            }
+            mCrc.update(mOutBuffer, start, mOutLength - start);
+            mQuantumLength = 0;
+
+            while ((c = readByte()) >= 0 && DECODE_TABLE[c] == WHITESPACE) {
+                // skip
+            }
+        }
+        if (mQuantumLength != 0) {
+            throw new IOException("invalid armor: incomplete base64 group");
+        }
+
+        if (c == '=') {
+            int checksum = 0;
+            for (int i = 0; i < 4; i++) {
+                c = readByte();
+                if (c < 0 || DECODE_TABLE[c] < 0) {
+                    throw new IOException("invalid armor checksum");
+                }
+                checksum = checksum << 6 | DECODE_TABLE[c];
+            }
+            if (checksum != mCrc.getValue()) {
+                throw new IOException("crc check failed in armored message.");
+            }
+
+            while ((c = readByte()) >= 0 && DECODE_TABLE[c] == WHITESPACE) {
+                // skip
+            }
+        }
+
+        if (c != '-') {
+            throw new IOException("invalid armor character: " + c);
+        }
+        skipFooter();
+    }
+
+    private void skipFooter() throws IOException {
+        // consume only within the current buffer, so we can hand the rest back
+        while (mInPos < mInLength) {
+            byte c = mInBuffer[mInPos++];
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                if (mInPos < mInLength && mInBuffer[mInPos] == '\n') {
+                    mInPos++;
+                }
+                break;
+            }
+            if (mInPos == mInLength) {
+                fillInBuffer();
+            }
+        }
+
+        if (mIn.markSupported()) {
+            mIn.reset();
+            long toSkip = mInPos;
+            while (toSkip > 0) {
+                long skipped = mIn.skip(toSkip);
+                if (skipped <= 0) {
+                    break;
+                }
+                toSkip -= skipped;
+            }
+        }
+        mInPos = 0;
+        mInLength = 0;
+    }
+
+}
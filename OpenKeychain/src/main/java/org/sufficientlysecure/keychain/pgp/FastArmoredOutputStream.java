@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.support.annotation.NonNull;
+
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.util.Strings;
+
+
+/**
+ * Writes ASCII armored data, like Bouncy Castle's ArmoredOutputStream, but a whole buffer at a
+ * time.
+ * <p/>
+ * Bouncy Castle encodes byte by byte with a per-byte checksum update, which makes armor a
+ * bottleneck for larger text messages. Here, full groups of three bytes are encoded straight
+ * from the input into an output buffer, and the checksum is computed with {@link Crc24}.
+ * <p/>
+ * The output is the same as Bouncy Castle's: the armor type is picked from the first packet,
+ * the Version header comes first if set, lines are 64 characters long, and close() finishes the
+ * armor without closing the underlying stream. Cleartext signatures aren't supported, use the
+ * ArmoredOutputStream for those.
+ */
+public class FastArmoredOutputStream extends OutputStream {
+    static final byte[] ENCODE_TABLE =
+            Strings.toByteArray("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/");
+
+    private static final int LINE_LENGTH = 64;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final String HEADER_VERSION = "Version";
+
+    private final OutputStream mOut;
+    private final byte[] mNewline = Strings.toByteArray(Strings.lineSeparator());
+    private final LinkedHashMap<String, String> mHeaders = new LinkedHashMap<>();
+    private final Crc24 mCrc = new Crc24();
+
+    private final byte[] mSingleByte = new byte[1];
+    private final byte[] mPending = new byte[3];
+    private int mPendingLength;
+
+    // room for a full group and a line break beyond the flush threshold
+    private final byte[] mBuffer = new byte[BUFFER_SIZE + 16];
+    private int mBufferLength;
+    private int mLineLength;
+
+    private String mType;
+    private boolean mClosed;
+
+    public FastArmoredOutputStream(OutputStream out) {
+        mOut = out;
+    }
+
+    /** Sets an armor header, or removes it if value is null. Must be called before writing. */
+    public void setHeader(String name, String value) {
+        if (value == null) {
+            mHeaders.remove(name);
+        } else {
+            mHeaders.put(name, value);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mSingleByte[0] = (byte) b;
+        write(mSingleByte, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        if (mClosed) {
+            throw new IOException("stream closed");
+        }
+        if (len == 0) {
+            return;
+        }
+        if (mType == null) {
+            writeHeader(b[off]);
+        }
+
+        mCrc.update(b, off, len);
+
+        // complete a group left over from the last write first
+        if (mPendingLength > 0) {
+            while (mPendingLength < 3 && len > 0) {
+                mPending[mPendingLength++] = b[off++];
+                len--;
+            }
+            if (mPendingLength < 3) {
+                return;
+            }
+            encodeGroups(mPending, 0, 3);
+            mPendingLength = 0;
+        }
+
+        int groupsLength = len - len % 3;
+        encodeGroups(b, off, groupsLength);
+
+        for (int i = groupsLength; i < len; i++) {
+            mPending[mPendingLength++] = b[off + i];
+        }
+    }
+
+    private void encodeGroups(byte[] b, int off, int len) throws IOException {
+        byte[] buffer = mBuffer;
+        int bufferLength = mBufferLength;
+        int lineLength = mLineLength;
+
+        for (int end = off + len; off < end; off += 3) {
+            int group = (b[off] & 0xff) << 16 | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff);
+            buffer[bufferLength] = ENCODE_TABLE[group >>> 18];
+            buffer[bufferLength + 1] = ENCODE_TABLE[(group >>> 12) & 0x3f];
+            buffer[bufferLength + 2] = ENCODE_TABLE[(group >>> 6) & 0x3f];
+            buffer[bufferLength + 3] = ENCODE_TABLE[group & 0x3f];
+            bufferLength += 4;
+
+            lineLength += 4;
+            if (lineLength == LINE_LENGTH) {
+                for (byte c : mNewline) {
+                    buffer[bufferLength++] = c;
+                }
+                lineLength = 0;
+            }
+
+            if (bufferLength >= BUFFER_SIZE) {
+                mOut.write(buffer, 0, bufferLength);
+                bufferLength = 0;
+            }
+        }
+
+        mBufferLength = bufferLength;
+        mLineLength = lineLength;
+    }
+
+    private void writeHeader(byte firstByte) throws IOException {
+        mType = getArmorType(firstByte);
+
+        writeLine("-----BEGIN PGP " + mType + "-----");
+        String version = mHeaders.get(HEADER_VERSION);
+        if (version != null) {
+            writeLine(HEADER_VERSION + ": " + version);
+        }
+        for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+            if (!HEADER_VERSION.equals(header.getKey())) {
+                writeLine(header.getKey() + ": " + header.getValue());
+            }
+        }
+        writeLine("");
+    }
+
+    private static String getArmorType(byte firstByte) {
+        // the tag of the first packet, in new or old format
+        int tag = (firstByte & 0x40) != 0 ? firstByte & 0x3f : (firstByte & 0x3f) >> 2;
+        switch (tag) {
+            case PacketTags.PUBLIC_KEY:
+                return "PUBLIC KEY BLOCK";
+            case PacketTags.SECRET_KEY:
+                return "PRIVATE KEY BLOCK";
+            case PacketTags.SIGNATURE:
+                return "SIGNATURE";
+            default:
+                return "MESSAGE";
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        mOut.write(Strings.toByteArray(line));
+        mOut.write(mNewline);
+    }
+
+    /** Writes out complete lines. Partial groups are only written by close(). */
+    @Override
+    public void flush() throws IOException {
+        if (mBufferLength > 0) {
+            mOut.write(mBuffer, 0, mBufferLength);
+            mBufferLength = 0;
+        }
+        mOut.flush();
+    }
+
+    /** Finishes the armor. Like the ArmoredOutputStream, this doesn't close the underlying stream. */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        if (mType == null) {
+            // nothing was written, so there is no armor to finish
+            mOut.flush();
+            return;
+        }
+
+        if (mPendingLength > 0) {
+            int group = (mPending[0] & 0xff) << 16;
+            if (mPendingLength == 2) {
+                group |= (mPending[1] & 0xff) << 8;
+            }
+            mBuffer[mBufferLength++] = ENCODE_TABLE[group >>> 18];
+            mBuffer[mBufferLength++] = ENCODE_TABLE[(group >>> 12) & 0x3f];
+            mBuffer[mBufferLength++] = mPendingLength == 2 ? ENCODE_TABLE[(group >>> 6) & 0x3f] : (byte) '=';
+            mBuffer[mBufferLength++] = '=';
+            mLineLength += 4;
+        }
+        if (mLineLength > 0) {
+            for (byte c : mNewline) {
+                mBuffer[mBufferLength++] = c;
+            }
+        }
+        mOut.write(mBuffer, 0, mBufferLength);
+        mBufferLength = 0;
+
+        int crc = mCrc.getValue();
+        mOut.write('=');
+        mOut.write(ENCODE_TABLE[crc >>> 18]);
+        mOut.write(ENCODE_TABLE[(crc >>> 12) & 0x3f]);
+        mOut.write(ENCODE_TABLE[(crc >>> 6) & 0x3f]);
+        mOut.write(ENCODE_TABLE[crc & 0x3f]);
+        mOut.write(mNewline);
+        writeLine("-----END PGP " + mType + "-----");
+        mOut.flush();
+    }
+
+}
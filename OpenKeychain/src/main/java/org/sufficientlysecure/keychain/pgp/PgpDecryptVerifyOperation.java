@@ -34,6 +34,7 @@ import java.util.Map.Entry;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.webkit.MimeTypeMap;
 
@@ -80,6 +81,7 @@ import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequireAnyDecryptPassphraseBuilder;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.CharsetVerifier;
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
@@ -102,30 +104,14 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
     /** Decrypts and/or verifies data based on parameters of PgpDecryptVerifyInputParcel. */
     @NonNull
     public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput) {
-        InputData inputData;
         OutputStream outputStream;
 
         long startTime = System.currentTimeMillis();
 
-        if (input.getInputBytes() != null) {
-            byte[] inputBytes = input.getInputBytes();
-            inputData = new InputData(new ByteArrayInputStream(inputBytes), inputBytes.length);
-        } else {
-            try {
-                InputStream inputStream = mContext.getContentResolver().openInputStream(input.getInputUri());
-                long inputSize = FileHelper.getFileSize(mContext, input.getInputUri(), 0);
-                inputData = new InputData(inputStream, inputSize);
-            } catch (SecurityException e) {
-                Timber.e(e, "Access denied for input URI: %s", input.getInputUri());
-                OperationLog log = new OperationLog();
-                log.add(LogType.MSG_DC_ERROR_INPUT_DENIED, 1);
-                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
-            } catch (FileNotFoundException e) {
-                Timber.e(e, "Input URI could not be opened: %s", input.getInputUri());
-                OperationLog log = new OperationLog();
-                log.add(LogType.MSG_DC_ERROR_INPUT, 1);
-                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
-            }
+        OperationLog log = new OperationLog();
+        InputData inputData = openInputData(input, log);
+        if (inputData == null) {
+            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
         }
 
         if (input.getOutputUri() == null) {
@@ -135,7 +121,6 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                 outputStream = mContext.getContentResolver().openOutputStream(input.getOutputUri());
             } catch (FileNotFoundException e) {
                 Timber.e(e, "Output URI could not be opened: " + input.getOutputUri());
-                OperationLog log = new OperationLog();
                 log.add(LogType.MSG_DC_ERROR_IO, 1);
                 return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
             }
@@ -153,6 +138,43 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
     }
 
+    /**
+     * Decrypts and/or verifies the input of the PgpDecryptVerifyInputParcel, writing the output
+     * to the given stream instead of its output uri.
+     */
+    @NonNull
+    public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
+            OutputStream outputStream) {
+        OperationLog log = new OperationLog();
+        InputData inputData = openInputData(input, log);
+        if (inputData == null) {
+            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+        }
+        return executeInternal(input, cryptoInput, inputData, outputStream);
+    }
+
+    @Nullable
+    private InputData openInputData(PgpDecryptVerifyInputParcel input, OperationLog log) {
+        if (input.getInputBytes() != null) {
+            byte[] inputBytes = input.getInputBytes();
+            return new InputData(new ByteArrayInputStream(inputBytes), inputBytes.length);
+        }
+
+        try {
+            InputStream inputStream = mContext.getContentResolver().openInputStream(input.getInputUri());
+            long inputSize = FileHelper.getFileSize(mContext, input.getInputUri(), 0);
+            return new InputData(inputStream, inputSize);
+        } catch (SecurityException e) {
+            Timber.e(e, "Access denied for input URI: %s", input.getInputUri());
+            log.add(LogType.MSG_DC_ERROR_INPUT_DENIED, 1);
+            return null;
+        } catch (FileNotFoundException e) {
+            Timber.e(e, "Input URI could not be opened: %s", input.getInputUri());
+            log.add(LogType.MSG_DC_ERROR_INPUT, 1);
+            return null;
+        }
+    }
+
     @NonNull
     public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
             InputData inputData, OutputStream outputStream) {
@@ -169,7 +191,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                 return verifyDetachedSignature(input, inputData, outputStream, 0);
             } else {
                 // automatically works with PGP ascii armor and PGP binary
-                InputStream inputStream = PGPUtil.getDecoderStream(inputData.getInputStream());
+                InputStream inputStream = FastArmoredInputStream.getDecoderStream(inputData.getInputStream());
 
                 if (inputStream instanceof ArmoredInputStream) {
                     ArmoredInputStream aIn = (ArmoredInputStream) inputStream;
@@ -245,55 +267,58 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         // If the input stream is armored, and there is a charset specified, take a note for later
         // https://tools.ietf.org/html/rfc4880#page56
+        String[] headers = null;
         if (in instanceof ArmoredInputStream) {
-            ArmoredInputStream aIn = (ArmoredInputStream) in;
-            if (aIn.getArmorHeaders() != null) {
-                for (String header : aIn.getArmorHeaders()) {
-                    String[] pieces = header.split(":", 2);
-                    if (pieces.length != 2
-                            || TextUtils.isEmpty(pieces[0])
-                            || TextUtils.isEmpty(pieces[1])) {
-                        continue;
-                    }
+            headers = ((ArmoredInputStream) in).getArmorHeaders();
+        } else if (in instanceof FastArmoredInputStream) {
+            headers = ((FastArmoredInputStream) in).getArmorHeaders();
+        }
+        if (headers != null) {
+            for (String header : headers) {
+                String[] pieces = header.split(":", 2);
+                if (pieces.length != 2
+                        || TextUtils.isEmpty(pieces[0])
+                        || TextUtils.isEmpty(pieces[1])) {
+                    continue;
+                }
 
-                    switch (pieces[0].toLowerCase()) {
-                        case "charset": {
-                            armorHeaders.charset = pieces[1].trim();
-                            break;
-                        }
-                        case "backupversion": {
-                            try {
-                                armorHeaders.backupVersion = Integer.valueOf(pieces[1].trim());
-                            } catch (NumberFormatException e) {
-                                continue;
-                            }
-                            break;
-                        }
-                        case "passphrase-format": {
-                            armorHeaders.passphraseFormat = pieces[1].trim();
-                            break;
-                        }
-                        case "passphrase-begin": {
-                            armorHeaders.passphraseBegin = pieces[1].trim();
-                            break;
-                        }
-                        default: {
-                            // continue;
+                switch (pieces[0].toLowerCase()) {
+                    case "charset": {
+                        armorHeaders.charset = pieces[1].trim();
+                        break;
+                    }
+                    case "backupversion": {
+                        try {
+                            armorHeaders.backupVersion = Integer.valueOf(pieces[1].trim());
+                        } catch (NumberFormatException e) {
+                            continue;
                         }
+                        break;
+                    }
+                    case "passphrase-format": {
+                        armorHeaders.passphraseFormat = pieces[1].trim();
+                        break;
+                    }
+                    case "passphrase-begin": {
+                        armorHeaders.passphraseBegin = pieces[1].trim();
+                        break;
+                    }
+                    default: {
+                        // continue;
                     }
                 }
-                if (armorHeaders.charset != null) {
-                    log.add(LogType.MSG_DC_CHARSET, indent, armorHeaders.charset);
-                }
-                if (armorHeaders.backupVersion != null) {
-                    log.add(LogType.MSG_DC_BACKUP_VERSION, indent, Integer.toString(armorHeaders.backupVersion));
-                }
-                if (armorHeaders.passphraseFormat != null) {
-                    log.add(LogType.MSG_DC_PASSPHRASE_FORMAT, indent, armorHeaders.passphraseFormat);
-                }
-                if (armorHeaders.passphraseBegin != null) {
-                    log.add(LogType.MSG_DC_PASSPHRASE_BEGIN, indent, armorHeaders.passphraseBegin);
-                }
+            }
+            if (armorHeaders.charset != null) {
+                log.add(LogType.MSG_DC_CHARSET, indent, armorHeaders.charset);
+            }
+            if (armorHeaders.backupVersion != null) {
+                log.add(LogType.MSG_DC_BACKUP_VERSION, indent, Integer.toString(armorHeaders.backupVersion));
+            }
+            if (armorHeaders.passphraseFormat != null) {
+                log.add(LogType.MSG_DC_PASSPHRASE_FORMAT, indent, armorHeaders.passphraseFormat);
+            }
+            if (armorHeaders.passphraseBegin != null) {
+                log.add(LogType.MSG_DC_PASSPHRASE_BEGIN, indent, armorHeaders.passphraseBegin);
             }
         }
 
@@ -485,7 +510,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         long wholeSize = inputData.getSize() - inputData.getStreamPosition();
         boolean sizeIsKnown = inputData.getSize() != InputData.UNKNOWN_FILESIZE && wholeSize > 0;
         int length;
-        byte[] buffer = new byte[8192];
+        BufferPool bufferPool = BufferPool.getInstance();
+        byte[] buffer = bufferPool.obtain();
         byte[] firstBytes = new byte[48];
         CharsetVerifier charsetVerifier = new CharsetVerifier(buffer, mimeType, charset);
 
@@ -493,35 +519,40 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         long nextProgressTime = 0L;
         int lastReportedProgress = 1;
-        while ((length = dataIn.read(buffer)) > 0) {
-            // Log.d(Constants.TAG, "read bytes: " + length);
-            if (out != null) {
-                out.write(buffer, 0, length);
-            }
-
-            // update signature buffer if signature is also present
-            signatureChecker.updateSignatureData(buffer, 0, length);
+        try {
+            while ((length = dataIn.read(buffer)) > 0) {
+                // Log.d(Constants.TAG, "read bytes: " + length);
+                if (out != null) {
+                    out.write(buffer, 0, length);
+                }
 
-            charsetVerifier.readBytesFromBuffer(0, length);
+                // update signature buffer if signature is also present
+                signatureChecker.updateSignatureData(buffer, 0, length);
 
-            // note down first couple of bytes for "magic bytes" file type detection
-            if (alreadyWritten == 0) {
-                System.arraycopy(buffer, 0, firstBytes, 0, length > firstBytes.length ? firstBytes.length : length);
-            }
+                charsetVerifier.readBytesFromBuffer(0, length);
 
-            alreadyWritten += length;
-            if (sizeIsKnown && nextProgressTime < System.currentTimeMillis()) {
-                long progress = 100 * inputData.getStreamPosition() / wholeSize;
-                // stop at 100% for wrong file sizes...
-                if (progress > 100) {
-                    progress = 100;
+                // note down first couple of bytes for "magic bytes" file type detection
+                if (alreadyWritten == 0) {
+                    System.arraycopy(buffer, 0, firstBytes, 0, length > firstBytes.length ? firstBytes.length : length);
                 }
-                if (progress > lastReportedProgress) {
-                    updateProgress((int) progress, 100);
-                    lastReportedProgress = (int) progress;
-                    nextProgressTime = System.currentTimeMillis() + PROGRESS_STRIDE_MILLISECONDS;
+
+                alreadyWritten += length;
+                if (sizeIsKnown && nextProgressTime < System.currentTimeMillis()) {
+                    long progress = 100 * inputData.getStreamPosition() / wholeSize;
+                    // stop at 100% for wrong file sizes...
+                    if (progress > 100) {
+                        progress = 100;
+                    }
+                    if (progress > lastReportedProgress) {
+                        updateProgress((int) progress, 100);
+                        lastReportedProgress = (int) progress;
+                        nextProgressTime = System.currentTimeMillis() + PROGRESS_STRIDE_MILLISECONDS;
+                    }
                 }
             }
+        } finally {
+            // the charset verifier is done with the buffer as well at this point
+            bufferPool.release(buffer);
         }
 
         if (signatureChecker.isInitialized()) {
@@ -840,6 +871,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                 }
             }
 
+            decryptorFactory.setDataProviderChooser(CryptoProviderSelector.getInstance(mContext));
+
             try {
                 result.cleartextStream = encryptedDataAsymmetric.getDataStream(decryptorFactory);
             } catch (PGPKeyValidationException | ArrayIndexOutOfBoundsException e) {
@@ -971,23 +1004,12 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         OperationLog log = new OperationLog();
 
         updateProgress(R.string.progress_processing_signature, 0, 100);
-        InputStream detachedSigIn = new ByteArrayInputStream(input.getDetachedSignature());
-        detachedSigIn = PGPUtil.getDecoderStream(detachedSigIn);
-
-        JcaSkipMarkerPGPObjectFactory pgpFact = new JcaSkipMarkerPGPObjectFactory(detachedSigIn);
-
-        Object o = pgpFact.nextObject();
-        if (o instanceof PGPCompressedData) {
-            PGPCompressedData c1 = (PGPCompressedData) o;
-            pgpFact = new JcaSkipMarkerPGPObjectFactory(c1.getDataStream());
-            o = pgpFact.nextObject();
-        }
 
         DecryptVerifySecurityProblemBuilder securityProblemBuilder = new DecryptVerifySecurityProblemBuilder();
         PgpSignatureChecker signatureChecker = new PgpSignatureChecker(mKeyRepository, input.getSenderAddress(),
                 securityProblemBuilder);
 
-        if ( ! signatureChecker.initializeSignature(o, log, indent+1)) {
+        if ( ! initializeDetachedSignature(input, signatureChecker, log, indent)) {
             log.add(LogType.MSG_DC_ERROR_INVALID_DATA, 0);
             return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
         }
@@ -1000,25 +1022,30 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             long alreadyWritten = 0;
             long wholeSize = inputData.getSize() - inputData.getStreamPosition();
             int length;
-            byte[] buffer = new byte[1 << 16];
+            BufferPool bufferPool = BufferPool.getInstance();
+            byte[] buffer = bufferPool.obtain();
             InputStream in = inputData.getInputStream();
-            while ((length = in.read(buffer)) > 0) {
-                if (out != null) {
-                    out.write(buffer, 0, length);
-                }
+            try {
+                while ((length = in.read(buffer)) > 0) {
+                    if (out != null) {
+                        out.write(buffer, 0, length);
+                    }
 
-                // update signature buffer if signature is also present
-                signatureChecker.updateSignatureData(buffer, 0, length);
+                    // update signature buffer if signature is also present
+                    signatureChecker.updateSignatureData(buffer, 0, length);
 
-                alreadyWritten += length;
-                if (wholeSize > 0) {
-                    long progress = 100 * alreadyWritten / wholeSize;
-                    // stop at 100% for wrong file sizes...
-                    if (progress > 100) {
-                        progress = 100;
+                    alreadyWritten += length;
+                    if (wholeSize > 0) {
+                        long progress = 100 * alreadyWritten / wholeSize;
+                        // stop at 100% for wrong file sizes...
+                        if (progress > 100) {
+                            progress = 100;
+                        }
+                        progressScaler.setProgress((int) progress, 100);
                     }
-                    progressScaler.setProgress((int) progress, 100);
                 }
+            } finally {
+                bufferPool.release(buffer);
             }
 
             updateProgress(R.string.progress_verifying_signature, 90, 100);
@@ -1030,6 +1057,65 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         updateProgress(R.string.progress_done, 100, 100);
 
+        return createDetachedSignatureResult(signatureChecker, securityProblemBuilder, log, indent);
+    }
+
+    /**
+     * Verifies the detached signature of the input parcel against a digest of the signed data,
+     * which was computed while the data was read elsewhere. The input parcel's data is not used.
+     */
+    @NonNull
+    public DecryptVerifyResult verifyDetachedSignature(PgpDecryptVerifyInputParcel input,
+            DetachedSignatureDigest contentDigest) {
+        try {
+            OperationLog log = new OperationLog();
+
+            DecryptVerifySecurityProblemBuilder securityProblemBuilder = new DecryptVerifySecurityProblemBuilder();
+            PgpSignatureChecker signatureChecker = new PgpSignatureChecker(mKeyRepository,
+                    input.getSenderAddress(), securityProblemBuilder);
+
+            if ( ! initializeDetachedSignature(input, signatureChecker, log, 0)) {
+                log.add(LogType.MSG_DC_ERROR_INVALID_DATA, 0);
+                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+            }
+            if (signatureChecker.isInitialized()) {
+                log.add(LogType.MSG_DC_CLEAR_SIGNATURE_CHECK, 0);
+                signatureChecker.verifySignature(contentDigest, log, 0);
+            }
+
+            return createDetachedSignatureResult(signatureChecker, securityProblemBuilder, log, 0);
+        } catch (PGPException e) {
+            Timber.d(e, "PGPException");
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_DC_ERROR_PGP_EXCEPTION, 1);
+            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+        } catch (DecoderException | ArrayIndexOutOfBoundsException | IOException e) {
+            Timber.d(e, "data error");
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_DC_ERROR_IO, 1);
+            return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+        }
+    }
+
+    private boolean initializeDetachedSignature(PgpDecryptVerifyInputParcel input,
+            PgpSignatureChecker signatureChecker, OperationLog log, int indent) throws IOException, PGPException {
+        InputStream detachedSigIn = new ByteArrayInputStream(input.getDetachedSignature());
+        detachedSigIn = PGPUtil.getDecoderStream(detachedSigIn);
+
+        JcaSkipMarkerPGPObjectFactory pgpFact = new JcaSkipMarkerPGPObjectFactory(detachedSigIn);
+
+        Object o = pgpFact.nextObject();
+        if (o instanceof PGPCompressedData) {
+            PGPCompressedData c1 = (PGPCompressedData) o;
+            pgpFact = new JcaSkipMarkerPGPObjectFactory(c1.getDataStream());
+            o = pgpFact.nextObject();
+        }
+
+        return signatureChecker.initializeSignature(o, log, indent+1);
+    }
+
+    private static DecryptVerifyResult createDetachedSignatureResult(PgpSignatureChecker signatureChecker,
+            DecryptVerifySecurityProblemBuilder securityProblemBuilder, OperationLog log, int indent) {
         log.add(LogType.MSG_DC_OK, indent);
 
         // TODO return metadata object?
@@ -22,17 +22,28 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
@@ -41,6 +52,7 @@ import org.bouncycastle.bcpg.ECDHPublicBCPGKey;
 import org.bouncycastle.bcpg.ECDSAPublicBCPGKey;
 import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
 import org.bouncycastle.bcpg.S2K;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
 import org.bouncycastle.bcpg.sig.Features;
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.bcpg.sig.RevocationReasonTags;
@@ -66,9 +78,9 @@ import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
-import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.NfcSyncPGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.NfcSyncPGPContentSignerBuilder.NfcInteractionNeeded;
+import org.bouncycastle.openpgp.operator.jcajce.SessionKeySecretKeyDecryptorBuilder;
 import org.bouncycastle.util.encoders.Hex;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
@@ -106,9 +118,13 @@ import timber.log.Timber;
  * This indicator may be null.
  */
 public class PgpKeyOperation {
+    private static final int MAX_WORKER_THREADS = 4;
+    private static final long KEY_GENERATION_POLL_MS = 100;
 
     private Stack<Progressable> mProgress;
     private AtomicBoolean mCancelled;
+    private PregeneratedKeyPool mKeyPool;
+    private int mS2KCount = PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT;
 
     public PgpKeyOperation(Progressable progress) {
         super();
@@ -123,6 +139,17 @@ public class PgpKeyOperation {
         mCancelled = cancelled;
     }
 
+    /** New keys take their key pairs from keyPool where possible. The pool may be null. */
+    public PgpKeyOperation(Progressable progress, AtomicBoolean cancelled, PregeneratedKeyPool keyPool) {
+        this(progress, cancelled);
+        mKeyPool = keyPool;
+    }
+
+    /** Sets the S2K count secret keys are encrypted with, see {@link S2KCalibration}. */
+    public void setSecretKeyS2KCount(int s2kCount) {
+        mS2KCount = s2kCount;
+    }
+
     private boolean checkCancelled() {
         return mCancelled != null && mCancelled.get();
     }
@@ -165,8 +192,11 @@ public class PgpKeyOperation {
         throw new RuntimeException("Invalid choice! (can't happen)");
     }
 
-    /** Creates new secret key. */
-    private PGPKeyPair createKey(SubkeyAdd add, Date creationTime, OperationLog log, int indent) {
+    /**
+     * Checks the parameters of a new secret key, and prepares its generation. The returned task
+     * does the expensive part and may run on any thread.
+     */
+    private Callable<PGPKeyPair> prepareKey(SubkeyAdd add, final Date creationTime, OperationLog log, int indent) {
 
         try {
             // Some safety checks
@@ -186,8 +216,8 @@ public class PgpKeyOperation {
                 }
             }
 
-            int algorithm;
-            KeyPairGenerator keyGen;
+            final int algorithm;
+            final KeyPairGenerator keyGen;
 
             switch (add.getAlgorithm()) {
                 case DSA: {
@@ -278,18 +308,139 @@ public class PgpKeyOperation {
                 }
             }
 
+            // a pre-generated key pair with the same parameters saves the expensive part
+            final KeyPair pooledKeyPair = mKeyPool != null ? mKeyPool.take(add) : null;
+            if (pooledKeyPair != null) {
+                log.add(LogType.MSG_CR_POOLED_KEY, indent);
+            }
+
             // build new key pair
-            return new JcaPGPKeyPair(algorithm, keyGen.generateKeyPair(), creationTime);
+            return new Callable<PGPKeyPair>() {
+                @Override
+                public PGPKeyPair call() throws PGPException {
+                    KeyPair keyPair = pooledKeyPair != null ? pooledKeyPair : keyGen.generateKeyPair();
+                    return new JcaPGPKeyPair(algorithm, keyPair, creationTime);
+                }
+            };
 
         } catch(NoSuchProviderException | InvalidAlgorithmParameterException e) {
             throw new RuntimeException(e);
         } catch(NoSuchAlgorithmException e) {
             log.add(LogType.MSG_CR_ERROR_UNKNOWN_ALGO, indent);
             return null;
-        } catch(PGPException e) {
-            Timber.e(e, "internal pgp error");
-            log.add(LogType.MSG_CR_ERROR_INTERNAL_PGP, indent);
-            return null;
+        }
+    }
+
+    /**
+     * Checks the parameters of all new subkeys, and starts generating their key pairs in the
+     * background. Log entries of each subkey are kept apart, so they can be added to the log
+     * when its binding signature is made. Returns null if a subkey is invalid, with the error
+     * logged.
+     */
+    private List<PendingSubkey> startSubkeyGeneration(ExecutorService executor, List<SubkeyAdd> addSubKeys,
+            Date creationTime, boolean masterIsDivert, OperationLog log, int indent) {
+
+        ArrayList<PendingSubkey> pendingSubkeys = new ArrayList<>(addSubKeys.size());
+        for (SubkeyAdd add : addSubKeys) {
+            OperationLog subkeyLog = new OperationLog();
+            subkeyLog.add(LogType.MSG_MF_SUBKEY_NEW, indent,
+                    KeyFormattingUtils.getAlgorithmInfo(add.getAlgorithm(), add.getKeySize(), add.getCurve()) );
+
+            if (masterIsDivert) {
+                subkeyLog.add(LogType.MSG_MF_ERROR_DIVERT_NEWSUB, indent +1);
+                log.addAll(subkeyLog);
+                return null;
+            }
+
+            if (add.getExpiry() == null) {
+                subkeyLog.add(LogType.MSG_MF_ERROR_NULL_EXPIRY, indent +1);
+                log.addAll(subkeyLog);
+                return null;
+            }
+
+            if (add.getExpiry() > 0L && new Date(add.getExpiry() * 1000).before(new Date())) {
+                subkeyLog.add(LogType.MSG_MF_ERROR_PAST_EXPIRY, indent +1);
+                log.addAll(subkeyLog);
+                return null;
+            }
+
+            Callable<PGPKeyPair> keyPairTask = prepareKey(add, creationTime, subkeyLog, indent);
+            if (keyPairTask == null) {
+                subkeyLog.add(LogType.MSG_MF_ERROR_PGP, indent +1);
+                log.addAll(subkeyLog);
+                return null;
+            }
+
+            pendingSubkeys.add(new PendingSubkey(add, subkeyLog, executor.submit(keyPairTask)));
+        }
+
+        return pendingSubkeys;
+    }
+
+    /**
+     * Waits for a key pair that is generated in the background. Meanwhile, the share of done key
+     * pairs in its batch is reported as progress. Returns null if the operation is cancelled.
+     */
+    private PGPKeyPair awaitKeyPair(Future<PGPKeyPair> keyPair, List<Future<PGPKeyPair>> batch, int message)
+            throws PGPException {
+
+        while (true) {
+            if (checkCancelled()) {
+                return null;
+            }
+
+            int done = 0;
+            for (Future<PGPKeyPair> batchKeyPair : batch) {
+                if (batchKeyPair.isDone()) {
+                    done += 1;
+                }
+            }
+            progress(message, done * 100 / batch.size());
+
+            try {
+                return keyPair.get(KEY_GENERATION_POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // not done yet, check again for cancellation
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof PGPException) {
+                    throw (PGPException) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private static ExecutorService createWorkerExecutor(int numTasks) {
+        int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_WORKER_THREADS);
+        numThreads = Math.max(1, Math.min(numThreads, numTasks));
+        return new ThreadPoolExecutor(numThreads, numThreads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+    }
+
+    private static List<Future<PGPKeyPair>> getKeyPairs(List<PendingSubkey> pendingSubkeys) {
+        ArrayList<Future<PGPKeyPair>> keyPairs = new ArrayList<>(pendingSubkeys.size());
+        for (PendingSubkey pendingSubkey : pendingSubkeys) {
+            keyPairs.add(pendingSubkey.mKeyPair);
+        }
+        return keyPairs;
+    }
+
+    /** A new subkey whose key pair is being generated in the background. */
+    private static class PendingSubkey {
+        final SubkeyAdd mAdd;
+        final OperationLog mLog;
+        final Future<PGPKeyPair> mKeyPair;
+
+        PendingSubkey(SubkeyAdd add, OperationLog log, Future<PGPKeyPair> keyPair) {
+            mAdd = add;
+            mLog = log;
+            mKeyPair = keyPair;
         }
     }
 
@@ -297,6 +448,7 @@ public class PgpKeyOperation {
 
         OperationLog log = new OperationLog();
         int indent = 0;
+        ExecutorService keyGenerationExecutor = null;
 
         try {
 
@@ -327,24 +479,47 @@ public class PgpKeyOperation {
 
             Date creationTime = new Date();
 
+            // Remove certification key from remaining SaveKeyringParcel
+            Builder builder = SaveKeyringParcel.buildUpon(saveParcel);
+            builder.getMutableAddSubKeys().remove(certificationKey);
+            saveParcel = builder.build();
+
+            // All key pairs are generated concurrently, subkeys only need to be done when their
+            // binding signatures are made.
             subProgressPush(10, 30);
-            PGPKeyPair keyPair = createKey(certificationKey, creationTime, log, indent);
+            Callable<PGPKeyPair> masterKeyPairTask = prepareKey(certificationKey, creationTime, log, indent);
+            // return null if this failed (an error will already have been logged by prepareKey)
+            if (masterKeyPairTask == null) {
+                return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
+            }
+
+            keyGenerationExecutor = createWorkerExecutor(saveParcel.getAddSubKeys().size() + 1);
+            Future<PGPKeyPair> masterKeyPair = keyGenerationExecutor.submit(masterKeyPairTask);
+            List<PendingSubkey> pendingSubkeys = startSubkeyGeneration(keyGenerationExecutor,
+                    saveParcel.getAddSubKeys(), creationTime, false, log, indent);
+            if (pendingSubkeys == null) {
+                return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
+            }
+
+            List<Future<PGPKeyPair>> batch = getKeyPairs(pendingSubkeys);
+            batch.add(0, masterKeyPair);
+            PGPKeyPair keyPair = awaitKeyPair(masterKeyPair, batch, R.string.progress_building_key);
             subProgressPop();
 
-            // return null if this failed (an error will already have been logged by createKey)
             if (keyPair == null) {
-                return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
+                log.add(LogType.MSG_OPERATION_CANCELLED, indent);
+                return new PgpEditKeyResult(PgpEditKeyResult.RESULT_CANCELLED, log, null);
             }
 
             progress(R.string.progress_building_master_key, 40);
 
-            // Build key encrypter and decrypter based on passphrase
-            PGPDigestCalculator encryptorHashCalc = new JcaPGPDigestCalculatorProviderBuilder()
-                    .build().get(PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO);
-            PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
+            // Build key encrypter based on passphrase. Its session key is cached in the
+            // passphrase, so the master key can be unlocked again without another S2K run.
+            Passphrase passphrase = new Passphrase("");
+            SessionKeySecretKeyEncryptor keyEncryptor = SessionKeySecretKeyEncryptor.build(
                     PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO,
-                    encryptorHashCalc, PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
-                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build("".toCharArray());
+                    PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO, mS2KCount, passphrase);
+            keyEncryptor.cacheSessionKey(passphrase);
 
             PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder()
                     .build().get(PgpSecurityConstants.SECRET_KEY_SIGNATURE_CHECKSUM_HASH_ALGO);
@@ -354,14 +529,10 @@ public class PgpKeyOperation {
             PGPSecretKeyRing sKR = new PGPSecretKeyRing(
                     masterSecretKey.getEncoded(), new JcaKeyFingerprintCalculator());
 
-            // Remove certification key from remaining SaveKeyringParcel
-            Builder builder = SaveKeyringParcel.buildUpon(saveParcel);
-            builder.getMutableAddSubKeys().remove(certificationKey);
-            saveParcel = builder.build();
-
             subProgressPush(50, 100);
-            CryptoInputParcel cryptoInput = CryptoInputParcel.createCryptoInputParcel(creationTime, new Passphrase(""));
-            return internal(sKR, masterSecretKey, certificationKey.getFlags(), certificationKey.getExpiry(), cryptoInput, saveParcel, log, indent);
+            CryptoInputParcel cryptoInput = CryptoInputParcel.createCryptoInputParcel(creationTime, passphrase);
+            return internal(sKR, masterSecretKey, certificationKey.getFlags(), certificationKey.getExpiry(),
+                    cryptoInput, saveParcel, keyGenerationExecutor, pendingSubkeys, log, indent);
 
         } catch (PGPException e) {
             log.add(LogType.MSG_CR_ERROR_INTERNAL_PGP, indent);
@@ -370,6 +541,11 @@ public class PgpKeyOperation {
         } catch (IOException e) {
             Timber.e(e, "io error encoding key");
             return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
+        } finally {
+            if (keyGenerationExecutor != null) {
+                // drops key pairs that weren't started yet, in case of an error or cancellation
+                keyGenerationExecutor.shutdownNow();
+            }
         }
 
     }
@@ -468,7 +644,14 @@ public class PgpKeyOperation {
         Date expiryTime = wsKR.getPublicKey().getExpiryTime();
         long masterKeyExpiry = expiryTime != null ? expiryTime.getTime() / 1000 : 0L;
 
-        return internal(sKR, masterSecretKey, masterKeyFlags, masterKeyExpiry, cryptoInput, saveParcel, log, indent);
+        // subkey generation is started by internal(), once the master key is unlocked
+        ExecutorService keyGenerationExecutor = createWorkerExecutor(saveParcel.getAddSubKeys().size());
+        try {
+            return internal(sKR, masterSecretKey, masterKeyFlags, masterKeyExpiry, cryptoInput, saveParcel,
+                    keyGenerationExecutor, null, log, indent);
+        } finally {
+            keyGenerationExecutor.shutdownNow();
+        }
 
     }
 
@@ -540,6 +723,8 @@ public class PgpKeyOperation {
                                      int masterKeyFlags, long masterKeyExpiry,
                                      CryptoInputParcel cryptoInput,
                                      SaveKeyringParcel saveParcel,
+                                     ExecutorService keyGenerationExecutor,
+                                     List<PendingSubkey> pendingSubkeys,
                                      OperationLog log,
                                      int indent) {
 
@@ -583,6 +768,17 @@ public class PgpKeyOperation {
                 return new PgpEditKeyResult(PgpEditKeyResult.RESULT_CANCELLED, log, null);
             }
 
+            // Start generating new subkeys, unless they were started with the master key. This
+            // waits for the unlock, so a wrong passphrase doesn't cost a key generation or a
+            // pooled key pair.
+            if (pendingSubkeys == null) {
+                pendingSubkeys = startSubkeyGeneration(keyGenerationExecutor, saveParcel.getAddSubKeys(),
+                        cryptoInput.getSignatureTime(), isDivertToCard(masterSecretKey), log, indent);
+                if (pendingSubkeys == null) {
+                    return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
+                }
+            }
+
             { // work on master secret key
 
                 PGPPublicKey modifiedPublicKey = masterPublicKey;
@@ -1016,48 +1212,24 @@ public class PgpKeyOperation {
             }
             subProgressPop();
 
-            // 5. Generate and add new subkeys
+            // 5. Add new subkeys. Their key pairs are generated in the background, the binding
+            //    signatures are made here in order.
             subProgressPush(70, 90);
-            List<SubkeyAdd> addSubKeys = saveParcel.getAddSubKeys();
-            for (int i = 0, j = addSubKeys.size(); i < j; i++) {
-                // Check if we were cancelled - again. This operation is expensive so we do it each loop.
-                if (checkCancelled()) {
+            List<Future<PGPKeyPair>> subkeyPairs = getKeyPairs(pendingSubkeys);
+            // shared by all new subkeys, so the S2K runs only once
+            SessionKeySecretKeyEncryptor subkeyEncryptor = null;
+            for (PendingSubkey pendingSubkey : pendingSubkeys) {
+                SaveKeyringParcel.SubkeyAdd add = pendingSubkey.mAdd;
+                log.addAll(pendingSubkey.mLog);
+
+                PGPKeyPair keyPair = awaitKeyPair(pendingSubkey.mKeyPair, subkeyPairs,
+                        R.string.progress_modify_subkeyadd);
+                // we were cancelled while waiting
+                if (keyPair == null) {
                     log.add(LogType.MSG_OPERATION_CANCELLED, indent);
                     return new PgpEditKeyResult(PgpEditKeyResult.RESULT_CANCELLED, log, null);
                 }
 
-                progress(R.string.progress_modify_subkeyadd, (i-1) * (100 / addSubKeys.size()));
-                SaveKeyringParcel.SubkeyAdd add = addSubKeys.get(i);
-                log.add(LogType.MSG_MF_SUBKEY_NEW, indent,
-                        KeyFormattingUtils.getAlgorithmInfo(add.getAlgorithm(), add.getKeySize(), add.getCurve()) );
-
-                if (isDivertToCard(masterSecretKey)) {
-                    log.add(LogType.MSG_MF_ERROR_DIVERT_NEWSUB, indent +1);
-                    return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
-                }
-
-                if (add.getExpiry() == null) {
-                    log.add(LogType.MSG_MF_ERROR_NULL_EXPIRY, indent +1);
-                    return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
-                }
-
-                if (add.getExpiry() > 0L && new Date(add.getExpiry() * 1000).before(new Date())) {
-                    log.add(LogType.MSG_MF_ERROR_PAST_EXPIRY, indent +1);
-                    return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
-                }
-
-                // generate a new secret key (privkey only for now)
-                subProgressPush(
-                    (i-1) * (100 / addSubKeys.size()),
-                    i * (100 / addSubKeys.size())
-                );
-                PGPKeyPair keyPair = createKey(add, cryptoInput.getSignatureTime(), log, indent);
-                subProgressPop();
-                if (keyPair == null) {
-                    log.add(LogType.MSG_MF_ERROR_PGP, indent +1);
-                    return new PgpEditKeyResult(PgpEditKeyResult.RESULT_ERROR, log, null);
-                }
-
                 // add subkey binding signature (making this a sub rather than master key)
                 PGPPublicKey pKey = keyPair.getPublicKey();
                 try {
@@ -1073,18 +1245,18 @@ public class PgpKeyOperation {
                 }
 
                 PGPSecretKey sKey; {
-                    // Build key encrypter and decrypter based on passphrase
-                    PGPDigestCalculator encryptorHashCalc = new JcaPGPDigestCalculatorProviderBuilder()
-                            .build().get(PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO);
-                    PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
-                            PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, encryptorHashCalc,
-                            PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
-                                    cryptoInput.getPassphrase().getCharArray());
+                    // Build key encrypter based on passphrase
+                    if (subkeyEncryptor == null) {
+                        subkeyEncryptor = SessionKeySecretKeyEncryptor.build(
+                                PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO,
+                                PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO, mS2KCount,
+                                cryptoInput.getPassphrase());
+                        subkeyEncryptor.cacheSessionKey(cryptoInput.getPassphrase());
+                    }
 
                     PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder()
                             .build().get(PgpSecurityConstants.SECRET_KEY_SIGNATURE_CHECKSUM_HASH_ALGO);
-                    sKey = new PGPSecretKey(keyPair.getPrivateKey(), pKey, sha1Calc, false, keyEncryptor);
+                    sKey = new PGPSecretKey(keyPair.getPrivateKey(), pKey, sha1Calc, false, subkeyEncryptor);
                 }
 
                 log.add(LogType.MSG_MF_SUBKEY_NEW_ID,
@@ -1334,26 +1506,115 @@ public class PgpKeyOperation {
         return false;
     }
 
-    private static PGPSecretKeyRing applyNewPassphrase(
+    /** Re-encrypts all secret keys of the ring with newPassphrase.
+     *
+     * Each distinct set of S2K parameters among the old keys is derived only once, unless its
+     * session key is cached in the passphrase already. Those derivations and the one for the
+     * new passphrase are independent, so they run concurrently. Re-encrypting a key after
+     * that takes a single cipher pass.
+     */
+    private PGPSecretKeyRing applyNewPassphrase(
             PGPSecretKeyRing sKR,
             PGPPublicKey masterPublicKey,
-            Passphrase passphrase,
-            Passphrase newPassphrase,
+            final Passphrase passphrase,
+            final Passphrase newPassphrase,
             OperationLog log, int indent) throws PGPException {
 
-        PGPDigestCalculator encryptorHashCalc = new JcaPGPDigestCalculatorProviderBuilder().build()
-                .get(PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO);
         PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
                 Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase.getCharArray());
-        // Build key encryptor based on new passphrase
-        PBESecretKeyEncryptor keyEncryptorNew = null;
-        if (newPassphrase != null && !newPassphrase.isEmpty()) {
-            keyEncryptorNew = new JcePBESecretKeyEncryptorBuilder(
-                    PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, encryptorHashCalc,
-                    PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
-                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
-                    .build(newPassphrase.getCharArray());
+
+        HashMap<ParcelableS2K, Future<byte[]>> sessionKeys = new HashMap<>();
+        Future<PBESecretKeyEncryptor> keyEncryptorFuture = null;
+        ExecutorService executor = createWorkerExecutor(MAX_WORKER_THREADS);
+        try {
+            // Build key encryptor based on new passphrase
+            if (newPassphrase != null && !newPassphrase.isEmpty()) {
+                keyEncryptorFuture = executor.submit(new Callable<PBESecretKeyEncryptor>() {
+                    @Override
+                    public PBESecretKeyEncryptor call() throws PGPException {
+                        return SessionKeySecretKeyEncryptor.build(
+                                PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO,
+                                PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO, mS2KCount, newPassphrase);
+                    }
+                });
+            }
+
+            for (PGPSecretKey sKey : new IterableIterator<>(sKR.getSecretKeys())) {
+                final int keyEncryptionAlgorithm = sKey.getKeyEncryptionAlgorithm();
+                final S2K s2k = sKey.getS2K();
+                if (!isSessionKeyApplicable(sKey)) {
+                    continue;
+                }
+                ParcelableS2K s2kParams = ParcelableS2K.fromS2K(keyEncryptionAlgorithm, s2k);
+                if (sessionKeys.containsKey(s2kParams)
+                        || passphrase.getCachedSessionKeyForParameters(keyEncryptionAlgorithm, s2k) != null) {
+                    continue;
+                }
+                sessionKeys.put(s2kParams, executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws PGPException {
+                        PBESecretKeyDecryptor s2kDecryptor = new JcePBESecretKeyDecryptorBuilder()
+                                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                                .build(passphrase.getCharArray());
+                        return s2kDecryptor.makeKeyFromPassPhrase(keyEncryptionAlgorithm, s2k);
+                    }
+                }));
+            }
+
+            for (PGPSecretKey sKey : new IterableIterator<>(sKR.getSecretKeys())) {
+                if (!isSessionKeyApplicable(sKey)) {
+                    continue;
+                }
+                Future<byte[]> sessionKey = sessionKeys.remove(
+                        ParcelableS2K.fromS2K(sKey.getKeyEncryptionAlgorithm(), sKey.getS2K()));
+                if (sessionKey == null) {
+                    continue;
+                }
+                try {
+                    passphrase.addCachedSessionKeyForParameters(
+                            sKey.getKeyEncryptionAlgorithm(), sKey.getS2K(), getResult(sessionKey));
+                } catch (PGPException e) {
+                    // the key is tried with the passphrase itself below, which fails the same way
+                    Timber.e(e, "error deriving session key");
+                }
+            }
+
+            PBESecretKeyEncryptor keyEncryptorNew =
+                    keyEncryptorFuture != null ? getResult(keyEncryptorFuture) : null;
+            return reencryptSecretKeys(sKR, masterPublicKey, passphrase, keyDecryptor, keyEncryptorNew,
+                    log, indent);
+        } finally {
+            executor.shutdownNow();
         }
+    }
+
+    private static boolean isSessionKeyApplicable(PGPSecretKey sKey) {
+        S2K s2k = sKey.getS2K();
+        return sKey.getKeyEncryptionAlgorithm() != SymmetricKeyAlgorithmTags.NULL
+                && s2k != null && s2k.getType() != S2K.GNU_DUMMY_S2K;
+    }
+
+    private static <T> T getResult(Future<T> future) throws PGPException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new PGPException("interrupted during S2K derivation");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PGPException) {
+                throw (PGPException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static PGPSecretKeyRing reencryptSecretKeys(
+            PGPSecretKeyRing sKR,
+            PGPPublicKey masterPublicKey,
+            Passphrase passphrase,
+            PBESecretKeyDecryptor keyDecryptor,
+            PBESecretKeyEncryptor keyEncryptorNew,
+            OperationLog log, int indent) throws PGPException {
+
         boolean keysModified = false;
 
         for (PGPSecretKey sKey : new IterableIterator<>(sKR.getSecretKeys())) {
@@ -1363,8 +1624,17 @@ public class PgpKeyOperation {
             boolean ok = false;
 
             try {
-                // try to set new passphrase
-                sKey = PGPSecretKey.copyWithNewPassword(sKey, keyDecryptor, keyEncryptorNew);
+                // try to set new passphrase, with the session key derived above if there is one
+                PBESecretKeyDecryptor sessionKeyDecryptor = keyDecryptor;
+                if (isSessionKeyApplicable(sKey)) {
+                    byte[] sessionKey = passphrase.getCachedSessionKeyForParameters(
+                            sKey.getKeyEncryptionAlgorithm(), sKey.getS2K());
+                    if (sessionKey != null) {
+                        sessionKeyDecryptor = new SessionKeySecretKeyDecryptorBuilder()
+                                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(sessionKey);
+                    }
+                }
+                sKey = PGPSecretKey.copyWithNewPassword(sKey, sessionKeyDecryptor, keyEncryptorNew);
                 ok = true;
             } catch (PGPException e) {
 
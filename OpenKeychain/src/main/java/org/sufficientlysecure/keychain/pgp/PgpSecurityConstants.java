@@ -281,6 +281,8 @@ public class PgpSecurityConstants {
 
     public interface OpenKeychainCompressionAlgorithmTags extends CompressionAlgorithmTags {
         int USE_DEFAULT = -1;
+        /** Default algorithm, but skipped or tuned depending on how well the input compresses. */
+        int ADAPTIVE = -2;
     }
 
     /**
@@ -32,6 +32,9 @@ import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -70,6 +73,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Passphrase;
@@ -97,6 +101,10 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
     private static byte[] NEW_LINE;
 
+    // kept for the lifetime of this operation, so batches of messages only load and unlock once
+    private CanonicalizedSecretKey mUnlockedSigningKey;
+    private final HashMap<Long, CanonicalizedPublicKeyRing> mEncryptionKeyRings = new HashMap<>();
+
     static {
         try {
             NEW_LINE = "\r\n".getBytes("UTF-8");
@@ -185,32 +193,49 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 || data.getSymmetricPassphrase() != null);
 
         int compressionAlgorithm = data.getCompressionAlgorithm();
-        if (compressionAlgorithm == OpenKeychainCompressionAlgorithmTags.USE_DEFAULT) {
+        boolean adaptiveCompression = compressionAlgorithm == OpenKeychainCompressionAlgorithmTags.ADAPTIVE;
+        if (compressionAlgorithm == OpenKeychainCompressionAlgorithmTags.USE_DEFAULT || adaptiveCompression) {
             compressionAlgorithm = PgpSecurityConstants.DEFAULT_COMPRESSION_ALGORITHM;
         }
 
         Timber.d(data.toString());
 
         ArmoredOutputStream armorOut = null;
+        FastArmoredOutputStream fastArmorOut = null;
         OutputStream out;
         if (data.isEnableAsciiArmorOutput()) {
-            armorOut = new ArmoredOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+            LinkedHashMap<String, String> armorHeaders = new LinkedHashMap<>();
             if (data.getVersionHeader() != null) {
-                armorOut.setHeader("Version", data.getVersionHeader());
+                armorHeaders.put("Version", data.getVersionHeader());
             }
             // if we have a charset, put it in the header
             if (data.getCharset() != null) {
-                armorOut.setHeader("Charset", data.getCharset());
+                armorHeaders.put("Charset", data.getCharset());
             }
             String passphraseFormat = data.getPassphraseFormat();
             if (passphraseFormat != null) {
-                armorOut.setHeader("Passphrase-Format", passphraseFormat);
+                armorHeaders.put("Passphrase-Format", passphraseFormat);
             }
             String passphraseBegin = data.getPassphraseBegin();
             if (passphraseBegin != null) {
-                armorOut.setHeader("Passphrase-Begin", passphraseBegin);
+                armorHeaders.put("Passphrase-Begin", passphraseBegin);
+            }
+
+            OutputStream bufferedOut = new BufferedOutputStream(outputStream, 1 << 16);
+            if (enableSignature && !enableEncryption && data.isCleartextSignature()) {
+                // only the ArmoredOutputStream can write cleartext signatures
+                armorOut = new ArmoredOutputStream(bufferedOut);
+                for (Map.Entry<String, String> header : armorHeaders.entrySet()) {
+                    armorOut.setHeader(header.getKey(), header.getValue());
+                }
+                out = armorOut;
+            } else {
+                fastArmorOut = new FastArmoredOutputStream(bufferedOut);
+                for (Map.Entry<String, String> header : armorHeaders.entrySet()) {
+                    fastArmorOut.setHeader(header.getKey(), header.getValue());
+                }
+                out = fastArmorOut;
             }
-            out = armorOut;
         } else {
             out = outputStream;
         }
@@ -233,9 +258,17 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                     }
                 }
 
-                CanonicalizedSecretKeyRing signingKeyRing =
-                        mKeyRepository.getCanonicalizedSecretKeyRing(signingMasterKeyId);
-                signingKey = signingKeyRing.getSecretKey(signingSubKeyId);
+                boolean isUnlocked = mUnlockedSigningKey != null
+                        && mUnlockedSigningKey.getRing().getMasterKeyId() == signingMasterKeyId
+                        && mUnlockedSigningKey.getKeyId() == signingSubKeyId;
+                CanonicalizedSecretKeyRing signingKeyRing;
+                if (isUnlocked) {
+                    signingKey = mUnlockedSigningKey;
+                    signingKeyRing = signingKey.getRing();
+                } else {
+                    signingKeyRing = mKeyRepository.getCanonicalizedSecretKeyRing(signingMasterKeyId);
+                    signingKey = signingKeyRing.getSecretKey(signingSubKeyId);
+                }
 
                 Collection<Long> allowedSigningKeyIds = data.getAllowedSigningKeyIds();
                 if (allowedSigningKeyIds != null && !allowedSigningKeyIds.contains(signingMasterKeyId)) {
@@ -257,46 +290,49 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                     return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                 }
 
-                switch (mKeyRepository.getCachedPublicKeyRing(signingMasterKeyId).getSecretKeyType(signingSubKeyId)) {
-                    case DIVERT_TO_CARD:
-                    case PASSPHRASE_EMPTY: {
-                        if (!signingKey.unlock(new Passphrase())) {
-                            throw new AssertionError(
-                                    "PASSPHRASE_EMPTY/DIVERT_TO_CARD keyphrase not unlocked with empty passphrase."
-                                            + " This is a programming error!");
+                if (!isUnlocked) {
+                    switch (mKeyRepository.getCachedPublicKeyRing(signingMasterKeyId).getSecretKeyType(signingSubKeyId)) {
+                        case DIVERT_TO_CARD:
+                        case PASSPHRASE_EMPTY: {
+                            if (!signingKey.unlock(new Passphrase())) {
+                                throw new AssertionError(
+                                        "PASSPHRASE_EMPTY/DIVERT_TO_CARD keyphrase not unlocked with empty passphrase."
+                                                + " This is a programming error!");
+                            }
+                            break;
                         }
-                        break;
-                    }
 
-                    case PASSPHRASE: {
-                        Passphrase localPassphrase = cryptoInput.getPassphrase();
-                        if (localPassphrase == null) {
-                            try {
-                                localPassphrase = getCachedPassphrase(signingMasterKeyId, signingKey.getKeyId());
-                            } catch (PassphraseCacheInterface.NoSecretKeyException ignored) {
+                        case PASSPHRASE: {
+                            Passphrase localPassphrase = cryptoInput.getPassphrase();
+                            if (localPassphrase == null) {
+                                try {
+                                    localPassphrase = getCachedPassphrase(signingMasterKeyId, signingKey.getKeyId());
+                                } catch (PassphraseCacheInterface.NoSecretKeyException ignored) {
+                                }
                             }
+                            if (localPassphrase == null) {
+                                log.add(LogType.MSG_PSE_PENDING_PASSPHRASE, indent + 1);
+                                return new PgpSignEncryptResult(log, RequiredInputParcel.createRequiredSignPassphrase(
+                                        signingMasterKeyId, signingKey.getKeyId(),
+                                        cryptoInput.getSignatureTime()), cryptoInput);
+                            }
+                            if (!signingKey.unlock(localPassphrase)) {
+                                log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
+                                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                            }
+                            break;
                         }
-                        if (localPassphrase == null) {
-                            log.add(LogType.MSG_PSE_PENDING_PASSPHRASE, indent + 1);
-                            return new PgpSignEncryptResult(log, RequiredInputParcel.createRequiredSignPassphrase(
-                                    signingMasterKeyId, signingKey.getKeyId(),
-                                    cryptoInput.getSignatureTime()), cryptoInput);
-                        }
-                        if (!signingKey.unlock(localPassphrase)) {
-                            log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
+
+                        case GNU_DUMMY: {
+                            log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
                             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                         }
-                        break;
-                    }
+                        default: {
+                            throw new AssertionError("Unhandled SecretKeyType! (should not happen)");
+                        }
 
-                    case GNU_DUMMY: {
-                        log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
-                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                     }
-                    default: {
-                        throw new AssertionError("Unhandled SecretKeyType! (should not happen)");
-                    }
-
+                    mUnlockedSigningKey = signingKey;
                 }
 
             } catch (KeyWritableRepository.NotFoundException e) {
@@ -320,7 +356,8 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
             }
             JcePGPDataEncryptorBuilder encryptorBuilder =
                     new JcePGPDataEncryptorBuilder(symmetricEncryptionAlgorithm)
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                            .setProvider(CryptoProviderSelector.getInstance(mContext)
+                                    .getEncryptionProviderName(symmetricEncryptionAlgorithm))
                             .setWithIntegrityPacket(true);
 
             cPk = new PGPEncryptedDataGenerator(encryptorBuilder);
@@ -370,7 +407,8 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 boolean cleartext = data.isCleartextSignature() && data.isEnableAsciiArmorOutput() && !enableEncryption;
                 signatureGenerator = signingKey.getDataSignatureGenerator(
                         signatureHashAlgorithm, cleartext,
-                        cryptoInput.getCryptoData(), cryptoInput.getSignatureTime());
+                        cryptoInput.getCryptoData(), cryptoInput.getSignatureTime(),
+                        CryptoProviderSelector.getInstance(mContext).getDigestProviderName(signatureHashAlgorithm));
             } catch (PgpGeneralException e) {
                 log.add(LogType.MSG_PSE_ERROR_NFC, indent);
                 return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
@@ -380,14 +418,20 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         ProgressScaler progressScaler =
                 new ProgressScaler(mProgressable, 8, 95, 100);
         PGPCompressedDataGenerator compressGen = null;
+        AdaptiveCompression compressionEstimate = null;
         OutputStream pOut;
         OutputStream encryptionOut = null;
         BCPGOutputStream bcpgOut;
 
         ByteArrayOutputStream detachedByteOut = null;
-        ArmoredOutputStream detachedArmorOut = null;
+        FastArmoredOutputStream detachedArmorOut = null;
         BCPGOutputStream detachedBcpgOut = null;
 
+        BufferPool bufferPool = BufferPool.getInstance();
+        byte[] encryptionBuffer = null;
+        byte[] literalBuffer = null;
+        byte[] readBuffer = null;
+
         long opTime, startTime = System.currentTimeMillis();
 
         try {
@@ -402,12 +446,16 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 );
                 indent += 1;
 
-                encryptionOut = cPk.open(out, new byte[1 << 16]);
+                encryptionBuffer = bufferPool.obtain();
+                encryptionOut = cPk.open(out, encryptionBuffer);
 
-                if (compressionAlgorithm != CompressionAlgorithmTags.UNCOMPRESSED) {
-                    log.add(LogType.MSG_PSE_COMPRESSING, indent);
+                InputStream in = new BufferedInputStream(inputData.getInputStream());
+                if (adaptiveCompression) {
+                    compressionEstimate = AdaptiveCompression.estimate(in, compressionAlgorithm);
+                }
 
-                    compressGen = new PGPCompressedDataGenerator(compressionAlgorithm);
+                compressGen = createCompressedDataGenerator(compressionAlgorithm, compressionEstimate, log, indent);
+                if (compressGen != null) {
                     bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
                 } else {
                     bcpgOut = new BCPGOutputStream(encryptionOut);
@@ -424,13 +472,13 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 } else {
                     literalDataFormatTag = PGPLiteralData.BINARY;
                 }
+                literalBuffer = bufferPool.obtain();
                 pOut = literalGen.open(bcpgOut, literalDataFormatTag,
-                        inputData.getOriginalFilename(), new Date(), new byte[1 << 16]);
+                        inputData.getOriginalFilename(), new Date(), literalBuffer);
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
-                InputStream in = new BufferedInputStream(inputData.getInputStream());
+                byte[] buffer = readBuffer = bufferPool.obtain();
                 while ((length = in.read(buffer)) > 0) {
                     pOut.write(buffer, 0, length);
 
@@ -496,7 +544,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 detachedByteOut = new ByteArrayOutputStream();
                 OutputStream detachedOut = detachedByteOut;
                 if (data.isEnableAsciiArmorOutput()) {
-                    detachedArmorOut = new ArmoredOutputStream(new BufferedOutputStream(detachedOut, 1 << 16));
+                    detachedArmorOut = new FastArmoredOutputStream(detachedOut);
                     if (data.getVersionHeader() != null) {
                         detachedArmorOut.setHeader("Version", data.getVersionHeader());
                     }
@@ -507,7 +555,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
+                byte[] buffer = readBuffer = bufferPool.obtain();
                 while ((length = in.read(buffer)) > 0) {
                     // no output stream is written, no changed to original data!
 
@@ -528,11 +576,12 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 log.add(LogType.MSG_PSE_SIGNING, indent);
 
                 InputStream in = new BufferedInputStream(inputData.getInputStream());
+                if (adaptiveCompression) {
+                    compressionEstimate = AdaptiveCompression.estimate(in, compressionAlgorithm);
+                }
 
-                if (compressionAlgorithm != CompressionAlgorithmTags.UNCOMPRESSED) {
-                    log.add(LogType.MSG_PSE_COMPRESSING, indent);
-
-                    compressGen = new PGPCompressedDataGenerator(compressionAlgorithm);
+                compressGen = createCompressedDataGenerator(compressionAlgorithm, compressionEstimate, log, indent);
+                if (compressGen != null) {
                     bcpgOut = new BCPGOutputStream(compressGen.open(out));
                 } else {
                     bcpgOut = new BCPGOutputStream(out);
@@ -541,13 +590,13 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 signatureGenerator.generateOnePassVersion(false).encode(bcpgOut);
 
                 PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+                literalBuffer = bufferPool.obtain();
                 pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY,
-                        inputData.getOriginalFilename(), new Date(),
-                        new byte[1 << 16]);
+                        inputData.getOriginalFilename(), new Date(), literalBuffer);
 
                 long alreadyWritten = 0;
                 int length;
-                byte[] buffer = new byte[1 << 16];
+                byte[] buffer = readBuffer = bufferPool.obtain();
                 while ((length = in.read(buffer)) > 0) {
                     pOut.write(buffer, 0, length);
 
@@ -598,6 +647,9 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
             if (armorOut != null) {
                 armorOut.close();
             }
+            if (fastArmorOut != null) {
+                fastArmorOut.close();
+            }
             // Note: Closing ArmoredOutputStream does not close the underlying stream
             if (detachedArmorOut != null) {
                 detachedArmorOut.close();
@@ -622,6 +674,10 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         } catch (IOException e) {
             log.add(LogType.MSG_PSE_ERROR_IO, indent);
             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        } finally {
+            bufferPool.release(encryptionBuffer);
+            bufferPool.release(literalBuffer);
+            bufferPool.release(readBuffer);
         }
 
         updateProgress(R.string.progress_done, 100, 100);
@@ -629,6 +685,10 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         log.add(LogType.MSG_PSE_OK, indent);
         PgpSignEncryptResult result = new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_OK, log);
         result.mOperationTime = opTime;
+        if (compressionEstimate != null) {
+            result.setCompressionEstimate(compressionEstimate.getAlgorithm(), compressionEstimate.getLevel(),
+                    compressionEstimate.getSampleRatio());
+        }
         if (detachedByteOut != null) {
             try {
                 detachedByteOut.flush();
@@ -648,11 +708,39 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         return result;
     }
 
+    /**
+     * Returns the generator to compress the literal data with, or null if it should be left
+     * uncompressed.
+     */
+    private PGPCompressedDataGenerator createCompressedDataGenerator(int compressionAlgorithm,
+            AdaptiveCompression compressionEstimate, OperationLog log, int indent) {
+        if (compressionEstimate != null) {
+            if (!compressionEstimate.isCompressing()) {
+                log.add(LogType.MSG_PSE_COMPRESSING_SKIPPED, indent);
+                return null;
+            }
+            log.add(compressionEstimate.isStrong()
+                    ? LogType.MSG_PSE_COMPRESSING_STRONG
+                    : LogType.MSG_PSE_COMPRESSING_FAST, indent);
+            return compressionEstimate.createGenerator();
+        }
+
+        if (compressionAlgorithm == CompressionAlgorithmTags.UNCOMPRESSED) {
+            return null;
+        }
+        log.add(LogType.MSG_PSE_COMPRESSING, indent);
+        return new PGPCompressedDataGenerator(compressionAlgorithm);
+    }
+
     private boolean processEncryptionMasterKeyId(int indent, OperationLog log, PgpSignEncryptData data,
             PGPEncryptedDataGenerator cPk, long encryptMasterKeyId) {
         try {
-            CanonicalizedPublicKeyRing keyRing = mKeyRepository.getCanonicalizedPublicKeyRing(
-                    KeyRings.buildUnifiedKeyRingUri(encryptMasterKeyId));
+            CanonicalizedPublicKeyRing keyRing = mEncryptionKeyRings.get(encryptMasterKeyId);
+            if (keyRing == null) {
+                keyRing = mKeyRepository.getCanonicalizedPublicKeyRing(
+                        KeyRings.buildUnifiedKeyRingUri(encryptMasterKeyId));
+                mEncryptionKeyRings.put(encryptMasterKeyId, keyRing);
+            }
             Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
             for (Long subKeyId : encryptSubKeyIds) {
                 CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
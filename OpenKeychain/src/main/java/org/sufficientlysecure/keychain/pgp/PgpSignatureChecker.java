@@ -235,6 +235,21 @@ class PgpSignatureChecker {
 
         // Verify signature
         boolean validSignature = signature.verify();
+        onSignatureVerified(validSignature, log, indent);
+
+    }
+
+    /** Verifies the signature against a digest of the signed data, instead of the data itself. */
+    void verifySignature(DetachedSignatureDigest contentDigest, OperationLog log, int indent) throws PGPException {
+
+        log.add(LogType.MSG_DC_CLEAR_SIGNATURE_CHECK, indent);
+
+        boolean validSignature = contentDigest.verify(signature, signingKey);
+        onSignatureVerified(validSignature, log, indent);
+
+    }
+
+    private void onSignatureVerified(boolean validSignature, OperationLog log, int indent) {
         if (validSignature) {
             log.add(LogType.MSG_DC_CLEAR_SIGNATURE_OK, indent + 1);
         } else {
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.content.ContextCompat;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import timber.log.Timber;
+
+
+/**
+ * Holds key pairs that were generated ahead of time, so creating a key doesn't have to wait for
+ * the prime search.
+ * <p/>
+ * Only RSA key pairs of the sizes in {@link #POOLED_RSA_KEY_SIZES} are pooled, which covers the
+ * default key set. Other algorithms generate their keys in milliseconds. Each key pair is stored
+ * encrypted with AES-GCM in its own file in the app's no-backup directory. The pool key lives in
+ * the AndroidKeyStore, so the pool is only available on Android 6 and newer. Pooled key pairs
+ * expire after {@link #KEY_PAIR_LIFETIME_MS}, and each is handed out at most once.
+ * <p/>
+ * The pool is refilled by {@link org.sufficientlysecure.keychain.service.KeyPairPoolJobService}
+ * while the device is idle and charging.
+ */
+public class PregeneratedKeyPool {
+    static final int[] POOLED_RSA_KEY_SIZES = { 3072 };
+    // the default key set consists of two RSA keys
+    static final int KEY_PAIRS_PER_SIZE = 2;
+    static final long KEY_PAIR_LIFETIME_MS = TimeUnit.DAYS.toMillis(2);
+
+    private static final String POOL_DIR_NAME = "key_pool";
+    private static final String POOL_KEY_ALIAS = "key_pool";
+    private static final String ANDROID_KEY_STORE = "AndroidKeyStore";
+    private static final String CIPHER_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final String FILE_SUFFIX = ".key";
+
+    private static PregeneratedKeyPool sInstance;
+
+    private final File mPoolDir;
+    private final SecretKey mPoolKey;
+
+    /**
+     * Returns the pool, or null if it isn't available on this device.
+     */
+    @Nullable
+    public static synchronized PregeneratedKeyPool getInstance(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return null;
+        }
+        if (sInstance == null) {
+            SecretKey poolKey = getOrCreatePoolKey();
+            if (poolKey == null) {
+                return null;
+            }
+            File poolDir = new File(ContextCompat.getNoBackupFilesDir(context), POOL_DIR_NAME);
+            sInstance = new PregeneratedKeyPool(poolDir, poolKey);
+        }
+        return sInstance;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static SecretKey getOrCreatePoolKey() {
+        try {
+            KeyStore keyStore = KeyStore.getInstance(ANDROID_KEY_STORE);
+            keyStore.load(null);
+            if (!keyStore.containsAlias(POOL_KEY_ALIAS)) {
+                KeyGenerator keyGenerator =
+                        KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, ANDROID_KEY_STORE);
+                keyGenerator.init(new KeyGenParameterSpec.Builder(POOL_KEY_ALIAS,
+                        KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                        .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                        .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                        .build());
+                return keyGenerator.generateKey();
+            }
+            return (SecretKey) keyStore.getKey(POOL_KEY_ALIAS, null);
+        } catch (GeneralSecurityException | IOException e) {
+            Timber.e(e, "key pool unavailable");
+            return null;
+        }
+    }
+
+    @VisibleForTesting
+    PregeneratedKeyPool(File poolDir, SecretKey poolKey) {
+        mPoolDir = poolDir;
+        mPoolKey = poolKey;
+    }
+
+    /**
+     * Takes a pooled key pair for the given key parameters out of the pool, or returns null if
+     * there is none. The returned key pair is gone from the pool.
+     */
+    @Nullable
+    public synchronized KeyPair take(SubkeyAdd add) {
+        if (add.getAlgorithm() != Algorithm.RSA || add.getKeySize() == null) {
+            return null;
+        }
+
+        String prefix = getFilePrefix(add.getKeySize());
+        long now = System.currentTimeMillis();
+        while (true) {
+            File oldest = null;
+            long oldestCreationTime = Long.MAX_VALUE;
+            for (File file : listFiles(prefix)) {
+                long creationTime = getCreationTime(file, prefix);
+                if (isExpired(creationTime, now)) {
+                    deleteFile(file);
+                } else if (creationTime < oldestCreationTime) {
+                    oldest = file;
+                    oldestCreationTime = creationTime;
+                }
+            }
+            if (oldest == null) {
+                return null;
+            }
+
+            byte[] encrypted;
+            try {
+                encrypted = readFile(oldest);
+            } catch (IOException e) {
+                Timber.e(e, "error reading pooled key pair");
+                encrypted = null;
+            }
+            // a key pair must never be used twice, so don't touch it if it can't be removed
+            if (!deleteFile(oldest)) {
+                return null;
+            }
+            if (encrypted == null) {
+                continue;
+            }
+
+            try {
+                Timber.d("using pooled key pair " + oldest.getName());
+                return decryptKeyPair(encrypted, prefix);
+            } catch (GeneralSecurityException | IOException e) {
+                Timber.e(e, "discarding bad pooled key pair");
+            }
+        }
+    }
+
+    /**
+     * Generates key pairs until the pool is full, and throws out expired ones. Returns early
+     * once stopped is set.
+     */
+    public void refill(AtomicBoolean stopped) {
+        for (int keySize : POOLED_RSA_KEY_SIZES) {
+            while (!stopped.get() && getAvailableCount(keySize) < KEY_PAIRS_PER_SIZE) {
+                try {
+                    KeyPairGenerator keyGen =
+                            KeyPairGenerator.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    keyGen.initialize(keySize, new SecureRandom());
+                    KeyPair keyPair = keyGen.generateKeyPair();
+                    if (stopped.get()) {
+                        return;
+                    }
+                    put(keySize, keyPair, System.currentTimeMillis());
+                } catch (GeneralSecurityException | IOException e) {
+                    Timber.e(e, "error filling key pool");
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of key pairs of this size that are ready to use, and deletes expired
+     * ones along the way.
+     */
+    synchronized int getAvailableCount(int keySize) {
+        String prefix = getFilePrefix(keySize);
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (File file : listFiles(prefix)) {
+            if (isExpired(getCreationTime(file, prefix), now)) {
+                deleteFile(file);
+            } else {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    @VisibleForTesting
+    synchronized void put(int keySize, KeyPair keyPair, long creationTime)
+            throws GeneralSecurityException, IOException {
+        if (!mPoolDir.isDirectory() && !mPoolDir.mkdirs()) {
+            throw new IOException("could not create key pool directory");
+        }
+
+        String prefix = getFilePrefix(keySize);
+        byte[] encrypted = encryptKeyPair(keyPair, prefix);
+
+        File file;
+        do {
+            int suffix = new SecureRandom().nextInt(Integer.MAX_VALUE);
+            file = new File(mPoolDir, prefix + creationTime + "-" + suffix + FILE_SUFFIX);
+        } while (file.exists());
+        File tmpFile = new File(mPoolDir, file.getName() + ".tmp");
+
+        OutputStream out = new FileOutputStream(tmpFile);
+        try {
+            out.write(encrypted);
+        } finally {
+            out.close();
+        }
+        // only complete files are visible in the pool
+        if (!tmpFile.renameTo(file)) {
+            deleteFile(tmpFile);
+            throw new IOException("could not add key pair to pool");
+        }
+    }
+
+    private byte[] encryptKeyPair(KeyPair keyPair, String prefix) throws GeneralSecurityException, IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        DataOutputStream dataOut = new DataOutputStream(plain);
+        byte[] publicKey = keyPair.getPublic().getEncoded();
+        byte[] privateKey = keyPair.getPrivate().getEncoded();
+        dataOut.writeInt(publicKey.length);
+        dataOut.write(publicKey);
+        dataOut.writeInt(privateKey.length);
+        dataOut.write(privateKey);
+        dataOut.close();
+        byte[] plainBytes = plain.toByteArray();
+        Arrays.fill(privateKey, (byte) 0);
+
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, mPoolKey);
+            // bind the ciphertext to its key parameters
+            cipher.updateAAD(prefix.getBytes(Charset.forName("US-ASCII")));
+            byte[] iv = cipher.getIV();
+            byte[] ciphertext = cipher.doFinal(plainBytes);
+
+            byte[] result = new byte[1 + iv.length + ciphertext.length];
+            result[0] = (byte) iv.length;
+            System.arraycopy(iv, 0, result, 1, iv.length);
+            System.arraycopy(ciphertext, 0, result, 1 + iv.length, ciphertext.length);
+            return result;
+        } finally {
+            Arrays.fill(plainBytes, (byte) 0);
+        }
+    }
+
+    private KeyPair decryptKeyPair(byte[] encrypted, String prefix) throws GeneralSecurityException, IOException {
+        if (encrypted.length == 0 || encrypted.length < 1 + (encrypted[0] & 0xff)) {
+            throw new IOException("truncated key pair");
+        }
+        int ivLength = encrypted[0] & 0xff;
+
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, mPoolKey, new GCMParameterSpec(GCM_TAG_LENGTH, encrypted, 1, ivLength));
+        cipher.updateAAD(prefix.getBytes(Charset.forName("US-ASCII")));
+        byte[] plainBytes = cipher.doFinal(encrypted, 1 + ivLength, encrypted.length - 1 - ivLength);
+
+        try {
+            DataInputStream dataIn = new DataInputStream(new ByteArrayInputStream(plainBytes));
+            byte[] publicKey = new byte[dataIn.readInt()];
+            dataIn.readFully(publicKey);
+            byte[] privateKey = new byte[dataIn.readInt()];
+            dataIn.readFully(privateKey);
+
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+            KeyPair keyPair = new KeyPair(keyFactory.generatePublic(new X509EncodedKeySpec(publicKey)),
+                    keyFactory.generatePrivate(new PKCS8EncodedKeySpec(privateKey)));
+            Arrays.fill(privateKey, (byte) 0);
+            return keyPair;
+        } finally {
+            Arrays.fill(plainBytes, (byte) 0);
+        }
+    }
+
+    private File[] listFiles(String prefix) {
+        File[] files = mPoolDir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.endsWith(FILE_SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    private static String getFilePrefix(int keySize) {
+        return "rsa-" + keySize + "-";
+    }
+
+    /** Returns the creation time from a file name, or -1 if it has none. */
+    private static long getCreationTime(File file, String prefix) {
+        String name = file.getName();
+        int end = name.indexOf('-', prefix.length());
+        if (end < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length(), end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isExpired(long creationTime, long now) {
+        // key pairs from the future are treated as expired, the clock may have been changed
+        return creationTime < 0 || creationTime > now || now - creationTime > KEY_PAIR_LIFETIME_MS;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] data = new byte[(int) file.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean deleteFile(File file) {
+        return file.delete() || !file.exists();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import android.content.Context;
+import android.os.Build;
+import android.support.annotation.VisibleForTesting;
+
+import org.bouncycastle.bcpg.S2K;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.operator.PBEDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Preferences;
+import timber.log.Timber;
+
+
+/**
+ * Chooses the S2K iteration count for secret keys encrypted on this device.
+ * <p/>
+ * One S2K run with {@link PgpSecurityConstants#SECRET_KEY_ENCRYPTOR_S2K_COUNT} is timed, the
+ * same way the benchmark times its S2K runs. The count is then raised as far as a run is still
+ * expected to take at most {@link #TARGET_TIME_MS}, since S2K time grows linearly with the
+ * number of hashed bytes. Slow devices keep the default, the count is never lowered. The
+ * calibration is kept in the preferences until the system changes.
+ */
+public class S2KCalibration {
+    private static final long TARGET_TIME_MS = 100;
+    private static final int MAX_S2K_COUNT = 0xff;
+    private static final int MEASURE_ROUNDS = 3;
+    private static final byte[] MEASURE_SALT = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+    private static S2KCalibration sInstance;
+
+    private final Preferences mPreferences;
+    private int mS2KCount;
+
+    public static synchronized S2KCalibration getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new S2KCalibration(Preferences.getPreferences(context));
+        }
+        return sInstance;
+    }
+
+    private S2KCalibration(Preferences preferences) {
+        mPreferences = preferences;
+    }
+
+    /**
+     * Returns the S2K count to encrypt secret keys with. The first call on a system runs the
+     * calibration, which takes a few S2K runs.
+     */
+    public synchronized int getSecretKeyS2KCount() {
+        if (mS2KCount != 0) {
+            return mS2KCount;
+        }
+
+        String calibration = mPreferences.getS2KCalibration();
+        if (calibration != null) {
+            String[] lines = calibration.split("\n");
+            if (lines.length == 2 && String.valueOf(Build.FINGERPRINT).equals(lines[0])) {
+                try {
+                    mS2KCount = Math.max(Integer.parseInt(lines[1]),
+                            PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT);
+                    return mS2KCount;
+                } catch (NumberFormatException e) {
+                    // calibrate again
+                }
+            }
+        }
+
+        try {
+            long bestTime = Long.MAX_VALUE;
+            for (int round = 0; round < MEASURE_ROUNDS; round++) {
+                bestTime = Math.min(bestTime, timeS2K(
+                        PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO,
+                        PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO,
+                        PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT));
+            }
+            mS2KCount = calibrate(bestTime, TARGET_TIME_MS * 1000 * 1000);
+        } catch (PGPException e) {
+            Timber.e(e, "error during S2K calibration");
+            // not saved, so it's tried again next time
+            return PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT;
+        }
+
+        Timber.d("Calibrated S2K count: 0x" + Integer.toHexString(mS2KCount));
+        mPreferences.setS2KCalibration(Build.FINGERPRINT + "\n" + mS2KCount);
+        return mS2KCount;
+    }
+
+    /**
+     * Returns the time of one S2K run for a key of the given algorithm, with the given hash
+     * algorithm and encoded iteration count, in nanoseconds.
+     */
+    public static long timeS2K(int encAlgorithm, int hashAlgorithm, int s2kCount) throws PGPException {
+        PGPDigestCalculatorProvider digestCalcProvider = new JcaPGPDigestCalculatorProviderBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
+        PBEDataDecryptorFactory decryptorFactory = new JcePBEDataDecryptorFactoryBuilder(
+                digestCalcProvider).setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
+                "".toCharArray());
+
+        S2K s2k = new S2K(hashAlgorithm, MEASURE_SALT, s2kCount);
+        long startTime = System.nanoTime();
+        decryptorFactory.makeKeyFromPassPhrase(encAlgorithm, s2k);
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * Returns the highest count whose S2K run is expected to take at most targetTime, given that
+     * a run with the default count took defaultTime.
+     */
+    @VisibleForTesting
+    static int calibrate(long defaultTime, long targetTime) {
+        long defaultBytes = getHashedByteCount(PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT);
+        for (int s2kCount = MAX_S2K_COUNT; s2kCount > PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT; s2kCount--) {
+            // compared as fractions, to stay in range of a long
+            double expectedTime = (double) defaultTime * getHashedByteCount(s2kCount) / defaultBytes;
+            if (expectedTime <= targetTime) {
+                return s2kCount;
+            }
+        }
+        return PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT;
+    }
+
+    /** Returns the number of bytes hashed for an encoded count, see RFC 4880, Section 3.7.1.3. */
+    @VisibleForTesting
+    static long getHashedByteCount(int s2kCount) {
+        return (16L + (s2kCount & 15)) << ((s2kCount >> 4) + 6);
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.SecureRandom;
+
+import org.bouncycastle.bcpg.S2K;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.bouncycastle.openpgp.operator.PBESecretKeyEncryptor;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/**
+ * Encrypts secret keys with a session key that is derived from the passphrase only once.
+ * <p/>
+ * The encryptor from JcePBESecretKeyEncryptorBuilder runs the S2K again for every key it
+ * encrypts, although all of them share its salt. This is the counterpart to
+ * SessionKeySecretKeyDecryptorBuilder. Like the Bouncy Castle encryptors, an instance must not
+ * be used by several threads at once.
+ */
+class SessionKeySecretKeyEncryptor extends PBESecretKeyEncryptor {
+    private final byte[] mSessionKey;
+    private final PBESecretKeyEncryptor mCipher;
+
+    private SessionKeySecretKeyEncryptor(int encAlgorithm, PGPDigestCalculator s2kDigestCalculator,
+            S2K s2k, byte[] sessionKey) throws PGPException {
+        super(encAlgorithm, s2kDigestCalculator, 0, new SecureRandom(), new char[0]);
+        this.s2k = s2k;
+        mSessionKey = sessionKey;
+        // only used for its cipher, the key is always passed in
+        mCipher = new JcePBESecretKeyEncryptorBuilder(encAlgorithm, s2kDigestCalculator)
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(new char[0]);
+    }
+
+    /**
+     * Derives the session key for a new random salt and the given iteration count. This is the
+     * expensive part, encrypting keys with the returned encryptor is cheap.
+     */
+    static SessionKeySecretKeyEncryptor build(int encAlgorithm, int hashAlgorithm, int s2kCount,
+            Passphrase passphrase) throws PGPException {
+        byte[] salt = new byte[8];
+        new SecureRandom().nextBytes(salt);
+        S2K s2k = new S2K(hashAlgorithm, salt, s2kCount);
+
+        PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase.getCharArray());
+        byte[] sessionKey = keyDecryptor.makeKeyFromPassPhrase(encAlgorithm, s2k);
+
+        PGPDigestCalculator s2kDigestCalculator = new JcaPGPDigestCalculatorProviderBuilder()
+                .build().get(hashAlgorithm);
+        return new SessionKeySecretKeyEncryptor(encAlgorithm, s2kDigestCalculator, s2k, sessionKey);
+    }
+
+    /**
+     * Caches the session key in the passphrase it was derived from, so keys encrypted by this
+     * encryptor can be unlocked again without another S2K run.
+     */
+    void cacheSessionKey(Passphrase passphrase) {
+        passphrase.addCachedSessionKeyForParameters(getAlgorithm(), s2k, mSessionKey);
+    }
+
+    @Override
+    public byte[] getKey() {
+        return mSessionKey;
+    }
+
+    @Override
+    public byte[] encryptKeyData(byte[] key, byte[] keyData, int keyOff, int keyLen) throws PGPException {
+        return mCipher.encryptKeyData(key, keyData, keyOff, keyLen);
+    }
+
+    @Override
+    public byte[] getCipherIV() {
+        return mCipher.getCipherIV();
+    }
+}
@@ -55,7 +55,6 @@ import org.bouncycastle.openpgp.PGPSignatureGenerator;
 import org.bouncycastle.openpgp.PGPSignatureList;
 import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
 import org.bouncycastle.openpgp.PGPUserAttributeSubpacketVector;
-import org.bouncycastle.openpgp.PGPUtil;
 import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
 import org.bouncycastle.openpgp.operator.PGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
@@ -211,7 +210,7 @@ public class UncachedKeyRing {
                             }
                             stream.reset();
 
-                            InputStream in = PGPUtil.getDecoderStream(stream);
+                            InputStream in = FastArmoredInputStream.getDecoderStream(stream);
                             mObjectFactory = new PGPObjectFactory(in, new JcaKeyFingerprintCalculator());
                         }
 
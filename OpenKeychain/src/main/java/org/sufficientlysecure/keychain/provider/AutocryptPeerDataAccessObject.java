@@ -19,9 +19,13 @@ package org.sufficientlysecure.keychain.provider;
 
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -41,6 +45,17 @@ public class AutocryptPeerDataAccessObject {
     private static final String[] PROJECTION_GOSSIP_LAST_SEEN_KEY = { ApiAutocryptPeer.GOSSIP_LAST_SEEN_KEY };
     private static final String[] PROJECTION_MASTER_KEY_ID = { ApiAutocryptPeer.MASTER_KEY_ID };
 
+    private static final String[] PROJECTION_TIMESTAMPS = {
+            ApiAutocryptPeer.IDENTIFIER,
+            ApiAutocryptPeer.LAST_SEEN,
+            ApiAutocryptPeer.LAST_SEEN_KEY,
+            ApiAutocryptPeer.GOSSIP_LAST_SEEN_KEY,
+    };
+    private static final int INDEX_TIMESTAMPS_IDENTIFIER = 0;
+    private static final int INDEX_TIMESTAMPS_LAST_SEEN = 1;
+    private static final int INDEX_TIMESTAMPS_LAST_SEEN_KEY = 2;
+    private static final int INDEX_TIMESTAMPS_GOSSIP_LAST_SEEN_KEY = 3;
+
     private static final String[] PROJECTION_AUTOCRYPT_QUERY = {
             ApiAutocryptPeer.IDENTIFIER,
             ApiAutocryptPeer.LAST_SEEN,
@@ -179,21 +194,93 @@ public class AutocryptPeerDataAccessObject {
         return null;
     }
 
+    /**
+     * Returns the timestamps of all given peers which are known, looked up in a single query.
+     */
+    public Map<String, AutocryptPeerTimestamps> getTimestamps(Collection<String> autocryptIds) {
+        HashMap<String, AutocryptPeerTimestamps> result = new HashMap<>();
+        if (autocryptIds.isEmpty()) {
+            return result;
+        }
+
+        Cursor cursor = queryAutocryptPeerData(PROJECTION_TIMESTAMPS,
+                autocryptIds.toArray(new String[autocryptIds.size()]));
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                String autocryptId = cursor.getString(INDEX_TIMESTAMPS_IDENTIFIER);
+                result.put(autocryptId, new AutocryptPeerTimestamps(
+                        getDateOrNull(cursor, INDEX_TIMESTAMPS_LAST_SEEN),
+                        getDateOrNull(cursor, INDEX_TIMESTAMPS_LAST_SEEN_KEY),
+                        getDateOrNull(cursor, INDEX_TIMESTAMPS_GOSSIP_LAST_SEEN_KEY)));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    private static Date getDateOrNull(Cursor cursor, int index) {
+        return cursor.isNull(index) ? null : new Date(cursor.getLong(index));
+    }
+
     public void updateLastSeen(String autocryptId, Date date) {
+        queryInterface.update(ApiAutocryptPeer.buildByPackageNameAndAutocryptId(packageName, autocryptId),
+                createLastSeenValues(date), null, null);
+    }
+
+    public void updateKey(String autocryptId, Date effectiveDate, long masterKeyId, boolean isMutual) {
+        queryInterface.update(ApiAutocryptPeer.buildByPackageNameAndAutocryptId(packageName, autocryptId),
+                createKeyValues(effectiveDate, masterKeyId, isMutual), null, null);
+        databaseNotifyManager.notifyAutocryptUpdate(autocryptId, masterKeyId);
+    }
+
+    // operations for a batch applied by the caller, which must also notify about the changes
+
+    public ContentProviderOperation buildUpdateLastSeenOperation(String autocryptId, Date date) {
+        return ContentProviderOperation
+                .newUpdate(ApiAutocryptPeer.buildByPackageNameAndAutocryptId(packageName, autocryptId))
+                .withValues(createLastSeenValues(date))
+                .build();
+    }
+
+    public ContentProviderOperation buildUpdateKeyOperation(String autocryptId, Date effectiveDate,
+            long masterKeyId, boolean isMutual) {
+        return ContentProviderOperation
+                .newUpdate(ApiAutocryptPeer.buildByPackageNameAndAutocryptId(packageName, autocryptId))
+                .withValues(createKeyValues(effectiveDate, masterKeyId, isMutual))
+                .build();
+    }
+
+    public ContentProviderOperation buildUpdateKeyGossipFromAutocryptOperation(String autocryptId,
+            Date effectiveDate, long masterKeyId) {
+        return ContentProviderOperation
+                .newUpdate(ApiAutocryptPeer.buildByPackageNameAndAutocryptId(packageName, autocryptId))
+                .withValues(createKeyGossipValues(effectiveDate, masterKeyId, ApiAutocryptPeer.GOSSIP_ORIGIN_AUTOCRYPT))
+                .build();
+    }
+
+    private static ContentValues createLastSeenValues(Date date) {
         ContentValues cv = new ContentValues();
         cv.put(ApiAutocryptPeer.LAST_SEEN, date.getTime());
-        queryInterface
-                .update(ApiAutocryptPeer.buildByPackageNameAndAutocryptId(packageName, autocryptId), cv, null, null);
+        return cv;
     }
 
-    public void updateKey(String autocryptId, Date effectiveDate, long masterKeyId, boolean isMutual) {
+    private static ContentValues createKeyValues(Date effectiveDate, long masterKeyId, boolean isMutual) {
         ContentValues cv = new ContentValues();
         cv.put(ApiAutocryptPeer.MASTER_KEY_ID, masterKeyId);
         cv.put(ApiAutocryptPeer.LAST_SEEN_KEY, effectiveDate.getTime());
         cv.put(ApiAutocryptPeer.IS_MUTUAL, isMutual ? 1 : 0);
-        queryInterface
-                .update(ApiAutocryptPeer.buildByPackageNameAndAutocryptId(packageName, autocryptId), cv, null, null);
-        databaseNotifyManager.notifyAutocryptUpdate(autocryptId, masterKeyId);
+        return cv;
+    }
+
+    private static ContentValues createKeyGossipValues(Date effectiveDate, long masterKeyId, int origin) {
+        ContentValues cv = new ContentValues();
+        cv.put(ApiAutocryptPeer.GOSSIP_MASTER_KEY_ID, masterKeyId);
+        cv.put(ApiAutocryptPeer.GOSSIP_LAST_SEEN_KEY, effectiveDate.getTime());
+        cv.put(ApiAutocryptPeer.GOSSIP_ORIGIN, origin);
+        return cv;
     }
 
     public void updateKeyGossipFromAutocrypt(String autocryptId, Date effectiveDate, long masterKeyId) {
@@ -209,12 +296,8 @@ public class AutocryptPeerDataAccessObject {
     }
 
     private void updateKeyGossip(String autocryptId, Date effectiveDate, long masterKeyId, int origin) {
-        ContentValues cv = new ContentValues();
-        cv.put(ApiAutocryptPeer.GOSSIP_MASTER_KEY_ID, masterKeyId);
-        cv.put(ApiAutocryptPeer.GOSSIP_LAST_SEEN_KEY, effectiveDate.getTime());
-        cv.put(ApiAutocryptPeer.GOSSIP_ORIGIN, origin);
-        queryInterface
-                .update(ApiAutocryptPeer.buildByPackageNameAndAutocryptId(packageName, autocryptId), cv, null, null);
+        queryInterface.update(ApiAutocryptPeer.buildByPackageNameAndAutocryptId(packageName, autocryptId),
+                createKeyGossipValues(effectiveDate, masterKeyId, origin), null, null);
         databaseNotifyManager.notifyAutocryptUpdate(autocryptId, masterKeyId);
     }
 
@@ -227,7 +310,7 @@ public class AutocryptPeerDataAccessObject {
     public List<AutocryptRecommendationResult> determineAutocryptRecommendations(String... autocryptIds) {
         List<AutocryptRecommendationResult> result = new ArrayList<>(autocryptIds.length);
 
-        Cursor cursor = queryAutocryptPeerData(autocryptIds);
+        Cursor cursor = queryAutocryptPeerData(PROJECTION_AUTOCRYPT_QUERY, autocryptIds);
         try {
             while (cursor.moveToNext()) {
                 AutocryptRecommendationResult peerResult = determineAutocryptRecommendation(cursor);
@@ -295,7 +378,7 @@ public class AutocryptPeerDataAccessObject {
         return new AutocryptRecommendationResult(peerId, AutocryptState.DISCOURAGED_GOSSIP, masterKeyId, isVerified);
     }
 
-    private Cursor queryAutocryptPeerData(String[] autocryptIds) {
+    private Cursor queryAutocryptPeerData(String[] projection, String[] autocryptIds) {
         StringBuilder selection = new StringBuilder(ApiAutocryptPeer.IDENTIFIER + " IN (?");
         for (int i = 1; i < autocryptIds.length; i++) {
             selection.append(",?");
@@ -303,7 +386,19 @@ public class AutocryptPeerDataAccessObject {
         selection.append(")");
 
         return queryInterface.query(ApiAutocryptPeer.buildByPackageName(packageName),
-                PROJECTION_AUTOCRYPT_QUERY, selection.toString(), autocryptIds, null);
+                projection, selection.toString(), autocryptIds, null);
+    }
+
+    public static class AutocryptPeerTimestamps {
+        public final Date lastSeen;
+        public final Date lastSeenKey;
+        public final Date lastSeenGossip;
+
+        AutocryptPeerTimestamps(Date lastSeen, Date lastSeenKey, Date lastSeenGossip) {
+            this.lastSeen = lastSeen;
+            this.lastSeenKey = lastSeenKey;
+            this.lastSeenGossip = lastSeenGossip;
+        }
     }
 
     public static class AutocryptRecommendationResult {
@@ -35,6 +35,14 @@ public class DatabaseNotifyManager {
         contentResolver.notifyChange(uri, null);
     }
 
+    /**
+     * Notifies observers of all key rings at once, after a batch of keyrings or autocrypt
+     * updates was saved.
+     */
+    public void notifyKeyRingBatchChange() {
+        contentResolver.notifyChange(KeyRings.CONTENT_URI, null);
+    }
+
     public void notifyKeyserverStatusChange(long masterKeyId) {
         Uri uri = KeyRings.buildGenericKeyRingUri(masterKeyId);
         contentResolver.notifyChange(uri, null);
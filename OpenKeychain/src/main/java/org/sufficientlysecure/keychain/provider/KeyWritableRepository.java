@@ -33,6 +33,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.v4.util.LongSparseArray;
 
@@ -179,9 +180,13 @@ public class KeyWritableRepository extends KeyRepository {
      * This method will not delete all previous data for this masterKeyId from the database prior
      * to inserting. All public data is effectively re-inserted, secret keyrings are left deleted
      * and need to be saved externally to be preserved past the operation.
+     * <p/>
+     * If batchOperations is not null, the delete and all inserts are appended to it instead of
+     * being applied, and no change is notified.
      */
     @SuppressWarnings("unchecked")
-    private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing, boolean selfCertsAreTrusted) {
+    private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing, boolean selfCertsAreTrusted,
+            @Nullable ArrayList<ContentProviderOperation> batchOperations) {
 
         // start with ok result
         int result = SaveKeyringResult.SAVED_PUBLIC;
@@ -534,6 +539,15 @@ public class KeyWritableRepository extends KeyRepository {
             operations.add(lastUpdateReinsertOp);
         }
 
+        if (batchOperations != null) {
+            // delete old version of this keyRing as part of the batch
+            batchOperations.add(ContentProviderOperation.newDelete(
+                    KeyRingData.buildPublicKeyRingUri(masterKeyId)).build());
+            batchOperations.addAll(operations);
+            log(LogType.MSG_IP_SUCCESS);
+            return result;
+        }
+
         try {
             // delete old version of this keyRing (from database only!), which also deletes all keys and userIds on cascade
             int deleted = contentResolver.delete(
@@ -768,6 +782,48 @@ public class KeyWritableRepository extends KeyRepository {
             ArrayList<CanonicalizedKeyRing> canKeyRings,
             boolean forceRefresh,
             boolean skipSave) {
+        return savePublicKeyRing(publicRing, expectedFingerprint, canKeyRings, forceRefresh, skipSave, null);
+    }
+
+    /**
+     * Save a public keyring as part of a batch of database operations, which the caller applies
+     * in a single transaction together with its own changes. The caller is also responsible for
+     * notifying about the change afterwards.
+     * <p>
+     * Keyrings with a secret part are still saved immediately, since the secret keyring must be
+     * written after its public part.
+     */
+    public SaveKeyringResult savePublicKeyRingToBatch(UncachedKeyRing publicRing,
+            @NonNull ArrayList<ContentProviderOperation> batchOperations) {
+        return savePublicKeyRing(publicRing, null, null, false, false, batchOperations);
+    }
+
+    /**
+     * Applies operations collected by savePublicKeyRingToBatch in a single transaction, followed
+     * by a single change notification for all keyrings.
+     *
+     * @return false if the transaction failed, in which case none of the keyrings were saved.
+     */
+    public boolean applyKeyRingBatch(ArrayList<ContentProviderOperation> batchOperations) {
+        if (batchOperations.isEmpty()) {
+            return true;
+        }
+        try {
+            contentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, batchOperations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Timber.e(e, "Error applying keyring batch");
+            return false;
+        }
+        databaseNotifyManager.notifyKeyRingBatchChange();
+        return true;
+    }
+
+    private SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing,
+            byte[] expectedFingerprint,
+            ArrayList<CanonicalizedKeyRing> canKeyRings,
+            boolean forceRefresh,
+            boolean skipSave,
+            @Nullable ArrayList<ContentProviderOperation> batchOperations) {
 
         try {
             long masterKeyId = publicRing.getMasterKeyId();
@@ -859,8 +915,11 @@ public class KeyWritableRepository extends KeyRepository {
                 // skip save method, set fixed result
                 result = SaveKeyringResult.SAVED_PUBLIC
                         | (alreadyExists ? SaveKeyringResult.UPDATED : 0);
+            } else if (batchOperations != null && canSecretRing == null) {
+                result = saveCanonicalizedPublicKeyRing(canPublicRing, false, batchOperations)
+                        | (alreadyExists ? SaveKeyringResult.UPDATED : 0);
             } else {
-                result = saveCanonicalizedPublicKeyRing(canPublicRing, canSecretRing != null);
+                result = saveCanonicalizedPublicKeyRing(canPublicRing, canSecretRing != null, null);
             }
 
             // Save the saved keyring (if any)
@@ -1004,7 +1063,7 @@ public class KeyWritableRepository extends KeyRepository {
                 // skip save method, set fixed result
                 publicResult = SaveKeyringResult.SAVED_PUBLIC;
             } else {
-                publicResult = saveCanonicalizedPublicKeyRing(canPublicRing, true);
+                publicResult = saveCanonicalizedPublicKeyRing(canPublicRing, true, null);
             }
 
             if ((publicResult & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
@@ -18,14 +18,18 @@
 package org.sufficientlysecure.keychain.provider;
 
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -926,6 +930,7 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
                 }
                 case API_APPS: {
                     db.insert(Tables.API_APPS, null, values);
+                    notifyApiAppsChanged();
                     break;
                 }
                 case API_ALLOWED_KEYS: {
@@ -1015,6 +1020,7 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
             case API_APPS_BY_PACKAGE_NAME: {
                 count = db.delete(Tables.API_APPS, buildDefaultApiAppsSelection(uri, additionalSelection),
                         selectionArgs);
+                notifyApiAppsChanged();
                 break;
             }
             case API_ALLOWED_KEYS: {
@@ -1060,6 +1066,7 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
                 case API_APPS_BY_PACKAGE_NAME: {
                     count = db.update(Tables.API_APPS, values,
                             buildDefaultApiAppsSelection(uri, selection), selectionArgs);
+                    notifyApiAppsChanged();
                     break;
                 }
                 case UPDATED_KEYS: {
@@ -1101,6 +1108,33 @@ public class KeychainProvider extends ContentProvider implements SimpleContentRe
         return count;
     }
 
+    /**
+     * Applies all operations in a single transaction, so a batch is written atomically and
+     * doesn't commit the journal once per row.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Registered apps are cached by the permission checks of our API processes, see
+     * ApiPermissionCache.
+     */
+    private void notifyApiAppsChanged() {
+        getContext().getContentResolver().notifyChange(ApiApps.CONTENT_URI, null);
+    }
+
     /**
      * Build default selection statement for API apps. If no extra selection is specified only build
      * where clause with rowId
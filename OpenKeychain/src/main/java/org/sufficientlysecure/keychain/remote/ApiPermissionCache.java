@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.util.HashMap;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.support.annotation.VisibleForTesting;
+import android.util.SparseArray;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
+import timber.log.Timber;
+
+
+/**
+ * Process-wide cache of the decisions made by {@link ApiPermissionHelper}.
+ * <p/>
+ * Checking a caller involves the package manager for packages and certificates of its uid, and
+ * a database query for the registered certificate, which takes milliseconds on every API call.
+ * The results of these checks only change when packages are installed, replaced or removed, or
+ * when the registered apps change, so we drop everything on any of these events.
+ * <p/>
+ * Decisions are cached per (uid, package). Negative decisions are cached as well, since
+ * registering an app changes the table. Certificate mismatches are never cached.
+ */
+class ApiPermissionCache {
+    private static ApiPermissionCache sInstance;
+
+    private final Context mContext;
+    private final SparseArray<String[]> mPackagesForUid = new SparseArray<>();
+    private final HashMap<String, Boolean> mDecisions = new HashMap<>();
+    // incremented on invalidation, so results computed from old data are not put into the cache
+    private int mGeneration;
+
+    static synchronized ApiPermissionCache getInstance(Context context) {
+        Context applicationContext = context.getApplicationContext();
+        if (applicationContext == null) {
+            applicationContext = context;
+        }
+        // a new application means our observers are gone, this only happens in tests
+        if (sInstance == null || sInstance.mContext != applicationContext) {
+            sInstance = new ApiPermissionCache(applicationContext);
+            sInstance.registerForInvalidation();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ApiPermissionCache(Context context) {
+        mContext = context;
+    }
+
+    private void registerForInvalidation() {
+        // changes to registered apps may come from any of our processes, so observe the provider
+        mContext.getContentResolver().registerContentObserver(ApiApps.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+
+        // package changes can only be received while running, manifest receivers don't get them
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_FULLY_REMOVED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate();
+            }
+        }, packageFilter);
+    }
+
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    synchronized String[] getPackagesForUid(int uid) {
+        return mPackagesForUid.get(uid);
+    }
+
+    synchronized void putPackagesForUid(int generation, int uid, String[] packages) {
+        if (generation == mGeneration) {
+            mPackagesForUid.put(uid, packages);
+        }
+    }
+
+    /** @return the cached decision, or null if there is none */
+    synchronized Boolean getDecision(int uid, String packageName) {
+        return mDecisions.get(createKey(uid, packageName));
+    }
+
+    synchronized void putDecision(int generation, int uid, String packageName, boolean isAllowed) {
+        if (generation == mGeneration) {
+            mDecisions.put(createKey(uid, packageName), isAllowed);
+        }
+    }
+
+    synchronized void invalidate() {
+        Timber.d("Invalidating api permission cache");
+        mGeneration++;
+        mPackagesForUid.clear();
+        mDecisions.clear();
+    }
+
+    private static String createKey(int uid, String packageName) {
+        return uid + ":" + packageName;
+    }
+
+}
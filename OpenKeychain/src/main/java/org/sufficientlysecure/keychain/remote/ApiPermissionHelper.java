@@ -31,6 +31,7 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.Signature;
 import android.os.Binder;
+import android.support.annotation.VisibleForTesting;
 
 import org.openintents.openpgp.OpenPgpError;
 import org.openintents.openpgp.util.OpenPgpApi;
@@ -46,12 +47,19 @@ public class ApiPermissionHelper {
 
     private final Context mContext;
     private final ApiDataAccessObject mApiDao;
+    private final ApiPermissionCache mCache;
     private PackageManager mPackageManager;
 
     public ApiPermissionHelper(Context context, ApiDataAccessObject apiDao) {
+        this(context, apiDao, ApiPermissionCache.getInstance(context));
+    }
+
+    @VisibleForTesting
+    ApiPermissionHelper(Context context, ApiDataAccessObject apiDao, ApiPermissionCache cache) {
         mContext = context;
         mPackageManager = context.getPackageManager();
         mApiDao = apiDao;
+        mCache = cache;
     }
 
     public static class WrongPackageCertificateException extends Exception {
@@ -159,7 +167,7 @@ public class ApiPermissionHelper {
      * @return package name
      */
     protected String getCurrentCallingPackage() {
-        String[] callingPackages = mPackageManager.getPackagesForUid(Binder.getCallingUid());
+        String[] callingPackages = getPackagesForUid(Binder.getCallingUid());
 
         // NOTE: No support for sharedUserIds
         // callingPackages contains more than one entry when sharedUserId has been used
@@ -185,11 +193,18 @@ public class ApiPermissionHelper {
     private boolean isUidAllowed(int uid)
             throws WrongPackageCertificateException {
 
-        String[] callingPackages = mPackageManager.getPackagesForUid(uid);
+        int generation = mCache.getGeneration();
+        String[] callingPackages = getPackagesForUid(uid);
 
         // is calling package allowed to use this service?
         for (String currentPkg : callingPackages) {
-            if (isPackageAllowed(currentPkg)) {
+            Boolean isAllowed = mCache.getDecision(uid, currentPkg);
+            if (isAllowed == null) {
+                // certificate mismatches are thrown, and never cached
+                isAllowed = isPackageAllowed(currentPkg);
+                mCache.putDecision(generation, uid, currentPkg, isAllowed);
+            }
+            if (isAllowed) {
                 return true;
             }
         }
@@ -198,6 +213,18 @@ public class ApiPermissionHelper {
         return false;
     }
 
+    private String[] getPackagesForUid(int uid) {
+        String[] packages = mCache.getPackagesForUid(uid);
+        if (packages == null) {
+            int generation = mCache.getGeneration();
+            packages = mPackageManager.getPackagesForUid(uid);
+            if (packages != null) {
+                mCache.putPackagesForUid(generation, uid, packages);
+            }
+        }
+        return packages;
+    }
+
     /**
      * Checks if packageName is a registered app for the API. Does not return true for own package!
      *
@@ -2,19 +2,32 @@ package org.sufficientlysecure.keychain.remote;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
 import android.support.annotation.Nullable;
+import android.support.v4.util.LongSparseArray;
 
 import org.openintents.openpgp.AutocryptPeerUpdate;
 import org.openintents.openpgp.AutocryptPeerUpdate.PreferEncrypt;
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.AutocryptPeerDataAccessObject;
+import org.sufficientlysecure.keychain.provider.AutocryptPeerDataAccessObject.AutocryptPeerTimestamps;
+import org.sufficientlysecure.keychain.provider.DatabaseNotifyManager;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.provider.KeychainContract;
 import timber.log.Timber;
 
 
@@ -22,32 +35,108 @@ class AutocryptInteractor {
 
     private AutocryptPeerDataAccessObject autocryptPeerDao;
     private KeyWritableRepository keyWritableRepository;
+    private ContentResolver contentResolver;
+    private DatabaseNotifyManager databaseNotifyManager;
 
     public static AutocryptInteractor getInstance(Context context, AutocryptPeerDataAccessObject autocryptPeerentityDao) {
         KeyWritableRepository keyWritableRepository = KeyWritableRepository.create(context);
+        DatabaseNotifyManager databaseNotifyManager = DatabaseNotifyManager.create(context);
 
-        return new AutocryptInteractor(autocryptPeerentityDao, keyWritableRepository);
+        return new AutocryptInteractor(autocryptPeerentityDao, keyWritableRepository, context.getContentResolver(),
+                databaseNotifyManager);
     }
 
     private AutocryptInteractor(AutocryptPeerDataAccessObject autocryptPeerDao,
-            KeyWritableRepository keyWritableRepository) {
+            KeyWritableRepository keyWritableRepository, ContentResolver contentResolver,
+            DatabaseNotifyManager databaseNotifyManager) {
         this.autocryptPeerDao = autocryptPeerDao;
         this.keyWritableRepository = keyWritableRepository;
+        this.contentResolver = contentResolver;
+        this.databaseNotifyManager = databaseNotifyManager;
     }
 
-    void updateAutocryptPeerState(String autocryptPeerId, AutocryptPeerUpdate autocryptPeerUpdate) {
+    /**
+     * Applies the Autocrypt header and all Autocrypt-Gossip headers of a message at once.
+     * <p>
+     * The state of all peers is read in a single query. Keys are imported once per master key id,
+     * even if they are gossiped for several addresses, and all key imports and peer changes are
+     * written in a single transaction followed by a single change notification.
+     */
+    void updateAutocryptPeerStates(@Nullable String autocryptPeerId, @Nullable AutocryptPeerUpdate autocryptPeerUpdate,
+            Map<String, AutocryptPeerUpdate> gossipUpdates) {
+        ArrayList<String> autocryptPeerIds = new ArrayList<>(gossipUpdates.keySet());
+        if (autocryptPeerId != null && autocryptPeerUpdate != null) {
+            autocryptPeerIds.add(autocryptPeerId);
+        }
+        Map<String, AutocryptPeerTimestamps> peerTimestamps = autocryptPeerDao.getTimestamps(autocryptPeerIds);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        LongSparseArray<UncachedKeyRing> keyRings = new LongSparseArray<>();
+        ArrayList<PendingKeyUpdate> keyUpdates = new ArrayList<>();
+
+        if (autocryptPeerId != null && autocryptPeerUpdate != null) {
+            collectAutocryptPeerState(autocryptPeerId, autocryptPeerUpdate, peerTimestamps.get(autocryptPeerId),
+                    operations, keyRings, keyUpdates);
+        }
+        for (Entry<String, AutocryptPeerUpdate> gossipUpdate : gossipUpdates.entrySet()) {
+            Timber.d(Constants.TAG, "Updating gossip state: " + gossipUpdate.getKey());
+            collectAutocryptPeerGossipState(gossipUpdate.getKey(), gossipUpdate.getValue(),
+                    peerTimestamps.get(gossipUpdate.getKey()), keyRings, keyUpdates);
+        }
+
+        HashSet<Long> importedMasterKeyIds = new HashSet<>();
+        for (int i = 0; i < keyRings.size(); i++) {
+            SaveKeyringResult saveKeyringResult =
+                    keyWritableRepository.savePublicKeyRingToBatch(keyRings.valueAt(i), operations);
+            if (saveKeyringResult.success()) {
+                importedMasterKeyIds.add(saveKeyringResult.savedMasterKeyId);
+            } else {
+                Timber.e(Constants.TAG, "Error inserting key - ignoring!");
+            }
+        }
+
+        for (PendingKeyUpdate keyUpdate : keyUpdates) {
+            if (!importedMasterKeyIds.contains(keyUpdate.masterKeyId)) {
+                continue;
+            }
+            if (keyUpdate.isGossip) {
+                operations.add(autocryptPeerDao.buildUpdateKeyGossipFromAutocryptOperation(
+                        keyUpdate.autocryptPeerId, keyUpdate.effectiveDate, keyUpdate.masterKeyId));
+            } else {
+                operations.add(autocryptPeerDao.buildUpdateKeyOperation(
+                        keyUpdate.autocryptPeerId, keyUpdate.effectiveDate, keyUpdate.masterKeyId, keyUpdate.isMutual));
+            }
+        }
+
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            contentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Timber.e(e, "Error applying autocrypt peer updates - ignoring!");
+            return;
+        }
+        if (!importedMasterKeyIds.isEmpty()) {
+            databaseNotifyManager.notifyKeyRingBatchChange();
+        }
+    }
+
+    private void collectAutocryptPeerState(String autocryptPeerId, AutocryptPeerUpdate autocryptPeerUpdate,
+            @Nullable AutocryptPeerTimestamps timestamps, ArrayList<ContentProviderOperation> operations,
+            LongSparseArray<UncachedKeyRing> keyRings, ArrayList<PendingKeyUpdate> keyUpdates) {
         Date effectiveDate = autocryptPeerUpdate.getEffectiveDate();
 
         // 1. If the message’s effective date is older than the peers[from-addr].autocrypt_timestamp value, then no changes are required, and the update process terminates.
-        Date lastSeenAutocrypt = autocryptPeerDao.getLastSeenKey(autocryptPeerId);
+        Date lastSeenAutocrypt = timestamps != null ? timestamps.lastSeenKey : null;
         if (lastSeenAutocrypt != null && effectiveDate.compareTo(lastSeenAutocrypt) <= 0) {
             return;
         }
 
         // 2. If the message’s effective date is more recent than peers[from-addr].last_seen then set peers[from-addr].last_seen to the message’s effective date.
-        Date lastSeen = autocryptPeerDao.getLastSeen(autocryptPeerId);
+        Date lastSeen = timestamps != null ? timestamps.lastSeen : null;
         if (lastSeen == null || effectiveDate.after(lastSeen)) {
-            autocryptPeerDao.updateLastSeen(autocryptPeerId, effectiveDate);
+            operations.add(autocryptPeerDao.buildUpdateLastSeenOperation(autocryptPeerId, effectiveDate));
         }
 
         // 3. If the Autocrypt header is unavailable, no further changes are required and the update process terminates.
@@ -55,28 +144,30 @@ class AutocryptInteractor {
             return;
         }
 
-        SaveKeyringResult saveKeyringResult = parseAndImportAutocryptKeyData(autocryptPeerUpdate);
-        if (saveKeyringResult == null) {
+        UncachedKeyRing uncachedKeyRing = parseAutocryptKeyData(autocryptPeerUpdate);
+        if (uncachedKeyRing == null) {
             return;
         }
+        addKeyRing(keyRings, uncachedKeyRing);
 
         // 4. Set peers[from-addr].autocrypt_timestamp to the message’s effective date.
         // 5. Set peers[from-addr].public_key to the corresponding keydata value of the Autocrypt header.
-        Long newMasterKeyId = saveKeyringResult.savedMasterKeyId;
         // 6. Set peers[from-addr].prefer_encrypt to the corresponding prefer-encrypt value of the Autocrypt header.
         boolean isMutual = autocryptPeerUpdate.getPreferEncrypt() == PreferEncrypt.MUTUAL;
-
-        autocryptPeerDao.updateKey(autocryptPeerId, effectiveDate, newMasterKeyId, isMutual);
+        keyUpdates.add(new PendingKeyUpdate(
+                autocryptPeerId, effectiveDate, uncachedKeyRing.getMasterKeyId(), false, isMutual));
     }
 
-    void updateAutocryptPeerGossipState(String autocryptPeerId, AutocryptPeerUpdate autocryptPeerUpdate) {
+    private void collectAutocryptPeerGossipState(String autocryptPeerId, AutocryptPeerUpdate autocryptPeerUpdate,
+            @Nullable AutocryptPeerTimestamps timestamps, LongSparseArray<UncachedKeyRing> keyRings,
+            ArrayList<PendingKeyUpdate> keyUpdates) {
         Date effectiveDate = autocryptPeerUpdate.getEffectiveDate();
 
         // 1. If gossip-addr does not match any recipient in the mail’s To or Cc header, the update process terminates (i.e., header is ignored).
         // -> This should be taken care of in the mail client that sends us this data!
 
         // 2. If peers[gossip-addr].gossip_timestamp is more recent than the message’s effective date, then the update process terminates.
-        Date lastSeenGossip = autocryptPeerDao.getLastSeenGossip(autocryptPeerId);
+        Date lastSeenGossip = timestamps != null ? timestamps.lastSeenGossip : null;
         if (lastSeenGossip != null && lastSeenGossip.after(effectiveDate)) {
             return;
         }
@@ -85,35 +176,31 @@ class AutocryptInteractor {
             return;
         }
 
-        SaveKeyringResult saveKeyringResult = parseAndImportAutocryptKeyData(autocryptPeerUpdate);
-        if (saveKeyringResult == null) {
+        UncachedKeyRing uncachedKeyRing = parseAutocryptKeyData(autocryptPeerUpdate);
+        if (uncachedKeyRing == null) {
             return;
         }
+        addKeyRing(keyRings, uncachedKeyRing);
 
         // 3. Set peers[gossip-addr].gossip_timestamp to the message’s effective date.
         // 4. Set peers[gossip-addr].gossip_key to the value of the keydata attribute.
-        Long newMasterKeyId = saveKeyringResult.savedMasterKeyId;
-
-        autocryptPeerDao.updateKeyGossipFromAutocrypt(autocryptPeerId, effectiveDate, newMasterKeyId);
+        keyUpdates.add(new PendingKeyUpdate(
+                autocryptPeerId, effectiveDate, uncachedKeyRing.getMasterKeyId(), true, false));
     }
 
-    @Nullable
-    private SaveKeyringResult parseAndImportAutocryptKeyData(AutocryptPeerUpdate autocryptPeerUpdate) {
-        UncachedKeyRing uncachedKeyRing = parseAutocryptKeyData(autocryptPeerUpdate);
-        if (uncachedKeyRing != null) {
-            return importAutocryptKeyData(uncachedKeyRing);
+    /** Adds a key ring to be imported, merging it with one of the same master key id seen before. */
+    private static void addKeyRing(LongSparseArray<UncachedKeyRing> keyRings, UncachedKeyRing uncachedKeyRing) {
+        long masterKeyId = uncachedKeyRing.getMasterKeyId();
+        UncachedKeyRing existingKeyRing = keyRings.get(masterKeyId);
+        if (existingKeyRing == null) {
+            keyRings.put(masterKeyId, uncachedKeyRing);
+            return;
         }
-        return null;
-    }
 
-    @Nullable
-    private SaveKeyringResult importAutocryptKeyData(UncachedKeyRing uncachedKeyRing) {
-        SaveKeyringResult saveKeyringResult = keyWritableRepository.savePublicKeyRing(uncachedKeyRing);
-        if (!saveKeyringResult.success()) {
-            Timber.e(Constants.TAG, "Error inserting key - ignoring!");
-            return null;
+        UncachedKeyRing mergedKeyRing = existingKeyRing.merge(uncachedKeyRing, new OperationLog(), 0);
+        if (mergedKeyRing != null) {
+            keyRings.put(masterKeyId, mergedKeyRing);
         }
-        return saveKeyringResult;
     }
 
     @Nullable
@@ -131,4 +218,21 @@ class AutocryptInteractor {
         }
         return uncachedKeyRing;
     }
+
+    private static class PendingKeyUpdate {
+        final String autocryptPeerId;
+        final Date effectiveDate;
+        final long masterKeyId;
+        final boolean isGossip;
+        final boolean isMutual;
+
+        PendingKeyUpdate(String autocryptPeerId, Date effectiveDate, long masterKeyId, boolean isGossip,
+                boolean isMutual) {
+            this.autocryptPeerId = autocryptPeerId;
+            this.effectiveDate = effectiveDate;
+            this.masterKeyId = masterKeyId;
+            this.isGossip = isGossip;
+            this.isMutual = isMutual;
+        }
+    }
 }
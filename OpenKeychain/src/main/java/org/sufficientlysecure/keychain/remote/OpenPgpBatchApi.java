@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+/**
+ * Batch encryption extension of the OpenPGP API, as served by {@link OpenPgpService}.
+ * <p/>
+ * These belong into OpenPgpApi of the openpgp-api library, where clients can use them. This
+ * class has no dependencies on the rest of the app, so it can move there unchanged. Until it
+ * did, clients must use the literal values below, which are the stable contract.
+ * <p/>
+ * A batch is sent like ACTION_ENCRYPT or ACTION_SIGN_AND_ENCRYPT, with the same extras for
+ * recipients, signing key and output format, but with a descriptor for each message in
+ * EXTRA_BATCH_INPUTS and EXTRA_BATCH_OUTPUTS instead of a single input and output stream.
+ */
+public final class OpenPgpBatchApi {
+    public static final String ACTION_ENCRYPT_BATCH = "org.openintents.openpgp.action.ENCRYPT_BATCH";
+    public static final String ACTION_SIGN_AND_ENCRYPT_BATCH =
+            "org.openintents.openpgp.action.SIGN_AND_ENCRYPT_BATCH";
+
+    /** ParcelFileDescriptor[] of messages to encrypt */
+    public static final String EXTRA_BATCH_INPUTS = "batch_inputs";
+    /** ParcelFileDescriptor[] to write encrypted messages to, in the same order as the inputs */
+    public static final String EXTRA_BATCH_OUTPUTS = "batch_outputs";
+    /** ArrayList&lt;Intent&gt; with one result per message, in the same order as the inputs */
+    public static final String RESULT_BATCH_RESULTS = "batch_results";
+
+    private OpenPgpBatchApi() {
+    }
+
+}
@@ -18,6 +18,7 @@
 package org.sufficientlysecure.keychain.remote;
 
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -25,6 +26,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
@@ -36,6 +38,7 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
@@ -83,6 +86,9 @@ import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Numeric9x4PassphraseUtil;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.PipelinedInputStream;
+import org.sufficientlysecure.keychain.util.PipelinedOutputStream;
+import org.sufficientlysecure.keychain.util.ProgressCoalescer;
 import timber.log.Timber;
 
 
@@ -109,7 +115,7 @@ public class OpenPgpService extends Service {
         mApiDao = new ApiDataAccessObject(this);
         mApiPermissionHelper = new ApiPermissionHelper(this, mApiDao);
         mApiPendingIntentFactory = new ApiPendingIntentFactory(getBaseContext());
-        mKeyIdExtractor = OpenPgpServiceKeyIdExtractor.getInstance(getContentResolver(), mApiPendingIntentFactory);
+        mKeyIdExtractor = OpenPgpServiceKeyIdExtractor.getInstance(this, mApiPendingIntentFactory);
     }
 
     private Intent signImpl(Intent data, InputStream inputStream,
@@ -215,94 +221,49 @@ public class OpenPgpService extends Service {
 
     private Intent encryptAndSignImpl(Intent data, InputStream inputStream,
             OutputStream outputStream, boolean sign) {
+        PipelinedInputStream pipelinedInput = null;
+        PipelinedOutputStream pipelinedOutput = null;
         try {
-            PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder()
-                    .setVersionHeader(null);
-
-            if (sign) {
-                Intent signKeyIdIntent = getSignKeyMasterId(data);
-                // NOTE: Fallback to return account settings (Old API)
-                if (signKeyIdIntent.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR)
-                        == OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED) {
-                    return signKeyIdIntent;
-                }
-
-                long signKeyId = signKeyIdIntent.getLongExtra(OpenPgpApi.EXTRA_SIGN_KEY_ID, Constants.key.none);
-                if (signKeyId == Constants.key.none) {
-                    throw new Exception("No signing key given");
-                }
-                long signSubKeyId = mKeyRepository.getCachedPublicKeyRing(signKeyId).getSecretSignId();
-
-                pgpData.setSignatureMasterKeyId(signKeyId)
-                        .setSignatureSubKeyId(signSubKeyId)
-                        .setAdditionalEncryptId(signKeyId);
+            PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+            Intent setupResult = setUpEncryptData(data, sign, pgpData);
+            if (setupResult != null) {
+                return setupResult;
             }
-
-            KeyIdResult keyIdResult = mKeyIdExtractor.returnKeyIdsFromIntent(data, false,
-                    mApiPermissionHelper.getCurrentCallingPackage());
-
-            KeyIdResultStatus keyIdResultStatus = keyIdResult.getStatus();
-
-            boolean asciiArmor = data.getBooleanExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, true);
-            pgpData.setEnableAsciiArmorOutput(asciiArmor);
-
-            boolean enableCompression = data.getBooleanExtra(OpenPgpApi.EXTRA_ENABLE_COMPRESSION, true);
-            pgpData.setCompressionAlgorithm(enableCompression ? OpenKeychainCompressionAlgorithmTags.USE_DEFAULT :
-                    OpenKeychainCompressionAlgorithmTags.UNCOMPRESSED);
+            CryptoInputParcel inputParcel = getApiCryptoInputParcel(data);
 
             String originalFilename = data.getStringExtra(OpenPgpApi.EXTRA_ORIGINAL_FILENAME);
             if (originalFilename == null) {
                 originalFilename = "";
             }
 
-            if (keyIdResult.hasKeySelectionPendingIntent()) {
-                boolean isOpportunistic = data.getBooleanExtra(OpenPgpApi.EXTRA_OPPORTUNISTIC_ENCRYPTION, false);
-                if ((keyIdResultStatus == KeyIdResultStatus.MISSING || keyIdResultStatus == KeyIdResultStatus.NO_KEYS ||
-                        keyIdResultStatus == KeyIdResultStatus.NO_KEYS_ERROR) && isOpportunistic) {
-                    return createErrorResultIntent(OpenPgpError.OPPORTUNISTIC_MISSING_KEYS,
-                            "missing keys in opportunistic mode");
-                }
-
-                Intent result = new Intent();
-                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
-                result.putExtra(OpenPgpApi.RESULT_INTENT, keyIdResult.getKeySelectionPendingIntent());
-                return result;
-            }
-            pgpData.setEncryptionMasterKeyIds(keyIdResult.getKeyIds());
-            pgpData.setAllowedSigningKeyIds(getAllowedKeyIds());
-
-            CryptoInputParcel inputParcel = CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
-            if (inputParcel == null) {
-                inputParcel = CryptoInputParcel.createCryptoInputParcel(new Date());
-            }
-            // override passphrase in input parcel if given by API call
-            if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
-                inputParcel = inputParcel.withPassphrase(
-                        new Passphrase(data.getCharArrayExtra(OpenPgpApi.EXTRA_PASSPHRASE)), null);
-            }
-
             // TODO this is not correct!
             long inputLength = inputStream.available();
-            InputData inputData = new InputData(inputStream, inputLength, originalFilename);
+
+            // the client's pipes are read ahead and written behind, while this thread encrypts
+            pipelinedInput = new PipelinedInputStream(inputStream, "api-encrypt-reader");
+            if (outputStream != null) {
+                pipelinedOutput = new PipelinedOutputStream(outputStream, "api-encrypt-writer");
+            }
+            InputData inputData = new InputData(pipelinedInput, inputLength, originalFilename);
 
             // execute PGP operation!
             PgpSignEncryptOperation op = new PgpSignEncryptOperation(this, mKeyRepository, null);
-            PgpSignEncryptResult pgpResult = op.execute(pgpData.build(), inputParcel, inputData, outputStream);
+            PgpSignEncryptResult pgpResult;
+            boolean outputComplete;
+            try {
+                pgpResult = op.execute(pgpData.build(), inputParcel, inputData, pipelinedOutput);
+            } finally {
+                outputComplete = closePipelinedOutputStream(pipelinedOutput);
+            }
 
             if (pgpResult.isPending()) {
-                RequiredInputParcel requiredInput = pgpResult.getRequiredInputParcel();
-                PendingIntent pIntent = mApiPendingIntentFactory.requiredInputPi(data,
-                        requiredInput, pgpResult.mCryptoInputParcel);
-
-                // return PendingIntent to be executed by client
-                Intent result = new Intent();
-                result.putExtra(OpenPgpApi.RESULT_INTENT, pIntent);
-                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
-                return result;
-            } else if (pgpResult.success()) {
+                return createRequiredInputResult(data, pgpResult);
+            } else if (pgpResult.success() && outputComplete) {
                 Intent result = new Intent();
                 result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
                 return result;
+            } else if (pgpResult.success()) {
+                throw new Exception("Error writing output");
             } else {
                 LogEntryParcel errorMsg = pgpResult.getLog().getLast();
                 throw new Exception(getString(errorMsg.mType.getMsgId()));
@@ -310,6 +271,244 @@ public class OpenPgpService extends Service {
         } catch (Exception e) {
             Timber.d(e, "encryptAndSignImpl");
             return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, e.getMessage());
+        } finally {
+            closeQuietly(pipelinedInput);
+            closeQuietly(pipelinedOutput);
+        }
+    }
+
+    /**
+     * Encrypts a list of messages to the same recipients, with the same signing key. Permissions,
+     * recipients and the signing key are checked and unlocked once for the whole batch. All
+     * messages go through the same read ahead and write behind pipeline, so the next input is
+     * already read while the current message is encrypted.
+     * <p/>
+     * Each message gets its own result in {@link OpenPgpBatchApi#RESULT_BATCH_RESULTS}, in the
+     * format of a single ACTION_ENCRYPT result. If user interaction is required, the returned
+     * intent carries the results of all messages processed so far, and the batch must be sent
+     * again with the remaining descriptors after the interaction.
+     */
+    private Intent encryptAndSignBatchImpl(Intent data, boolean sign, Progressable progressable) {
+        ParcelFileDescriptor[] inputs = getParcelFileDescriptorArrayExtra(data, OpenPgpBatchApi.EXTRA_BATCH_INPUTS);
+        ParcelFileDescriptor[] outputs = getParcelFileDescriptorArrayExtra(data, OpenPgpBatchApi.EXTRA_BATCH_OUTPUTS);
+        // descriptors can't be part of pending intents, those are created from the remaining data
+        data.removeExtra(OpenPgpBatchApi.EXTRA_BATCH_INPUTS);
+        data.removeExtra(OpenPgpBatchApi.EXTRA_BATCH_OUTPUTS);
+
+        PipelinedInputStream inputStream = null;
+        PipelinedOutputStream outputStream = null;
+        try {
+            if (inputs == null || outputs == null || inputs.length == 0 || inputs.length != outputs.length) {
+                throw new Exception("Batch requires the same non-zero number of inputs and outputs");
+            }
+
+            PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+            Intent setupResult = setUpEncryptData(data, sign, pgpData);
+            if (setupResult != null) {
+                return setupResult;
+            }
+            PgpSignEncryptData signEncryptData = pgpData.build();
+            CryptoInputParcel inputParcel = getApiCryptoInputParcel(data);
+
+            // a single operation for all messages, it keeps the unlocked key and recipient keys
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(this, mKeyRepository, null);
+            ArrayList<Intent> itemResults = new ArrayList<>(inputs.length);
+
+            // one reader and one writer thread for the whole batch, each message is a segment
+            InputStream[] sources = new InputStream[inputs.length];
+            OutputStream[] sinks = new OutputStream[outputs.length];
+            for (int i = 0; i < inputs.length; i++) {
+                sources[i] = new ParcelFileDescriptor.AutoCloseInputStream(inputs[i]);
+                sinks[i] = new ParcelFileDescriptor.AutoCloseOutputStream(outputs[i]);
+            }
+            inputStream = new PipelinedInputStream(sources, "api-batch-reader");
+            outputStream = new PipelinedOutputStream(sinks, "api-batch-writer");
+
+            for (int i = 0; i < inputs.length; i++) {
+                // the operation closes its output, which only finishes this message's segment
+                OutputStream segmentStream = outputStream.segmentStream();
+
+                InputData inputData = new InputData(inputStream, InputData.UNKNOWN_FILESIZE, "");
+                PgpSignEncryptResult pgpResult;
+                boolean outputComplete;
+                try {
+                    pgpResult = op.execute(signEncryptData, inputParcel, inputData, segmentStream);
+                } finally {
+                    outputComplete = closePipelinedOutputStream(segmentStream);
+                }
+                // skips whatever the operation left unread
+                inputStream.nextSegment();
+
+                if (pgpResult.isPending()) {
+                    Intent result = createRequiredInputResult(data, pgpResult);
+                    result.putParcelableArrayListExtra(OpenPgpBatchApi.RESULT_BATCH_RESULTS, itemResults);
+                    return result;
+                } else if (pgpResult.success() && outputComplete) {
+                    Intent itemResult = new Intent();
+                    itemResult.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+                    itemResults.add(itemResult);
+                } else {
+                    String errorMsg = pgpResult.success() ? "Error writing output"
+                            : getString(pgpResult.getLog().getLast().mType.getMsgId());
+                    itemResults.add(createErrorResultIntent(OpenPgpError.GENERIC_ERROR, errorMsg));
+                }
+
+                if (progressable != null) {
+                    progressable.setProgress(i + 1, inputs.length);
+                }
+            }
+
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            result.putParcelableArrayListExtra(OpenPgpBatchApi.RESULT_BATCH_RESULTS, itemResults);
+            return result;
+        } catch (Exception e) {
+            Timber.d(e, "encryptAndSignBatchImpl");
+            return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, e.getMessage());
+        } finally {
+            closeQuietly(inputStream);
+            closeQuietly(outputStream);
+            // closing is a no-op for descriptors already closed with their streams
+            closeQuietly(inputs);
+            closeQuietly(outputs);
+        }
+    }
+
+    /**
+     * Sets up recipients and signing key for encryption, as requested by the client.
+     *
+     * @return null if the data is ready for encryption, or a result intent to return to the client
+     */
+    private Intent setUpEncryptData(Intent data, boolean sign, PgpSignEncryptData.Builder pgpData)
+            throws Exception {
+        pgpData.setVersionHeader(null);
+
+        if (sign) {
+            Intent signKeyIdIntent = getSignKeyMasterId(data);
+            // NOTE: Fallback to return account settings (Old API)
+            if (signKeyIdIntent.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR)
+                    == OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED) {
+                return signKeyIdIntent;
+            }
+
+            long signKeyId = signKeyIdIntent.getLongExtra(OpenPgpApi.EXTRA_SIGN_KEY_ID, Constants.key.none);
+            if (signKeyId == Constants.key.none) {
+                throw new Exception("No signing key given");
+            }
+            long signSubKeyId = mKeyRepository.getCachedPublicKeyRing(signKeyId).getSecretSignId();
+
+            pgpData.setSignatureMasterKeyId(signKeyId)
+                    .setSignatureSubKeyId(signSubKeyId)
+                    .setAdditionalEncryptId(signKeyId);
+        }
+
+        KeyIdResult keyIdResult = mKeyIdExtractor.returnKeyIdsFromIntent(data, false,
+                mApiPermissionHelper.getCurrentCallingPackage());
+
+        KeyIdResultStatus keyIdResultStatus = keyIdResult.getStatus();
+
+        boolean asciiArmor = data.getBooleanExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, true);
+        pgpData.setEnableAsciiArmorOutput(asciiArmor);
+
+        boolean enableCompression = data.getBooleanExtra(OpenPgpApi.EXTRA_ENABLE_COMPRESSION, true);
+        pgpData.setCompressionAlgorithm(enableCompression ? OpenKeychainCompressionAlgorithmTags.ADAPTIVE :
+                OpenKeychainCompressionAlgorithmTags.UNCOMPRESSED);
+
+        if (keyIdResult.hasKeySelectionPendingIntent()) {
+            boolean isOpportunistic = data.getBooleanExtra(OpenPgpApi.EXTRA_OPPORTUNISTIC_ENCRYPTION, false);
+            if ((keyIdResultStatus == KeyIdResultStatus.MISSING || keyIdResultStatus == KeyIdResultStatus.NO_KEYS ||
+                    keyIdResultStatus == KeyIdResultStatus.NO_KEYS_ERROR) && isOpportunistic) {
+                return createErrorResultIntent(OpenPgpError.OPPORTUNISTIC_MISSING_KEYS,
+                        "missing keys in opportunistic mode");
+            }
+
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
+            result.putExtra(OpenPgpApi.RESULT_INTENT, keyIdResult.getKeySelectionPendingIntent());
+            return result;
+        }
+        pgpData.setEncryptionMasterKeyIds(keyIdResult.getKeyIds());
+        pgpData.setAllowedSigningKeyIds(getAllowedKeyIds());
+
+        return null;
+    }
+
+    private CryptoInputParcel getApiCryptoInputParcel(Intent data) {
+        CryptoInputParcel inputParcel = CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
+        if (inputParcel == null) {
+            inputParcel = CryptoInputParcel.createCryptoInputParcel(new Date());
+        }
+        // override passphrase in input parcel if given by API call
+        if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
+            inputParcel = inputParcel.withPassphrase(
+                    new Passphrase(data.getCharArrayExtra(OpenPgpApi.EXTRA_PASSPHRASE)), null);
+        }
+        return inputParcel;
+    }
+
+    private Intent createRequiredInputResult(Intent data, PgpSignEncryptResult pgpResult) {
+        RequiredInputParcel requiredInput = pgpResult.getRequiredInputParcel();
+        PendingIntent pIntent = mApiPendingIntentFactory.requiredInputPi(data,
+                requiredInput, pgpResult.mCryptoInputParcel);
+
+        // return PendingIntent to be executed by client
+        Intent result = new Intent();
+        result.putExtra(OpenPgpApi.RESULT_INTENT, pIntent);
+        result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
+        return result;
+    }
+
+    @Nullable
+    private static ParcelFileDescriptor[] getParcelFileDescriptorArrayExtra(Intent data, String name) {
+        Parcelable[] parcelables = data.getParcelableArrayExtra(name);
+        if (parcelables == null) {
+            return null;
+        }
+        ParcelFileDescriptor[] descriptors = new ParcelFileDescriptor[parcelables.length];
+        for (int i = 0; i < parcelables.length; i++) {
+            if (!(parcelables[i] instanceof ParcelFileDescriptor)) {
+                return null;
+            }
+            descriptors[i] = (ParcelFileDescriptor) parcelables[i];
+        }
+        return descriptors;
+    }
+
+    /** @return true if all data reached the client */
+    private static boolean closePipelinedOutputStream(@Nullable OutputStream outputStream) {
+        if (outputStream == null) {
+            return true;
+        }
+        try {
+            outputStream.close();
+            return true;
+        } catch (IOException e) {
+            Timber.e(e, "IOException when closing pipelined output");
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nvm
+        }
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor[] descriptors) {
+        if (descriptors == null) {
+            return;
+        }
+        for (ParcelFileDescriptor descriptor : descriptors) {
+            try {
+                descriptor.close();
+            } catch (IOException e) {
+                // nvm
+            }
         }
     }
 
@@ -368,6 +567,8 @@ public class OpenPgpService extends Service {
 
     private Intent decryptAndVerifyImpl(Intent data, InputStream inputStream, OutputStream outputStream,
             boolean decryptMetadataOnly, Progressable progressable) {
+        PipelinedInputStream pipelinedInput = null;
+        PipelinedOutputStream pipelinedOutput = null;
         try {
             // output is optional, e.g., for verifying detached signatures
             if (decryptMetadataOnly) {
@@ -400,8 +601,16 @@ public class OpenPgpService extends Service {
 
             PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(this, mKeyRepository, progressable);
 
+            // the client's pipes are read ahead and written behind, while this thread decrypts
+            if (inputStream != null) {
+                pipelinedInput = new PipelinedInputStream(inputStream, "api-decrypt-reader");
+            }
+            if (outputStream != null) {
+                pipelinedOutput = new PipelinedOutputStream(outputStream, "api-decrypt-writer");
+            }
+
             long inputLength = data.getLongExtra(OpenPgpApi.EXTRA_DATA_LENGTH, InputData.UNKNOWN_FILESIZE);
-            InputData inputData = new InputData(inputStream, inputLength);
+            InputData inputData = new InputData(pipelinedInput, inputLength);
 
             // allow only private keys associated with accounts of this app
             // no support for symmetric encryption
@@ -413,7 +622,13 @@ public class OpenPgpService extends Service {
                     .setSenderAddress(senderAddress)
                     .build();
 
-            DecryptVerifyResult pgpResult = op.execute(input, cryptoInput, inputData, outputStream);
+            DecryptVerifyResult pgpResult;
+            boolean outputComplete;
+            try {
+                pgpResult = op.execute(input, cryptoInput, inputData, pipelinedOutput);
+            } finally {
+                outputComplete = closePipelinedOutputStream(pipelinedOutput);
+            }
 
             if (pgpResult.isPending()) {
                 // prepare and return PendingIntent to be executed by client
@@ -426,6 +641,8 @@ public class OpenPgpService extends Service {
                 result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
                 return result;
 
+            } else if (pgpResult.success() && !outputComplete) {
+                return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, "Error writing output");
             } else if (pgpResult.success()) {
                 Intent result = new Intent();
 
@@ -457,6 +674,9 @@ public class OpenPgpService extends Service {
         } catch (Exception e) {
             Timber.e(e, "decryptAndVerifyImpl");
             return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, e.getMessage());
+        } finally {
+            closeQuietly(pipelinedInput);
+            closeQuietly(pipelinedOutput);
         }
     }
 
@@ -864,27 +1084,29 @@ public class OpenPgpService extends Service {
                     mApiPermissionHelper.getCurrentCallingPackage());
             AutocryptInteractor autocryptInteractor = AutocryptInteractor.getInstance(getBaseContext(), autocryptPeerDao);
 
+            String autocryptPeerId = null;
+            AutocryptPeerUpdate autocryptPeerUpdate = null;
             if (data.hasExtra(OpenPgpApi.EXTRA_AUTOCRYPT_PEER_ID) &&
                     data.hasExtra(OpenPgpApi.EXTRA_AUTOCRYPT_PEER_UPDATE)) {
-                String autocryptPeerId = data.getStringExtra(OpenPgpApi.EXTRA_AUTOCRYPT_PEER_ID);
-                AutocryptPeerUpdate autocryptPeerUpdate = data.getParcelableExtra(OpenPgpApi.EXTRA_AUTOCRYPT_PEER_UPDATE);
-
-                if (autocryptPeerUpdate != null) {
-                    autocryptInteractor.updateAutocryptPeerState(autocryptPeerId, autocryptPeerUpdate);
-                }
+                autocryptPeerId = data.getStringExtra(OpenPgpApi.EXTRA_AUTOCRYPT_PEER_ID);
+                autocryptPeerUpdate = data.getParcelableExtra(OpenPgpApi.EXTRA_AUTOCRYPT_PEER_UPDATE);
             }
 
+            HashMap<String, AutocryptPeerUpdate> gossipUpdates = new HashMap<>();
             if (data.hasExtra(OpenPgpApi.EXTRA_AUTOCRYPT_PEER_GOSSIP_UPDATES)) {
                 Bundle updates = data.getBundleExtra(OpenPgpApi.EXTRA_AUTOCRYPT_PEER_GOSSIP_UPDATES);
                 for (String address : updates.keySet()) {
-                    Timber.d(Constants.TAG, "Updating gossip state: " + address);
                     AutocryptPeerUpdate update = updates.getParcelable(address);
                     if (update != null) {
-                        autocryptInteractor.updateAutocryptPeerGossipState(address, update);
+                        gossipUpdates.put(address, update);
                     }
                 }
             }
 
+            if (autocryptPeerUpdate != null || !gossipUpdates.isEmpty()) {
+                autocryptInteractor.updateAutocryptPeerStates(autocryptPeerId, autocryptPeerUpdate, gossipUpdates);
+            }
+
             Intent result = new Intent();
             result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
             return result;
@@ -1030,106 +1252,150 @@ public class OpenPgpService extends Service {
             return errorResult;
         }
 
-        Progressable progressable = null;
+        MessengerProgressable progressable = null;
         if (data.hasExtra(OpenPgpApi.EXTRA_PROGRESS_MESSENGER)) {
             Messenger messenger = data.getParcelableExtra(OpenPgpApi.EXTRA_PROGRESS_MESSENGER);
             progressable = createMessengerProgressable(messenger);
         }
 
         String action = data.getAction();
-        switch (action) {
-            case OpenPgpApi.ACTION_CHECK_PERMISSION: {
-                return checkPermissionImpl(data);
-            }
-            case OpenPgpApi.ACTION_CLEARTEXT_SIGN: {
-                return signImpl(data, inputStream, outputStream, true);
-            }
-            case OpenPgpApi.ACTION_SIGN: {
-                // DEPRECATED: same as ACTION_CLEARTEXT_SIGN
-                Timber.w(
-                        "You are using a deprecated API call, please use ACTION_CLEARTEXT_SIGN instead of ACTION_SIGN!");
-                return signImpl(data, inputStream, outputStream, true);
-            }
-            case OpenPgpApi.ACTION_DETACHED_SIGN: {
-                return signImpl(data, inputStream, outputStream, false);
-            }
-            case OpenPgpApi.ACTION_QUERY_AUTOCRYPT_STATUS: {
-                return autocryptQueryImpl(data);
-            }
-            case OpenPgpApi.ACTION_ENCRYPT:
-            case OpenPgpApi.ACTION_SIGN_AND_ENCRYPT: {
-                boolean enableSign = action.equals(OpenPgpApi.ACTION_SIGN_AND_ENCRYPT);
-                return encryptAndSignImpl(data, inputStream, outputStream, enableSign);
-            }
-            case OpenPgpApi.ACTION_DECRYPT_VERIFY: {
-                return decryptAndVerifyImpl(data, inputStream, outputStream, false, progressable);
-            }
-            case OpenPgpApi.ACTION_DECRYPT_METADATA: {
-                return decryptAndVerifyImpl(data, inputStream, outputStream, true, null);
-            }
-            case OpenPgpApi.ACTION_GET_SIGN_KEY_ID: {
-                return getSignKeyIdImpl(data);
-            }
-            case OpenPgpApi.ACTION_GET_SIGN_KEY_ID_LEGACY: {
-                return getSignKeyIdImplLegacy(data);
-            }
-            case OpenPgpApi.ACTION_GET_KEY_IDS: {
-                return getKeyIdsImpl(data);
-            }
-            case OpenPgpApi.ACTION_GET_KEY: {
-                return getKeyImpl(data, outputStream);
-            }
-            case OpenPgpApi.ACTION_BACKUP: {
-                return backupImpl(data, outputStream);
-            }
-            case OpenPgpApi.ACTION_AUTOCRYPT_KEY_TRANSFER: {
-                return autocryptKeyTransferImpl(data, outputStream);
-            }
-            case OpenPgpApi.ACTION_UPDATE_AUTOCRYPT_PEER: {
-                return updateAutocryptPeerImpl(data);
+        try {
+            switch (action) {
+                case OpenPgpApi.ACTION_CHECK_PERMISSION: {
+                    return checkPermissionImpl(data);
+                }
+                case OpenPgpApi.ACTION_CLEARTEXT_SIGN: {
+                    return signImpl(data, inputStream, outputStream, true);
+                }
+                case OpenPgpApi.ACTION_SIGN: {
+                    // DEPRECATED: same as ACTION_CLEARTEXT_SIGN
+                    Timber.w(
+                            "You are using a deprecated API call, please use ACTION_CLEARTEXT_SIGN instead of ACTION_SIGN!");
+                    return signImpl(data, inputStream, outputStream, true);
+                }
+                case OpenPgpApi.ACTION_DETACHED_SIGN: {
+                    return signImpl(data, inputStream, outputStream, false);
+                }
+                case OpenPgpApi.ACTION_QUERY_AUTOCRYPT_STATUS: {
+                    return autocryptQueryImpl(data);
+                }
+                case OpenPgpApi.ACTION_ENCRYPT:
+                case OpenPgpApi.ACTION_SIGN_AND_ENCRYPT: {
+                    boolean enableSign = action.equals(OpenPgpApi.ACTION_SIGN_AND_ENCRYPT);
+                    return encryptAndSignImpl(data, inputStream, outputStream, enableSign);
+                }
+                case OpenPgpBatchApi.ACTION_ENCRYPT_BATCH:
+                case OpenPgpBatchApi.ACTION_SIGN_AND_ENCRYPT_BATCH: {
+                    boolean enableSign = action.equals(OpenPgpBatchApi.ACTION_SIGN_AND_ENCRYPT_BATCH);
+                    return encryptAndSignBatchImpl(data, enableSign, progressable);
+                }
+                case OpenPgpApi.ACTION_DECRYPT_VERIFY: {
+                    return decryptAndVerifyImpl(data, inputStream, outputStream, false, progressable);
+                }
+                case OpenPgpApi.ACTION_DECRYPT_METADATA: {
+                    return decryptAndVerifyImpl(data, inputStream, outputStream, true, null);
+                }
+                case OpenPgpApi.ACTION_GET_SIGN_KEY_ID: {
+                    return getSignKeyIdImpl(data);
+                }
+                case OpenPgpApi.ACTION_GET_SIGN_KEY_ID_LEGACY: {
+                    return getSignKeyIdImplLegacy(data);
+                }
+                case OpenPgpApi.ACTION_GET_KEY_IDS: {
+                    return getKeyIdsImpl(data);
+                }
+                case OpenPgpApi.ACTION_GET_KEY: {
+                    return getKeyImpl(data, outputStream);
+                }
+                case OpenPgpApi.ACTION_BACKUP: {
+                    return backupImpl(data, outputStream);
+                }
+                case OpenPgpApi.ACTION_AUTOCRYPT_KEY_TRANSFER: {
+                    return autocryptKeyTransferImpl(data, outputStream);
+                }
+                case OpenPgpApi.ACTION_UPDATE_AUTOCRYPT_PEER: {
+                    return updateAutocryptPeerImpl(data);
+                }
+                default: {
+                    return null;
+                }
             }
-            default: {
-                return null;
+        } finally {
+            if (progressable != null) {
+                // no progress must reach the client after the result
+                progressable.cancelPending();
             }
         }
 
     }
 
     @NonNull
-    private static Progressable createMessengerProgressable(final Messenger messenger) {
-        return new Progressable() {
-            boolean errorState = false;
-            @Override
-            public void setProgress(String message, int current, int total) {
-                setProgress(current, total);
-            }
+    private static MessengerProgressable createMessengerProgressable(Messenger messenger) {
+        return new MessengerProgressable(messenger);
+    }
 
-            @Override
-            public void setProgress(int resourceId, int current, int total) {
-                setProgress(current, total);
-            }
+    private static class MessengerProgressable implements Progressable {
+        private final Messenger mMessenger;
+        // also read by trailing updates, which come from the main thread
+        private volatile boolean mErrorState = false;
+        // every update is an IPC call to the client, don't send more than it can display
+        private final ProgressCoalescer mCoalescer = new ProgressCoalescer(
+                ProgressCoalescer.DEFAULT_FRAMES_PER_SECOND,
+                new ProgressCoalescer.ProgressReceiver() {
+                    @Override
+                    public void onProgress(Object message, int progress, int max) {
+                        sendProgress(progress, max);
+                    }
+                });
 
-            @Override
-            public void setProgress(int current, int total) {
-                if (errorState) {
-                    return;
-                }
-                Message m = Message.obtain();
-                m.arg1 = current;
-                m.arg2 = total;
-                try {
-                    messenger.send(m);
-                } catch (RemoteException e) {
-                    e.printStackTrace();
-                    errorState = true;
-                }
+        MessengerProgressable(Messenger messenger) {
+            mMessenger = messenger;
+        }
+
+        @Override
+        public void setProgress(String message, int current, int total) {
+            setProgress(current, total);
+        }
+
+        @Override
+        public void setProgress(int resourceId, int current, int total) {
+            setProgress(current, total);
+        }
+
+        @Override
+        public void setProgress(int current, int total) {
+            if (mErrorState || !mCoalescer.shouldReport(null, current, total)) {
+                return;
             }
+            sendProgress(current, total);
+        }
 
-            @Override
-            public void setPreventCancel() {
+        /**
+         * Drops a trailing update that is still scheduled, to be called once the operation is done.
+         */
+        void cancelPending() {
+            mCoalescer.cancelPending();
+        }
 
+        private void sendProgress(int current, int total) {
+            if (mErrorState) {
+                return;
             }
-        };
+            Message m = Message.obtain();
+            m.arg1 = current;
+            m.arg2 = total;
+            try {
+                mMessenger.send(m);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+                mErrorState = true;
+            }
+        }
+
+        @Override
+        public void setPreventCancel() {
+
+        }
     }
 
 }
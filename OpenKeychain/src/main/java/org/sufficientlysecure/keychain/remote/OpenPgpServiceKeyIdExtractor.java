@@ -24,6 +24,7 @@ import java.util.HashSet;
 
 import android.app.PendingIntent;
 import android.content.ContentResolver;
+import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
@@ -59,16 +60,25 @@ class OpenPgpServiceKeyIdExtractor {
 
     private final ApiPendingIntentFactory apiPendingIntentFactory;
     private final ContentResolver contentResolver;
+    private final RecipientStatusCache recipientStatusCache;
 
 
-    static OpenPgpServiceKeyIdExtractor getInstance(ContentResolver contentResolver, ApiPendingIntentFactory apiPendingIntentFactory) {
-        return new OpenPgpServiceKeyIdExtractor(contentResolver, apiPendingIntentFactory);
+    static OpenPgpServiceKeyIdExtractor getInstance(Context context, ApiPendingIntentFactory apiPendingIntentFactory) {
+        return new OpenPgpServiceKeyIdExtractor(context.getContentResolver(), apiPendingIntentFactory,
+                RecipientStatusCache.getInstance(context));
+    }
+
+    @VisibleForTesting
+    static OpenPgpServiceKeyIdExtractor getInstance(ContentResolver contentResolver,
+            ApiPendingIntentFactory apiPendingIntentFactory, RecipientStatusCache recipientStatusCache) {
+        return new OpenPgpServiceKeyIdExtractor(contentResolver, apiPendingIntentFactory, recipientStatusCache);
     }
 
     private OpenPgpServiceKeyIdExtractor(ContentResolver contentResolver,
-            ApiPendingIntentFactory apiPendingIntentFactory) {
+            ApiPendingIntentFactory apiPendingIntentFactory, RecipientStatusCache recipientStatusCache) {
         this.contentResolver = contentResolver;
         this.apiPendingIntentFactory = apiPendingIntentFactory;
+        this.recipientStatusCache = recipientStatusCache;
     }
 
 
@@ -182,12 +192,29 @@ class OpenPgpServiceKeyIdExtractor {
      * It returns a map with one UserIdStatus per queried address. If multiple key candidates exist,
      * the one with the highest verification status is selected. If two candidates with the same
      * verification status exist, the first one is returned and marked as having a duplicate.
+     * Addresses found in the RecipientStatusCache are not queried again.
      */
     @NonNull
     private HashMap<String, AddressQueryResult> getStatusMapForQueriedAddresses(String[] encryptionUserIds, String callingPackageName) {
         HashMap<String,AddressQueryResult> keyRows = new HashMap<>();
+
+        int cacheGeneration = recipientStatusCache.getGeneration();
+        ArrayList<String> uncachedUserIds = new ArrayList<>();
+        for (String userId : encryptionUserIds) {
+            AddressQueryResult cachedStatus = recipientStatusCache.get(callingPackageName, userId);
+            if (cachedStatus != null) {
+                keyRows.put(userId, cachedStatus);
+            } else {
+                uncachedUserIds.add(userId);
+            }
+        }
+        if (uncachedUserIds.isEmpty()) {
+            return keyRows;
+        }
+
         Uri queryUri = AutocryptStatus.CONTENT_URI.buildUpon().appendPath(callingPackageName).build();
-        Cursor cursor = contentResolver.query(queryUri, PROJECTION_MAIL_STATUS, null, encryptionUserIds, null);
+        Cursor cursor = contentResolver.query(queryUri, PROJECTION_MAIL_STATUS, null,
+                uncachedUserIds.toArray(new String[uncachedUserIds.size()]), null);
         if (cursor == null) {
             throw new IllegalStateException("Internal error, received null cursor!");
         }
@@ -210,6 +237,7 @@ class OpenPgpServiceKeyIdExtractor {
                                 autocryptKeyStatus, autocryptPeerStatus);
 
                 keyRows.put(queryAddress, status);
+                recipientStatusCache.put(cacheGeneration, callingPackageName, queryAddress, status);
             }
         } finally {
             cursor.close();
@@ -217,10 +245,10 @@ class OpenPgpServiceKeyIdExtractor {
         return keyRows;
     }
 
-    private static class AddressQueryResult {
+    static class AddressQueryResult {
         private final Long uidMasterKeyId;
         private final int uidKeyStatus;
-        private boolean uidHasMultipleCandidates;
+        private final boolean uidHasMultipleCandidates;
         private final Long autocryptMasterKeyId;
         private final int autocryptKeyStatus;
         private final int autocryptState;
@@ -35,6 +35,7 @@ public class PackageUninstallReceiver extends BroadcastReceiver {
             }
             String packageName = uri.getEncodedSchemeSpecificPart();
             Uri appUri = KeychainContract.ApiApps.buildByPackageNameUri(packageName);
+            // this also invalidates cached permission decisions, see ApiPermissionCache
             context.getContentResolver().delete(appUri, null, null);
         }
     }
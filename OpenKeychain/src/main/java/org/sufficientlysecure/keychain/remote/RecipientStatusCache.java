@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.remote.OpenPgpServiceKeyIdExtractor.AddressQueryResult;
+import org.sufficientlysecure.keychain.util.LruCache;
+import timber.log.Timber;
+
+
+/**
+ * Process-wide cache of recipient lookups done by {@link OpenPgpServiceKeyIdExtractor}, keyed by
+ * (calling package, address).
+ * <p/>
+ * Resolving recipients queries the autocrypt status of each address, which is an expensive
+ * join over temporary tables. Mail clients tend to encrypt to the same few recipients over and
+ * over again, so we keep the results until any key or autocrypt peer changes, which are all
+ * notified below {@link KeyRings#CONTENT_URI} by DatabaseNotifyManager. Key status and autocrypt
+ * recommendations also depend on the current time, which is why entries expire after
+ * {@link #MAX_AGE_MILLIS} as well.
+ * <p/>
+ * Addresses are not case-folded here, since autocrypt peers are matched exactly.
+ */
+class RecipientStatusCache {
+    private static final int MAX_ENTRIES = 256;
+    static final long MAX_AGE_MILLIS = 60 * 1000;
+
+    private static RecipientStatusCache sInstance;
+
+    private final Context mContext;
+    private final LruCache<String, CachedStatus> mCache = new LruCache<>(MAX_ENTRIES);
+    // incremented on invalidation, so results queried before are not put into the cache
+    private int mGeneration;
+
+    private long mHitCount;
+    private long mMissCount;
+
+    static synchronized RecipientStatusCache getInstance(Context context) {
+        Context applicationContext = context.getApplicationContext();
+        if (applicationContext == null) {
+            applicationContext = context;
+        }
+        // a new application means our observer is gone, this only happens in tests
+        if (sInstance == null || sInstance.mContext != applicationContext) {
+            sInstance = new RecipientStatusCache(applicationContext);
+            sInstance.registerForInvalidation();
+        }
+        return sInstance;
+    }
+
+    /** Creates a cache which is not invalidated automatically, for tests. */
+    @VisibleForTesting
+    RecipientStatusCache() {
+        mContext = null;
+    }
+
+    private RecipientStatusCache(Context context) {
+        mContext = context;
+    }
+
+    private void registerForInvalidation() {
+        mContext.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true, new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidate();
+            }
+        });
+    }
+
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    @Nullable
+    synchronized AddressQueryResult get(String packageName, String address) {
+        String key = createKey(packageName, address);
+        CachedStatus cached = mCache.get(key);
+        if (cached != null && isExpired(cached, SystemClock.elapsedRealtime())) {
+            mCache.remove(key);
+            cached = null;
+        }
+
+        if (cached == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return cached.mResult;
+    }
+
+    synchronized void put(int generation, String packageName, String address, AddressQueryResult result) {
+        if (generation != mGeneration) {
+            return;
+        }
+        mCache.put(createKey(packageName, address), new CachedStatus(SystemClock.elapsedRealtime(), result));
+    }
+
+    synchronized void invalidate() {
+        Timber.d("Invalidating recipient status cache (hit rate " + getHitRate() + ")");
+        mGeneration++;
+        mCache.clear();
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return fraction of lookups answered from the cache, or 0 if there were no lookups yet
+     */
+    synchronized float getHitRate() {
+        long lookups = mHitCount + mMissCount;
+        return lookups == 0 ? 0f : (float) mHitCount / lookups;
+    }
+
+    synchronized int size() {
+        return mCache.size();
+    }
+
+    private static boolean isExpired(CachedStatus cached, long now) {
+        return now - cached.mTimestamp > MAX_AGE_MILLIS;
+    }
+
+    private static String createKey(String packageName, String address) {
+        return packageName + "\n" + address;
+    }
+
+    private static class CachedStatus {
+        final long mTimestamp;
+        final AddressQueryResult mResult;
+
+        CachedStatus(long timestamp, AddressQueryResult result) {
+            mTimestamp = timestamp;
+            mResult = result;
+        }
+    }
+
+}
@@ -48,7 +48,7 @@ public class RemoteBackupActivity extends BackupActivity {
             mPendingIntentData = getIntent().getParcelableExtra(EXTRA_DATA);
 
             // NOTE: return backup!
-            Fragment frag = BackupCodeFragment.newInstance(masterKeyIds, exportSecret, false);
+            Fragment frag = BackupCodeFragment.newInstance(masterKeyIds, exportSecret, false, false);
 
             FragmentManager fragMan = getSupportFragmentManager();
             fragMan.beginTransaction()
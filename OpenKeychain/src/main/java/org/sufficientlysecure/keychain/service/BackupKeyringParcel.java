@@ -40,22 +40,33 @@ public abstract class BackupKeyringParcel implements Parcelable {
     public abstract Uri getOutputUri();
     @Nullable
     public abstract List<String> getExtraHeaders();
+    public abstract boolean getIsIncremental();
 
     public static BackupKeyringParcel create(long[] masterKeyIds, boolean exportSecret,
             boolean isEncrypted, boolean enableAsciiArmorOutput, Uri outputUri) {
         return new AutoValue_BackupKeyringParcel(
-                masterKeyIds, exportSecret, true, isEncrypted, enableAsciiArmorOutput, outputUri, null);
+                masterKeyIds, exportSecret, true, isEncrypted, enableAsciiArmorOutput, outputUri, null, false);
     }
 
     public static BackupKeyringParcel create(long[] masterKeyIds, boolean exportSecret,
             boolean isEncrypted, boolean enableAsciiArmorOutput, Uri outputUri, List<String> extraHeaders) {
         return new AutoValue_BackupKeyringParcel(
-                masterKeyIds, exportSecret, true, isEncrypted, enableAsciiArmorOutput, outputUri, extraHeaders);
+                masterKeyIds, exportSecret, true, isEncrypted, enableAsciiArmorOutput, outputUri, extraHeaders, false);
+    }
+
+    /**
+     * Creates a backup of all keys, which only contains the keys that changed since the previous
+     * incremental backup. If there is none, all keys are included and a new chain is started.
+     */
+    public static BackupKeyringParcel createIncremental(boolean exportSecret, boolean isEncrypted,
+            boolean enableAsciiArmorOutput, Uri outputUri) {
+        return new AutoValue_BackupKeyringParcel(
+                null, exportSecret, true, isEncrypted, enableAsciiArmorOutput, outputUri, null, true);
     }
 
     public static BackupKeyringParcel createExportAutocryptSetupMessage(long[] masterKeyIds,
             List<String> extraHeaders) {
         return new AutoValue_BackupKeyringParcel(
-                masterKeyIds, true, false, true, true, null, extraHeaders);
+                masterKeyIds, true, false, true, true, null, extraHeaders, false);
     }
 }
\ No newline at end of file
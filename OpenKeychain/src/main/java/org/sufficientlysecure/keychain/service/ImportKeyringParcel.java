@@ -21,6 +21,7 @@ package org.sufficientlysecure.keychain.service;
 import java.util.Collections;
 import java.util.List;
 
+import android.net.Uri;
 import android.os.Parcelable;
 import android.support.annotation.Nullable;
 
@@ -35,31 +36,37 @@ public abstract class ImportKeyringParcel implements Parcelable {
     @Nullable // must be set if keys are to be imported from a keyserver
     public abstract HkpKeyserverAddress getKeyserver();
     public abstract boolean isSkipSave();
+    @Nullable // if set, keys are restored from these decrypted archives of an incremental backup chain
+    public abstract List<Uri> getBackupChainUris();
 
     public static ImportKeyringParcel createImportKeyringParcel(List<ParcelableKeyRing> keyList,
             HkpKeyserverAddress keyserver) {
-        return new AutoValue_ImportKeyringParcel(keyList, keyserver, false);
+        return new AutoValue_ImportKeyringParcel(keyList, keyserver, false, null);
     }
 
     public static ImportKeyringParcel createWithSkipSave(List<ParcelableKeyRing> keyList,
             HkpKeyserverAddress keyserver) {
-        return new AutoValue_ImportKeyringParcel(keyList, keyserver, true);
+        return new AutoValue_ImportKeyringParcel(keyList, keyserver, true, null);
     }
 
     public static ImportKeyringParcel createImportKeyringParcel(ParcelableKeyRing key) {
-        return new AutoValue_ImportKeyringParcel(Collections.singletonList(key), null, false);
+        return new AutoValue_ImportKeyringParcel(Collections.singletonList(key), null, false, null);
     }
 
     public static ImportKeyringParcel createFromBytes(byte[] keyData) {
         ParcelableKeyRing keyRing = ParcelableKeyRing.createFromEncodedBytes(keyData);
-        return new AutoValue_ImportKeyringParcel(Collections.singletonList(keyRing), null, false);
+        return new AutoValue_ImportKeyringParcel(Collections.singletonList(keyRing), null, false, null);
     }
 
     public static ImportKeyringParcel createFromFileCacheWithSkipSave() {
-        return new AutoValue_ImportKeyringParcel(null, null, true);
+        return new AutoValue_ImportKeyringParcel(null, null, true, null);
     }
 
     public static ImportKeyringParcel createFromFileCache() {
-        return new AutoValue_ImportKeyringParcel(null, null, false);
+        return new AutoValue_ImportKeyringParcel(null, null, false, null);
     }
-}
\ No newline at end of file
+
+    public static ImportKeyringParcel createFromBackupChain(List<Uri> archiveUris) {
+        return new AutoValue_ImportKeyringParcel(null, null, false, archiveUris);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+
+import org.sufficientlysecure.keychain.pgp.PregeneratedKeyPool;
+import timber.log.Timber;
+
+
+/**
+ * Refills the {@link PregeneratedKeyPool} while the device is idle and charging, so the key
+ * pairs for a new key are ready when the user creates one.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class KeyPairPoolJobService extends JobService {
+    private static final int JOB_ID = 0x6b70;
+    private static final long REFILL_INTERVAL_MS = TimeUnit.HOURS.toMillis(12);
+
+    private AtomicBoolean mStopped;
+
+    /**
+     * Schedules the periodic refill of the key pool, unless it is scheduled already or the pool
+     * isn't available on this device.
+     */
+    public static void scheduleRefill(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) {
+            return;
+        }
+        for (JobInfo job : jobScheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, KeyPairPoolJobService.class))
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setPeriodic(REFILL_INTERVAL_MS)
+                .build();
+        jobScheduler.schedule(job);
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final PregeneratedKeyPool keyPool = PregeneratedKeyPool.getInstance(this);
+        if (keyPool == null) {
+            return false;
+        }
+
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        mStopped = stopped;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                keyPool.refill(stopped);
+                if (!stopped.get()) {
+                    jobFinished(params, false);
+                }
+            }
+        }, "key-pool-refill").start();
+
+        Timber.d("refilling key pool");
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // the device is no longer idle or charging, the key pair in progress is thrown away
+        if (mStopped != null) {
+            mStopped.set(true);
+        }
+        return true;
+    }
+}
@@ -49,8 +49,10 @@ import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.OperationExecutor.OperationTask;
 import org.sufficientlysecure.keychain.service.ServiceProgressHandler.MessageStatus;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.ProgressCoalescer;
 import timber.log.Timber;
 
 
@@ -69,11 +71,28 @@ public class KeychainService extends Service implements Progressable {
 
     public static final String ACTION_CANCEL = "action_cancel";
 
-    // this attribute can possibly merged with the one above? not sure...
-    private AtomicBoolean mActionCanceled = new AtomicBoolean(false);
+    private final OperationExecutor mOperationExecutor = new OperationExecutor();
 
     ThreadLocal<Messenger> mMessenger = new ThreadLocal<>();
 
+    // progress is coalesced per operation, i.e. per thread
+    private final ThreadLocal<ProgressCoalescer> mProgressCoalescer = new ThreadLocal<ProgressCoalescer>() {
+        @Override
+        protected ProgressCoalescer initialValue() {
+            // trailing updates are delivered on the main thread, where mMessenger isn't set
+            final Messenger messenger = mMessenger.get();
+            return new ProgressCoalescer(ProgressCoalescer.DEFAULT_FRAMES_PER_SECOND,
+                    new ProgressCoalescer.ProgressReceiver() {
+                        @Override
+                        public void onProgress(Object message, int progress, int max) {
+                            String messageString = message instanceof Integer
+                                    ? getString((Integer) message) : (String) message;
+                            sendProgressToHandler(messenger, messageString, progress, max);
+                        }
+                    });
+        }
+    };
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -86,23 +105,27 @@ public class KeychainService extends Service implements Progressable {
     public int onStartCommand(final Intent intent, int flags, int startId) {
 
         if (intent.getAction() != null && intent.getAction().equals(ACTION_CANCEL)) {
-            mActionCanceled.set(true);
+            Messenger messenger = intent.getParcelableExtra(EXTRA_MESSENGER);
+            if (messenger == null) {
+                Timber.e("Cancel request without messenger, ignoring!");
+                return START_NOT_STICKY;
+            }
+            mOperationExecutor.cancel(messenger);
             return START_NOT_STICKY;
         }
 
-        Runnable actionRunnable = new Runnable() {
-            @Override
-            public void run() {
-                // We have not been cancelled! (yet)
-                mActionCanceled.set(false);
+        final Bundle extras = intent.getExtras();
+        final Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
+        // identifies the operation for cancel requests, which carry the same messenger
+        final Messenger messenger = extras.getParcelable(EXTRA_MESSENGER);
 
-                Bundle extras = intent.getExtras();
+        OperationTask operationTask = new OperationTask() {
+            @Override
+            public void run(AtomicBoolean cancellationToken) {
 
                 // Set messenger for communication (for this particular thread)
-                mMessenger.set(extras.getParcelable(EXTRA_MESSENGER));
+                mMessenger.set(messenger);
 
-                // Input
-                Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
                 CryptoInputParcel cryptoInput = extras.getParcelable(EXTRA_CRYPTO_INPUT);
 
                 // Operation
@@ -113,27 +136,27 @@ public class KeychainService extends Service implements Progressable {
                 KeyWritableRepository databaseInteractor =
                         KeyWritableRepository.create(outerThis);
                 if (inputParcel instanceof SignEncryptParcel) {
-                    op = new SignEncryptOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new SignEncryptOperation(outerThis, databaseInteractor, outerThis, cancellationToken);
                 } else if (inputParcel instanceof PgpDecryptVerifyInputParcel) {
                     op = new PgpDecryptVerifyOperation(outerThis, databaseInteractor, outerThis);
                 } else if (inputParcel instanceof SaveKeyringParcel) {
-                    op = new EditKeyOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new EditKeyOperation(outerThis, databaseInteractor, outerThis, cancellationToken);
                 } else if (inputParcel instanceof  ChangeUnlockParcel) {
                     op = new ChangeUnlockOperation(outerThis, databaseInteractor, outerThis);
                 } else if (inputParcel instanceof RevokeKeyringParcel) {
                     op = new RevokeOperation(outerThis, databaseInteractor, outerThis);
                 } else if (inputParcel instanceof CertifyActionsParcel) {
-                    op = new CertifyOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new CertifyOperation(outerThis, databaseInteractor, outerThis, cancellationToken);
                 } else if (inputParcel instanceof DeleteKeyringParcel) {
                     op = new DeleteOperation(outerThis, databaseInteractor, outerThis);
                 } else if (inputParcel instanceof PromoteKeyringParcel) {
-                    op = new PromoteKeyOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new PromoteKeyOperation(outerThis, databaseInteractor, outerThis, cancellationToken);
                 } else if (inputParcel instanceof ImportKeyringParcel) {
-                    op = new ImportOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new ImportOperation(outerThis, databaseInteractor, outerThis, cancellationToken);
                 } else if (inputParcel instanceof BackupKeyringParcel) {
-                    op = new BackupOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new BackupOperation(outerThis, databaseInteractor, outerThis, cancellationToken);
                 } else if (inputParcel instanceof UploadKeyringParcel) {
-                    op = new UploadOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new UploadOperation(outerThis, databaseInteractor, outerThis, cancellationToken);
                 } else if (inputParcel instanceof KeybaseVerificationParcel) {
                     op = new KeybaseVerificationOperation(outerThis, databaseInteractor, outerThis);
                 } else if (inputParcel instanceof InputDataParcel) {
@@ -144,20 +167,38 @@ public class KeychainService extends Service implements Progressable {
                     throw new AssertionError("Unrecognized input parcel in KeychainService!");
                 }
 
-                @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
-                OperationResult result = op.execute(inputParcel, cryptoInput);
-                sendMessageToHandler(MessageStatus.OKAY, result);
+                try {
+                    @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
+                    OperationResult result = op.execute(inputParcel, cryptoInput);
+                    // no trailing progress update after the result
+                    mProgressCoalescer.get().cancelPending();
+                    sendMessageToHandler(MessageStatus.OKAY, result);
+                } finally {
+                    mProgressCoalescer.get().cancelPending();
+                    // worker threads are reused, don't leak state into the next operation
+                    mMessenger.remove();
+                    mProgressCoalescer.remove();
+                }
 
             }
         };
 
-        Thread actionThread = new Thread(actionRunnable);
-        actionThread.start();
+        mOperationExecutor.execute(OperationExecutor.getPriorityForInput(inputParcel), messenger, operationTask);
 
         return START_NOT_STICKY;
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mOperationExecutor.shutdown();
+    }
+
     private void sendMessageToHandler(MessageStatus status, Integer arg2, Bundle data) {
+        sendMessageToHandler(mMessenger.get(), status, arg2, data);
+    }
+
+    private void sendMessageToHandler(Messenger messenger, MessageStatus status, Integer arg2, Bundle data) {
 
         Message msg = Message.obtain();
         assert msg != null;
@@ -170,7 +211,7 @@ public class KeychainService extends Service implements Progressable {
         }
 
         try {
-            mMessenger.get().send(msg);
+            messenger.send(msg);
         } catch (RemoteException e) {
             Timber.w(e, "Exception sending message, Is handler present?");
         } catch (NullPointerException e) {
@@ -193,22 +234,19 @@ public class KeychainService extends Service implements Progressable {
      */
     @Override
     public void setProgress(String message, int progress, int max) {
-        Timber.d("Send message by setProgress with progress=" + progress + ", max="
-                + max);
-
-        Bundle data = new Bundle();
-        if (message != null) {
-            data.putString(ServiceProgressHandler.DATA_MESSAGE, message);
+        if (!mProgressCoalescer.get().shouldReport(message, progress, max)) {
+            return;
         }
-        data.putInt(ServiceProgressHandler.DATA_PROGRESS, progress);
-        data.putInt(ServiceProgressHandler.DATA_PROGRESS_MAX, max);
-
-        sendMessageToHandler(MessageStatus.UPDATE_PROGRESS, null, data);
+        sendProgressToHandler(mMessenger.get(), message, progress, max);
     }
 
     @Override
     public void setProgress(int resourceId, int progress, int max) {
-        setProgress(getString(resourceId), progress, max);
+        // check before looking up the string, most updates are dropped
+        if (!mProgressCoalescer.get().shouldReport(resourceId, progress, max)) {
+            return;
+        }
+        sendProgressToHandler(mMessenger.get(), getString(resourceId), progress, max);
     }
 
     @Override
@@ -216,6 +254,20 @@ public class KeychainService extends Service implements Progressable {
         setProgress(null, progress, max);
     }
 
+    private void sendProgressToHandler(Messenger messenger, String message, int progress, int max) {
+        Timber.d("Send message by setProgress with progress=" + progress + ", max="
+                + max);
+
+        Bundle data = new Bundle();
+        if (message != null) {
+            data.putString(ServiceProgressHandler.DATA_MESSAGE, message);
+        }
+        data.putInt(ServiceProgressHandler.DATA_PROGRESS, progress);
+        data.putInt(ServiceProgressHandler.DATA_PROGRESS_MAX, max);
+
+        sendMessageToHandler(messenger, MessageStatus.UPDATE_PROGRESS, null, data);
+    }
+
     @Override
     public void setPreventCancel() {
         sendMessageToHandler(MessageStatus.PREVENT_CANCEL);
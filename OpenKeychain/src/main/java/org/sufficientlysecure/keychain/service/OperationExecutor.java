@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Parcelable;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import timber.log.Timber;
+
+
+/**
+ * Bounded executor for the operations run by {@link KeychainService}.
+ * <p/>
+ * Interactive operations (decrypt, sign/encrypt, key edits) and background operations (import,
+ * backup, upload) are run in separate bounded pools, so a long running keyserver sync can never
+ * hold up a decryption the user is waiting for. Threads of the background pool additionally run
+ * with background thread priority, which lets the scheduler preempt them in favor of interactive
+ * work. Every task gets its own cancellation token, which is set when the owner the task was
+ * queued for is cancelled.
+ */
+class OperationExecutor {
+    private static final int INTERACTIVE_THREADS = 3;
+    private static final int BACKGROUND_THREADS = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    enum Priority {
+        INTERACTIVE, BACKGROUND
+    }
+
+    private final ThreadPoolExecutor mInteractiveExecutor;
+    private final ThreadPoolExecutor mBackgroundExecutor;
+
+    // owner of each queued or running task, keyed by its cancellation token
+    private final Map<AtomicBoolean, Object> mActiveCancellationTokens = new HashMap<>();
+
+    private final WaitTimeStats mInteractiveWaitStats = new WaitTimeStats();
+    private final WaitTimeStats mBackgroundWaitStats = new WaitTimeStats();
+
+    OperationExecutor() {
+        mInteractiveExecutor = createExecutor(INTERACTIVE_THREADS, "interactive",
+                Process.THREAD_PRIORITY_DEFAULT);
+        mBackgroundExecutor = createExecutor(BACKGROUND_THREADS, "background",
+                Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    static Priority getPriorityForInput(Parcelable inputParcel) {
+        if (inputParcel instanceof ImportKeyringParcel
+                || inputParcel instanceof BackupKeyringParcel
+                || inputParcel instanceof UploadKeyringParcel
+                || inputParcel instanceof KeybaseVerificationParcel
+                || inputParcel instanceof BenchmarkInputParcel) {
+            return Priority.BACKGROUND;
+        }
+        return Priority.INTERACTIVE;
+    }
+
+    /**
+     * Queues an operation. The task is handed its own cancellation token, which is set by
+     * {@link #cancel(Object)} for the task's owner while the task is queued or running.
+     *
+     * @param owner identifies the task for {@link #cancel(Object)}, compared with equals(). A task
+     *              without an owner can't be cancelled.
+     */
+    void execute(Priority priority, @Nullable Object owner, final OperationTask task) {
+        final AtomicBoolean cancellationToken = new AtomicBoolean(false);
+        if (owner != null) {
+            synchronized (mActiveCancellationTokens) {
+                mActiveCancellationTokens.put(cancellationToken, owner);
+            }
+        }
+
+        final WaitTimeStats waitStats = priority == Priority.INTERACTIVE ? mInteractiveWaitStats : mBackgroundWaitStats;
+        final long enqueueTime = SystemClock.elapsedRealtime();
+        final String name = priority.name().toLowerCase(Locale.ENGLISH);
+
+        ThreadPoolExecutor executor = priority == Priority.INTERACTIVE ? mInteractiveExecutor : mBackgroundExecutor;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long waitTime = SystemClock.elapsedRealtime() - enqueueTime;
+                waitStats.record(waitTime);
+                Timber.d("Starting " + name + " operation after waiting " + waitTime + "ms, "
+                        + getQueueDepth(Priority.INTERACTIVE) + " interactive and "
+                        + getQueueDepth(Priority.BACKGROUND) + " background operations queued");
+
+                try {
+                    // run even if cancelled while queued, the operation reports its cancellation
+                    task.run(cancellationToken);
+                } finally {
+                    synchronized (mActiveCancellationTokens) {
+                        mActiveCancellationTokens.remove(cancellationToken);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the cancellation token of the queued and running operations of the given owner. Other
+     * operations are left alone.
+     */
+    void cancel(@NonNull Object owner) {
+        synchronized (mActiveCancellationTokens) {
+            for (Map.Entry<AtomicBoolean, Object> entry : mActiveCancellationTokens.entrySet()) {
+                if (owner.equals(entry.getValue())) {
+                    entry.getKey().set(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lets running and queued operations finish, but doesn't accept any new ones.
+     */
+    void shutdown() {
+        mInteractiveExecutor.shutdown();
+        mBackgroundExecutor.shutdown();
+    }
+
+    int getQueueDepth(Priority priority) {
+        ThreadPoolExecutor executor = priority == Priority.INTERACTIVE ? mInteractiveExecutor : mBackgroundExecutor;
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return average time in ms operations of this priority waited in the queue before being run
+     */
+    long getAverageWaitTimeMillis(Priority priority) {
+        return (priority == Priority.INTERACTIVE ? mInteractiveWaitStats : mBackgroundWaitStats).getAverage();
+    }
+
+    /**
+     * @return longest time in ms an operation of this priority waited in the queue before being run
+     */
+    long getMaxWaitTimeMillis(Priority priority) {
+        return (priority == Priority.INTERACTIVE ? mInteractiveWaitStats : mBackgroundWaitStats).getMax();
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads, final String name, final int threadPriority) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger mThreadCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Runnable withPriority = new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(threadPriority);
+                        runnable.run();
+                    }
+                };
+                return new Thread(withPriority, "KeychainService-" + name + "-" + mThreadCount.incrementAndGet());
+            }
+        };
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    interface OperationTask {
+        void run(AtomicBoolean cancellationToken);
+    }
+
+    private static class WaitTimeStats {
+        private long mCount;
+        private long mTotal;
+        private long mMax;
+
+        synchronized void record(long waitTime) {
+            mCount += 1;
+            mTotal += waitTime;
+            mMax = Math.max(mMax, waitTime);
+        }
+
+        synchronized long getAverage() {
+            return mCount == 0 ? 0 : mTotal / mCount;
+        }
+
+        synchronized long getMax() {
+            return mMax;
+        }
+    }
+
+}
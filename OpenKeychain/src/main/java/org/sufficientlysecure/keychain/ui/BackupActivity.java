@@ -33,6 +33,7 @@ public class BackupActivity extends BaseActivity {
 
     public static final String EXTRA_MASTER_KEY_IDS = "master_key_ids";
     public static final String EXTRA_SECRET = "export_secret";
+    public static final String EXTRA_INCREMENTAL = "incremental";
 
     @Override
     protected void initLayout() {
@@ -50,8 +51,10 @@ public class BackupActivity extends BaseActivity {
             Intent intent = getIntent();
             boolean exportSecret = intent.getBooleanExtra(EXTRA_SECRET, false);
             long[] masterKeyIds = intent.getLongArrayExtra(EXTRA_MASTER_KEY_IDS);
+            // incremental backups always include all keys
+            boolean incremental = masterKeyIds == null && intent.getBooleanExtra(EXTRA_INCREMENTAL, false);
 
-            Fragment frag = BackupCodeFragment.newInstance(masterKeyIds, exportSecret, true);
+            Fragment frag = BackupCodeFragment.newInstance(masterKeyIds, exportSecret, true, incremental);
 
             FragmentManager fragMan = getSupportFragmentManager();
             fragMan.beginTransaction()
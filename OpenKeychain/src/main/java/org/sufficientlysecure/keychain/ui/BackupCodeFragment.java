@@ -58,6 +58,7 @@ public class BackupCodeFragment extends CryptoOperationFragment<BackupKeyringPar
     public static final String ARG_EXPORT_SECRET = "export_secret";
     public static final String ARG_EXECUTE_BACKUP_OPERATION = "execute_backup_operation";
     public static final String ARG_MASTER_KEY_IDS = "master_key_ids";
+    public static final String ARG_INCREMENTAL = "incremental";
 
     public static final int REQUEST_SAVE = 1;
 
@@ -65,6 +66,7 @@ public class BackupCodeFragment extends CryptoOperationFragment<BackupKeyringPar
     private long[] mMasterKeyIds;
     Passphrase mBackupCode;
     private boolean mExecuteBackupOperation;
+    private boolean mIncremental;
 
     private Uri mCachedBackupUri;
     private boolean mShareNotSave;
@@ -73,7 +75,7 @@ public class BackupCodeFragment extends CryptoOperationFragment<BackupKeyringPar
     private View buttonExport;
 
     public static BackupCodeFragment newInstance(long[] masterKeyIds, boolean exportSecret,
-                                                 boolean executeBackupOperation) {
+                                                 boolean executeBackupOperation, boolean incremental) {
         BackupCodeFragment frag = new BackupCodeFragment();
 
         Passphrase backupCode = Numeric9x4PassphraseUtil.generateNumeric9x4Passphrase();
@@ -83,6 +85,7 @@ public class BackupCodeFragment extends CryptoOperationFragment<BackupKeyringPar
         args.putLongArray(ARG_MASTER_KEY_IDS, masterKeyIds);
         args.putBoolean(ARG_EXPORT_SECRET, exportSecret);
         args.putBoolean(ARG_EXECUTE_BACKUP_OPERATION, executeBackupOperation);
+        args.putBoolean(ARG_INCREMENTAL, incremental);
         frag.setArguments(args);
 
         return frag;
@@ -97,6 +100,7 @@ public class BackupCodeFragment extends CryptoOperationFragment<BackupKeyringPar
         mMasterKeyIds = args.getLongArray(ARG_MASTER_KEY_IDS);
         mExportSecret = args.getBoolean(ARG_EXPORT_SECRET);
         mExecuteBackupOperation = args.getBoolean(ARG_EXECUTE_BACKUP_OPERATION, true);
+        mIncremental = args.getBoolean(ARG_INCREMENTAL, false);
 
         {
             TextView[] codeDisplayText = getTransferCodeTextViews(view, R.id.transfer_code_display);
@@ -261,6 +265,9 @@ public class BackupCodeFragment extends CryptoOperationFragment<BackupKeyringPar
     @Nullable
     @Override
     public BackupKeyringParcel createOperationInput() {
+        if (mIncremental) {
+            return BackupKeyringParcel.createIncremental(mExportSecret, true, true, mCachedBackupUri);
+        }
         return BackupKeyringParcel
                 .create(mMasterKeyIds, mExportSecret, true, true, mCachedBackupUri);
     }
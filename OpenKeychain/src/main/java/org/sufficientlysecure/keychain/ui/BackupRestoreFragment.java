@@ -26,6 +26,7 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
@@ -48,9 +49,11 @@ public class BackupRestoreFragment extends Fragment {
 
     // masterKeyId & subKeyId for multi-key export
     private Iterator<Pair<Long, Long>> mIdsForRepeatAskPassphrase;
+    private boolean mIncremental;
 
     private static final int REQUEST_REPEAT_PASSPHRASE = 0x00007002;
     private static final int REQUEST_CODE_INPUT = 0x00007003;
+    private static final int REQUEST_CODE_INPUT_BACKUP_CHAIN = 0x00007004;
 
     @Override
     public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
@@ -58,19 +61,28 @@ public class BackupRestoreFragment extends Fragment {
 
         View backupAll = view.findViewById(R.id.backup_all);
         View backupPublicKeys = view.findViewById(R.id.backup_public_keys);
+        View backupIncremental = view.findViewById(R.id.backup_incremental);
         final View restore = view.findViewById(R.id.restore);
+        View restoreBackupChain = view.findViewById(R.id.restore_backup_chain);
 
         backupAll.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                exportToFile(true);
+                exportToFile(true, false);
             }
         });
 
         backupPublicKeys.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                exportToFile(false);
+                exportToFile(false, false);
+            }
+        });
+
+        backupIncremental.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                exportToFile(true, true);
             }
         });
 
@@ -81,14 +93,22 @@ public class BackupRestoreFragment extends Fragment {
             }
         });
 
+        restoreBackupChain.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                restoreBackupChain();
+            }
+        });
+
         return view;
     }
 
-    private void exportToFile(boolean includeSecretKeys) {
+    private void exportToFile(boolean includeSecretKeys, boolean incremental) {
         FragmentActivity activity = getActivity();
         if (activity == null) {
             return;
         }
+        mIncremental = incremental;
 
         if (!includeSecretKeys) {
             startBackup(false);
@@ -241,6 +261,34 @@ public class BackupRestoreFragment extends Fragment {
                 break;
             }
 
+            case REQUEST_CODE_INPUT_BACKUP_CHAIN: {
+                if (resultCode != Activity.RESULT_OK || data == null) {
+                    return;
+                }
+
+                ArrayList<Uri> uris = new ArrayList<>();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && data.getClipData() != null) {
+                    for (int i = 0; i < data.getClipData().getItemCount(); i++) {
+                        Uri uri = data.getClipData().getItemAt(i).getUri();
+                        if (uri != null) {
+                            uris.add(uri);
+                        }
+                    }
+                } else if (data.getData() != null) {
+                    uris.add(data.getData());
+                }
+                if (uris.isEmpty()) {
+                    Notify.create(getActivity(), R.string.no_file_selected, Notify.Style.ERROR).show();
+                    return;
+                }
+
+                Intent intent = new Intent(getActivity(), DecryptActivity.class);
+                intent.setAction(DecryptActivity.ACTION_RESTORE_BACKUP_CHAIN);
+                intent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, uris);
+                startActivity(intent);
+                break;
+            }
+
             default: {
                 super.onActivityResult(requestCode, resultCode, data);
             }
@@ -250,6 +298,7 @@ public class BackupRestoreFragment extends Fragment {
     private void startBackup(boolean exportSecret) {
         Intent intent = new Intent(getActivity(), BackupActivity.class);
         intent.putExtra(BackupActivity.EXTRA_SECRET, exportSecret);
+        intent.putExtra(BackupActivity.EXTRA_INCREMENTAL, mIncremental);
         startActivity(intent);
     }
 
@@ -257,4 +306,9 @@ public class BackupRestoreFragment extends Fragment {
         FileHelper.openDocument(this, "*/*", false, REQUEST_CODE_INPUT);
     }
 
+    /** The full backup and all of its increments are selected at once, in any order. */
+    private void restoreBackupChain() {
+        FileHelper.openDocument(this, "*/*", true, REQUEST_CODE_INPUT_BACKUP_CHAIN);
+    }
+
 }
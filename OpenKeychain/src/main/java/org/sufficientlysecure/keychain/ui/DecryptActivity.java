@@ -46,6 +46,8 @@ public class DecryptActivity extends BaseActivity {
 
     /* Intents */
     public static final String ACTION_DECRYPT_FROM_CLIPBOARD = "DECRYPT_DATA_CLIPBOARD";
+    /** Decrypts the archives of an incremental backup in EXTRA_STREAM, and restores them as one. */
+    public static final String ACTION_RESTORE_BACKUP_CHAIN = "RESTORE_BACKUP_CHAIN";
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -86,6 +88,7 @@ public class DecryptActivity extends BaseActivity {
         // depending on the data source, we may or may not be able to delete the original file
         boolean canDelete = false;
         boolean isAutocryptSetup = false;
+        boolean isBackupChain = false;
 
         try {
 
@@ -122,6 +125,16 @@ public class DecryptActivity extends BaseActivity {
                     break;
                 }
 
+                case ACTION_RESTORE_BACKUP_CHAIN: {
+                    ArrayList<Uri> archiveUris = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+                    if (archiveUris != null) {
+                        uris = archiveUris;
+                    }
+                    isBackupChain = true;
+
+                    break;
+                }
+
                 case ACTION_DECRYPT_FROM_CLIPBOARD: {
                     ClipboardManager clipMan = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
                     if (clipMan == null) {
@@ -192,7 +205,7 @@ public class DecryptActivity extends BaseActivity {
             return;
         }
 
-        displayListFragment(uris, canDelete, isAutocryptSetup);
+        displayListFragment(uris, canDelete, isAutocryptSetup, isBackupChain);
 
     }
 
@@ -216,9 +229,11 @@ public class DecryptActivity extends BaseActivity {
         return tempFile;
     }
 
-    public void displayListFragment(ArrayList<Uri> inputUris, boolean canDelete, boolean isAutocryptSetup) {
+    public void displayListFragment(ArrayList<Uri> inputUris, boolean canDelete, boolean isAutocryptSetup,
+            boolean isBackupChain) {
 
-        DecryptListFragment frag = DecryptListFragment.newInstance(inputUris, canDelete, isAutocryptSetup);
+        DecryptListFragment frag =
+                DecryptListFragment.newInstance(inputUris, canDelete, isAutocryptSetup, isBackupChain);
 
         FragmentManager fragMan = getSupportFragmentManager();
 
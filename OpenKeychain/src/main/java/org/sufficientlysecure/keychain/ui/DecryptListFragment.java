@@ -20,6 +20,7 @@ package org.sufficientlysecure.keychain.ui;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -82,6 +83,8 @@ import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.service.InputDataParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
 import org.sufficientlysecure.keychain.ui.base.QueueingCryptoOperationFragment;
 // this import NEEDS to be above the ViewModel AND SubViewHolder one, or it won't compile! (as of 16.09.15)
@@ -105,14 +108,18 @@ import timber.log.Timber;
  * <p/>
  * This class has a complex control flow to manage its input URIs. Each URI
  * which is in mInputUris is also in exactly one of mPendingInputUris,
- * mCancelledInputUris, mCurrentInputUri, or a key in mInputDataResults.
+ * mCancelledInputUris, mPermissionInputUri, one of the mDecryptSlots, or a
+ * key in mInputDataResults.
  * <p/>
- * Processing of URIs happens using a looping approach:
- * - There is always exactly one method running which works on mCurrentInputUri
- * - Processing starts in cryptoOperation(), which pops a new mCurrentInputUri
- * from the list of mPendingInputUris.
- * - Once a mCurrentInputUri is finished processing, it should be set to null and
- * control handed back to cryptoOperation()
+ * Processing of URIs happens concurrently in a fixed number of DecryptSlots:
+ * - Processing starts in startPendingDecrypts(), which pops a new URI from the
+ * list of mPendingInputUris for every idle slot.
+ * - Once a slot's URI is finished processing, the slot is cleared and control
+ * handed back to startPendingDecrypts()
+ * - Operations which require user input (passphrase, security token) queue up
+ * in mSlotsWaitingForInput, and only one prompt is shown at a time. Once it is
+ * answered, the waiting operations are retried first, since the input may
+ * have unlocked their key as well.
  * - Control flow can move through asynchronous calls, and resume in callbacks
  * like onActivityResult() or onPermissionRequestResult().
  */
@@ -126,18 +133,37 @@ public class DecryptListFragment
     public static final String ARG_RESULTS = "results";
     public static final String ARG_CAN_DELETE = "can_delete";
     public static final String ARG_IS_AUTOCRYPT_SETUP = "is_autocrypt_setup";
+    public static final String ARG_IS_BACKUP_CHAIN = "is_backup_chain";
+    public static final String ARG_BACKUP_CHAIN_RESTORED = "backup_chain_restored";
+    public static final String ARG_FINISHED_URIS = "finished_uris";
 
     private static final int REQUEST_CODE_OUTPUT = 0x00007007;
     private static final int REQUEST_PERMISSION_READ_EXTERNAL_STORAGE = 12;
 
+    // helper id 2 is used for key lookups, decrypt slots use the ones after that
+    private static final int DECRYPT_SLOT_HELPER_ID_OFFSET = 3;
+    private static final int MAX_PARALLEL_DECRYPTS = 8;
+    private static final int BACKUP_CHAIN_HELPER_ID = DECRYPT_SLOT_HELPER_ID_OFFSET + MAX_PARALLEL_DECRYPTS;
+
     private ArrayList<Uri> mInputUris;
     private HashMap<Uri, InputDataResult> mInputDataResults;
     private ArrayList<Uri> mPendingInputUris;
     private ArrayList<Uri> mCancelledInputUris;
 
-    private Uri mCurrentInputUri;
+    private DecryptSlot[] mDecryptSlots;
+    private final ArrayList<DecryptSlot> mSlotsWaitingForInput = new ArrayList<>();
+    private DecryptSlot mPromptingSlot;
+    private Uri mPermissionInputUri;
+    // finished URIs whose results are not delivered yet, in order, see QueueingCryptoOperationFragment
+    private ArrayList<Uri> mFinishedInputUris;
+
+    private final SharedCryptoInput mSharedInput = new SharedCryptoInput();
+
     private boolean mCanDelete;
     private boolean mIsAutocryptSetup;
+    // the inputs are the archives of an incremental backup, which are restored once all are decrypted
+    private boolean mIsBackupChain;
+    private boolean mBackupChainRestored;
 
     private DecryptFilesAdapter mAdapter;
     private Uri mCurrentSaveFileUri;
@@ -145,13 +171,15 @@ public class DecryptListFragment
     /**
      * Creates new instance of this fragment
      */
-    public static DecryptListFragment newInstance(@NonNull ArrayList<Uri> uris, boolean canDelete, boolean isAutocryptSetup) {
+    public static DecryptListFragment newInstance(@NonNull ArrayList<Uri> uris, boolean canDelete,
+            boolean isAutocryptSetup, boolean isBackupChain) {
         DecryptListFragment frag = new DecryptListFragment();
 
         Bundle args = new Bundle();
         args.putParcelableArrayList(ARG_INPUT_URIS, uris);
         args.putBoolean(ARG_CAN_DELETE, canDelete);
         args.putBoolean(ARG_IS_AUTOCRYPT_SETUP, isAutocryptSetup);
+        args.putBoolean(ARG_IS_BACKUP_CHAIN, isBackupChain);
         frag.setArguments(args);
 
         return frag;
@@ -161,6 +189,29 @@ public class DecryptListFragment
         super(null);
     }
 
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        int parallelism = Preferences.getPreferences(getActivity()).getDecryptParallelism();
+        parallelism = Math.max(1, Math.min(parallelism, MAX_PARALLEL_DECRYPTS));
+        mDecryptSlots = new DecryptSlot[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            mDecryptSlots[i] = new DecryptSlot(DECRYPT_SLOT_HELPER_ID_OFFSET + i);
+        }
+
+        ArrayList<Uri> finishedUris = savedInstanceState != null
+                ? savedInstanceState.<Uri>getParcelableArrayList(ARG_FINISHED_URIS) : null;
+        mFinishedInputUris = finishedUris != null ? finishedUris : new ArrayList<Uri>();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        mSharedInput.clear();
+    }
+
     /**
      * Inflate the layout for this fragment
      */
@@ -209,9 +260,12 @@ public class DecryptListFragment
         outState.putParcelableArrayList(ARG_CANCELLED_URIS, mCancelledInputUris);
         outState.putBoolean(ARG_CAN_DELETE, mCanDelete);
         outState.putBoolean(ARG_IS_AUTOCRYPT_SETUP, mIsAutocryptSetup);
+        outState.putBoolean(ARG_IS_BACKUP_CHAIN, mIsBackupChain);
+        outState.putBoolean(ARG_BACKUP_CHAIN_RESTORED, mBackupChainRestored);
+        outState.putParcelableArrayList(ARG_FINISHED_URIS, mFinishedInputUris);
 
-        // this does not save mCurrentInputUri - if anything is being
-        // processed at fragment recreation time, the operation in
+        // this does not save the URIs of mDecryptSlots - if anything is
+        // being processed at fragment recreation time, the operations in
         // progress will be lost!
     }
 
@@ -227,6 +281,8 @@ public class DecryptListFragment
 
         mCanDelete = args.getBoolean(ARG_CAN_DELETE, false);
         mIsAutocryptSetup = args.getBoolean(ARG_IS_AUTOCRYPT_SETUP, false);
+        mIsBackupChain = args.getBoolean(ARG_IS_BACKUP_CHAIN, false);
+        mBackupChainRestored = args.getBoolean(ARG_BACKUP_CHAIN_RESTORED, false);
 
         displayInputUris(inputUris, cancelledUris,
                 results != null ? results.getMap() : null
@@ -239,7 +295,7 @@ public class DecryptListFragment
             HashMap<Uri, InputDataResult> results) {
 
         mInputUris = inputUris;
-        mCurrentInputUri = null;
+        mPermissionInputUri = null;
         mInputDataResults = results != null ? results : new HashMap<Uri, InputDataResult>(inputUris.size());
         mCancelledInputUris = cancelledUris != null ? cancelledUris : new ArrayList<Uri>();
 
@@ -260,11 +316,16 @@ public class DecryptListFragment
                 continue;
             }
 
+            // delivered once the view state is restored
+            if (mFinishedInputUris.contains(uri)) {
+                continue;
+            }
+
             mPendingInputUris.add(uri);
         }
 
         // check if there are any pending input uris
-        cryptoOperation();
+        startPendingDecrypts();
     }
 
     @Override
@@ -275,12 +336,16 @@ public class DecryptListFragment
                 if (resultCode == Activity.RESULT_OK && data != null) {
                     Uri saveUri = data.getData();
                     saveFile(saveUri);
-                    mCurrentInputUri = null;
                 }
                 return;
             }
 
             default: {
+                for (DecryptSlot slot : mDecryptSlots) {
+                    if (slot.mHelper.handleActivityResult(requestCode, resultCode, data)) {
+                        return;
+                    }
+                }
                 super.onActivityResult(requestCode, resultCode, data);
             }
         }
@@ -313,7 +378,6 @@ public class DecryptListFragment
         }
 
         Uri decryptedFileUri = mCurrentSaveFileUri;
-        mCurrentInputUri = null;
 
         hideKeyboard();
 
@@ -332,16 +396,22 @@ public class DecryptListFragment
     }
 
     @Override
-    public boolean onCryptoSetProgress(String msg, int progress, int max) {
-        mAdapter.setProgress(mCurrentInputUri, progress, max, msg);
-        return true;
+    public InputDataParcel createOperationInput() {
+        // all operations run in DecryptSlots
+        return null;
+    }
+
+    @Override
+    public void onQueuedOperationSuccess(InputDataResult result) {
+        onDecryptSuccess(mFinishedInputUris.remove(0), result);
     }
 
     @Override
     public void onQueuedOperationError(InputDataResult result) {
-        final Uri uri = mCurrentInputUri;
-        mCurrentInputUri = null;
+        onDecryptError(mFinishedInputUris.remove(0), result);
+    }
 
+    private void onDecryptError(Uri uri, InputDataResult result) {
         Activity activity = getActivity();
         if (activity != null && "com.fsck.k9.attachmentprovider".equals(uri.getHost())) {
             Toast.makeText(getActivity(), R.string.error_reading_k9, Toast.LENGTH_LONG).show();
@@ -349,17 +419,15 @@ public class DecryptListFragment
 
         mAdapter.addResult(uri, result);
 
-        cryptoOperation();
+        startPendingDecrypts();
+        restoreBackupChainIfDone();
     }
 
-    @Override
-    public void onQueuedOperationSuccess(InputDataResult result) {
-        Uri uri = mCurrentInputUri;
-        mCurrentInputUri = null;
-
+    private void onDecryptSuccess(Uri uri, InputDataResult result) {
         Activity activity = getActivity();
 
-        boolean isSingleInput = mInputDataResults.isEmpty() && mPendingInputUris.isEmpty();
+        boolean isSingleInput = mInputDataResults.isEmpty() && mPendingInputUris.isEmpty()
+                && !hasRunningDecrypts();
         if (isSingleInput) {
 
             // there is always at least one mMetadata object, so we know this is >= 1 already
@@ -383,21 +451,69 @@ public class DecryptListFragment
         mInputDataResults.put(uri, result);
         processResult(uri);
 
-        cryptoOperation();
+        startPendingDecrypts();
+        restoreBackupChainIfDone();
     }
 
-    @Override
-    public void onCryptoOperationCancelled() {
-        super.onCryptoOperationCancelled();
-
-        final Uri uri = mCurrentInputUri;
-        mCurrentInputUri = null;
-
+    private void onDecryptCancelled(Uri uri) {
         mCancelledInputUris.add(uri);
         mAdapter.setCancelled(uri, true);
 
-        cryptoOperation();
+        startPendingDecrypts();
+        restoreBackupChainIfDone();
+    }
+
+    /** Restores the decrypted archives of a backup chain, once all of them are done. */
+    private void restoreBackupChainIfDone() {
+        if (!mIsBackupChain || mBackupChainRestored || getActivity() == null) {
+            return;
+        }
+        if (!mPendingInputUris.isEmpty() || hasRunningDecrypts() || !mFinishedInputUris.isEmpty()) {
+            return;
+        }
+        mBackupChainRestored = true;
+
+        // every archive is needed, the chain is checked by the import itself
+        if (mInputDataResults.size() != mInputUris.size()) {
+            Notify.create(getActivity(), R.string.error_backup_chain_incomplete, Style.ERROR).show();
+            return;
+        }
+        final ArrayList<Uri> archiveUris = new ArrayList<>();
+        for (Uri inputUri : mInputUris) {
+            archiveUris.addAll(mInputDataResults.get(inputUri).getOutputUris());
+        }
+
+        CryptoOperationHelper.Callback<ImportKeyringParcel, ImportKeyResult> callback
+                = new CryptoOperationHelper.Callback<ImportKeyringParcel, ImportKeyResult>() {
+
+            @Override
+            public ImportKeyringParcel createOperationInput() {
+                return ImportKeyringParcel.createFromBackupChain(archiveUris);
+            }
+
+            @Override
+            public void onCryptoOperationSuccess(ImportKeyResult result) {
+                result.createNotify(getActivity()).show();
+            }
 
+            @Override
+            public void onCryptoOperationCancelled() {
+            }
+
+            @Override
+            public void onCryptoOperationError(ImportKeyResult result) {
+                result.createNotify(getActivity()).show();
+            }
+
+            @Override
+            public boolean onCryptoSetProgress(String msg, int progress, int max) {
+                return false;
+            }
+        };
+
+        CryptoOperationHelper<ImportKeyringParcel, ImportKeyResult> importOpHelper =
+                new CryptoOperationHelper<>(BACKUP_CHAIN_HELPER_ID, this, callback, R.string.progress_importing);
+        importOpHelper.cryptoOperation();
     }
 
     HashMap<Uri, Drawable> mIconCache = new HashMap<>();
@@ -478,7 +594,7 @@ public class DecryptListFragment
     public void retryUri(Uri uri) {
 
         // never interrupt running operations!
-        if (mCurrentInputUri != null) {
+        if (isProcessing(uri)) {
             return;
         }
 
@@ -489,7 +605,7 @@ public class DecryptListFragment
         mAdapter.resetItemData(uri);
 
         // check if there are any pending input uris
-        cryptoOperation();
+        startPendingDecrypts();
     }
 
     public void displayBottomSheet(final InputDataResult result, final int index) {
@@ -619,44 +735,220 @@ public class DecryptListFragment
 
     }
 
-    @Override
-    public InputDataParcel createOperationInput() {
+    /**
+     * Hands pending input URIs to all idle decrypt slots. This is where control
+     * flow returns to whenever a URI has finished processing.
+     */
+    private void startPendingDecrypts() {
 
         Activity activity = getActivity();
         if (activity == null) {
-            return null;
+            return;
         }
 
-        if (mCurrentInputUri == null) {
+        // wait for the permission request before starting anything else
+        if (mPermissionInputUri != null) {
+            return;
+        }
+
+        for (DecryptSlot slot : mDecryptSlots) {
+            if (slot.mInputUri != null) {
+                continue;
+            }
+
             if (mPendingInputUris.isEmpty()) {
                 // nothing left to do
+                return;
+            }
+
+            Uri inputUri = mPendingInputUris.remove(0);
+            Timber.d("starting decryption of " + inputUri);
+
+            if (!checkAndRequestReadPermission(activity, inputUri)) {
+                mPermissionInputUri = inputUri;
+                return;
+            }
+
+            slot.start(inputUri);
+        }
+
+    }
+
+    private boolean hasRunningDecrypts() {
+        if (mPermissionInputUri != null) {
+            return true;
+        }
+        for (DecryptSlot slot : mDecryptSlots) {
+            if (slot.mInputUri != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isProcessing(Uri uri) {
+        if (uri.equals(mPermissionInputUri) || mPendingInputUris.contains(uri)) {
+            return true;
+        }
+        for (DecryptSlot slot : mDecryptSlots) {
+            if (uri.equals(slot.mInputUri)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void requestInput(DecryptSlot slot) {
+        mSlotsWaitingForInput.add(slot);
+        showNextInputPrompt();
+    }
+
+    private void showNextInputPrompt() {
+        if (mPromptingSlot != null || mSlotsWaitingForInput.isEmpty() || getActivity() == null) {
+            return;
+        }
+
+        mPromptingSlot = mSlotsWaitingForInput.remove(0);
+        mPromptingSlot.mHelper.showInputActivity();
+    }
+
+    private void onInputPromptFinished() {
+        mPromptingSlot = null;
+
+        // the input may have unlocked the key other slots are waiting for as
+        // well, so retry those before bothering the user with another prompt
+        ArrayList<DecryptSlot> waitingSlots = new ArrayList<>(mSlotsWaitingForInput);
+        mSlotsWaitingForInput.clear();
+        for (DecryptSlot slot : waitingSlots) {
+            slot.resume();
+        }
+    }
+
+    /**
+     * Decrypts one input URI at a time. Each slot has its own helper, so
+     * results, progress and activity results of concurrent operations can be
+     * told apart.
+     */
+    private class DecryptSlot implements CryptoOperationHelper.Callback<InputDataParcel, InputDataResult> {
+        final DecryptSlotHelper mHelper;
+
+        Uri mInputUri;
+        RequiredInputParcel mRequiredInput;
+        CryptoInputParcel mPendingCryptoInput;
+
+        DecryptSlot(int helperId) {
+            mHelper = new DecryptSlotHelper(helperId, this);
+        }
+
+        void start(Uri inputUri) {
+            mInputUri = inputUri;
+            mHelper.cryptoOperation(mSharedInput.applyTo(CryptoInputParcel.createCryptoInputParcel(new Date())));
+        }
+
+        void resume() {
+            mHelper.cryptoOperation(mSharedInput.applyTo(mPendingCryptoInput));
+        }
+
+        private Uri finish() {
+            Uri inputUri = mInputUri;
+            mInputUri = null;
+            mRequiredInput = null;
+            mPendingCryptoInput = null;
+            return inputUri;
+        }
+
+        @Override
+        public InputDataParcel createOperationInput() {
+            if (getActivity() == null || mInputUri == null) {
                 return null;
             }
 
-            mCurrentInputUri = mPendingInputUris.remove(0);
+            Timber.d("decrypting " + mInputUri);
+
+            PgpDecryptVerifyInputParcel.Builder decryptInput = PgpDecryptVerifyInputParcel.builder()
+                    .setAllowSymmetricDecryption(true)
+                    .setAutocryptSetup(mIsAutocryptSetup);
+            return InputDataParcel.createInputDataParcel(mInputUri, decryptInput.build());
         }
 
-        Timber.d("mCurrentInputUri=" + mCurrentInputUri);
+        @Override
+        public void onCryptoOperationSuccess(InputDataResult result) {
+            deliverResult(result);
+        }
 
-        if (!checkAndRequestReadPermission(activity, mCurrentInputUri)) {
-            return null;
+        @Override
+        public void onCryptoOperationError(InputDataResult result) {
+            deliverResult(result);
         }
 
-        PgpDecryptVerifyInputParcel.Builder decryptInput = PgpDecryptVerifyInputParcel.builder()
-                .setAllowSymmetricDecryption(true)
-                .setAutocryptSetup(mIsAutocryptSetup);
-        return InputDataParcel.createInputDataParcel(mCurrentInputUri, decryptInput.build());
+        private void deliverResult(InputDataResult result) {
+            mFinishedInputUris.add(finish());
+            if (result.success()) {
+                DecryptListFragment.this.onCryptoOperationSuccess(result);
+            } else {
+                DecryptListFragment.this.onCryptoOperationError(result);
+            }
+        }
+
+        @Override
+        public void onCryptoOperationCancelled() {
+            onDecryptCancelled(finish());
+        }
 
+        @Override
+        public boolean onCryptoSetProgress(String msg, int progress, int max) {
+            if (mInputUri != null) {
+                mAdapter.setProgress(mInputUri, progress, max, msg);
+            }
+            return true;
+        }
     }
 
+    private class DecryptSlotHelper extends CryptoOperationHelper<InputDataParcel, InputDataResult> {
+        private final DecryptSlot mSlot;
 
+        DecryptSlotHelper(int id, DecryptSlot slot) {
+            super(id, DecryptListFragment.this, slot, null);
+            mSlot = slot;
+        }
+
+        @Override
+        protected void initiateInputActivity(RequiredInputParcel requiredInput,
+                CryptoInputParcel cryptoInputParcel) {
+            // another slot may be prompting already, so get in line
+            mSlot.mRequiredInput = requiredInput;
+            mSlot.mPendingCryptoInput = cryptoInputParcel;
+            requestInput(mSlot);
+        }
+
+        void showInputActivity() {
+            super.initiateInputActivity(mSlot.mRequiredInput, mSlot.mPendingCryptoInput);
+        }
+
+        @Override
+        public void cryptoOperation(CryptoInputParcel cryptoInput) {
+            mSharedInput.remember(cryptoInput);
+            super.cryptoOperation(cryptoInput);
+        }
+
+        @Override
+        public boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
+            if (!super.handleActivityResult(requestCode, resultCode, data)) {
+                return false;
+            }
+            if (mPromptingSlot == mSlot) {
+                onInputPromptFinished();
+            }
+            return true;
+        }
+    }
 
     /**
      * Request READ_EXTERNAL_STORAGE permission on Android >= 6.0 to read content from "file" Uris.
      * <p/>
      * This method returns true on Android < 6, or if permission is already granted. It
      * requests the permission and returns false otherwise, taking over responsibility
-     * for mCurrentInputUri.
+     * for the uri, which the caller keeps in mPermissionInputUri meanwhile.
      * <p/>
      * see https://commonsware.com/blog/2015/10/07/runtime-permissions-files-action-send.html
      */
@@ -696,9 +988,15 @@ public class DecryptListFragment
         boolean permissionWasGranted = grantResults.length > 0
                 && grantResults[0] == PackageManager.PERMISSION_GRANTED;
 
+        Uri permissionInputUri = mPermissionInputUri;
+        mPermissionInputUri = null;
+
         if (permissionWasGranted) {
 
-            // permission granted -> retry all cancelled file uris
+            // permission granted -> continue with the waiting uri, and retry all cancelled file uris
+            if (permissionInputUri != null) {
+                mPendingInputUris.add(0, permissionInputUri);
+            }
             Iterator<Uri> it = mCancelledInputUris.iterator();
             while (it.hasNext()) {
                 Uri uri = it.next();
@@ -712,11 +1010,12 @@ public class DecryptListFragment
 
         } else {
 
-            // permission denied -> cancel current, and all pending file uris
-            mCancelledInputUris.add(mCurrentInputUri);
-            mAdapter.setCancelled(mCurrentInputUri, true);
+            // permission denied -> cancel the waiting uri, and all pending file uris
+            if (permissionInputUri != null) {
+                mCancelledInputUris.add(permissionInputUri);
+                mAdapter.setCancelled(permissionInputUri, true);
+            }
 
-            mCurrentInputUri = null;
             Iterator<Uri> it = mPendingInputUris.iterator();
             while (it.hasNext()) {
                 Uri uri = it.next();
@@ -731,7 +1030,7 @@ public class DecryptListFragment
         }
 
         // hand control flow back
-        cryptoOperation();
+        startPendingDecrypts();
 
     }
 
@@ -658,9 +658,10 @@ public class EncryptFilesFragment
         // fill values for this action
         PgpSignEncryptData.Builder data = PgpSignEncryptData.builder();
 
-        if (!mUseCompression) {
-            data.setCompressionAlgorithm(PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.UNCOMPRESSED);
-        }
+        // files are often compressed already, only compress them if it's worth it
+        data.setCompressionAlgorithm(mUseCompression
+                ? PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.ADAPTIVE
+                : PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags.UNCOMPRESSED);
         data.setHiddenRecipients(mHiddenRecipients);
         data.setEnableAsciiArmorOutput(mAfterEncryptAction == AfterEncryptAction.COPY || mUseArmor);
 
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui;
+
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/**
+ * Input obtained from prompts while decrypting a list of files, shared by all files so each key
+ * is only unlocked once.
+ * <p/>
+ * Decrypted session keys are always shared. Subkey passphrases are shared only if the user allowed
+ * them to be cached, symmetric passphrases are never shared since they would be tried on every
+ * file. Those are available through the passphrase cache only.
+ */
+class SharedCryptoInput {
+
+    private Passphrase mPassphrase;
+    private Long mPassphraseSubkey;
+    private final HashMap<ByteBuffer, byte[]> mCryptoData = new HashMap<>();
+
+    void remember(CryptoInputParcel cryptoInput) {
+        mCryptoData.putAll(cryptoInput.getCryptoData());
+
+        if (cryptoInput.getPassphrase() != null && cryptoInput.getPassphraseSubkey() != null
+                && cryptoInput.isCachePassphrase()) {
+            mPassphrase = cryptoInput.getPassphrase();
+            mPassphraseSubkey = cryptoInput.getPassphraseSubkey();
+        }
+    }
+
+    CryptoInputParcel applyTo(CryptoInputParcel cryptoInput) {
+        if (!mCryptoData.isEmpty()) {
+            cryptoInput = cryptoInput.withCryptoData(mCryptoData);
+        }
+        if (cryptoInput.getPassphrase() == null && mPassphrase != null) {
+            cryptoInput = cryptoInput.withPassphrase(mPassphrase, mPassphraseSubkey);
+        }
+        return cryptoInput;
+    }
+
+    void clear() {
+        if (mPassphrase != null) {
+            mPassphrase.removeFromMemory();
+            mPassphrase = null;
+            mPassphraseSubkey = null;
+        }
+        mCryptoData.clear();
+    }
+
+}
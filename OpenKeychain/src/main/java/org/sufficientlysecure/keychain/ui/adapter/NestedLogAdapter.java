@@ -21,7 +21,6 @@ import android.content.Context;
 import android.graphics.Color;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.widget.RecyclerView;
-import android.util.Pair;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -35,8 +34,6 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.ui.util.FormattingUtils;
 
-import java.util.ArrayList;
-import java.util.List;
 
 public class NestedLogAdapter extends RecyclerView.Adapter<NestedLogAdapter.LogEntryViewHolder> {
     private static final int ENTRY_TYPE_REGULAR = 0;
@@ -46,7 +43,9 @@ public class NestedLogAdapter extends RecyclerView.Adapter<NestedLogAdapter.LogE
 
     private final int mIndentFactor;
     private LogActionListener mListener;
-    private List<Pair<OperationResult.LogEntryParcel, Integer>> mLogEntries;
+    // entries are read from the log on demand, only section positions are kept here
+    private OperationResult.OperationLog mLog;
+    private int[] mSectionPositions;
 
     public NestedLogAdapter(Context context) {
         super();
@@ -65,46 +64,42 @@ public class NestedLogAdapter extends RecyclerView.Adapter<NestedLogAdapter.LogE
     }
 
     public void setLog(OperationResult.OperationLog log) {
-        List<OperationResult.LogEntryParcel> list = log.toList();
-
-        if (mLogEntries != null) {
-            mLogEntries.clear();
-        } else {
-            mLogEntries = new ArrayList<>(list.size());
-        }
+        int size = log.size();
+        int[] sectionPositions = new int[size];
 
         int lastSection = 0;
-        for (int i = 0; i < list.size(); i++) {
-            OperationResult.LogEntryParcel parcel = list.get(i);
-            if(parcel.mIndent < LOG_ENTRY_ITEM_INDENT) {
+        for (int i = 0; i < size; i++) {
+            if (log.getIndent(i) < LOG_ENTRY_ITEM_INDENT) {
                 lastSection = i;
             }
-
-            mLogEntries.add(new Pair<>(parcel, lastSection));
+            sectionPositions[i] = lastSection;
         }
 
+        mLog = log;
+        mSectionPositions = sectionPositions;
+
         notifyDataSetChanged();
     }
 
     @Override
     public int getItemCount() {
-        return mLogEntries != null ? mLogEntries.size() : 0;
+        return mLog != null ? mLog.size() : 0;
     }
 
     @Override
     public long getItemId(int position) {
-        OperationResult.LogEntryParcel parcel = getItem(position);
-        return parcel != null ? parcel.hashCode() : -1L;
+        // entries are created on access, so their hashCode isn't stable
+        return mLog != null ? position : -1L;
     }
 
     public OperationResult.LogEntryParcel getItem(int position) {
-        return mLogEntries != null ?
-                mLogEntries.get(position).first : null;
+        return mLog != null ?
+                mLog.get(position) : null;
     }
 
     public int getFirstSectionPosition(int position) {
-        return mLogEntries != null ?
-                mLogEntries.get(position).second : 0;
+        return mSectionPositions != null ?
+                mSectionPositions[position] : 0;
     }
 
     @Override
@@ -114,7 +109,7 @@ public class NestedLogAdapter extends RecyclerView.Adapter<NestedLogAdapter.LogE
     }
 
     public boolean isSection(int position) {
-        return mLogEntries != null && mLogEntries.get(position).second == position;
+        return mSectionPositions != null && mSectionPositions[position] == position;
     }
 
     @Override
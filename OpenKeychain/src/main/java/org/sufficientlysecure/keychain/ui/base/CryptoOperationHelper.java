@@ -143,8 +143,13 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
         mCancellable = cancellable;
     }
 
-    private void initiateInputActivity(RequiredInputParcel requiredInput,
-                                       CryptoInputParcel cryptoInputParcel) {
+    /**
+     * Starts the activity which asks the user for the required input. The operation is resumed
+     * from {@link #handleActivityResult} once that activity returns. Subclasses may override
+     * this to defer the interaction, e.g. to avoid showing several prompts at once.
+     */
+    protected void initiateInputActivity(RequiredInputParcel requiredInput,
+                                         CryptoInputParcel cryptoInputParcel) {
 
         Activity activity = mUseFragment ? mFragment.getActivity() : mActivity;
 
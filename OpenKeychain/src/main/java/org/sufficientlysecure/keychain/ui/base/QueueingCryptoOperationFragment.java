@@ -18,6 +18,8 @@
 package org.sufficientlysecure.keychain.ui.base;
 
 
+import java.util.ArrayList;
+
 import android.os.Bundle;
 import android.os.Parcelable;
 
@@ -30,7 +32,8 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult;
  * This subclass of CryptoOperationFragment substitutes the onCryptoOperation*
  * methods for onQueuedOperation* ones, which are ensured to be called while
  * the fragment is attached to an Activity, possibly delaying the call until
- * the Fragment is re-attached.
+ * the Fragment is re-attached. Results of several operations which finish
+ * while detached are delivered in the order they arrived.
  *
  * TODO merge this functionality into CryptoOperationFragment?
  *
@@ -40,7 +43,7 @@ public abstract class QueueingCryptoOperationFragment<T extends Parcelable, S ex
         extends CryptoOperationFragment<T,S> {
 
     public static final String ARG_QUEUED_RESULT = "queued_result";
-    private S mQueuedResult;
+    private ArrayList<S> mQueuedResults = new ArrayList<>();
 
     public QueueingCryptoOperationFragment() {
         super();
@@ -54,15 +57,12 @@ public abstract class QueueingCryptoOperationFragment<T extends Parcelable, S ex
     public void onViewStateRestored(Bundle savedInstanceState) {
         super.onViewStateRestored(savedInstanceState);
 
-        if (mQueuedResult != null) {
-            try {
-                if (mQueuedResult.success()) {
-                    onQueuedOperationSuccess(mQueuedResult);
-                } else {
-                    onQueuedOperationError(mQueuedResult);
-                }
-            } finally {
-                mQueuedResult = null;
+        while (!mQueuedResults.isEmpty()) {
+            S queuedResult = mQueuedResults.remove(0);
+            if (queuedResult.success()) {
+                onQueuedOperationSuccess(queuedResult);
+            } else {
+                onQueuedOperationError(queuedResult);
             }
         }
     }
@@ -71,7 +71,7 @@ public abstract class QueueingCryptoOperationFragment<T extends Parcelable, S ex
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
 
-        outState.putParcelable(ARG_QUEUED_RESULT, mQueuedResult);
+        outState.putParcelableArrayList(ARG_QUEUED_RESULT, mQueuedResults);
     }
 
     @Override
@@ -79,7 +79,10 @@ public abstract class QueueingCryptoOperationFragment<T extends Parcelable, S ex
         super.onCreate(savedInstanceState);
 
         if (savedInstanceState != null) {
-            mQueuedResult = savedInstanceState.getParcelable(ARG_QUEUED_RESULT);
+            ArrayList<S> queuedResults = savedInstanceState.getParcelableArrayList(ARG_QUEUED_RESULT);
+            if (queuedResults != null) {
+                mQueuedResults = queuedResults;
+            }
         }
     }
 
@@ -93,7 +96,7 @@ public abstract class QueueingCryptoOperationFragment<T extends Parcelable, S ex
     @Override
     final public void onCryptoOperationSuccess(S result) {
         if (getActivity() == null) {
-            mQueuedResult = result;
+            mQueuedResults.add(result);
             return;
         }
         onQueuedOperationSuccess(result);
@@ -102,7 +105,7 @@ public abstract class QueueingCryptoOperationFragment<T extends Parcelable, S ex
     @Override
     final public void onCryptoOperationError(S result) {
         if (getActivity() == null) {
-            mQueuedResult = result;
+            mQueuedResults.add(result);
             return;
         }
         onQueuedOperationError(result);
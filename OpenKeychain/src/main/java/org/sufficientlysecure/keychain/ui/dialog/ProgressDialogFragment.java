@@ -25,6 +25,7 @@ import android.content.DialogInterface.OnKeyListener;
 import android.content.Intent;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Messenger;
 import android.support.annotation.NonNull;
 import android.support.v4.app.DialogFragment;
 import android.view.ContextThemeWrapper;
@@ -45,6 +46,7 @@ public class ProgressDialogFragment extends DialogFragment {
     private static final String ARG_STYLE = "style";
     private static final String ARG_CANCELABLE = "cancelable";
     private static final String ARG_SERVICE_TYPE = "service_class";
+    private static final String ARG_MESSENGER = "messenger";
 
     boolean mCanCancel = false, mPreventCancel = false, mIsCancelled = false;
 
@@ -53,14 +55,17 @@ public class ProgressDialogFragment extends DialogFragment {
      * @param message the message to be displayed initially above the progress bar
      * @param style the progress bar style, as defined in ProgressDialog (horizontal or spinner)
      * @param cancelable should we let the user cancel this operation
+     * @param messenger the messenger the operation reports to, identifies it when cancelling
      * @return
      */
-    public static ProgressDialogFragment newInstance(String message, int style, boolean cancelable) {
+    public static ProgressDialogFragment newInstance(String message, int style, boolean cancelable,
+            Messenger messenger) {
         ProgressDialogFragment frag = new ProgressDialogFragment();
         Bundle args = new Bundle();
         args.putString(ARG_MESSAGE, message);
         args.putInt(ARG_STYLE, style);
         args.putBoolean(ARG_CANCELABLE, cancelable);
+        args.putParcelable(ARG_MESSENGER, messenger);
 
         frag.setArguments(args);
 
@@ -182,6 +187,9 @@ public class ProgressDialogFragment extends DialogFragment {
                 Intent serviceIntent = new Intent(getActivity(), KeychainService.class);
 
                 serviceIntent.setAction(KeychainService.ACTION_CANCEL);
+                // only cancels the operation which reports to this dialog's messenger
+                serviceIntent.putExtra(KeychainService.EXTRA_MESSENGER,
+                        getArguments().<Messenger>getParcelable(ARG_MESSENGER));
                 getActivity().startService(serviceIntent);
 
                 // Set the progress bar accordingly
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+
+/**
+ * A shared pool of I/O buffers for the crypto operations.
+ * <p/>
+ * Every sign/encrypt or decrypt/verify call needs a few 64KB buffers, plus the chunks of any
+ * pipelined streams it uses, which add up to a lot of garbage when the remote API is busy.
+ * Buffers obtained here must be handed back with release() once no stream uses them anymore.
+ * They are zeroed on release, since they may have held plaintext. Buffers that aren't released
+ * are simply garbage collected, so forgetting one on an error path does no harm beyond a missed
+ * chance for reuse.
+ * <p/>
+ * The pool only keeps a bounded number of buffers, surplus ones are dropped on release.
+ */
+public class BufferPool {
+    public static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_POOLED_BUFFERS = 32;
+
+    private static final BufferPool sInstance = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+    private final int mBufferSize;
+    private final int mMaxPooledBuffers;
+    private final ArrayDeque<byte[]> mFreeBuffers = new ArrayDeque<>();
+
+    private long mObtainCount;
+    private long mAllocationCount;
+
+    public static BufferPool getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    BufferPool(int bufferSize, int maxPooledBuffers) {
+        mBufferSize = bufferSize;
+        mMaxPooledBuffers = maxPooledBuffers;
+    }
+
+    @NonNull
+    public byte[] obtain() {
+        synchronized (this) {
+            mObtainCount++;
+            byte[] buffer = mFreeBuffers.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+            mAllocationCount++;
+        }
+        return new byte[mBufferSize];
+    }
+
+    /** Zeroes the buffer and returns it to the pool. Does nothing for null. */
+    public void release(@Nullable byte[] buffer) {
+        if (buffer == null || buffer.length != mBufferSize) {
+            return;
+        }
+        Arrays.fill(buffer, (byte) 0);
+        synchronized (this) {
+            if (mFreeBuffers.size() < mMaxPooledBuffers) {
+                mFreeBuffers.push(buffer);
+            }
+        }
+    }
+
+    public synchronized long getObtainCount() {
+        return mObtainCount;
+    }
+
+    /** @return number of buffers that had to be newly allocated, because the pool was empty */
+    public synchronized long getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return mAllocationCount * mBufferSize;
+    }
+
+    /**
+     * @return fraction of obtained buffers that were reused from the pool, or 0 if none were
+     * obtained yet
+     */
+    public synchronized float getReuseRate() {
+        return mObtainCount == 0 ? 0f : (float) (mObtainCount - mAllocationCount) / mObtainCount;
+    }
+
+    @VisibleForTesting
+    synchronized int getPooledCount() {
+        return mFreeBuffers.size();
+    }
+
+}
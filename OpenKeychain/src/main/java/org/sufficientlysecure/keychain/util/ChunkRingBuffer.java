@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * A fixed pool of chunks passed back and forth between a producer and a consumer thread.
+ * <p/>
+ * All chunks are allocated up front and circulate between a queue of free and a queue of
+ * filled chunks, so memory use is bounded and no buffers are allocated while streaming. A
+ * producer that runs out of free chunks blocks until the consumer hands one back, which gives
+ * us backpressure in both directions.
+ */
+class ChunkRingBuffer {
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    static final int DEFAULT_CHUNK_COUNT = 8;
+
+    static class Chunk {
+        final byte[] mData;
+        /** number of valid bytes in mData, or -1 to mark the end of the stream */
+        int mLength;
+        /** error that ended the stream, if any */
+        IOException mError;
+
+        Chunk(int size) {
+            mData = new byte[size];
+        }
+
+        Chunk(byte[] data) {
+            mData = data;
+        }
+
+        boolean isEndOfStream() {
+            return mLength < 0;
+        }
+
+        /** true for markers from putEndOfSegment(), which belong to the ring */
+        boolean isEndOfSegment() {
+            return mLength < 0 && mData.length > 0;
+        }
+    }
+
+    private final ArrayBlockingQueue<Chunk> mFreeChunks;
+    private final ArrayBlockingQueue<Chunk> mFilledChunks;
+
+    ChunkRingBuffer(int chunkSize, int chunkCount) {
+        mFreeChunks = new ArrayBlockingQueue<>(chunkCount);
+        // one extra slot, so an end of stream marker always fits
+        mFilledChunks = new ArrayBlockingQueue<>(chunkCount + 1);
+        // chunks of the default size come from the shared pool, whoever owns the ring must give
+        // them back through release()
+        boolean pooled = chunkSize == BufferPool.BUFFER_SIZE;
+        for (int i = 0; i < chunkCount; i++) {
+            byte[] data = pooled ? BufferPool.getInstance().obtain() : new byte[chunkSize];
+            mFreeChunks.add(new Chunk(data));
+        }
+    }
+
+    /**
+     * Returns the buffers of all chunks in the ring to the {@link BufferPool}, including filled
+     * ones that were never consumed. Must only be called once the other thread is done, the ring
+     * can't be used anymore afterwards.
+     */
+    void release() {
+        Chunk chunk;
+        while ((chunk = mFreeChunks.poll()) != null) {
+            BufferPool.getInstance().release(chunk.mData);
+        }
+        // end of stream markers have no buffer of the pool's size, release() ignores them
+        while ((chunk = mFilledChunks.poll()) != null) {
+            BufferPool.getInstance().release(chunk.mData);
+        }
+    }
+
+    Chunk takeFree() throws InterruptedIOException {
+        try {
+            Chunk chunk = mFreeChunks.take();
+            chunk.mLength = 0;
+            chunk.mError = null;
+            return chunk;
+        } catch (InterruptedException e) {
+            throw interrupted();
+        }
+    }
+
+    void putFree(Chunk chunk) {
+        // markers from putEndOfStream() aren't part of the ring
+        if (chunk.mData.length > 0) {
+            mFreeChunks.offer(chunk);
+        }
+    }
+
+    Chunk takeFilled() throws InterruptedIOException {
+        try {
+            return mFilledChunks.take();
+        } catch (InterruptedException e) {
+            throw interrupted();
+        }
+    }
+
+    void putFilled(Chunk chunk) {
+        mFilledChunks.offer(chunk);
+    }
+
+    /**
+     * Marks the end of one of several sources or sinks passing through the ring, or an error if
+     * one is given. The marker is the given free chunk, so it doesn't take an extra slot.
+     */
+    void putEndOfSegment(Chunk chunk, IOException error) {
+        chunk.mLength = -1;
+        chunk.mError = error;
+        mFilledChunks.offer(chunk);
+    }
+
+    /** Marks the end of the stream, or an error if one is given. Never blocks. */
+    void putEndOfStream(IOException error) {
+        Chunk marker = new Chunk(0);
+        marker.mLength = -1;
+        marker.mError = error;
+        mFilledChunks.offer(marker);
+    }
+
+    private static InterruptedIOException interrupted() {
+        Thread.currentThread().interrupt();
+        return new InterruptedIOException("interrupted while waiting for pipeline");
+    }
+
+}
@@ -17,27 +17,67 @@
 
 package org.sufficientlysecure.keychain.util;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
 import android.os.Parcel;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
 
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import timber.log.Timber;
 
 /**
  * If Parcelables are above 1 MB, Android OS fails to send them via the Binder IPC:
  * JavaBinder  E  !!! FAILED BINDER TRANSACTION !!!
  * To overcome this issue this class allows to cache Parcelables, mapped by unique UUIDs,
  * which are written to the parcel instead of the whole Parcelable.
+ * <p/>
+ * An object is only removed from the cache once it is read back, which never happens if the
+ * receiving end of the parcel dies. To keep such orphans from piling up, the cache is bounded by
+ * age and by total weight as determined by the {@link EvictionPolicy}. When over weight, the
+ * eldest objects are first truncated, then dropped. Reading a dropped object yields the policy's
+ * fallback instead of null.
  */
 public class ParcelableCache<E> {
 
     private static final UUID NULL_UUID = new UUID(0, 0);
 
+    public static final long DEFAULT_MAX_AGE_MILLIS = 60 * 60 * 1000;
+
+    public interface EvictionPolicy<E> {
+        /** @return the weight of an object, counted against the cache's maximum weight */
+        int getWeight(E object);
+
+        /** @return a lighter version of the object to keep when over weight, or null to drop it */
+        @Nullable
+        E truncate(E object);
+
+        /** @return the object returned in place of one that was dropped from the cache */
+        E createFallback();
+    }
+
     /**
-     * A HashMap of UUID:Object
+     * A LinkedHashMap of UUID:Object, in insertion order so the eldest entries come first.
      * This is used such that when we become parceled, we are
      * well below the 1 MB boundary that is specified.
      */
-    private ConcurrentHashMap<UUID, E> objectCache = new ConcurrentHashMap<>();
+    private final LinkedHashMap<UUID, CacheEntry<E>> objectCache = new LinkedHashMap<>();
+
+    private final EvictionPolicy<E> evictionPolicy;
+    private final long maxWeight;
+    private final long maxAgeMillis;
+
+    private long totalWeight;
+    private long orphanedCount;
+    private long truncatedCount;
+
+    public ParcelableCache(EvictionPolicy<E> evictionPolicy, long maxWeight, long maxAgeMillis) {
+        this.evictionPolicy = evictionPolicy;
+        this.maxWeight = maxWeight;
+        this.maxAgeMillis = maxAgeMillis;
+    }
 
     /**
      * Dehydrate a Parcelable (such that it is available after deparcelization)
@@ -46,14 +86,21 @@ public class ParcelableCache<E> {
      * @param parcelable A Parcelable to dehydrate
      * @return a UUID, the ticket for your dehydrated Parcelable
      */
-    private UUID dehydrateParcelable(E parcelable) {
+    private synchronized UUID dehydrateParcelable(E parcelable) {
         if (parcelable == null) {
             return NULL_UUID;
-        } else {
-            UUID uuid = UUID.randomUUID();
-            objectCache.put(uuid, parcelable);
-            return uuid;
         }
+
+        long now = SystemClock.elapsedRealtime();
+        evictExpired(now);
+
+        UUID uuid = UUID.randomUUID();
+        CacheEntry<E> entry = new CacheEntry<>(parcelable, evictionPolicy.getWeight(parcelable), now);
+        objectCache.put(uuid, entry);
+        totalWeight += entry.weight;
+
+        evictOverweight(entry);
+        return uuid;
     }
 
     /**
@@ -64,14 +111,72 @@ public class ParcelableCache<E> {
      * @param uuid A UUID ticket that identifies the log in question.
      * @return An OperationLog.
      */
-    private E rehydrateParcelable(UUID uuid) {
+    private synchronized E rehydrateParcelable(UUID uuid) {
         // UUID.equals isn't well documented; we use compareTo instead.
         if (NULL_UUID.compareTo(uuid) == 0) {
             return null;
-        } else {
-            E parcelable = objectCache.get(uuid);
-            objectCache.remove(uuid);
-            return parcelable;
+        }
+
+        CacheEntry<E> entry = objectCache.remove(uuid);
+        if (entry == null) {
+            Timber.w("Parcelable was evicted from cache before it was read, using fallback");
+            return evictionPolicy.createFallback();
+        }
+        totalWeight -= entry.weight;
+        return entry.object;
+    }
+
+    private void evictExpired(long now) {
+        Iterator<CacheEntry<E>> it = objectCache.values().iterator();
+        while (it.hasNext()) {
+            CacheEntry<E> entry = it.next();
+            if (now - entry.timestamp <= maxAgeMillis) {
+                // insertion order, all later entries are younger
+                break;
+            }
+            it.remove();
+            totalWeight -= entry.weight;
+            orphanedCount += 1;
+        }
+    }
+
+    /**
+     * Makes room for newEntry, by truncating and then dropping older entries. newEntry is about
+     * to be read, so it is kept as it is, even if it alone is over the maximum weight.
+     */
+    private void evictOverweight(CacheEntry<E> newEntry) {
+        // first pass: truncate older entries, eldest first
+        for (CacheEntry<E> entry : objectCache.values()) {
+            if (totalWeight <= maxWeight) {
+                return;
+            }
+            if (entry.truncated || entry == newEntry) {
+                continue;
+            }
+            E truncated = evictionPolicy.truncate(entry.object);
+            entry.truncated = true;
+            if (truncated == null) {
+                continue;
+            }
+            int truncatedWeight = evictionPolicy.getWeight(truncated);
+            if (truncatedWeight < entry.weight) {
+                totalWeight -= entry.weight - truncatedWeight;
+                entry.object = truncated;
+                entry.weight = truncatedWeight;
+                truncatedCount += 1;
+            }
+        }
+
+        // second pass: drop older entries, eldest first
+        Iterator<Map.Entry<UUID, CacheEntry<E>>> it = objectCache.entrySet().iterator();
+        while (totalWeight > maxWeight && it.hasNext()) {
+            CacheEntry<E> entry = it.next().getValue();
+            if (entry == newEntry) {
+                continue;
+            }
+            it.remove();
+            totalWeight -= entry.weight;
+            orphanedCount += 1;
         }
     }
 
@@ -91,4 +196,35 @@ public class ParcelableCache<E> {
         dest.writeLong(mTicket.getLeastSignificantBits());
     }
 
+    /** @return number of objects which were evicted before they were read back */
+    public synchronized long getOrphanedCount() {
+        return orphanedCount;
+    }
+
+    /** @return number of objects which were truncated to stay below the maximum weight */
+    public synchronized long getTruncatedCount() {
+        return truncatedCount;
+    }
+
+    public synchronized int size() {
+        return objectCache.size();
+    }
+
+    public synchronized long getTotalWeight() {
+        return totalWeight;
+    }
+
+    private static class CacheEntry<E> {
+        E object;
+        int weight;
+        boolean truncated;
+        final long timestamp;
+
+        CacheEntry(E object, int weight, long timestamp) {
+            this.object = object;
+            this.weight = weight;
+            this.timestamp = timestamp;
+        }
+    }
+
 }
@@ -18,15 +18,19 @@
 package org.sufficientlysecure.keychain.util;
 
 
-import java.io.DataInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import android.content.Context;
 import android.os.Parcel;
@@ -41,9 +45,24 @@ import timber.log.Timber;
  * <p/>
  * To overcome this problem, we cache large Parcelables into a file in our private cache directory
  * instead of sending them through IPC.
+ * <p/>
+ * The file consists of a header, the length-prefixed marshalled entries, and a trailer with the
+ * offset of each entry. Files are read through a memory mapping, which allows random access
+ * (see {@link #openCache()}) and splitting the entries into disjoint ranges that can be consumed
+ * concurrently. Files in the older format without header and trailer can still be read.
  */
 public class ParcelableFileCache<E extends Parcelable> {
 
+    private static final int HEADER_MAGIC = 0x50434c01;
+    private static final int TRAILER_MAGIC = 0x50434c49;
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int HEADER_SIZE = 8;
+    // number of entries, offset of the index, magic
+    private static final int TRAILER_SIZE = 12;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
     private Context mContext;
 
     private final String mFilename;
@@ -54,47 +73,81 @@ public class ParcelableFileCache<E extends Parcelable> {
     }
 
     public void writeCache(int numEntries, Iterator<E> it) throws IOException {
-        DataOutputStream oos = getOutputStream();
+        File cacheFile = getCacheFile();
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
 
+        DataOutputStream oos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile), WRITE_BUFFER_SIZE));
         try {
-            oos.writeInt(numEntries);
+            oos.writeInt(HEADER_MAGIC);
+            oos.writeInt(FORMAT_VERSION);
+
+            int[] offsets = new int[Math.max(numEntries, 16)];
+            int count = 0;
             while (it.hasNext()) {
+                if (count == offsets.length) {
+                    int[] newOffsets = new int[offsets.length * 2];
+                    System.arraycopy(offsets, 0, newOffsets, 0, count);
+                    offsets = newOffsets;
+                }
+                offsets[count++] = oos.size();
                 writeParcelable(it.next(), oos);
             }
-        } finally {
+
+            int indexOffset = oos.size();
+            for (int i = 0; i < count; i++) {
+                oos.writeInt(offsets[i]);
+            }
+            oos.writeInt(count);
+            oos.writeInt(indexOffset);
+            oos.writeInt(TRAILER_MAGIC);
+
+            // DataOutputStream.size() saturates instead of overflowing
+            if (oos.size() == Integer.MAX_VALUE) {
+                throw new IOException("cache file too large!");
+            }
+        } catch (IOException e) {
             oos.close();
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw e;
+        }
+        oos.close();
+
+        // only move the file into place once it is complete
+        if (!tempFile.renameTo(cacheFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("could not move cache file into place!");
         }
     }
 
     public void writeCache(E obj) throws IOException {
-        DataOutputStream oos = getOutputStream();
-
-        try {
-            oos.writeInt(1);
-            writeParcelable(obj, oos);
-        } finally {
-            oos.close();
-        }
+        ArrayList<E> list = new ArrayList<>(1);
+        list.add(obj);
+        writeCache(1, list.iterator());
     }
 
     private void writeParcelable(E obj, DataOutputStream oos) throws IOException {
         Parcel p = Parcel.obtain(); // creating empty parcel object
-        p.writeParcelable(obj, 0); // saving bundle as parcel
-        byte[] buf = p.marshall();
-        oos.writeInt(buf.length);
-        oos.write(buf);
-        p.recycle();
+        try {
+            p.writeParcelable(obj, 0); // saving bundle as parcel
+            byte[] buf = p.marshall();
+            oos.writeInt(buf.length);
+            oos.write(buf);
+        } finally {
+            p.recycle();
+        }
     }
 
-    private DataOutputStream getOutputStream() throws IOException {
+    private File getCacheFile() throws IOException {
         File cacheDir = mContext.getCacheDir();
         if (cacheDir == null) {
             // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
             throw new IOException("cache dir is null!");
         }
 
-        File tempFile = new File(mContext.getCacheDir(), mFilename);
-        return new DataOutputStream(new FileOutputStream(tempFile));
+        return new File(cacheDir, mFilename);
     }
 
     /**
@@ -116,75 +169,29 @@ public class ParcelableFileCache<E extends Parcelable> {
      *                     occurs
      */
     public IteratorWithSize<E> readCache(final boolean deleteAfterRead) throws IOException {
-
-        File cacheDir = mContext.getCacheDir();
-        if (cacheDir == null) {
-            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
-            throw new IOException("cache dir is null!");
-        }
-
-        final File tempFile = new File(cacheDir, mFilename);
-        final DataInputStream ois;
-        try {
-            ois = new DataInputStream(new FileInputStream(tempFile));
-        } catch (FileNotFoundException e) {
-            Timber.e(e, "parcel import file not existing");
-            throw new IOException(e);
-        }
-
-        final int numEntries = ois.readInt();
+        final File tempFile = getCacheFile();
+        final IteratorWithSize<E> it = openCache().iterator();
 
         return new IteratorWithSize<E>() {
-
-            E mRing = null;
             boolean closed = false;
-            byte[] buf = new byte[512];
 
+            @Override
             public int getSize() {
-                return numEntries;
-            }
-
-            private void readNext() {
-                if (mRing != null || closed) {
-                    return;
-                }
-
-                try {
-
-                    int length = ois.readInt();
-                    while (buf.length < length) {
-                        buf = new byte[buf.length * 2];
-                    }
-                    ois.readFully(buf, 0, length);
-
-                    Parcel parcel = Parcel.obtain(); // creating empty parcel object
-                    parcel.unmarshall(buf, 0, length);
-                    parcel.setDataPosition(0);
-                    mRing = parcel.readParcelable(KeychainApplication.class.getClassLoader());
-                    parcel.recycle();
-                } catch (EOFException e) {
-                    // aight
-                    close();
-                } catch (IOException e) {
-                    Timber.e(e, "Encountered IOException during cache read!");
-                }
-
+                return it.getSize();
             }
 
             @Override
             public boolean hasNext() {
-                readNext();
-                return mRing != null;
+                if (it.hasNext()) {
+                    return true;
+                }
+                close();
+                return false;
             }
 
             @Override
             public E next() {
-                readNext();
-                try {
-                    return mRing;
-                } finally {
-                    mRing = null;
-                }
+                return it.next();
             }
 
             @Override
@@ -192,40 +199,262 @@ public class ParcelableFileCache<E extends Parcelable> {
                 throw new UnsupportedOperationException();
             }
 
-            @Override
-            public void finalize() throws Throwable {
-                close();
-                super.finalize();
-            }
-
             private void close() {
-                if (!closed) {
-                    try {
-                        ois.close();
-                        if (deleteAfterRead) {
-                            //noinspection ResultOfMethodCallIgnored
-                            tempFile.delete();
-                        }
-                    } catch (IOException e) {
-                        // nvm
-                    }
+                if (!closed && deleteAfterRead) {
+                    //noinspection ResultOfMethodCallIgnored
+                    tempFile.delete();
                 }
                 closed = true;
             }
+        };
+    }
 
+    /**
+     * Opens the cache file for random access. The file stays untouched, use {@link #delete()} once
+     * it's no longer needed.
+     *
+     * @throws IOException if cache directory/parcel import file does not exist, or the file is
+     *                     malformed
+     */
+    public CacheReader<E> openCache() throws IOException {
+        File tempFile = getCacheFile();
 
-        };
+        RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(tempFile, "r");
+        } catch (FileNotFoundException e) {
+            Timber.e(e, "parcel import file not existing");
+            throw new IOException(e);
+        }
+
+        ByteBuffer buffer;
+        try {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("cache file too large!");
+            }
+            // the mapping stays valid after the channel is closed
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            file.close();
+        }
+
+        return new CacheReader<>(buffer, readOffsets(buffer));
+    }
+
+    private static int[] readOffsets(ByteBuffer buffer) throws IOException {
+        int length = buffer.limit();
+        if (length >= HEADER_SIZE + TRAILER_SIZE && buffer.getInt(0) == HEADER_MAGIC) {
+            if (buffer.getInt(4) != FORMAT_VERSION) {
+                throw new IOException("unknown cache file version!");
+            }
+            return readIndex(buffer);
+        }
+        return scanLegacyFormat(buffer);
+    }
+
+    private static int[] readIndex(ByteBuffer buffer) throws IOException {
+        int trailerOffset = buffer.limit() - TRAILER_SIZE;
+        int count = buffer.getInt(trailerOffset);
+        int indexOffset = buffer.getInt(trailerOffset + 4);
+        if (buffer.getInt(trailerOffset + 8) != TRAILER_MAGIC || count < 0 || indexOffset < HEADER_SIZE
+                || (long) indexOffset + 4L * count != trailerOffset) {
+            throw new IOException("malformed cache file trailer!");
+        }
+
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = buffer.getInt(indexOffset + 4 * i);
+            checkEntry(buffer, offsets[i], indexOffset);
+        }
+        return offsets;
+    }
+
+    /**
+     * Builds the index for a file in the old format, which is an entry count followed by the
+     * entries. Like the old sequential reader, this stops at the first truncated entry.
+     */
+    private static int[] scanLegacyFormat(ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < 4) {
+            throw new IOException("malformed cache file!");
+        }
+
+        int numEntries = buffer.getInt(0);
+        int[] offsets = new int[Math.max(0, Math.min(numEntries, buffer.limit() / 4))];
+        int count = 0;
+        int offset = 4;
+        while (count < offsets.length && offset + 4 <= buffer.limit()) {
+            int entryLength = buffer.getInt(offset);
+            if (entryLength < 0 || (long) offset + 4 + entryLength > buffer.limit()) {
+                break;
+            }
+            offsets[count++] = offset;
+            offset += 4 + entryLength;
+        }
+
+        if (count < offsets.length) {
+            int[] truncated = new int[count];
+            System.arraycopy(offsets, 0, truncated, 0, count);
+            return truncated;
+        }
+        return offsets;
+    }
+
+    private static void checkEntry(ByteBuffer buffer, int offset, int end) throws IOException {
+        if (offset < HEADER_SIZE || offset + 4 > end) {
+            throw new IOException("malformed cache file index!");
+        }
+        int entryLength = buffer.getInt(offset);
+        if (entryLength < 0 || (long) offset + 4 + entryLength > end) {
+            throw new IOException("malformed cache file index!");
+        }
     }
 
     public boolean delete() throws IOException {
-        File cacheDir = mContext.getCacheDir();
-        if (cacheDir == null) {
-            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
-            throw new IOException("cache dir is null!");
+        return getCacheFile().delete();
+    }
+
+    /**
+     * Random access to the entries of a cache file. All methods may be called from several threads
+     * concurrently, but each returned iterator must only be used by a single thread.
+     */
+    public static class CacheReader<E extends Parcelable> {
+        private final ByteBuffer mBuffer;
+        private final int[] mOffsets;
+
+        CacheReader(ByteBuffer buffer, int[] offsets) {
+            mBuffer = buffer;
+            mOffsets = offsets;
+        }
+
+        public int getSize() {
+            return mOffsets.length;
         }
 
-        final File tempFile = new File(cacheDir, mFilename);
-        return tempFile.delete();
+        public E get(int index) {
+            ByteBuffer buffer = mBuffer.duplicate();
+            return readEntry(buffer, mOffsets[index], null);
+        }
+
+        public IteratorWithSize<E> iterator() {
+            return iterator(0, mOffsets.length);
+        }
+
+        /**
+         * @return an iterator over the entries from fromIndex (inclusive) to toIndex (exclusive)
+         */
+        public IteratorWithSize<E> iterator(final int fromIndex, final int toIndex) {
+            if (fromIndex < 0 || toIndex > mOffsets.length || fromIndex > toIndex) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            final ByteBuffer buffer = mBuffer.duplicate();
+            return new IteratorWithSize<E>() {
+                int mIndex = fromIndex;
+                byte[] mBuf = new byte[512];
+
+                @Override
+                public int getSize() {
+                    return toIndex - fromIndex;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return mIndex < toIndex;
+                }
+
+                @Override
+                public E next() {
+                    if (mIndex >= toIndex) {
+                        throw new NoSuchElementException();
+                    }
+                    int length = buffer.getInt(mOffsets[mIndex]);
+                    while (mBuf.length < length) {
+                        mBuf = new byte[mBuf.length * 2];
+                    }
+                    return readEntry(buffer, mOffsets[mIndex++], mBuf);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        /**
+         * @return an iterator over the entries at the given indices, in the given order
+         */
+        public IteratorWithSize<E> iterator(final int[] indices) {
+            final ByteBuffer buffer = mBuffer.duplicate();
+            return new IteratorWithSize<E>() {
+                int mIndex = 0;
+
+                @Override
+                public int getSize() {
+                    return indices.length;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return mIndex < indices.length;
+                }
+
+                @Override
+                public E next() {
+                    if (mIndex >= indices.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return readEntry(buffer, mOffsets[indices[mIndex++]], null);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        /**
+         * Splits the entries into at most numRanges disjoint, contiguous ranges of about equal
+         * size, in order.
+         */
+        public List<IteratorWithSize<E>> split(int numRanges) {
+            if (numRanges < 1) {
+                throw new IllegalArgumentException("numRanges must be positive");
+            }
+            int size = mOffsets.length;
+            numRanges = Math.max(1, Math.min(numRanges, size));
+
+            List<IteratorWithSize<E>> ranges = new ArrayList<>(numRanges);
+            for (int i = 0; i < numRanges; i++) {
+                int fromIndex = (int) ((long) size * i / numRanges);
+                int toIndex = (int) ((long) size * (i + 1) / numRanges);
+                ranges.add(iterator(fromIndex, toIndex));
+            }
+            return ranges;
+        }
+
+        /**
+         * @param buf a buffer large enough for the entry, or null to allocate one
+         */
+        private E readEntry(ByteBuffer buffer, int offset, byte[] buf) {
+            int length = buffer.getInt(offset);
+            if (buf == null) {
+                buf = new byte[length];
+            }
+            buffer.position(offset + 4);
+            buffer.get(buf, 0, length);
+
+            Parcel parcel = Parcel.obtain(); // creating empty parcel object
+            try {
+                parcel.unmarshall(buf, 0, length);
+                parcel.setDataPosition(0);
+                return parcel.readParcelable(KeychainApplication.class.getClassLoader());
+            } finally {
+                parcel.recycle();
+            }
+        }
     }
 
 }
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import org.sufficientlysecure.keychain.util.ChunkRingBuffer.Chunk;
+
+
+/**
+ * An InputStream which reads ahead from another stream on a separate thread.
+ * <p/>
+ * This overlaps reading from slow sources like the pipe of a remote API client with the work
+ * done on the data. The reader thread fills a fixed ring of chunks and blocks while all of them
+ * are waiting to be consumed, so it never gets more than a few chunks ahead.
+ * <p/>
+ * Several sources can be read one after another through the same thread and ring. Each of them
+ * reads as a stream of its own: the end of a source is returned as the end of the stream, and
+ * {@link #nextSegment()} continues with the next one. The reader thread already reads ahead into
+ * the next source while the current one is still being consumed, and closes every source once
+ * it reached its end.
+ * <p/>
+ * Reading is not thread safe, as with most streams only a single consumer thread is expected.
+ */
+public class PipelinedInputStream extends InputStream {
+    private static final long READER_JOIN_TIMEOUT_MS = 1000;
+
+    private final InputStream[] mSources;
+    private final ChunkRingBuffer mRing;
+    private final Thread mReaderThread;
+
+    private Chunk mCurrentChunk;
+    private int mCurrentPos;
+    private int mSegment;
+    private boolean mEndOfSegment;
+    // the reader stopped early, no further segments will follow
+    private boolean mEndOfStream;
+    private volatile boolean mClosed;
+
+    public PipelinedInputStream(InputStream in, String name) {
+        this(new InputStream[] { in }, name);
+    }
+
+    public PipelinedInputStream(InputStream[] sources, String name) {
+        this(sources, name, ChunkRingBuffer.DEFAULT_CHUNK_SIZE, ChunkRingBuffer.DEFAULT_CHUNK_COUNT);
+    }
+
+    public PipelinedInputStream(InputStream in, String name, int chunkSize, int chunkCount) {
+        this(new InputStream[] { in }, name, chunkSize, chunkCount);
+    }
+
+    public PipelinedInputStream(InputStream[] sources, String name, int chunkSize, int chunkCount) {
+        mSources = sources;
+        mRing = new ChunkRingBuffer(chunkSize, chunkCount);
+
+        mReaderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readAhead();
+            }
+        }, name);
+        mReaderThread.setDaemon(true);
+        mReaderThread.start();
+    }
+
+    private void readAhead() {
+        try {
+            for (InputStream source : mSources) {
+                readSource(source);
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                mRing.putEndOfStream(e);
+            }
+        }
+    }
+
+    /**
+     * Reads a source up to its end, which is marked in the ring. A read error only ends this
+     * source, the next one may well be readable.
+     */
+    private void readSource(InputStream source) throws IOException {
+        try {
+            while (true) {
+                Chunk chunk = mRing.takeFree();
+                int read;
+                try {
+                    read = source.read(chunk.mData, 0, chunk.mData.length);
+                } catch (IOException e) {
+                    if (mClosed) {
+                        throw e;
+                    }
+                    mRing.putEndOfSegment(chunk, e);
+                    return;
+                }
+                if (read < 0) {
+                    mRing.putEndOfSegment(chunk, null);
+                    return;
+                }
+                chunk.mLength = read;
+                mRing.putFilled(chunk);
+            }
+        } finally {
+            closeQuietly(source);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillCurrentChunk()) {
+            return -1;
+        }
+        return mCurrentChunk.mData[mCurrentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fillCurrentChunk()) {
+            return -1;
+        }
+        int count = Math.min(len, mCurrentChunk.mLength - mCurrentPos);
+        System.arraycopy(mCurrentChunk.mData, mCurrentPos, b, off, count);
+        mCurrentPos += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mCurrentChunk != null ? mCurrentChunk.mLength - mCurrentPos : 0;
+    }
+
+    /**
+     * Continues with the next source. Whatever is left of the current one is skipped, including
+     * a read error.
+     *
+     * @return false if there is no next source
+     */
+    public boolean nextSegment() throws IOException {
+        if (mClosed) {
+            throw new IOException("stream closed");
+        }
+        while (!mEndOfSegment) {
+            try {
+                fillCurrentChunk();
+                if (mCurrentChunk != null) {
+                    mCurrentPos = mCurrentChunk.mLength;
+                }
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                // error of the skipped source, it ended there
+            }
+        }
+        if (mEndOfStream || mSegment + 1 >= mSources.length) {
+            return false;
+        }
+        mSegment += 1;
+        mEndOfSegment = false;
+        return true;
+    }
+
+    /** @return false if the end of the current source was reached */
+    private boolean fillCurrentChunk() throws IOException {
+        if (mClosed) {
+            throw new IOException("stream closed");
+        }
+        while (!mEndOfSegment && (mCurrentChunk == null || mCurrentPos >= mCurrentChunk.mLength)) {
+            if (mCurrentChunk != null) {
+                mRing.putFree(mCurrentChunk);
+                mCurrentChunk = null;
+            }
+
+            Chunk chunk = mRing.takeFilled();
+            if (chunk.isEndOfStream()) {
+                mEndOfSegment = true;
+                mEndOfStream = !chunk.isEndOfSegment();
+                IOException error = chunk.mError;
+                mRing.putFree(chunk);
+                if (error != null) {
+                    throw error;
+                }
+                break;
+            }
+            mCurrentChunk = chunk;
+            mCurrentPos = 0;
+        }
+        return !mEndOfSegment;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        // the reader may be waiting for a free chunk, or blocked in a read of a source. the
+        // latter is only resolved by closing the source, or the other end of it for pipes.
+        mReaderThread.interrupt();
+        IOException closeError = null;
+        for (InputStream source : mSources) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                if (closeError == null) {
+                    closeError = e;
+                }
+            }
+        }
+
+        try {
+            mReaderThread.join(READER_JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (mReaderThread.isAlive()) {
+            // still stuck in a read, its chunks are left to the garbage collector
+            return;
+        }
+        if (mCurrentChunk != null) {
+            mRing.putFree(mCurrentChunk);
+            mCurrentChunk = null;
+        }
+        mRing.release();
+
+        if (closeError != null) {
+            throw closeError;
+        }
+    }
+
+    private static void closeQuietly(InputStream source) {
+        try {
+            source.close();
+        } catch (IOException e) {
+            // nvm
+        }
+    }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+
+import org.sufficientlysecure.keychain.util.ChunkRingBuffer.Chunk;
+
+
+/**
+ * An OutputStream which writes to another stream on a separate thread.
+ * <p/>
+ * Data is collected in chunks from a fixed ring, which are handed to the writer thread once
+ * full. Writes only block while all chunks are waiting to be written, so the producer can keep
+ * working while a slow sink like the pipe of a remote API client catches up.
+ * <p/>
+ * Errors of the underlying stream are thrown from the next write after they occurred, or from
+ * close() at the latest. flush() hands off buffered data, but does not wait for it to be
+ * written. Only close() does that, and it must be called to make sure all data arrived. The
+ * underlying stream is flushed and closed from the writer thread.
+ * <p/>
+ * Several sinks can be written one after another through the same thread and ring.
+ * {@link #finishSegment()} waits until the current sink is flushed and closed, throws its
+ * errors if there were any, and continues with the next one. Sinks that were never written
+ * to are closed with the stream.
+ */
+public class PipelinedOutputStream extends OutputStream {
+    private final OutputStream[] mSinks;
+    private final ChunkRingBuffer mRing;
+    private final Thread mWriterThread;
+    private final Semaphore mSegmentFinished = new Semaphore(0);
+
+    private Chunk mCurrentChunk;
+    private int mSegment;
+    // error of the sink currently written to, reset by the writer when it moves on
+    private volatile IOException mWriteError;
+    // error of the last finished sink, handed over through mSegmentFinished
+    private IOException mSegmentError;
+    private boolean mClosed;
+
+    public PipelinedOutputStream(OutputStream out, String name) {
+        this(new OutputStream[] { out }, name);
+    }
+
+    public PipelinedOutputStream(OutputStream[] sinks, String name) {
+        this(sinks, name, ChunkRingBuffer.DEFAULT_CHUNK_SIZE, ChunkRingBuffer.DEFAULT_CHUNK_COUNT);
+    }
+
+    public PipelinedOutputStream(OutputStream out, String name, int chunkSize, int chunkCount) {
+        this(new OutputStream[] { out }, name, chunkSize, chunkCount);
+    }
+
+    public PipelinedOutputStream(OutputStream[] sinks, String name, int chunkSize, int chunkCount) {
+        mSinks = sinks;
+        mRing = new ChunkRingBuffer(chunkSize, chunkCount);
+
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBehind();
+            }
+        }, name);
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    private void writeBehind() {
+        int sink = 0;
+        try {
+            while (sink < mSinks.length) {
+                Chunk chunk = mRing.takeFilled();
+                if (chunk.isEndOfSegment()) {
+                    mRing.putFree(chunk);
+                    finishSink(sink++);
+                    mSegmentError = mWriteError;
+                    mWriteError = null;
+                    mSegmentFinished.release();
+                    continue;
+                }
+                if (chunk.isEndOfStream()) {
+                    if (mWriteError == null) {
+                        mSinks[sink].flush();
+                    }
+                    return;
+                }
+
+                // after an error, keep returning chunks so the producer doesn't block forever
+                if (mWriteError == null) {
+                    try {
+                        mSinks[sink].write(chunk.mData, 0, chunk.mLength);
+                    } catch (IOException e) {
+                        mWriteError = e;
+                    }
+                }
+                mRing.putFree(chunk);
+            }
+        } catch (IOException e) {
+            mWriteError = e;
+        } finally {
+            // closed from this thread, some sinks don't like their writer to go away first
+            for (int i = sink; i < mSinks.length; i++) {
+                closeSink(i);
+            }
+        }
+    }
+
+    private void finishSink(int sink) {
+        if (mWriteError == null) {
+            try {
+                mSinks[sink].flush();
+            } catch (IOException e) {
+                mWriteError = e;
+            }
+        }
+        closeSink(sink);
+    }
+
+    private void closeSink(int sink) {
+        try {
+            mSinks[sink].close();
+        } catch (IOException e) {
+            if (mWriteError == null) {
+                mWriteError = e;
+            }
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureChunk();
+        mCurrentChunk.mData[mCurrentChunk.mLength++] = (byte) b;
+        if (mCurrentChunk.mLength == mCurrentChunk.mData.length) {
+            handOff();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensureChunk();
+            int count = Math.min(len, mCurrentChunk.mData.length - mCurrentChunk.mLength);
+            System.arraycopy(b, off, mCurrentChunk.mData, mCurrentChunk.mLength, count);
+            mCurrentChunk.mLength += count;
+            off += count;
+            len -= count;
+            if (mCurrentChunk.mLength == mCurrentChunk.mData.length) {
+                handOff();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkWriteError();
+        if (mCurrentChunk != null && mCurrentChunk.mLength > 0) {
+            handOff();
+        }
+    }
+
+    /**
+     * Waits until everything written so far arrived in the current sink, and closes it. Further
+     * writes go to the next sink.
+     *
+     * @throws IOException if writing to or closing the current sink failed
+     */
+    public void finishSegment() throws IOException {
+        checkOpenSegment();
+        if (mCurrentChunk == null) {
+            mCurrentChunk = mRing.takeFree();
+        } else if (mCurrentChunk.mLength > 0) {
+            handOff();
+            mCurrentChunk = mRing.takeFree();
+        }
+        mRing.putEndOfSegment(mCurrentChunk, null);
+        mCurrentChunk = null;
+        mSegment += 1;
+
+        try {
+            mSegmentFinished.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for writer");
+        }
+        IOException error = mSegmentError;
+        mSegmentError = null;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Returns a view on the current sink for code that closes the stream it writes to. Closing
+     * the view finishes the segment, see {@link #finishSegment()}.
+     */
+    public OutputStream segmentStream() {
+        return new OutputStream() {
+            private boolean mFinished;
+
+            @Override
+            public void write(int b) throws IOException {
+                checkFinished();
+                PipelinedOutputStream.this.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                checkFinished();
+                PipelinedOutputStream.this.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                checkFinished();
+                PipelinedOutputStream.this.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+                finishSegment();
+            }
+
+            private void checkFinished() throws IOException {
+                if (mFinished) {
+                    throw new IOException("stream closed");
+                }
+            }
+        };
+    }
+
+    private void ensureChunk() throws IOException {
+        checkOpenSegment();
+        checkWriteError();
+        if (mCurrentChunk == null) {
+            mCurrentChunk = mRing.takeFree();
+        }
+    }
+
+    private void checkOpenSegment() throws IOException {
+        if (mClosed) {
+            throw new IOException("stream closed");
+        }
+        if (mSegment >= mSinks.length) {
+            throw new IOException("no sink left to write to");
+        }
+    }
+
+    private void handOff() {
+        mRing.putFilled(mCurrentChunk);
+        mCurrentChunk = null;
+    }
+
+    private void checkWriteError() throws IOException {
+        if (mWriteError != null) {
+            throw mWriteError;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        if (mCurrentChunk != null && mCurrentChunk.mLength > 0) {
+            handOff();
+        } else if (mCurrentChunk != null) {
+            mRing.putFree(mCurrentChunk);
+            mCurrentChunk = null;
+        }
+        mRing.putEndOfStream(null);
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            mWriterThread.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for writer");
+        }
+        // the writer has handed back all chunks by now
+        mRing.release();
+        checkWriteError();
+    }
+
+}
@@ -226,6 +226,16 @@ public class Preferences {
         return mSharedPreferences.getBoolean(Pref.TEXT_SELF_ENCRYPT, true);
     }
 
+    public void setDecryptParallelism(int parallelism) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putInt(Pref.DECRYPT_PARALLELISM, parallelism);
+        editor.commit();
+    }
+
+    public int getDecryptParallelism() {
+        return mSharedPreferences.getInt(Pref.DECRYPT_PARALLELISM, 3);
+    }
+
     public String getTheme() {
         return mSharedPreferences.getString(Pref.THEME, Pref.Theme.LIGHT);
     }
@@ -361,6 +371,28 @@ public class Preferences {
         editor.commit();
     }
 
+    @Nullable
+    public String getCryptoProviderSelection() {
+        return mSharedPreferences.getString(Pref.CRYPTO_PROVIDER_SELECTION, null);
+    }
+
+    public void setCryptoProviderSelection(String selection) {
+        Editor editor = mSharedPreferences.edit();
+        editor.putString(Pref.CRYPTO_PROVIDER_SELECTION, selection);
+        editor.commit();
+    }
+
+    @Nullable
+    public String getS2KCalibration() {
+        return mSharedPreferences.getString(Pref.S2K_CALIBRATION, null);
+    }
+
+    public void setS2KCalibration(String calibration) {
+        Editor editor = mSharedPreferences.edit();
+        editor.putString(Pref.S2K_CALIBRATION, calibration);
+        editor.commit();
+    }
+
     @AutoValue
     public static abstract class CloudSearchPrefs implements Parcelable {
         public abstract boolean isKeyserverEnabled();
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+
+/**
+ * Decides which progress updates are worth reporting.
+ * <p/>
+ * Operations like decryption of large files or big imports report progress far more often than
+ * anyone can look at it, and each report may cost a Bundle, a log line and an IPC message. This
+ * drops updates identical to the last reported one, and limits the remaining ones to a fixed
+ * frame rate. Changes of the message or of the maximum, as well as start and completion, are
+ * always reported.
+ * <p/>
+ * If a {@link ProgressReceiver} is given, the latest update dropped for the frame rate is not
+ * lost: it is delivered to the receiver from the main thread once the interval is over, unless a
+ * newer update was reported in the meantime. Without one, an operation that stalls right after a
+ * dropped update would keep showing outdated progress.
+ */
+public class ProgressCoalescer {
+    public static final int DEFAULT_FRAMES_PER_SECOND = 20;
+
+    public interface ProgressReceiver {
+        /** @param message the progress message, as passed to shouldReport() */
+        void onProgress(Object message, int progress, int max);
+    }
+
+    private final long mMinIntervalMillis;
+    @Nullable
+    private final ProgressReceiver mTrailingReceiver;
+    private Handler mHandler;
+
+    private Object mLastMessage;
+    private int mLastProgress = -1;
+    private int mLastMax = -1;
+    private long mLastReportTime;
+
+    private boolean mHasPending;
+    private Object mPendingMessage;
+    private int mPendingProgress;
+    private int mPendingMax;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPending();
+        }
+    };
+
+    public ProgressCoalescer() {
+        this(DEFAULT_FRAMES_PER_SECOND);
+    }
+
+    /**
+     * @param framesPerSecond maximum number of reported updates per second, or 0 to only drop
+     *                        redundant updates
+     */
+    public ProgressCoalescer(int framesPerSecond) {
+        this(framesPerSecond, null);
+    }
+
+    /**
+     * @param trailingReceiver receives the latest update dropped for the frame rate once the
+     *                         interval is over, on the main thread
+     */
+    public ProgressCoalescer(int framesPerSecond, @Nullable ProgressReceiver trailingReceiver) {
+        mMinIntervalMillis = framesPerSecond > 0 ? 1000 / framesPerSecond : 0;
+        mTrailingReceiver = trailingReceiver;
+    }
+
+    /**
+     * @param message the progress message, either a String or a resource id, may be null
+     * @return true if the update should be passed on, in which case it is remembered as the last
+     * reported one
+     */
+    public synchronized boolean shouldReport(Object message, int progress, int max) {
+        boolean sameMessage = mLastMessage == null ? message == null : mLastMessage.equals(message);
+        if (sameMessage && progress == mLastProgress && max == mLastMax) {
+            // back at what was last reported, anything pending is outdated
+            clearPending();
+            return false;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        boolean isMilestone = !sameMessage || max != mLastMax || progress <= 0 || progress >= max;
+        if (!isMilestone && now - mLastReportTime < mMinIntervalMillis) {
+            if (mTrailingReceiver != null) {
+                schedulePending(message, progress, max, mMinIntervalMillis - (now - mLastReportTime));
+            }
+            return false;
+        }
+
+        clearPending();
+        mLastMessage = message;
+        mLastProgress = progress;
+        mLastMax = max;
+        mLastReportTime = now;
+        return true;
+    }
+
+    /**
+     * Drops a pending trailing update. Should be called once the operation is done, so no
+     * progress arrives after its result.
+     */
+    public synchronized void cancelPending() {
+        clearPending();
+    }
+
+    private void schedulePending(Object message, int progress, int max, long delayMillis) {
+        mPendingMessage = message;
+        mPendingProgress = progress;
+        mPendingMax = max;
+        if (mHasPending) {
+            // already scheduled for the end of this interval
+            return;
+        }
+        mHasPending = true;
+        if (mHandler == null) {
+            mHandler = new Handler(Looper.getMainLooper());
+        }
+        mHandler.postDelayed(mFlushRunnable, delayMillis);
+    }
+
+    private void clearPending() {
+        if (!mHasPending) {
+            return;
+        }
+        mHasPending = false;
+        mPendingMessage = null;
+        mHandler.removeCallbacks(mFlushRunnable);
+    }
+
+    private synchronized void flushPending() {
+        if (!mHasPending) {
+            return;
+        }
+        mHasPending = false;
+        mLastMessage = mPendingMessage;
+        mLastProgress = mPendingProgress;
+        mLastMax = mPendingMax;
+        mLastReportTime = SystemClock.elapsedRealtime();
+        mPendingMessage = null;
+
+        // called with the lock held, so a newer update can't overtake this one
+        mTrailingReceiver.onProgress(mLastMessage, mLastProgress, mLastMax);
+    }
+
+}
@@ -33,13 +33,19 @@ public class ProgressFixedScaler extends ProgressScaler {
 
     public void setProgress(int resourceId, int progress, int max) {
         if (mWrapped != null) {
-            mWrapped.setProgress(mResId, mFrom + progress * (mTo - mFrom) / max, mMax);
+            int scaled = mFrom + progress * (mTo - mFrom) / max;
+            if (mCoalescer.shouldReport(mResId, scaled, mMax)) {
+                mWrapped.setProgress(mResId, scaled, mMax);
+            }
         }
     }
 
     public void setProgress(String message, int progress, int max) {
         if (mWrapped != null) {
-            mWrapped.setProgress(mResId, mFrom + progress * (mTo - mFrom) / max, mMax);
+            int scaled = mFrom + progress * (mTo - mFrom) / max;
+            if (mCoalescer.shouldReport(mResId, scaled, mMax)) {
+                mWrapped.setProgress(mResId, scaled, mMax);
+            }
         }
     }
 
@@ -27,6 +27,8 @@ public class ProgressScaler implements Progressable {
 
     final Progressable mWrapped;
     final int mFrom, mTo, mMax;
+    // scaling maps many input values to the same output, only pass on actual changes
+    final ProgressCoalescer mCoalescer = new ProgressCoalescer(0);
 
     public ProgressScaler() {
         mWrapped = null;
@@ -44,19 +46,28 @@ public class ProgressScaler implements Progressable {
      */
     public void setProgress(String message, int progress, int max) {
         if (mWrapped != null) {
-            mWrapped.setProgress(message, mFrom + progress * (mTo - mFrom) / max, mMax);
+            int scaled = mFrom + progress * (mTo - mFrom) / max;
+            if (mCoalescer.shouldReport(message, scaled, mMax)) {
+                mWrapped.setProgress(message, scaled, mMax);
+            }
         }
     }
 
     public void setProgress(int resourceId, int progress, int max) {
         if (mWrapped != null) {
-            mWrapped.setProgress(resourceId, mFrom + progress * (mTo - mFrom) / max, mMax);
+            int scaled = mFrom + progress * (mTo - mFrom) / max;
+            if (mCoalescer.shouldReport(resourceId, scaled, mMax)) {
+                mWrapped.setProgress(resourceId, scaled, mMax);
+            }
         }
     }
 
     public void setProgress(int progress, int max) {
         if (mWrapped != null) {
-            mWrapped.setProgress(mFrom + progress * (mTo - mFrom) / max, mMax);
+            int scaled = mFrom + progress * (mTo - mFrom) / max;
+            if (mCoalescer.shouldReport(null, scaled, mMax)) {
+                mWrapped.setProgress(scaled, mMax);
+            }
         }
     }
 
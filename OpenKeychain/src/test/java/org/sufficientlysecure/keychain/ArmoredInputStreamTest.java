@@ -1,17 +1,28 @@
 package org.sufficientlysecure.keychain;
 
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Random;
 
 import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.bouncycastle.util.encoders.Hex;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.pgp.FastArmoredInputStream;
+import org.sufficientlysecure.keychain.pgp.FastArmoredOutputStream;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyringTest;
 import org.sufficientlysecure.keychain.support.TestDataUtil;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 @RunWith(KeychainTestRunner.class)
@@ -41,4 +52,159 @@ public class ArmoredInputStreamTest {
         assertArrayEquals(data1, data3);
     }
 
+    @Test
+    public void fastArmoredInputStream__withDifferentLineEndings() throws Exception {
+        FastArmoredInputStream stream1 = new FastArmoredInputStream(ArmoredInputStreamTest.class.getResourceAsStream("/armored_crcrlf.asc"));
+        FastArmoredInputStream stream2 = new FastArmoredInputStream(ArmoredInputStreamTest.class.getResourceAsStream("/armored_crlf.asc"));
+        FastArmoredInputStream stream3 = new FastArmoredInputStream(ArmoredInputStreamTest.class.getResourceAsStream("/armored_lf.asc"));
+        ArmoredInputStream reference = new ArmoredInputStream(ArmoredInputStreamTest.class.getResourceAsStream("/armored_lf.asc"));
+
+        assertEquals("-----BEGIN PGP ARMORED FILE-----", stream1.getArmorHeaderLine());
+
+        assertEquals(1, stream1.getArmorHeaders().length);
+        assertEquals("Comment: comment content", stream1.getArmorHeaders()[0]);
+
+        assertEquals(1, stream2.getArmorHeaders().length);
+        assertEquals("Comment: comment content", stream2.getArmorHeaders()[0]);
+
+        assertEquals(1, stream3.getArmorHeaders().length);
+        assertEquals("Comment: comment content", stream3.getArmorHeaders()[0]);
+
+        byte[] referenceData = TestDataUtil.readFully(reference);
+        assertArrayEquals(referenceData, TestDataUtil.readFully(stream1));
+        assertArrayEquals(referenceData, TestDataUtil.readFully(stream2));
+        assertArrayEquals(referenceData, TestDataUtil.readFully(stream3));
+    }
+
+    @Test
+    public void fastArmor__shouldBeCompatibleWithBouncyCastle() throws Exception {
+        Random random = new Random(42);
+        // all possible padding lengths, around line boundaries, and larger than the buffers
+        for (int length : new int[] { 1, 2, 3, 47, 48, 49, 50, 64, 100, 65536 + 1, 300000 }) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            // make it look like a packet, so the armor type is consistent
+            data[0] = (byte) 0x85;
+
+            ByteArrayOutputStream referenceOut = new ByteArrayOutputStream();
+            ArmoredOutputStream armorOut = new ArmoredOutputStream(referenceOut);
+            armorOut.write(data);
+            armorOut.close();
+
+            ByteArrayOutputStream fastOut = new ByteArrayOutputStream();
+            FastArmoredOutputStream fastArmorOut = new FastArmoredOutputStream(fastOut);
+            // write in odd pieces, so partial groups are carried over between writes
+            for (int off = 0; off < length; off += 7) {
+                fastArmorOut.write(data, off, Math.min(7, length - off));
+            }
+            fastArmorOut.close();
+
+            assertArrayEquals("armor of length " + length + " must decode with ArmoredInputStream", data,
+                    TestDataUtil.readFully(new ArmoredInputStream(new ByteArrayInputStream(fastOut.toByteArray()))));
+            assertArrayEquals("armor of length " + length + " must decode with FastArmoredInputStream", data,
+                    TestDataUtil.readFully(new FastArmoredInputStream(new ByteArrayInputStream(referenceOut.toByteArray()))));
+            assertEquals("armored body must be identical", getArmorBody(referenceOut.toString()),
+                    getArmorBody(fastOut.toString()));
+        }
+    }
+
+    @Test
+    public void fastArmoredInputStream__withBadChecksum__shouldFail() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FastArmoredOutputStream armorOut = new FastArmoredOutputStream(out);
+        armorOut.write(Hex.decode("8501020304"));
+        armorOut.close();
+
+        String armor = out.toString();
+        int checksumPos = armor.indexOf("\n=") + 2;
+        String badArmor = armor.substring(0, checksumPos)
+                + (armor.charAt(checksumPos) == 'A' ? 'B' : 'A') + armor.substring(checksumPos + 1);
+
+        try {
+            TestDataUtil.readFully(new FastArmoredInputStream(new ByteArrayInputStream(badArmor.getBytes())));
+            fail("bad checksum must be detected");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void fastArmoredInputStream__consecutiveBlocks__shouldStopAfterFooter() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            FastArmoredOutputStream armorOut = new FastArmoredOutputStream(out);
+            armorOut.setHeader("Comment", "block " + i);
+            armorOut.write(new byte[] { (byte) 0x99, (byte) i });
+            armorOut.close();
+        }
+
+        InputStream in = new BufferedInputStream(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < 3; i++) {
+            InputStream decoderStream = FastArmoredInputStream.getDecoderStream(in);
+            assertTrue(decoderStream instanceof FastArmoredInputStream);
+            assertEquals("Comment: block " + i, ((FastArmoredInputStream) decoderStream).getArmorHeaders()[0]);
+            assertArrayEquals(new byte[] { (byte) 0x99, (byte) i }, TestDataUtil.readFully(decoderStream));
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void getDecoderStream__cleartextSignature__shouldUseArmoredInputStream() throws Exception {
+        String cleartext = "-----BEGIN PGP SIGNED MESSAGE-----\nHash: SHA256\n\ntext\n";
+
+        InputStream in = FastArmoredInputStream.getDecoderStream(new ByteArrayInputStream(cleartext.getBytes()));
+
+        assertTrue(in instanceof ArmoredInputStream);
+        assertTrue(((ArmoredInputStream) in).isClearText());
+    }
+
+    @Test
+    @Ignore("Benchmark, takes a while")
+    public void benchmarkArmorThroughput() throws Exception {
+        byte[] data = new byte[32 * 1024 * 1024];
+        new Random(42).nextBytes(data);
+        data[0] = (byte) 0x85;
+
+        for (int round = 0; round < 3; round++) {
+            long startTime = System.nanoTime();
+            ByteArrayOutputStream referenceOut = new ByteArrayOutputStream(data.length * 2);
+            ArmoredOutputStream armorOut = new ArmoredOutputStream(referenceOut);
+            armorOut.write(data);
+            armorOut.close();
+            long referenceEncode = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            ByteArrayOutputStream fastOut = new ByteArrayOutputStream(data.length * 2);
+            FastArmoredOutputStream fastArmorOut = new FastArmoredOutputStream(fastOut);
+            fastArmorOut.write(data);
+            fastArmorOut.close();
+            long fastEncode = System.nanoTime() - startTime;
+
+            byte[] armored = fastOut.toByteArray();
+
+            startTime = System.nanoTime();
+            TestDataUtil.readFully(new ArmoredInputStream(new ByteArrayInputStream(armored)));
+            long referenceDecode = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            TestDataUtil.readFully(new FastArmoredInputStream(new ByteArrayInputStream(armored)));
+            long fastDecode = System.nanoTime() - startTime;
+
+            System.out.println("encode, bouncy castle: " + formatThroughput(data.length, referenceEncode));
+            System.out.println("encode, fast:          " + formatThroughput(data.length, fastEncode));
+            System.out.println("decode, bouncy castle: " + formatThroughput(data.length, referenceDecode));
+            System.out.println("decode, fast:          " + formatThroughput(data.length, fastDecode));
+        }
+    }
+
+    private static String getArmorBody(String armor) {
+        // headers may differ, everything after the first empty line must not
+        return armor.substring(armor.indexOf("\n\n"));
+    }
+
+    private static String formatThroughput(long size, long nanos) {
+        double seconds = nanos / 1e9;
+        return String.format("%.0f MB/s (%.2fs)", size / seconds / 1024 / 1024, seconds);
+    }
+
 }
@@ -0,0 +1,195 @@
+package org.sufficientlysecure.keychain.keyimport;
+
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.keyimport.KeyserverClient.QueryFailedException;
+import org.sufficientlysecure.keychain.keyimport.KeyserverClient.QueryNotFoundException;
+import org.sufficientlysecure.keychain.util.ParcelableProxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(KeychainTestRunner.class)
+public class HedgedKeyserverClientTest {
+
+    private static final ParcelableProxy NO_PROXY = ParcelableProxy.getForNoProxy();
+    private static final ParcelableProxy TOR_PROXY = new ParcelableProxy("127.0.0.1", 8118, Proxy.Type.HTTP,
+            ParcelableProxy.PROXY_MODE_TOR);
+
+    private static final HkpKeyserverAddress PRIMARY = HkpKeyserverAddress.createFromUri("hkps://primary.example.com");
+    private static final HkpKeyserverAddress SECONDARY = HkpKeyserverAddress.createFromUri("hkps://secondary.example.com");
+    private static final HkpKeyserverAddress TERTIARY = HkpKeyserverAddress.createFromUri("hkps://tertiary.example.com");
+
+    private FakeKeyserver mPrimary;
+    private FakeKeyserver mSecondary;
+    private FakeKeyserver mTertiary;
+    private FixedDelayLatencyTracker mLatencyTracker;
+    private HedgedKeyserverClient mClient;
+
+    @Before
+    public void setUp() {
+        mPrimary = new FakeKeyserver("primary-key");
+        mSecondary = new FakeKeyserver("secondary-key");
+        mTertiary = new FakeKeyserver("tertiary-key");
+        mLatencyTracker = new FixedDelayLatencyTracker(50);
+
+        final HashMap<String, FakeKeyserver> keyservers = new HashMap<>();
+        keyservers.put(PRIMARY.getUrl(), mPrimary);
+        keyservers.put(SECONDARY.getUrl(), mSecondary);
+        keyservers.put(TERTIARY.getUrl(), mTertiary);
+
+        // the primary is also in the list of secondary keyservers, as it is in the preferences
+        List<HkpKeyserverAddress> secondaryKeyservers = Arrays.asList(PRIMARY, SECONDARY, TERTIARY);
+        mClient = new HedgedKeyserverClient(PRIMARY, secondaryKeyservers, mLatencyTracker) {
+            @Override
+            KeyserverClient createClient(HkpKeyserverAddress keyserver) {
+                return keyservers.get(keyserver.getUrl());
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        mPrimary.release();
+        mSecondary.release();
+        mTertiary.release();
+    }
+
+    @Test
+    public void testPrimaryAnswers() throws Exception {
+        assertEquals("primary-key", mClient.get("0x0123456789abcdef", NO_PROXY));
+        assertEquals(1, mPrimary.mRequests.get());
+        assertEquals("no hedged request if the primary answers in time", 0, mSecondary.mRequests.get());
+    }
+
+    @Test
+    public void testHedgesWhenPrimaryIsSlow() throws Exception {
+        mPrimary.block();
+
+        assertEquals("secondary-key", mClient.get("0x0123456789abcdef", NO_PROXY));
+        assertEquals(1, mPrimary.mRequests.get());
+        assertEquals(1, mSecondary.mRequests.get());
+    }
+
+    @Test
+    public void testFailsOverWithoutWaitingForHedgeDelay() throws Exception {
+        mLatencyTracker.mHedgeDelayMillis = 60 * 1000;
+        mPrimary.mError = new QueryFailedException("connection refused");
+
+        long startTime = System.currentTimeMillis();
+        assertEquals("secondary-key", mClient.get("0x0123456789abcdef", NO_PROXY));
+        assertTrue("failure must trigger the next request right away",
+                System.currentTimeMillis() - startTime < 10 * 1000);
+    }
+
+    @Test
+    public void testNotFoundTakesPrecedenceOverFailure() throws Exception {
+        mPrimary.mError = new QueryFailedException("connection refused");
+        mSecondary.mError = new QueryNotFoundException("not found");
+        mTertiary.mError = new QueryFailedException("timeout");
+
+        try {
+            mClient.get("0x0123456789abcdef", NO_PROXY);
+            fail("lookup must fail if no keyserver has the key");
+        } catch (QueryNotFoundException e) {
+            // expected
+        }
+        assertEquals(1, mTertiary.mRequests.get());
+    }
+
+    @Test
+    public void testNoHedgingOverTor() throws Exception {
+        mPrimary.mError = new QueryFailedException("connection refused");
+
+        try {
+            mClient.get("0x0123456789abcdef", TOR_PROXY);
+            fail("primary failure must be passed on");
+        } catch (QueryFailedException e) {
+            // expected
+        }
+        assertEquals(1, mPrimary.mRequests.get());
+        assertEquals("lookups over Tor must only go to the primary", 0, mSecondary.mRequests.get());
+        assertEquals(0, mTertiary.mRequests.get());
+    }
+
+    @Test
+    public void testSkipsOpenCircuit() throws Exception {
+        for (int i = 0; i < KeyserverLatencyTracker.FAILURES_UNTIL_OPEN; i++) {
+            mLatencyTracker.recordFailure(PRIMARY);
+        }
+
+        assertEquals("secondary-key", mClient.get("0x0123456789abcdef", NO_PROXY));
+        assertEquals("keyserver with open circuit must be skipped", 0, mPrimary.mRequests.get());
+    }
+
+    private static class FakeKeyserver implements KeyserverClient {
+        final String mResult;
+        final AtomicInteger mRequests = new AtomicInteger();
+        volatile QueryFailedException mError;
+        private final CountDownLatch mBlocked = new CountDownLatch(1);
+        private volatile boolean mBlocking;
+
+        FakeKeyserver(String result) {
+            mResult = result;
+        }
+
+        void block() {
+            mBlocking = true;
+        }
+
+        void release() {
+            mBlocked.countDown();
+        }
+
+        @Override
+        public List<ImportKeysListEntry> search(String query, ParcelableProxy proxy) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String get(String keyIdHex, ParcelableProxy proxy) throws QueryFailedException {
+            mRequests.incrementAndGet();
+            if (mBlocking) {
+                try {
+                    mBlocked.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new QueryFailedException("interrupted");
+                }
+            }
+            if (mError != null) {
+                throw mError;
+            }
+            return mResult;
+        }
+
+        @Override
+        public void add(String armoredKey, ParcelableProxy proxy) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class FixedDelayLatencyTracker extends KeyserverLatencyTracker {
+        volatile long mHedgeDelayMillis;
+
+        FixedDelayLatencyTracker(long hedgeDelayMillis) {
+            mHedgeDelayMillis = hedgeDelayMillis;
+        }
+
+        @Override
+        public synchronized long getHedgeDelayMillis(HkpKeyserverAddress keyserver) {
+            return mHedgeDelayMillis;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.sufficientlysecure.keychain.keyimport;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.shadows.ShadowLooper;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(KeychainTestRunner.class)
+public class KeyserverLatencyTrackerTest {
+
+    private static final HkpKeyserverAddress KEYSERVER = HkpKeyserverAddress.createFromUri("hkps://keys.example.com");
+    private static final HkpKeyserverAddress OTHER_KEYSERVER = HkpKeyserverAddress.createFromUri("hkps://other.example.com");
+
+    @Test
+    public void testDefaultDelayWithoutEnoughSamples() {
+        KeyserverLatencyTracker tracker = new KeyserverLatencyTracker();
+        assertEquals(KeyserverLatencyTracker.DEFAULT_HEDGE_DELAY_MILLIS, tracker.getHedgeDelayMillis(KEYSERVER));
+
+        for (int i = 0; i < 4; i++) {
+            tracker.recordSuccess(KEYSERVER, 1000);
+        }
+        assertEquals("a few samples are not enough for a percentile",
+                KeyserverLatencyTracker.DEFAULT_HEDGE_DELAY_MILLIS, tracker.getHedgeDelayMillis(KEYSERVER));
+    }
+
+    @Test
+    public void testP95Delay() {
+        KeyserverLatencyTracker tracker = new KeyserverLatencyTracker();
+        for (int i = 1; i <= 20; i++) {
+            tracker.recordSuccess(KEYSERVER, i * 100);
+        }
+
+        // 95% of 20 samples is the 19th smallest one
+        assertEquals(1900, tracker.getHedgeDelayMillis(KEYSERVER));
+        assertEquals("keyservers are tracked separately",
+                KeyserverLatencyTracker.DEFAULT_HEDGE_DELAY_MILLIS, tracker.getHedgeDelayMillis(OTHER_KEYSERVER));
+    }
+
+    @Test
+    public void testOnlyRecentSamplesCount() {
+        KeyserverLatencyTracker tracker = new KeyserverLatencyTracker();
+        for (int i = 0; i < 32; i++) {
+            tracker.recordSuccess(KEYSERVER, 8000);
+        }
+        for (int i = 0; i < 32; i++) {
+            tracker.recordSuccess(KEYSERVER, 1000);
+        }
+
+        assertEquals(1000, tracker.getHedgeDelayMillis(KEYSERVER));
+    }
+
+    @Test
+    public void testDelayIsClamped() {
+        KeyserverLatencyTracker fast = new KeyserverLatencyTracker();
+        KeyserverLatencyTracker slow = new KeyserverLatencyTracker();
+        for (int i = 0; i < 10; i++) {
+            fast.recordSuccess(KEYSERVER, 10);
+            slow.recordSuccess(KEYSERVER, 60 * 1000);
+        }
+
+        assertEquals(KeyserverLatencyTracker.MIN_HEDGE_DELAY_MILLIS, fast.getHedgeDelayMillis(KEYSERVER));
+        assertEquals(KeyserverLatencyTracker.MAX_HEDGE_DELAY_MILLIS, slow.getHedgeDelayMillis(KEYSERVER));
+    }
+
+    @Test
+    public void testCircuitBreaker() {
+        KeyserverLatencyTracker tracker = new KeyserverLatencyTracker();
+        for (int i = 0; i < KeyserverLatencyTracker.FAILURES_UNTIL_OPEN - 1; i++) {
+            tracker.recordFailure(KEYSERVER);
+        }
+        assertTrue("circuit must stay closed below the failure threshold", tracker.isAvailable(KEYSERVER));
+
+        tracker.recordFailure(KEYSERVER);
+        assertFalse("circuit must open at the failure threshold", tracker.isAvailable(KEYSERVER));
+        assertTrue(tracker.isAvailable(OTHER_KEYSERVER));
+
+        ShadowLooper.idleMainLooper(KeyserverLatencyTracker.OPEN_CIRCUIT_MILLIS);
+        assertTrue("circuit must let a request through after a while", tracker.isAvailable(KEYSERVER));
+    }
+
+    @Test
+    public void testSuccessClosesCircuit() {
+        KeyserverLatencyTracker tracker = new KeyserverLatencyTracker();
+        for (int i = 0; i < KeyserverLatencyTracker.FAILURES_UNTIL_OPEN; i++) {
+            tracker.recordFailure(KEYSERVER);
+        }
+        tracker.recordSuccess(KEYSERVER, 1000);
+        assertTrue(tracker.isAvailable(KEYSERVER));
+
+        tracker.recordFailure(KEYSERVER);
+        assertTrue("failure count must be reset by a success", tracker.isAvailable(KEYSERVER));
+    }
+}
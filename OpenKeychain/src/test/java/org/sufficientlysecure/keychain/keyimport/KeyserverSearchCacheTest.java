@@ -0,0 +1,134 @@
+package org.sufficientlysecure.keychain.keyimport;
+
+import java.io.File;
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.util.ParcelableProxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+@RunWith(KeychainTestRunner.class)
+public class KeyserverSearchCacheTest {
+
+    private static final ParcelableProxy NO_PROXY = ParcelableProxy.getForNoProxy();
+    private static final ParcelableProxy TOR_PROXY = new ParcelableProxy("127.0.0.1", 8118, Proxy.Type.HTTP,
+            ParcelableProxy.PROXY_MODE_TOR);
+
+    @Rule
+    public TemporaryFolder mCacheDir = new TemporaryFolder();
+
+    @Test
+    public void testHitAndMiss() {
+        KeyserverSearchCache cache = new KeyserverSearchCache(60 * 1000, 64 * 1024);
+
+        assertNull(cache.get("wkd", "test@example.com", NO_PROXY));
+        cache.put("wkd", "test@example.com", NO_PROXY, Collections.singletonList(createEntry("0123456789abcdef")));
+
+        List<ImportKeysListEntry> result = cache.get("wkd", "  Test@Example.com ", NO_PROXY);
+        assertNotNull("query should be normalized", result);
+        assertEquals(1, result.size());
+        assertEquals("0123456789abcdef", result.get(0).getKeyIdHex());
+
+        assertNull("source must be part of the key", cache.get("keybase", "test@example.com", NO_PROXY));
+        assertNull("proxy mode must be part of the key", cache.get("wkd", "test@example.com", TOR_PROXY));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(0.25f, cache.getHitRate(), 0.001f);
+    }
+
+    @Test
+    public void testReturnsCopies() {
+        KeyserverSearchCache cache = new KeyserverSearchCache(60 * 1000, 64 * 1024);
+        cache.put("wkd", "query", NO_PROXY, Collections.singletonList(createEntry("0123456789abcdef")));
+
+        ImportKeysListEntry first = cache.get("wkd", "query", NO_PROXY).get(0);
+        first.setKeyIdHex("fedcba9876543210");
+        ImportKeysListEntry second = cache.get("wkd", "query", NO_PROXY).get(0);
+
+        assertNotSame(first, second);
+        assertEquals("0123456789abcdef", second.getKeyIdHex());
+    }
+
+    @Test
+    public void testTtlEviction() throws Exception {
+        KeyserverSearchCache cache = new KeyserverSearchCache(0, 64 * 1024);
+        cache.put("wkd", "query", NO_PROXY, Collections.singletonList(createEntry("0123456789abcdef")));
+
+        Thread.sleep(5);
+
+        assertNull(cache.get("wkd", "query", NO_PROXY));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testSizeEviction() {
+        KeyserverSearchCache cache = new KeyserverSearchCache(60 * 1000, 1024);
+        for (int i = 0; i < 100; i++) {
+            cache.put("wkd", "query" + i, NO_PROXY, Collections.singletonList(createEntry("0123456789abcdef")));
+        }
+
+        assertNotNull("most recent entry must be kept", cache.get("wkd", "query99", NO_PROXY));
+        assertNull("eldest entry must be evicted", cache.get("wkd", "query0", NO_PROXY));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        KeyserverSearchCache cache = new KeyserverSearchCache(60 * 1000, 64 * 1024);
+        cache.setCacheDir(mCacheDir.getRoot());
+        cache.put("wkd", "query", NO_PROXY, Collections.singletonList(createEntry("0123456789abcdef")));
+        cache.writeToDisk();
+
+        KeyserverSearchCache restored = new KeyserverSearchCache(60 * 1000, 64 * 1024);
+        restored.setCacheDir(mCacheDir.getRoot());
+        List<ImportKeysListEntry> result = restored.get("wkd", "query", NO_PROXY);
+        assertNotNull("result must be read back from disk", result);
+        assertEquals("0123456789abcdef", result.get(0).getKeyIdHex());
+    }
+
+    @Test
+    public void testWritesAreDeferred() throws Exception {
+        KeyserverSearchCache cache = new KeyserverSearchCache(60 * 1000, 64 * 1024);
+        cache.setCacheDir(mCacheDir.getRoot());
+        for (int i = 0; i < 10; i++) {
+            cache.put("wkd", "query" + i, NO_PROXY, Collections.singletonList(createEntry("0123456789abcdef")));
+        }
+
+        assertFalse("put must not write synchronously", new File(mCacheDir.getRoot(), "keyserver_search.pcl").exists());
+    }
+
+    @Test
+    public void testTorResultsAreNotPersisted() throws Exception {
+        KeyserverSearchCache cache = new KeyserverSearchCache(60 * 1000, 64 * 1024);
+        cache.setCacheDir(mCacheDir.getRoot());
+        cache.put("wkd", "secret query", TOR_PROXY, Collections.singletonList(createEntry("0123456789abcdef")));
+        cache.put("wkd", "query", NO_PROXY, Collections.singletonList(createEntry("fedcba9876543210")));
+        cache.writeToDisk();
+
+        assertNotNull("Tor results are still cached in memory", cache.get("wkd", "secret query", TOR_PROXY));
+
+        KeyserverSearchCache restored = new KeyserverSearchCache(60 * 1000, 64 * 1024);
+        restored.setCacheDir(mCacheDir.getRoot());
+        assertNull("Tor results must not be written to disk", restored.get("wkd", "secret query", TOR_PROXY));
+        assertNotNull(restored.get("wkd", "query", NO_PROXY));
+    }
+
+    private static ImportKeysListEntry createEntry(String keyIdHex) {
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setKeyIdHex(keyIdHex);
+        entry.setPrimaryUserId("Test <test@example.com>");
+        return entry;
+    }
+
+}
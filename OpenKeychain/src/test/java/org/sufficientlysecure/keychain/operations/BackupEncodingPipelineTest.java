@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.BackupEncodingPipeline.BlockEncoder;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+
+
+@RunWith(KeychainTestRunner.class)
+public class BackupEncodingPipelineTest {
+
+    @Test
+    public void testBlocksAreWrittenInOrder() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OperationLog log = new OperationLog();
+        BackupEncodingPipeline pipeline = new BackupEncodingPipeline(out, log, 4);
+
+        final Random random = new Random(0);
+        try {
+            for (int i = 0; i < 100; i++) {
+                final int index = i;
+                final int delay = random.nextInt(5);
+                pipeline.submit(new BlockEncoder() {
+                    @Override
+                    public void encode(OperationLog log, OutputStream out) throws IOException {
+                        try {
+                            // make blocks finish out of order
+                            Thread.sleep(delay);
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        log.add(LogType.MSG_BACKUP_PUBLIC, 1, Integer.toString(index));
+                        out.write(index);
+                    }
+                });
+            }
+            pipeline.finish();
+        } finally {
+            pipeline.close();
+        }
+
+        byte[] data = out.toByteArray();
+        Assert.assertEquals("all blocks must be written", 100, data.length);
+        Assert.assertEquals("all log entries must be added", 100, log.size());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("blocks must be written in order", i, data[i]);
+            Assert.assertEquals("log entries must be added in order",
+                    Integer.toString(i), log.get(i).mParameters[0]);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testEncoderErrorIsPropagated() throws Exception {
+        BackupEncodingPipeline pipeline = new BackupEncodingPipeline(new ByteArrayOutputStream(), new OperationLog(), 2);
+        try {
+            pipeline.submit(new BlockEncoder() {
+                @Override
+                public void encode(OperationLog log, OutputStream out) throws IOException {
+                    throw new IOException("test");
+                }
+            });
+            pipeline.finish();
+        } finally {
+            pipeline.close();
+        }
+    }
+
+}
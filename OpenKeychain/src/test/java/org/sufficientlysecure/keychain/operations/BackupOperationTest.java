@@ -18,13 +18,17 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.security.Security;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 
 import android.app.Application;
@@ -42,14 +46,17 @@ import org.junit.runner.RunWith;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.BackupManifest.ArchiveHeader;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.ExportResult;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
 import org.sufficientlysecure.keychain.pgp.WrappedSignature;
@@ -57,12 +64,14 @@ import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.BackupKeyringParcel;
 import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
 import org.sufficientlysecure.keychain.util.TestingUtils;
 
 import static org.junit.Assert.assertEquals;
@@ -71,6 +80,7 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -301,17 +311,9 @@ public class BackupOperationTest {
         Application spyApplication;
         ContentResolver mockResolver = mock(ContentResolver.class);
 
-        Uri fakePipedUri, fakeOutputUri;
+        Uri fakeOutputUri;
         ByteArrayOutputStream outStream; {
 
-            fakePipedUri = Uri.parse("content://fake/pipe/1");
-            PipedInputStream pipedInStream = new PipedInputStream(8192);
-            PipedOutputStream pipedOutStream = new PipedOutputStream(pipedInStream);
-            when(mockResolver.openOutputStream(fakePipedUri)).thenReturn(pipedOutStream);
-            when(mockResolver.openInputStream(fakePipedUri)).thenReturn(pipedInStream);
-            when(mockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
-                    .thenReturn(fakePipedUri);
-
             fakeOutputUri = Uri.parse("content://fake/out/1");
             outStream = new ByteArrayOutputStream();
             when(mockResolver.openOutputStream(fakeOutputUri)).thenReturn(outStream);
@@ -331,8 +333,7 @@ public class BackupOperationTest {
             CryptoInputParcel inputParcel = CryptoInputParcel.createCryptoInputParcel(passphrase);
             ExportResult result = op.execute(parcel, inputParcel);
 
-            verify(mockResolver).openOutputStream(fakePipedUri);
-            verify(mockResolver).openInputStream(fakePipedUri);
+            verify(mockResolver, never()).insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class));
             verify(mockResolver).openOutputStream(fakeOutputUri);
 
             assertTrue("export must succeed", result.success());
@@ -393,6 +394,164 @@ public class BackupOperationTest {
 
     }
 
+    @Test
+    public void testExportEncryptedProgressOnCallingThread() throws Exception {
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        Uri fakeOutputUri = Uri.parse("content://fake/out/1");
+        when(mockResolver.openOutputStream(fakeOutputUri)).thenReturn(new ByteArrayOutputStream());
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        final Thread callingThread = Thread.currentThread();
+        final ArrayList<String> progressThreads = new ArrayList<>();
+        final int[] lastProgress = new int[2];
+        Progressable progressable = new Progressable() {
+            @Override
+            public void setProgress(String message, int current, int total) {
+                setProgress(current, total);
+            }
+
+            @Override
+            public void setProgress(int resourceId, int current, int total) {
+                setProgress(current, total);
+            }
+
+            @Override
+            public void setProgress(int current, int total) {
+                if (Thread.currentThread() != callingThread) {
+                    progressThreads.add(Thread.currentThread().getName());
+                }
+                lastProgress[0] = current;
+                lastProgress[1] = total;
+            }
+
+            @Override
+            public void setPreventCancel() {
+            }
+        };
+
+        BackupOperation op = new BackupOperation(spyApplication,
+                KeyWritableRepository.create(RuntimeEnvironment.application), progressable);
+        BackupKeyringParcel parcel = BackupKeyringParcel.create(
+                new long[] { mStaticRing1.getMasterKeyId() }, false, true, true, fakeOutputUri);
+        ExportResult result = op.execute(parcel, CryptoInputParcel.createCryptoInputParcel(new Passphrase("abcde")));
+
+        assertTrue("export must succeed", result.success());
+        assertTrue("progress must only be reported from the calling thread, but was from " + progressThreads,
+                progressThreads.isEmpty());
+        assertEquals("export progress must be reported up to the end", 1, lastProgress[0]);
+        assertEquals(1, lastProgress[1]);
+    }
+
+    @Test
+    public void testExportEncryptedOutputFailure() throws Exception {
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        Uri fakeOutputUri = Uri.parse("content://fake/out/1");
+        when(mockResolver.openOutputStream(fakeOutputUri)).thenReturn(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("no space left");
+            }
+        });
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        BackupOperation op = new BackupOperation(spyApplication,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null);
+        BackupKeyringParcel parcel = BackupKeyringParcel.create(
+                new long[] { mStaticRing1.getMasterKeyId() }, false, true, true, fakeOutputUri);
+        ExportResult result = op.execute(parcel, CryptoInputParcel.createCryptoInputParcel(new Passphrase("abcde")));
+
+        assertFalse("export must fail", result.success());
+        assertTrue("the encryption error must be reported",
+                result.getLog().containsType(LogType.MSG_PSE_ERROR_IO));
+        assertFalse("the export stopped by the failed encryption must not be reported as the error",
+                result.getLog().containsType(LogType.MSG_BACKUP_ERROR_IO));
+    }
+
+    @Test
+    public void testIncrementalBackupChain() throws Exception {
+        KeyWritableRepository keyRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        BackupOperation op = new BackupOperation(RuntimeEnvironment.application, keyRepository, null);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BackupManifest fullManifest = op.exportIncrementalToStream(new OperationLog(), null, false, out);
+        Assert.assertNotNull("full backup must succeed", fullManifest);
+        byte[] fullData = out.toByteArray();
+
+        ArchiveHeader header = readArchiveHeader(fullData);
+        assertEquals("chain must start with generation 0", 0, header.mGeneration);
+        assertEquals(fullManifest.mBackupId, header.mBackupId);
+        assertEquals("full backup must contain all keys", 2, countKeyRings(fullData));
+
+        out = new ByteArrayOutputStream();
+        BackupManifest unchangedManifest = op.exportIncrementalToStream(new OperationLog(), fullManifest, false, out);
+        Assert.assertNotNull("incremental backup must succeed", unchangedManifest);
+        byte[] unchangedData = out.toByteArray();
+
+        header = readArchiveHeader(unchangedData);
+        assertEquals(1, header.mGeneration);
+        assertEquals("increment must reference its base", fullManifest.mBackupId, header.mBaseBackupId);
+        assertEquals("unchanged increment must only contain the key carrying the header",
+                1, countKeyRings(unchangedData));
+
+        keyRepository.deleteKeyRing(mStaticRing2.getMasterKeyId());
+
+        out = new ByteArrayOutputStream();
+        BackupManifest deletedManifest = op.exportIncrementalToStream(new OperationLog(), unchangedManifest, false, out);
+        Assert.assertNotNull("incremental backup must succeed", deletedManifest);
+        byte[] deletedData = out.toByteArray();
+
+        header = readArchiveHeader(deletedData);
+        assertEquals(2, header.mGeneration);
+        assertEquals("increment must list deleted keys",
+                Collections.singletonList(mStaticRing2.getMasterKeyId()), header.mDeletedMasterKeyIds);
+
+        // restore into an empty database
+        keyRepository.deleteKeyRing(mStaticRing1.getMasterKeyId());
+        ImportOperation importOp = new ImportOperation(RuntimeEnvironment.application, keyRepository,
+                new ProgressScaler());
+
+        ImportKeyResult brokenResult = importOp.importBackupChain(Arrays.<InputStream>asList(
+                new ByteArrayInputStream(fullData), new ByteArrayInputStream(deletedData)), true);
+        assertFalse("restore of an incomplete chain must fail", brokenResult.success());
+        assertTrue(brokenResult.getLog().containsType(LogType.MSG_IMPORT_ERROR_BACKUP_CHAIN));
+
+        // restore through the operation's input, as the ui does, with archives in any order
+        Uri fullUri = Uri.parse("content://fake/backup/0");
+        Uri unchangedUri = Uri.parse("content://fake/backup/1");
+        Uri deletedUri = Uri.parse("content://fake/backup/2");
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        when(mockResolver.openInputStream(fullUri)).thenReturn(new ByteArrayInputStream(fullData));
+        when(mockResolver.openInputStream(unchangedUri)).thenReturn(new ByteArrayInputStream(unchangedData));
+        when(mockResolver.openInputStream(deletedUri)).thenReturn(new ByteArrayInputStream(deletedData));
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        importOp = new ImportOperation(spyApplication, keyRepository, new ProgressScaler());
+        ImportKeyResult result = importOp.execute(
+                ImportKeyringParcel.createFromBackupChain(Arrays.asList(deletedUri, fullUri, unchangedUri)),
+                CryptoInputParcel.createCryptoInputParcel());
+        assertTrue("restore of chain must succeed", result.success());
+        assertEquals("only the key that was not deleted must be restored", 1, result.mNewKeys);
+        Assert.assertNotNull(keyRepository.loadPublicKeyRingData(mStaticRing1.getMasterKeyId()));
+    }
+
+    private static ArchiveHeader readArchiveHeader(byte[] data) throws Exception {
+        ArchiveHeader header = ArchiveHeader.read(new BufferedInputStream(new ByteArrayInputStream(data)));
+        Assert.assertNotNull("backup must have a chain header", header);
+        return header;
+    }
+
+    private static int countKeyRings(byte[] data) throws Exception {
+        IteratorWithIOThrow<UncachedKeyRing> it = UncachedKeyRing.fromStream(new ByteArrayInputStream(data));
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count += 1;
+        }
+        return count;
+    }
 
     /** This function checks whether or not there are any local signatures in a keyring. */
     private boolean checkForLocal(UncachedKeyRing ring) {
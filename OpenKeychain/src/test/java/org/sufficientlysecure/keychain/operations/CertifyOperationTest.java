@@ -214,6 +214,39 @@ public class CertifyOperationTest {
                 result.getLog().containsType(LogType.MSG_CRT_ERROR_SELF));
     }
 
+    @Test
+    public void testCertifyBulk() throws Exception {
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null, null);
+
+        // failing actions must not keep the others from being certified and saved
+        CertifyActionsParcel.Builder actions = CertifyActionsParcel.builder(mStaticRing1.getMasterKeyId());
+        ArrayList<String> uids = new ArrayList<String>();
+        uids.add("nonexistent");
+        actions.addAction(CertifyAction.createForUserIds(1234L, uids));
+        actions.addAction(CertifyAction.createForUserIds(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds()));
+        actions.addAction(CertifyAction.createForUserIds(mStaticRing1.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds()));
+        actions.addAction(CertifyAction.createForUserAttributes(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserAttributes()));
+
+        CertifyResult result = op.execute(actions.build(), CryptoInputParcel.createCryptoInputParcel(new Date(), mKeyPhrase1));
+
+        Assert.assertTrue("certification must succeed", result.success());
+        Assert.assertTrue("must contain error msg about not found",
+                result.getLog().containsType(LogType.MSG_CRT_WARN_NOT_FOUND));
+        Assert.assertTrue("must contain error msg about self certification",
+                result.getLog().containsType(LogType.MSG_CRT_ERROR_SELF));
+
+        {
+            CanonicalizedPublicKeyRing ring = KeyWritableRepository.create(RuntimeEnvironment.application)
+                    .getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId());
+            Assert.assertEquals("new key must be verified now",
+                    Certs.VERIFIED_SECRET, ring.getVerified());
+        }
+    }
+
     @Test
     public void testCertifyNonexistent() throws Exception {
 
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.InputDataOperation.RecordingInputStream;
+
+
+@RunWith(KeychainTestRunner.class)
+public class RecordingInputStreamTest {
+
+    @Test
+    public void testRecordedDataEqualsReadData() throws Exception {
+        byte[] data = "Some-Header: dummy\n\nsome message text\n".getBytes();
+        RecordingInputStream in = new RecordingInputStream(new ByteArrayInputStream(data), 1024);
+
+        byte[] buf = new byte[7];
+        Assert.assertEquals('S', in.read());
+        Assert.assertEquals(7, in.read(buf, 0, buf.length));
+        Assert.assertEquals(3, in.skip(3));
+        Assert.assertTrue(in.isRecording());
+
+        ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+        in.writeRecordedTo(recorded);
+        Assert.assertEquals("single bytes, arrays and skipped data must all be recorded",
+                "Some-Header: ", new String(recorded.toByteArray()));
+    }
+
+    @Test
+    public void testEndsAtLimitWhileRecording() throws Exception {
+        byte[] data = new byte[100];
+        RecordingInputStream in = new RecordingInputStream(new ByteArrayInputStream(data), 10);
+
+        byte[] buf = new byte[8];
+        Assert.assertEquals(8, in.read(buf, 0, buf.length));
+        Assert.assertEquals(8, in.read(buf, 0, buf.length));
+        Assert.assertEquals("stream must pretend to end once the limit is reached", -1, in.read(buf, 0, buf.length));
+        Assert.assertEquals(-1, in.read());
+
+        ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+        in.writeRecordedTo(recorded);
+        Assert.assertEquals(16, recorded.size());
+    }
+
+    @Test
+    public void testStopRecordingLiftsLimit() throws Exception {
+        byte[] data = new byte[100];
+        RecordingInputStream in = new RecordingInputStream(new ByteArrayInputStream(data), 10);
+
+        byte[] buf = new byte[100];
+        Assert.assertEquals(10, in.read(buf, 0, 10));
+        in.stopRecording();
+        Assert.assertFalse(in.isRecording());
+
+        int total = 0;
+        int read;
+        while ((read = in.read(buf, 0, buf.length)) > 0) {
+            total += read;
+        }
+        Assert.assertEquals("once not recording, the whole stream must be readable", 90, total);
+    }
+
+}
@@ -0,0 +1,134 @@
+package org.sufficientlysecure.keychain.operations.results;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(KeychainTestRunner.class)
+public class OperationLogStoreTest {
+
+    @Before
+    public void setUp() {
+        File cacheDir = RuntimeEnvironment.application.getCacheDir();
+        OperationLogStore.setSpillDirectory(cacheDir);
+    }
+
+    @After
+    public void tearDown() {
+        OperationLogStore.setSpillDirectory(null);
+    }
+
+    @Test
+    public void testPackedEntries() {
+        OperationLogStore store = new OperationLogStore();
+        SingletonResult subResult = new SingletonResult(SingletonResult.RESULT_OK, LogType.MSG_IMPORT_SUCCESS);
+
+        store.add(LogType.MSG_IMPORT, 0, new Object[] { 5 }, null);
+        store.add(LogType.MSG_IMPORT_SUCCESS, 3, null, subResult);
+        store.add(LogType.MSG_IMPORT_ERROR, 1000, null, null);
+
+        assertEquals(3, store.size());
+        assertEquals(LogType.MSG_IMPORT, store.getType(0));
+        assertEquals(0, store.getIndent(0));
+        assertArrayEquals(new Object[] { 5 }, store.getParameters(0));
+        assertNull(store.getSubResult(0));
+
+        assertEquals(LogType.MSG_IMPORT_SUCCESS, store.getType(1));
+        assertEquals(3, store.getIndent(1));
+        assertSame(subResult, store.getSubResult(1));
+
+        assertEquals("indent should be clamped, not overflow into the type",
+                LogType.MSG_IMPORT_ERROR, store.getType(2));
+    }
+
+    @Test
+    public void testSpillToDisk() {
+        int numEntries = 5 * OperationLogStore.CHUNK_SIZE + 17;
+        OperationLogStore store = new OperationLogStore(2 * OperationLogStore.CHUNK_SIZE);
+
+        for (int i = 0; i < numEntries; i++) {
+            store.add(LogType.MSG_IMPORT, i % 4, new Object[] { i, "entry " + i }, null);
+        }
+
+        assertTrue("large log should have been spilled", store.isSpilled());
+        assertEquals(numEntries, store.size());
+
+        // random access across spilled and in-memory chunks
+        for (int i : new int[] { numEntries - 1, 0, 3 * OperationLogStore.CHUNK_SIZE + 5, 1, numEntries - 2 }) {
+            assertEquals(i % 4, store.getIndent(i));
+            assertArrayEquals(new Object[] { i, "entry " + i }, store.getParameters(i));
+        }
+
+        store.clear();
+        assertEquals(0, store.size());
+        assertFalse(store.isSpilled());
+    }
+
+    @Test
+    public void testTypedParameters() {
+        OperationLogStore store = new OperationLogStore(OperationLogStore.CHUNK_SIZE);
+
+        for (int i = 0; i < OperationLogStore.CHUNK_SIZE; i++) {
+            store.add(LogType.MSG_IMPORT, 0, i % 2 == 0 ? null : new Object[] { i, 7L, null, "x", true }, null);
+        }
+
+        assertTrue(store.isSpilled());
+        assertNull(store.getParameters(0));
+        // other types are kept by their string representation
+        assertArrayEquals(new Object[] { 1, 7L, null, "x", "true" }, store.getParameters(1));
+        assertArrayEquals(new Object[] { 1023, 7L, null, "x", "true" }, store.getParameters(1023));
+    }
+
+    @Test
+    public void testSpillSubLogs() {
+        int numSubResults = 300;
+        OperationLogStore store = new OperationLogStore(2 * OperationLogStore.CHUNK_SIZE);
+        ArrayList<OperationLogStore> subStores = new ArrayList<>();
+
+        for (int i = 0; i < numSubResults; i++) {
+            OperationLog subLog = new OperationLog();
+            for (int j = 0; j < 10; j++) {
+                subLog.add(LogType.MSG_IMPORT, 1, i, "sub entry " + j);
+            }
+            subStores.add(subLog.getStore());
+            store.add(LogType.MSG_IMPORT, 0, null, new ConsolidateResult(OperationResult.RESULT_OK, subLog));
+        }
+
+        assertTrue("log with large sub logs should have been spilled", store.isSpilled());
+        // the sub logs added before the log passed the threshold
+        for (int i = 0; i < 100; i++) {
+            OperationLogStore subStore = subStores.get(i);
+            assertTrue("sub logs should be spilled along with their parent", subStore.isSpilled());
+            assertArrayEquals(new Object[] { i, "sub entry 9" }, subStore.getParameters(9));
+        }
+
+        // more entries for a sub log which was spilled before it was complete
+        subStores.get(0).add(LogType.MSG_IMPORT, 1, new Object[] { 0, "sub entry 10" }, null);
+        assertArrayEquals(new Object[] { 0, "sub entry 10" }, subStores.get(0).getParameters(10));
+
+        store.releaseSpillFile();
+        assertFalse(store.isSpilled());
+        for (int i = 0; i < numSubResults; i++) {
+            OperationLogStore subStore = subStores.get(i);
+            assertFalse("sub logs should be read back when the spill file is released", subStore.isSpilled());
+            assertArrayEquals(new Object[] { i, "sub entry 0" }, subStore.getParameters(0));
+            assertArrayEquals(new Object[] { i, "sub entry 9" }, subStore.getParameters(9));
+        }
+    }
+
+}
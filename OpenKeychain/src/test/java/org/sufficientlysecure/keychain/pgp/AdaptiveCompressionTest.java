@@ -0,0 +1,80 @@
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+
+@RunWith(KeychainTestRunner.class)
+public class AdaptiveCompressionTest {
+
+    @Test
+    public void estimate__randomData__shouldSkipCompression() throws Exception {
+        byte[] sample = new byte[AdaptiveCompression.SAMPLE_SIZE];
+        new Random(42).nextBytes(sample);
+
+        AdaptiveCompression compression = AdaptiveCompression.estimate(sample, sample.length, CompressionAlgorithmTags.ZIP);
+
+        assertFalse(compression.isCompressing());
+        assertEquals(CompressionAlgorithmTags.UNCOMPRESSED, compression.getAlgorithm());
+    }
+
+    @Test
+    public void estimate__text__shouldCompressStrongly() throws Exception {
+        byte[] sample = new byte[AdaptiveCompression.SAMPLE_SIZE];
+        byte[] line = "The quick brown fox jumps over the lazy dog.\n".getBytes("UTF-8");
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = line[i % line.length];
+        }
+
+        AdaptiveCompression compression = AdaptiveCompression.estimate(sample, sample.length, CompressionAlgorithmTags.ZIP);
+
+        assertTrue(compression.isCompressing());
+        assertEquals(CompressionAlgorithmTags.ZIP, compression.getAlgorithm());
+        assertEquals(Deflater.BEST_COMPRESSION, compression.getLevel());
+        assertTrue(compression.getSampleRatio() < 0.1f);
+    }
+
+    @Test
+    public void estimate__lowEntropyData__shouldCompressFast() throws Exception {
+        // four random bits per byte compress to somewhat more than half
+        byte[] sample = new byte[AdaptiveCompression.SAMPLE_SIZE];
+        Random random = new Random(42);
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = (byte) random.nextInt(16);
+        }
+
+        AdaptiveCompression compression = AdaptiveCompression.estimate(sample, sample.length, CompressionAlgorithmTags.ZIP);
+
+        assertTrue(compression.isCompressing());
+        assertEquals(Deflater.BEST_SPEED, compression.getLevel());
+    }
+
+    @Test
+    public void estimate__fromStream__shouldResetStream() throws Exception {
+        byte[] data = new byte[AdaptiveCompression.SAMPLE_SIZE * 2];
+        new Random(42).nextBytes(data);
+        InputStream in = new BufferedInputStream(new ByteArrayInputStream(data));
+
+        AdaptiveCompression.estimate(in, CompressionAlgorithmTags.ZIP);
+
+        byte[] firstBytes = new byte[16];
+        assertEquals(firstBytes.length, in.read(firstBytes));
+        for (int i = 0; i < firstBytes.length; i++) {
+            assertEquals(data[i], firstBytes[i]);
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+import static junit.framework.Assert.assertTrue;
+
+
+@RunWith(KeychainTestRunner.class)
+public class CfbOverEcbProviderTest {
+
+    @Test
+    public void cipher__shouldMatchBouncyCastle() throws Exception {
+        Provider bouncyCastle = Security.getProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        Provider cfbOverEcb = new CfbOverEcbProvider(bouncyCastle);
+        Random random = new Random(42);
+
+        for (int keySize : new int[] { 16, 24, 32 }) {
+            byte[] key = new byte[keySize];
+            byte[] iv = new byte[16];
+            byte[] plaintext = new byte[5000 + keySize];
+            random.nextBytes(key);
+            random.nextBytes(iv);
+            random.nextBytes(plaintext);
+            SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+
+            Cipher expected = Cipher.getInstance("AES/CFB/NoPadding", bouncyCastle);
+            expected.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(iv));
+            byte[] ciphertext = expected.doFinal(plaintext);
+
+            Cipher cipher = Cipher.getInstance("AES/CFB/NoPadding", cfbOverEcb);
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(iv));
+            assertTrue("encryption in uneven chunks must match",
+                    Arrays.equals(ciphertext, processInChunks(cipher, plaintext, random)));
+            assertTrue("cipher must be reset after doFinal",
+                    Arrays.equals(ciphertext, cipher.doFinal(plaintext)));
+
+            cipher.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(iv));
+            assertTrue("decryption in uneven chunks must match",
+                    Arrays.equals(plaintext, processInChunks(cipher, ciphertext, random)));
+            assertTrue("cipher must be reset after doFinal",
+                    Arrays.equals(plaintext, cipher.doFinal(ciphertext)));
+        }
+    }
+
+    @Test
+    public void cipher__shouldWorkInPlace() throws Exception {
+        Provider bouncyCastle = Security.getProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        Provider cfbOverEcb = new CfbOverEcbProvider(bouncyCastle);
+        SecretKeySpec keySpec = new SecretKeySpec(new byte[32], "AES");
+        byte[] plaintext = new byte[1000];
+        new Random(42).nextBytes(plaintext);
+
+        Cipher expected = Cipher.getInstance("AES/CFB/NoPadding", bouncyCastle);
+        expected.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(new byte[16]));
+        byte[] ciphertext = expected.doFinal(plaintext);
+
+        Cipher cipher = Cipher.getInstance("AES/CFB/NoPadding", cfbOverEcb);
+        cipher.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(new byte[16]));
+        byte[] data = Arrays.copyOf(ciphertext, ciphertext.length);
+        cipher.update(data, 0, 7, data, 0);
+        cipher.update(data, 7, 500, data, 7);
+        cipher.doFinal(data, 507, data.length - 507, data, 507);
+
+        assertTrue(Arrays.equals(plaintext, data));
+    }
+
+    private static byte[] processInChunks(Cipher cipher, byte[] input, Random random) throws Exception {
+        byte[] output = new byte[input.length];
+        int offset = 0;
+        while (offset < input.length) {
+            int length = Math.min(input.length - offset, 1 + random.nextInt(300));
+            offset += cipher.update(input, offset, length, output, offset);
+        }
+        cipher.doFinal(output, offset);
+        return output;
+    }
+
+}
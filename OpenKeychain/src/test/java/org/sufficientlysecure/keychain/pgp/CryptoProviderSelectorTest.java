@@ -0,0 +1,154 @@
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.crypto.Cipher;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+
+@RunWith(KeychainTestRunner.class)
+public class CryptoProviderSelectorTest {
+
+    @Test
+    public void getDataProviderName__nonAes__shouldUseBouncyCastle() throws Exception {
+        CryptoProviderSelector selector = CryptoProviderSelector.getInstance(RuntimeEnvironment.application);
+
+        assertEquals(Constants.BOUNCY_CASTLE_PROVIDER_NAME,
+                selector.getDataProviderName(SymmetricKeyAlgorithmTags.TWOFISH));
+        assertEquals(Constants.BOUNCY_CASTLE_PROVIDER_NAME,
+                selector.getDataProviderName(SymmetricKeyAlgorithmTags.CAMELLIA_256));
+    }
+
+    @Test
+    public void getDataProviderName__aes__shouldUseBouncyCastleUntilSelected() throws Exception {
+        QueueingExecutor executor = new QueueingExecutor();
+        CryptoProviderSelector selector = new CryptoProviderSelector(
+                Preferences.getPreferences(RuntimeEnvironment.application), executor);
+
+        assertEquals("must not wait for the benchmark", Constants.BOUNCY_CASTLE_PROVIDER_NAME,
+                selector.getDataProviderName(SymmetricKeyAlgorithmTags.AES_256));
+        assertEquals(Constants.BOUNCY_CASTLE_PROVIDER_NAME,
+                selector.getDataProviderName(SymmetricKeyAlgorithmTags.AES_256));
+        assertEquals("benchmark must only be scheduled once", 1, executor.mTasks.size());
+
+        executor.runAll();
+
+        String providerName = selector.getDataProviderName(SymmetricKeyAlgorithmTags.AES_256);
+        assertNotNull(Security.getProvider(providerName));
+        assertEquals("selection should be stable",
+                providerName, selector.getDataProviderName(SymmetricKeyAlgorithmTags.AES_256));
+        assertTrue("no further benchmark once selected", executor.mTasks.isEmpty());
+    }
+
+    @Test
+    public void getDataProviderName__aes__shouldKeepSelection() throws Exception {
+        QueueingExecutor executor = new QueueingExecutor();
+        Preferences preferences = Preferences.getPreferences(RuntimeEnvironment.application);
+        CryptoProviderSelector selector = new CryptoProviderSelector(preferences, executor);
+        selector.getDataProviderName(SymmetricKeyAlgorithmTags.AES_128);
+        executor.runAll();
+        String providerName = selector.getDataProviderName(SymmetricKeyAlgorithmTags.AES_128);
+
+        CryptoProviderSelector restarted = new CryptoProviderSelector(preferences, executor);
+
+        assertEquals("selection must be read back from the preferences",
+                providerName, restarted.getDataProviderName(SymmetricKeyAlgorithmTags.AES_128));
+        assertTrue(executor.mTasks.isEmpty());
+    }
+
+    @Test
+    public void selectProvider__shouldSkipProvidersWithoutAesCfb() throws Exception {
+        Provider noCiphers = new Provider("NoCiphers", 1.0, "provider without any ciphers") { };
+
+        assertFalse(CryptoProviderSelector.providesAesCfb(noCiphers));
+        assertTrue(CryptoProviderSelector.providesAesCfb(
+                Security.getProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)));
+
+        Security.addProvider(noCiphers);
+        try {
+            assertFalse("NoCiphers".equals(CryptoProviderSelector.selectCipherProvider(32, Cipher.ENCRYPT_MODE)));
+            assertFalse("NoCiphers".equals(CryptoProviderSelector.selectCipherProvider(32, Cipher.DECRYPT_MODE)));
+        } finally {
+            Security.removeProvider("NoCiphers");
+        }
+    }
+
+    @Test
+    public void getEncryptionProviderName__shouldBeSelectedSeparately() throws Exception {
+        QueueingExecutor executor = new QueueingExecutor();
+        CryptoProviderSelector selector = new CryptoProviderSelector(
+                Preferences.getPreferences(RuntimeEnvironment.application), executor);
+
+        selector.getDataProviderName(SymmetricKeyAlgorithmTags.AES_128);
+        selector.getEncryptionProviderName(SymmetricKeyAlgorithmTags.AES_128);
+        assertEquals("encryption and decryption are benchmarked separately", 2, executor.mTasks.size());
+
+        executor.runAll();
+
+        String providerName = selector.getEncryptionProviderName(SymmetricKeyAlgorithmTags.AES_128);
+        assertNotNull(Security.getProvider(providerName));
+        assertTrue(CryptoProviderSelector.providesAesCfb(Security.getProvider(providerName)));
+        assertEquals(Constants.BOUNCY_CASTLE_PROVIDER_NAME,
+                selector.getEncryptionProviderName(SymmetricKeyAlgorithmTags.TWOFISH));
+    }
+
+    @Test
+    public void getDigestProviderName__shouldUseBouncyCastleUntilSelected() throws Exception {
+        QueueingExecutor executor = new QueueingExecutor();
+        CryptoProviderSelector selector = new CryptoProviderSelector(
+                Preferences.getPreferences(RuntimeEnvironment.application), executor);
+
+        assertEquals(Constants.BOUNCY_CASTLE_PROVIDER_NAME,
+                selector.getDigestProviderName(HashAlgorithmTags.MD5));
+        assertTrue("no benchmark for unsupported hash algorithms", executor.mTasks.isEmpty());
+
+        assertEquals("must not wait for the benchmark", Constants.BOUNCY_CASTLE_PROVIDER_NAME,
+                selector.getDigestProviderName(HashAlgorithmTags.SHA256));
+        assertEquals(1, executor.mTasks.size());
+
+        executor.runAll();
+
+        String providerName = selector.getDigestProviderName(HashAlgorithmTags.SHA256);
+        MessageDigest digest = MessageDigest.getInstance(
+                CryptoProviderSelector.getDigestName(HashAlgorithmTags.SHA256), providerName);
+        assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256", Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                .digest(new byte[] { 1, 2, 3 }), digest.digest(new byte[] { 1, 2, 3 })));
+    }
+
+    /** Runs tasks only when asked to, so tests see the state while a benchmark is pending. */
+    private static class QueueingExecutor implements Executor {
+        final List<Runnable> mTasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            mTasks.add(task);
+        }
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                mTasks.remove(0).run();
+            }
+        }
+    }
+
+}
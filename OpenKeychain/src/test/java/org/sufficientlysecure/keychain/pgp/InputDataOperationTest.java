@@ -37,10 +37,14 @@ import org.sufficientlysecure.keychain.KeychainTestRunner;
 import org.sufficientlysecure.keychain.operations.InputDataOperation;
 import org.sufficientlysecure.keychain.operations.results.InputDataResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.InputDataParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.TestingUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -48,11 +52,14 @@ import java.io.FileNotFoundException;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Date;
 
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -60,6 +67,8 @@ import static org.mockito.Mockito.when;
 public class InputDataOperationTest {
 
     public static final Uri FAKE_CONTENT_INPUT_URI_1 = Uri.parse("content://fake/1");
+    static final Uri FAKE_OUTPUT_URI = Uri.parse("content://fake/out/1");
+    static Passphrase mSymmetricPassphrase = TestingUtils.genPassphrase(true);
     static PrintStream oldShadowStream;
 
     @BeforeClass
@@ -284,6 +293,124 @@ public class InputDataOperationTest {
                 result.getOutputUris().get(0), FAKE_CONTENT_INPUT_URI_1);
     }
 
+    @Test
+    public void testDecryptMimeStreamsPartsWithoutPlainCopy() throws Exception {
+
+        String mimeMail =
+            "Content-Type: multipart/mixed; boundary=\"=-26BafqxfXmhVNMbYdoIi\"\n" +
+            "\n" +
+            "--=-26BafqxfXmhVNMbYdoIi\n" +
+            "Content-Type: text/plain; charset=utf-8\n" +
+            "\n" +
+            "message part 1\n" +
+            "--=-26BafqxfXmhVNMbYdoIi\n" +
+            "Content-Type: text/testvalue; charset=iso-8859-1\n" +
+            "\n" +
+            "message part 2\n" +
+            "--=-26BafqxfXmhVNMbYdoIi--";
+        byte[] ciphertext = encryptSymmetric(mimeMail.getBytes());
+
+        ByteArrayOutputStream outStream1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream outStream2 = new ByteArrayOutputStream();
+        ContentResolver mockResolver = mockResolverForDecryption(ciphertext);
+        when(mockResolver.openOutputStream(any(Uri.class), eq("w"))).thenReturn(outStream1, outStream2);
+
+        InputDataResult result = runDecryptInputOperation(mockResolver, mSymmetricPassphrase);
+
+        Assert.assertTrue("operation must succeed", result.success());
+        Assert.assertNotNull(result.mDecryptVerifyResult);
+        Assert.assertEquals("must have two output URIs", 2, result.getOutputUris().size());
+        Assert.assertEquals("message part 1", new String(outStream1.toByteArray()));
+        Assert.assertEquals("message part 2", new String(outStream2.toByteArray()));
+
+        // mime data was parsed from the pipe, it is neither stored nor decrypted a second time
+        verify(mockResolver, times(2)).openOutputStream(any(Uri.class), eq("w"));
+        verify(mockResolver).openInputStream(FAKE_CONTENT_INPUT_URI_1);
+        verify(mockResolver, never()).delete(any(Uri.class), any(String.class), any(String[].class));
+    }
+
+    @Test
+    public void testDecryptNonMimeKeepsRecordedData() throws Exception {
+
+        String plaintext = "Some-Header: dummy\n" +
+                "\n" +
+                "not mime, even though it starts like it\n";
+        byte[] ciphertext = encryptSymmetric(plaintext.getBytes());
+
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+        ContentResolver mockResolver = mockResolverForDecryption(ciphertext);
+        when(mockResolver.openOutputStream(any(Uri.class), eq("w"))).thenReturn(plainOut);
+
+        InputDataResult result = runDecryptInputOperation(mockResolver, mSymmetricPassphrase);
+
+        Assert.assertTrue("operation must succeed", result.success());
+        Assert.assertTrue("should not be mime parsed",
+                result.getLog().containsType(LogType.MSG_DATA_MIME_NONE));
+        Assert.assertEquals("must have one output URI", 1, result.getOutputUris().size());
+        Assert.assertEquals("plain data must be stored as a whole from the recorded head and the pipe",
+                plaintext, new String(plainOut.toByteArray()));
+        verify(mockResolver).openInputStream(FAKE_CONTENT_INPUT_URI_1);
+    }
+
+    @Test
+    public void testDecryptMimeWithoutContentDecryptsAgain() throws Exception {
+
+        // this looks like mime up to its end, so no plain copy is kept while parsing
+        String plaintext = "Content-Type: text/plain\n" +
+                "\n";
+        byte[] ciphertext = encryptSymmetric(plaintext.getBytes());
+
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+        ContentResolver mockResolver = mockResolverForDecryption(ciphertext);
+        when(mockResolver.openOutputStream(any(Uri.class))).thenReturn(plainOut);
+
+        InputDataResult result = runDecryptInputOperation(mockResolver, mSymmetricPassphrase);
+
+        Assert.assertTrue("operation must succeed", result.success());
+        Assert.assertEquals("must have one output URI", 1, result.getOutputUris().size());
+        Assert.assertEquals("plain data must come from the second decryption",
+                plaintext, new String(plainOut.toByteArray()));
+        verify(mockResolver, times(2)).openInputStream(FAKE_CONTENT_INPUT_URI_1);
+        verify(mockResolver, never()).openOutputStream(any(Uri.class), eq("w"));
+    }
+
+    @Test
+    public void testDecryptWithoutPassphraseIsPending() throws Exception {
+
+        byte[] ciphertext = encryptSymmetric("Content-Type: text/plain\n\ntext\n".getBytes());
+
+        ContentResolver mockResolver = mockResolverForDecryption(ciphertext);
+
+        InputDataResult result = runDecryptInputOperation(mockResolver, null);
+
+        Assert.assertTrue("operation must be pending", result.isPending());
+        Assert.assertNull("nothing must be returned", result.getOutputUris());
+        verify(mockResolver).openInputStream(FAKE_CONTENT_INPUT_URI_1);
+    }
+
+    @Test
+    public void testDecryptIntegrityFailureDeletesParts() throws Exception {
+
+        String plaintext = "Content-Type: text/plain\n" +
+                "\n" +
+                "this part is written before the integrity check fails\n";
+        byte[] ciphertext = encryptSymmetric(plaintext.getBytes());
+        // the last bytes are the modification detection code
+        ciphertext[ciphertext.length - 1] ^= 0x01;
+
+        ByteArrayOutputStream partOut = new ByteArrayOutputStream();
+        ContentResolver mockResolver = mockResolverForDecryption(ciphertext);
+        when(mockResolver.openOutputStream(any(Uri.class), eq("w"))).thenReturn(partOut);
+
+        InputDataResult result = runDecryptInputOperation(mockResolver, mSymmetricPassphrase);
+
+        Assert.assertFalse("operation must fail", result.success());
+        Assert.assertTrue("integrity check must have failed",
+                result.getLog().containsType(LogType.MSG_DC_ERROR_INTEGRITY_CHECK));
+        Assert.assertTrue("part must have been streamed out before the check", partOut.size() > 0);
+        verify(mockResolver).delete(FAKE_OUTPUT_URI, null, null);
+    }
+
     private InputDataResult runSimpleDataInputOperation(byte[] mimeContentBytes) throws FileNotFoundException {
         ByteArrayOutputStream outStream1 = new ByteArrayOutputStream();
         ByteArrayOutputStream outStream2 = new ByteArrayOutputStream();
@@ -312,4 +439,52 @@ public class InputDataOperationTest {
         return op.execute(input, CryptoInputParcel.createCryptoInputParcel());
     }
 
+    private static byte[] encryptSymmetric(byte[] plaintext) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null);
+
+        PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+        pgpData.setSymmetricPassphrase(mSymmetricPassphrase);
+        pgpData.setSymmetricEncryptionAlgorithm(
+                PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+        PgpSignEncryptResult result = op.execute(pgpData.build(),
+                CryptoInputParcel.createCryptoInputParcel(new Date()), new InputData(in, plaintext.length), out);
+        Assert.assertTrue("encryption must succeed", result.success());
+
+        return out.toByteArray();
+    }
+
+    private static ContentResolver mockResolverForDecryption(byte[] ciphertext) throws FileNotFoundException {
+        ContentResolver mockResolver = mock(ContentResolver.class);
+
+        // the input may be opened twice, if the data needs to be decrypted again
+        when(mockResolver.openInputStream(FAKE_CONTENT_INPUT_URI_1)).thenReturn(
+                new ByteArrayInputStream(ciphertext), new ByteArrayInputStream(ciphertext));
+        when(mockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
+                .thenReturn(FAKE_OUTPUT_URI);
+
+        return mockResolver;
+    }
+
+    private static InputDataResult runDecryptInputOperation(ContentResolver mockResolver, Passphrase passphrase) {
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        InputDataOperation op = new InputDataOperation(spyApplication,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null);
+
+        PgpDecryptVerifyInputParcel decryptInput = PgpDecryptVerifyInputParcel.builder()
+                .setAllowSymmetricDecryption(true)
+                .build();
+        InputDataParcel input = InputDataParcel.createInputDataParcel(FAKE_CONTENT_INPUT_URI_1, decryptInput);
+        CryptoInputParcel cryptoInput = passphrase != null
+                ? CryptoInputParcel.createCryptoInputParcel(passphrase)
+                : CryptoInputParcel.createCryptoInputParcel();
+        return op.execute(input, cryptoInput);
+    }
+
 }
@@ -26,9 +26,11 @@ import java.security.Security;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.Random;
 
 import org.apache.tools.ant.util.StringUtils;
 import org.bouncycastle.bcpg.BCPGInputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
 import org.bouncycastle.bcpg.Packet;
 import org.bouncycastle.bcpg.PacketTags;
 import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
@@ -50,6 +52,7 @@ import org.sufficientlysecure.keychain.KeychainTestRunner;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags;
 import org.sufficientlysecure.keychain.pgp.SecurityProblem.InsecureBitStrength;
 import org.sufficientlysecure.keychain.pgp.SecurityProblem.InsecureEncryptionAlgorithm;
 import org.sufficientlysecure.keychain.pgp.SecurityProblem.MissingMdc;
@@ -344,6 +347,47 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAsymmetricSignBatchUnlocksOnce() {
+
+        PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+        pgpData.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+        pgpData.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+        pgpData.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+        PgpSignEncryptData signEncryptData = pgpData.build();
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null);
+
+        { // without a passphrase, a fresh operation must ask for one
+            ByteArrayInputStream in = new ByteArrayInputStream("message 0".getBytes());
+            PgpSignEncryptResult result = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.create(RuntimeEnvironment.application), null).execute(
+                    signEncryptData, CryptoInputParcel.createCryptoInputParcel(new Date()),
+                    new InputData(in, in.available()), new ByteArrayOutputStream());
+            Assert.assertTrue("signing without passphrase must be pending", result.isPending());
+        }
+
+        { // first message unlocks the key
+            ByteArrayInputStream in = new ByteArrayInputStream("message 1".getBytes());
+            PgpSignEncryptResult result = op.execute(signEncryptData,
+                    CryptoInputParcel.createCryptoInputParcel(mKeyPhrase1),
+                    new InputData(in, in.available()), new ByteArrayOutputStream());
+            Assert.assertTrue("signing must succeed", result.success());
+        }
+
+        { // further messages reuse the unlocked key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream("message 2".getBytes());
+            PgpSignEncryptResult result = op.execute(signEncryptData,
+                    CryptoInputParcel.createCryptoInputParcel(new Date()),
+                    new InputData(in, in.available()), out);
+            Assert.assertTrue("signing with unlocked key must succeed", result.success());
+            Assert.assertTrue("output must be written", out.size() > 0);
+        }
+
+    }
+
     @Test
     public void testAsymmetricSignCleartext() {
 
@@ -462,6 +506,84 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAsymmetricSignDetachedVerifyFromDigest() {
+
+        byte[] plaintext = ("dies ist ein plaintext ☭\r\nmit zeilen\n" + TestingUtils.genPassphrase(true)).getBytes();
+        byte[] detachedSignature;
+
+        { // sign data with key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.create(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+
+            PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+            pgpData.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            pgpData.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            pgpData.setDetachedSignature(true);
+
+            PgpSignEncryptResult result = op.execute(pgpData.build(),
+                    CryptoInputParcel.createCryptoInputParcel(mKeyPhrase1), data, out);
+            Assert.assertTrue("signing must succeed", result.success());
+
+            detachedSignature = result.getDetachedSignature();
+        }
+
+        PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                .setDetachedSignature(detachedSignature)
+                .build();
+
+        { // verification against a digest computed in pieces should succeed
+            DetachedSignatureDigest digest = DetachedSignatureDigest.fromMicalg("pgp-sha512",
+                CryptoProviderSelector.getInstance(RuntimeEnvironment.application));
+            Assert.assertNotNull(digest);
+            for (int off = 0; off < plaintext.length; off += 7) {
+                digest.update(plaintext, off, Math.min(7, plaintext.length - off));
+            }
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            DecryptVerifyResult result = op.verifyDetachedSignature(input, digest);
+
+            Assert.assertTrue("verification must succeed", result.success());
+            Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                    OpenPgpSignatureResult.RESULT_VALID_KEY_CONFIRMED, result.getSignatureResult().getResult());
+        }
+
+        { // a digest of other data must not verify
+            DetachedSignatureDigest digest = DetachedSignatureDigest.fromMicalg("pgp-sha512",
+                CryptoProviderSelector.getInstance(RuntimeEnvironment.application));
+            Assert.assertNotNull(digest);
+            digest.update(plaintext, 1, plaintext.length - 1);
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            DecryptVerifyResult result = op.verifyDetachedSignature(input, digest);
+
+            Assert.assertEquals("signatureResult should be RESULT_INVALID_SIGNATURE",
+                    OpenPgpSignatureResult.RESULT_INVALID_SIGNATURE, result.getSignatureResult().getResult());
+        }
+
+        { // a digest with another hash algorithm than the signature's must not verify
+            DetachedSignatureDigest digest = DetachedSignatureDigest.fromMicalg("pgp-sha256",
+                CryptoProviderSelector.getInstance(RuntimeEnvironment.application));
+            Assert.assertNotNull(digest);
+            digest.update(plaintext, 0, plaintext.length);
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            DecryptVerifyResult result = op.verifyDetachedSignature(input, digest);
+
+            Assert.assertEquals("signatureResult should be RESULT_INVALID_SIGNATURE",
+                    OpenPgpSignatureResult.RESULT_INVALID_SIGNATURE, result.getSignatureResult().getResult());
+        }
+
+        Assert.assertNull("md5 must not be accepted", DetachedSignatureDigest.fromMicalg("pgp-md5",
+                CryptoProviderSelector.getInstance(RuntimeEnvironment.application)));
+
+    }
+
     @Test
     public void testAsymmetricEncryptDecrypt() {
 
@@ -935,6 +1057,55 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAsymmetricEncryptDecryptAdaptiveCompression() {
+
+        // random data doesn't compress, so compression should be skipped
+        byte[] plaintext = new byte[256 * 1024];
+        new Random(42).nextBytes(plaintext);
+        byte[] ciphertext;
+
+        { // encrypt
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.create(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+
+            PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+            pgpData.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+            pgpData.setCompressionAlgorithm(OpenKeychainCompressionAlgorithmTags.ADAPTIVE);
+
+            PgpSignEncryptResult result = op.execute(pgpData.build(),
+                    CryptoInputParcel.createCryptoInputParcel(new Date()), data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+            Assert.assertTrue("compression should have been skipped",
+                    result.getLog().containsType(LogType.MSG_PSE_COMPRESSING_SKIPPED));
+            Assert.assertEquals("decision should be recorded in result",
+                    CompressionAlgorithmTags.UNCOMPRESSED, result.getCompressionAlgorithm());
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // decrypt
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder().build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                    plaintext, out.toByteArray());
+        }
+
+    }
+
     @Test
     public void testForeignEncoding() throws Exception {
         String plaintext = "ウィキペディア";
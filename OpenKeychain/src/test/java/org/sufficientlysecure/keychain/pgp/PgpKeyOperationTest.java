@@ -30,6 +30,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import junit.framework.AssertionFailedError;
 import org.bouncycastle.bcpg.BCPGInputStream;
@@ -238,6 +239,42 @@ public class PgpKeyOperationTest {
 
     }
 
+    @Test
+    public void testCreateCancelled() throws Exception {
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                Algorithm.ECDSA, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(
+                Algorithm.ECDH, 0, SaveKeyringParcel.Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        builder.addUserId("derpy");
+
+        PgpKeyOperation op = new PgpKeyOperation(null, new AtomicBoolean(true));
+        PgpEditKeyResult result = op.createSecretKeyRing(builder.build());
+
+        Assert.assertTrue("key creation must be cancelled", result.cancelled());
+        Assert.assertNull("cancelled key creation must not return a ring", result.getRing());
+        Assert.assertTrue("cancellation must be logged",
+                result.getLog().containsType(LogType.MSG_OPERATION_CANCELLED));
+    }
+
+    @Test
+    public void testSubkeysAddedInOrder() throws Exception {
+        builder.addSubkeyAdd(createSubkeyAdd(ECDSA, 0, NIST_P256, SIGN_DATA, 0L));
+        builder.addSubkeyAdd(createSubkeyAdd(Algorithm.ECDH, 0, NIST_P256, KeyFlags.ENCRYPT_STORAGE, 0L));
+        builder.addSubkeyAdd(createSubkeyAdd(ECDSA, 0, NIST_P256, KeyFlags.AUTHENTICATION, 0L));
+
+        UncachedKeyRing modified = applyModificationWithChecks(builder.build(), ring, onlyA, onlyB);
+
+        List<UncachedPublicKey> subkeys = KeyringTestingHelper.itToList(modified.getPublicKeys());
+        Assert.assertEquals("three subkeys must have been added", 6, subkeys.size());
+        Assert.assertEquals("first new subkey must be the first one requested",
+                SIGN_DATA, (long) subkeys.get(3).getKeyUsage());
+        Assert.assertEquals("second new subkey must be the second one requested",
+                KeyFlags.ENCRYPT_STORAGE, (long) subkeys.get(4).getKeyUsage());
+        Assert.assertEquals("third new subkey must be the third one requested",
+                KeyFlags.AUTHENTICATION, (long) subkeys.get(5).getKeyUsage());
+    }
+
     @Test
     public void testCreatedKey() throws Exception {
 
@@ -1174,6 +1211,19 @@ public class PgpKeyOperationTest {
             }
         }
 
+        { // the new passphrase should be derived only once, so all keys share the same s2k salt
+            byte[] salt = null;
+            for (int i = 0; i < 3; i++) {
+                SecretKeyPacket p = (SecretKeyPacket) new BCPGInputStream(
+                        new ByteArrayInputStream(onlyB.get(i).buf)).readPacket();
+                if (salt == null) {
+                    salt = p.getS2K().getIV();
+                }
+                Assert.assertArrayEquals("all secret keys should share the same s2k salt",
+                        salt, p.getS2K().getIV());
+            }
+        }
+
         RawPacket sKeyWithPassphrase = onlyB.get(1);
         Assert.assertEquals("extracted packet should be a secret subkey",
                 PacketTags.SECRET_SUBKEY, sKeyNoPassphrase.tag);
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.bouncycastle.bcpg.RSAPublicBCPGKey;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+@RunWith(KeychainTestRunner.class)
+public class PregeneratedKeyPoolTest {
+    private static final SubkeyAdd RSA_2048 =
+            SubkeyAdd.createSubkeyAdd(Algorithm.RSA, 2048, null, KeyFlags.CERTIFY_OTHER, 0L);
+
+    static KeyPair keyPair;
+
+    File poolDir;
+    SecretKey poolKey;
+    PregeneratedKeyPool pool;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA", BouncyCastleProvider.PROVIDER_NAME);
+        keyGen.initialize(2048);
+        keyPair = keyGen.generateKeyPair();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        poolDir = new File(RuntimeEnvironment.application.getCacheDir(), "key_pool_test");
+        File[] files = poolDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Assert.assertTrue(file.delete());
+            }
+        }
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        poolKey = keyGenerator.generateKey();
+        pool = new PregeneratedKeyPool(poolDir, poolKey);
+    }
+
+    @Test
+    public void take__afterPut__shouldReturnKeyPairOnce() throws Exception {
+        pool.put(2048, keyPair, System.currentTimeMillis());
+        Assert.assertEquals(1, pool.getAvailableCount(2048));
+
+        KeyPair pooled = pool.take(RSA_2048);
+
+        Assert.assertNotNull(pooled);
+        Assert.assertArrayEquals(keyPair.getPublic().getEncoded(), pooled.getPublic().getEncoded());
+        Assert.assertArrayEquals(keyPair.getPrivate().getEncoded(), pooled.getPrivate().getEncoded());
+        Assert.assertNull("a key pair must only be handed out once", pool.take(RSA_2048));
+        Assert.assertEquals(0, pool.getAvailableCount(2048));
+    }
+
+    @Test
+    public void take__otherParameters__shouldReturnNull() throws Exception {
+        pool.put(2048, keyPair, System.currentTimeMillis());
+
+        Assert.assertNull(pool.take(SubkeyAdd.createSubkeyAdd(Algorithm.RSA, 3072, null, KeyFlags.SIGN_DATA, 0L)));
+        Assert.assertNull(pool.take(SubkeyAdd.createSubkeyAdd(Algorithm.DSA, 2048, null, KeyFlags.SIGN_DATA, 0L)));
+        Assert.assertEquals(1, pool.getAvailableCount(2048));
+    }
+
+    @Test
+    public void take__expiredKeyPair__shouldDeleteIt() throws Exception {
+        long expired = System.currentTimeMillis() - PregeneratedKeyPool.KEY_PAIR_LIFETIME_MS - 1000;
+        pool.put(2048, keyPair, expired);
+
+        Assert.assertNull(pool.take(RSA_2048));
+        Assert.assertEquals("expired key pair must be deleted", 0, poolDir.listFiles().length);
+    }
+
+    @Test
+    public void take__otherPoolKey__shouldDiscardKeyPair() throws Exception {
+        pool.put(2048, keyPair, System.currentTimeMillis());
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        PregeneratedKeyPool otherPool = new PregeneratedKeyPool(poolDir, keyGenerator.generateKey());
+
+        Assert.assertNull(otherPool.take(RSA_2048));
+        Assert.assertEquals("undecryptable key pair must be deleted", 0, poolDir.listFiles().length);
+    }
+
+    @Test
+    public void put__shouldNotStoreKeyMaterialInPlain() throws Exception {
+        pool.put(2048, keyPair, System.currentTimeMillis());
+
+        File file = poolDir.listFiles()[0];
+        byte[] stored = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        in.readFully(stored);
+        in.close();
+
+        byte[] modulus = ((RSAPublicKey) keyPair.getPublic()).getModulus().toByteArray();
+        byte[] window = Arrays.copyOfRange(modulus, 16, 48);
+        for (int i = 0; i + window.length <= stored.length; i++) {
+            Assert.assertFalse("key material must be encrypted",
+                    Arrays.equals(window, Arrays.copyOfRange(stored, i, i + window.length)));
+        }
+    }
+
+    @Test
+    public void createSecretKeyRing__withPooledKeyPair__shouldUseIt() throws Exception {
+        pool.put(2048, keyPair, System.currentTimeMillis());
+
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        builder.addSubkeyAdd(RSA_2048);
+        builder.addUserId("applejack");
+
+        PgpKeyOperation op = new PgpKeyOperation(null, null, pool);
+        PgpEditKeyResult result = op.createSecretKeyRing(builder.build());
+
+        Assert.assertTrue("key creation must succeed", result.success());
+        Assert.assertTrue(result.getLog().containsType(LogType.MSG_CR_POOLED_KEY));
+        RSAPublicBCPGKey masterKey =
+                (RSAPublicBCPGKey) result.getRing().getPublicKey().getPublicKey().getPublicKeyPacket().getKey();
+        Assert.assertEquals("master key must be the pooled key pair",
+                ((RSAPublicKey) keyPair.getPublic()).getModulus(), masterKey.getModulus());
+        Assert.assertEquals(0, pool.getAvailableCount(2048));
+    }
+
+    @Test
+    public void modifySecretKeyRing__withBadPassphrase__shouldNotTakePooledKeyPair() throws Exception {
+        pool.put(2048, keyPair, System.currentTimeMillis());
+
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        builder.addSubkeyAdd(RSA_2048);
+        builder.addUserId("applejack");
+        builder.setNewUnlock(ChangeUnlockParcel.createUnLockParcelForNewKey(new Passphrase("passphrase")));
+
+        PgpKeyOperation op = new PgpKeyOperation(null, null, pool);
+        UncachedKeyRing ring = op.createSecretKeyRing(builder.build()).getRing();
+        Assert.assertNotNull("key creation must succeed", ring);
+
+        pool.put(2048, keyPair, System.currentTimeMillis());
+        SaveKeyringParcel.Builder changeBuilder =
+                SaveKeyringParcel.buildChangeKeyringParcel(ring.getMasterKeyId(), ring.getFingerprint());
+        changeBuilder.addSubkeyAdd(
+                SubkeyAdd.createSubkeyAdd(Algorithm.RSA, 2048, null, KeyFlags.SIGN_DATA, 0L));
+
+        PgpEditKeyResult result = op.modifySecretKeyRing(new CanonicalizedSecretKeyRing(ring.getEncoded(), 0),
+                CryptoInputParcel.createCryptoInputParcel(new Passphrase("bad")), changeBuilder.build());
+
+        Assert.assertTrue(result.getLog().containsType(LogType.MSG_MF_UNLOCK_ERROR));
+        Assert.assertEquals("pooled key pair must be left for a later attempt", 1, pool.getAvailableCount(2048));
+    }
+
+}
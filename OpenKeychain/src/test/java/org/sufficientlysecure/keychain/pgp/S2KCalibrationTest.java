@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(KeychainTestRunner.class)
+public class S2KCalibrationTest {
+
+    @Test
+    public void calibrate__fastDevice__shouldScaleToTargetTime() throws Exception {
+        // 0xf9 hashes exactly 100 times the bytes of the default count
+        assertEquals(0xf9, S2KCalibration.calibrate(1000, 100 * 1000));
+        assertEquals(0xff, S2KCalibration.calibrate(0, 100 * 1000));
+    }
+
+    @Test
+    public void calibrate__slowDevice__shouldKeepDefault() throws Exception {
+        assertEquals(PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT,
+                S2KCalibration.calibrate(200 * 1000, 100 * 1000));
+    }
+
+    @Test
+    public void getHashedByteCount__shouldMatchRfc4880() throws Exception {
+        assertEquals(65536, S2KCalibration.getHashedByteCount(0x60));
+        assertEquals(65011712, S2KCalibration.getHashedByteCount(0xff));
+    }
+
+    @Test
+    public void getSecretKeyS2KCount__shouldBeStable() throws Exception {
+        int s2kCount = S2KCalibration.getInstance(RuntimeEnvironment.application).getSecretKeyS2KCount();
+
+        assertTrue(s2kCount >= PgpSecurityConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT && s2kCount <= 0xff);
+        assertEquals("calibration should be stable", s2kCount,
+                S2KCalibration.getInstance(RuntimeEnvironment.application).getSecretKeyS2KCount());
+    }
+
+}
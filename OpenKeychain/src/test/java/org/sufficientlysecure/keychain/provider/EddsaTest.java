@@ -40,6 +40,8 @@ import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.pgp.CryptoProviderSelector;
+import org.sufficientlysecure.keychain.pgp.DetachedSignatureDigest;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
@@ -121,6 +123,39 @@ public class EddsaTest {
         assertTrue(result2.success());
     }
 
+    @Test
+    public void testEddsaSignVerifyFromDigest() throws Exception {
+        UncachedKeyRing ring = loadSeckeyFromResource("/test-keys/eddsa-key.sec");
+
+        PgpSignEncryptData data = PgpSignEncryptData.builder()
+                .setDetachedSignature(true)
+                .setSignatureMasterKeyId(ring.getMasterKeyId())
+                .build();
+        PgpSignEncryptInputParcel inputParcel = PgpSignEncryptInputParcel.createForBytes(
+                data, null, SIGNED_BYTES);
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(context, keyRepository, null);
+        PgpSignEncryptResult result = op.execute(inputParcel, CryptoInputParcel.createCryptoInputParcel());
+
+        assertTrue(result.success());
+
+        DetachedSignatureDigest digest = DetachedSignatureDigest.fromMicalg("pgp-sha512",
+                CryptoProviderSelector.getInstance(RuntimeEnvironment.application));
+        assertNotNull(digest);
+        digest.update(SIGNED_BYTES, 0, SIGNED_BYTES.length);
+
+        PgpDecryptVerifyInputParcel pgpDecryptVerifyInputParcel = PgpDecryptVerifyInputParcel.builder()
+                .setDetachedSignature(result.getDetachedSignature()).build();
+
+        PgpDecryptVerifyOperation decryptVerifyOperation = new PgpDecryptVerifyOperation(context, keyRepository, null);
+        DecryptVerifyResult result2 = decryptVerifyOperation.verifyDetachedSignature(
+                pgpDecryptVerifyInputParcel, digest);
+
+        assertTrue(result2.success());
+        assertFalse(result2.getSignatureResult().getResult() == OpenPgpSignatureResult.RESULT_INVALID_SIGNATURE);
+        assertEquals(ring.getMasterKeyId(), result2.getSignatureResult().getKeyId());
+    }
+
     @Test
     public void testCreateEddsa() throws Exception {
         SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import android.content.pm.PackageInfo;
+import android.content.pm.Signature;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowBinder;
+import org.robolectric.shadows.ShadowPackageManager;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.provider.ApiDataAccessObject;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+
+@RunWith(KeychainTestRunner.class)
+public class ApiPermissionHelperTest {
+    static final String PACKAGE_NAME = "test.package";
+    static final byte[] PACKAGE_SIGNATURE = new byte[] { 1, 2, 3 };
+    static final int PACKAGE_UID = 42;
+
+    ShadowPackageManager packageManager;
+    ApiDataAccessObject apiDao;
+    ApiPermissionCache cache;
+    ApiPermissionHelper apiPermissionHelper;
+
+    @Before
+    public void setUp() throws Exception {
+        packageManager = shadowOf(RuntimeEnvironment.application.getPackageManager());
+        packageManager.setPackagesForUid(PACKAGE_UID, PACKAGE_NAME);
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.signatures = new Signature[] { new Signature(PACKAGE_SIGNATURE) };
+        packageInfo.packageName = PACKAGE_NAME;
+        packageManager.addPackage(packageInfo);
+
+        ShadowBinder.setCallingUid(PACKAGE_UID);
+
+        apiDao = new ApiDataAccessObject(RuntimeEnvironment.application);
+        cache = ApiPermissionCache.getInstance(RuntimeEnvironment.application);
+        apiPermissionHelper = new ApiPermissionHelper(RuntimeEnvironment.application, apiDao, cache);
+    }
+
+    @Test
+    public void testDecisionIsCached() throws Exception {
+        apiDao.insertApiApp(new AppSettings(PACKAGE_NAME, PACKAGE_SIGNATURE));
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+
+        // package changes without a broadcast aren't noticed
+        packageManager.removePackage(PACKAGE_NAME);
+        assertTrue("decision should be cached", apiPermissionHelper.isAllowedIgnoreErrors());
+
+        cache.invalidate();
+        assertFalse("decision must be checked again after invalidation", apiPermissionHelper.isAllowedIgnoreErrors());
+    }
+
+    @Test
+    public void testApiAppChangesInvalidate() throws Exception {
+        assertFalse(apiPermissionHelper.isAllowedIgnoreErrors());
+
+        apiDao.insertApiApp(new AppSettings(PACKAGE_NAME, PACKAGE_SIGNATURE));
+        assertTrue("registering an app must invalidate", apiPermissionHelper.isAllowedIgnoreErrors());
+
+        apiDao.deleteApiApp(PACKAGE_NAME);
+        assertFalse("removing an app must invalidate", apiPermissionHelper.isAllowedIgnoreErrors());
+    }
+
+    @Test
+    public void testWrongCertificateIsNotCached() throws Exception {
+        apiDao.insertApiApp(new AppSettings(PACKAGE_NAME, new byte[] { 1, 2, 4 }));
+        assertFalse(apiPermissionHelper.isAllowedIgnoreErrors());
+
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.signatures = new Signature[] { new Signature(new byte[] { 1, 2, 4 }) };
+        packageInfo.packageName = PACKAGE_NAME;
+        packageManager.addPackage(packageInfo);
+        assertTrue("mismatch must be checked again", apiPermissionHelper.isAllowedIgnoreErrors());
+    }
+
+}
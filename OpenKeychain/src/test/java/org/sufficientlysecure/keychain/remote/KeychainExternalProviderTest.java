@@ -2,9 +2,13 @@ package org.sufficientlysecure.keychain.remote;
 
 
 import java.security.AccessControlException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.pm.PackageInfo;
 import android.content.pm.Signature;
@@ -24,8 +28,10 @@ import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.provider.ApiDataAccessObject;
 import org.sufficientlysecure.keychain.provider.AutocryptPeerDataAccessObject;
+import org.sufficientlysecure.keychain.provider.AutocryptPeerDataAccessObject.AutocryptPeerTimestamps;
 import org.sufficientlysecure.keychain.provider.KeyRepositorySaveTest;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainExternalContract;
 import org.sufficientlysecure.keychain.provider.KeychainExternalContract.AutocryptStatus;
 import org.sufficientlysecure.keychain.provider.KeychainExternalContract.EmailStatus;
@@ -37,6 +43,7 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.robolectric.Shadows.shadowOf;
 
@@ -350,6 +357,42 @@ public class KeychainExternalProviderTest {
         assertFalse(cursor.moveToNext());
     }
 
+    @Test
+    public void testAutocryptStatus_afterBatchUpdate() throws Exception {
+        UncachedKeyRing ring = readRingFromResource("/test-keys/testring.pub");
+        Date effectiveDate = new Date();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        SaveKeyringResult saveKeyringResult = databaseInteractor.savePublicKeyRingToBatch(ring, operations);
+        assertTrue(saveKeyringResult.success());
+        operations.add(autocryptPeerDao.buildUpdateKeyGossipFromAutocryptOperation(
+                MAIL_ADDRESS_1, effectiveDate, ring.getMasterKeyId()));
+        operations.add(autocryptPeerDao.buildUpdateKeyGossipFromAutocryptOperation(
+                MAIL_ADDRESS_2, effectiveDate, ring.getMasterKeyId()));
+        contentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+
+        Map<String, AutocryptPeerTimestamps> timestamps =
+                autocryptPeerDao.getTimestamps(Arrays.asList(MAIL_ADDRESS_1, MAIL_ADDRESS_2, AUTOCRYPT_PEER));
+        assertEquals(2, timestamps.size());
+        assertEquals(effectiveDate, timestamps.get(MAIL_ADDRESS_1).lastSeenGossip);
+        assertNull(timestamps.get(MAIL_ADDRESS_1).lastSeenKey);
+
+        Cursor cursor = contentResolver.query(
+                AutocryptStatus.CONTENT_URI, new String[] {
+                        AutocryptStatus.ADDRESS, AutocryptStatus.AUTOCRYPT_PEER_STATE,
+                        AutocryptStatus.AUTOCRYPT_MASTER_KEY_ID },
+                null, new String [] { MAIL_ADDRESS_1, MAIL_ADDRESS_2 }, null
+        );
+
+        assertNotNull(cursor);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(AutocryptStatus.AUTOCRYPT_PEER_GOSSIP, cursor.getInt(1));
+            assertEquals(ring.getMasterKeyId(), cursor.getLong(2));
+        }
+        assertFalse(cursor.moveToNext());
+    }
+
 /*
     @Test
     public void testAutocryptStatus_stateSelected() throws Exception {
@@ -6,6 +6,7 @@ import java.util.Arrays;
 
 import android.app.PendingIntent;
 import android.content.ContentResolver;
+import android.content.ContextWrapper;
 import android.content.Intent;
 import android.database.MatrixCursor;
 import android.net.Uri;
@@ -14,6 +15,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.openintents.openpgp.util.OpenPgpApi;
+import org.robolectric.RuntimeEnvironment;
 import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
 import org.sufficientlysecure.keychain.remote.OpenPgpServiceKeyIdExtractor.KeyIdResult;
@@ -26,6 +28,8 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @SuppressWarnings("unchecked")
@@ -37,14 +41,16 @@ public class OpenPgpServiceKeyIdExtractorTest {
     private OpenPgpServiceKeyIdExtractor openPgpServiceKeyIdExtractor;
     private ContentResolver contentResolver;
     private ApiPendingIntentFactory apiPendingIntentFactory;
+    private RecipientStatusCache recipientStatusCache;
 
     @Before
     public void setUp() throws Exception {
         contentResolver = mock(ContentResolver.class);
         apiPendingIntentFactory = mock(ApiPendingIntentFactory.class);
+        recipientStatusCache = new RecipientStatusCache();
 
         openPgpServiceKeyIdExtractor = OpenPgpServiceKeyIdExtractor.getInstance(contentResolver,
-                apiPendingIntentFactory);
+                apiPendingIntentFactory, recipientStatusCache);
     }
 
     @Test
@@ -199,6 +205,58 @@ public class OpenPgpServiceKeyIdExtractorTest {
         assertTrue(keyIdResult.hasKeySelectionPendingIntent());
     }
 
+    @Test
+    public void returnKeyIdsFromIntent__withUserIds__cached() throws Exception {
+        Intent intent = new Intent();
+        intent.putExtra(OpenPgpApi.EXTRA_USER_IDS, USER_IDS);
+
+        setupContentResolverResult(USER_IDS, new Long[] { 123L, 234L }, new int[] { 0, 0 }, new int[] { 1, 1 });
+
+
+        openPgpServiceKeyIdExtractor.returnKeyIdsFromIntent(intent, false, BuildConfig.APPLICATION_ID);
+        KeyIdResult keyIdResult = openPgpServiceKeyIdExtractor.returnKeyIdsFromIntent(intent, false,
+                BuildConfig.APPLICATION_ID);
+
+
+        assertEquals(KeyIdResultStatus.OK, keyIdResult.getStatus());
+        assertArrayEqualsSorted(KEY_IDS, keyIdResult.getKeyIds());
+        verify(contentResolver, times(1)).query(
+                any(Uri.class), any(String[].class), any(String.class), any(String[].class), any(String.class));
+        assertEquals(2, recipientStatusCache.getHitCount());
+        assertEquals(2, recipientStatusCache.getMissCount());
+    }
+
+    @Test
+    public void recipientStatusCache__isSharedByAllContexts() throws Exception {
+        RecipientStatusCache applicationCache = RecipientStatusCache.getInstance(RuntimeEnvironment.application);
+        RecipientStatusCache serviceCache =
+                RecipientStatusCache.getInstance(new ContextWrapper(RuntimeEnvironment.application));
+
+        assertSame("cache must be kept for the application, not per service", applicationCache, serviceCache);
+    }
+
+    @Test
+    public void returnKeyIdsFromIntent__withUserIds__afterInvalidate() throws Exception {
+        Intent intent = new Intent();
+        intent.putExtra(OpenPgpApi.EXTRA_USER_IDS, USER_IDS);
+
+        setupContentResolverResult(USER_IDS, new Long[] { 123L, 234L }, new int[] { 0, 0 }, new int[] { 1, 1 });
+        openPgpServiceKeyIdExtractor.returnKeyIdsFromIntent(intent, false, BuildConfig.APPLICATION_ID);
+
+        recipientStatusCache.invalidate();
+        setupContentResolverResult(USER_IDS, new Long[] { 123L, null }, new int[] { 0, 0 }, new int[] { 1, 0 });
+
+        PendingIntent pendingIntent = mock(PendingIntent.class);
+        setupSelectPubkeyPendingIntentFactoryResult(pendingIntent);
+
+
+        KeyIdResult keyIdResult = openPgpServiceKeyIdExtractor.returnKeyIdsFromIntent(intent, false,
+                BuildConfig.APPLICATION_ID);
+
+
+        assertEquals(KeyIdResultStatus.MISSING, keyIdResult.getStatus());
+    }
+
     private void setupContentResolverResult() {
         MatrixCursor resultCursor = new MatrixCursor(OpenPgpServiceKeyIdExtractor.PROJECTION_MAIL_STATUS);
         when(contentResolver.query(
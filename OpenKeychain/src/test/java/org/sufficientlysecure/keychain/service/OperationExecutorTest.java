@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.service.OperationExecutor.OperationTask;
+import org.sufficientlysecure.keychain.service.OperationExecutor.Priority;
+
+
+@RunWith(KeychainTestRunner.class)
+public class OperationExecutorTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private OperationExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = new OperationExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void testCancelOnlyAffectsOwner() throws Exception {
+        BlockingTask first = new BlockingTask();
+        BlockingTask second = new BlockingTask();
+        mExecutor.execute(Priority.INTERACTIVE, "first", first);
+        mExecutor.execute(Priority.INTERACTIVE, "second", second);
+        first.awaitStarted();
+        second.awaitStarted();
+
+        mExecutor.cancel("first");
+        first.finish();
+        second.finish();
+
+        Assert.assertTrue("cancelled operation must see its token set", first.awaitCancelled());
+        Assert.assertFalse("other operation must not be cancelled", second.awaitCancelled());
+    }
+
+    @Test
+    public void testCancelWhileQueued() throws Exception {
+        // occupy all background threads, so the next task has to wait in the queue
+        BlockingTask blocker1 = new BlockingTask();
+        BlockingTask blocker2 = new BlockingTask();
+        mExecutor.execute(Priority.BACKGROUND, "blocker", blocker1);
+        mExecutor.execute(Priority.BACKGROUND, "blocker", blocker2);
+        blocker1.awaitStarted();
+        blocker2.awaitStarted();
+
+        BlockingTask queued = new BlockingTask();
+        mExecutor.execute(Priority.BACKGROUND, "queued", queued);
+        Assert.assertEquals(1, mExecutor.getQueueDepth(Priority.BACKGROUND));
+
+        mExecutor.cancel("queued");
+        queued.finish();
+        blocker1.finish();
+        blocker2.finish();
+
+        Assert.assertTrue("queued operation must run and see its token set", queued.awaitCancelled());
+        Assert.assertFalse(blocker1.awaitCancelled());
+        Assert.assertFalse(blocker2.awaitCancelled());
+    }
+
+    @Test
+    public void testCancelAfterFinishAndWithoutOwner() throws Exception {
+        BlockingTask finished = new BlockingTask();
+        mExecutor.execute(Priority.INTERACTIVE, "owner", finished);
+        finished.finish();
+        Assert.assertFalse(finished.awaitCancelled());
+
+        BlockingTask unowned = new BlockingTask();
+        mExecutor.execute(Priority.INTERACTIVE, null, unowned);
+        unowned.awaitStarted();
+
+        // nothing is left for this owner, and tasks without an owner are never matched
+        mExecutor.cancel("owner");
+        unowned.finish();
+
+        Assert.assertFalse("finished operation must not be touched", finished.mCancellationToken.get());
+        Assert.assertFalse("operation without owner must not be cancelled", unowned.awaitCancelled());
+    }
+
+    @Test
+    public void testPriorityForInput() throws Exception {
+        Assert.assertEquals(Priority.BACKGROUND,
+                OperationExecutor.getPriorityForInput(BenchmarkInputParcel.newInstance()));
+        Assert.assertEquals(Priority.INTERACTIVE, OperationExecutor.getPriorityForInput(null));
+    }
+
+    private static class BlockingTask implements OperationTask {
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        private final CountDownLatch mFinish = new CountDownLatch(1);
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile AtomicBoolean mCancellationToken;
+        private volatile boolean mCancelled;
+
+        @Override
+        public void run(AtomicBoolean cancellationToken) {
+            mCancellationToken = cancellationToken;
+            mStarted.countDown();
+            try {
+                mFinish.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mCancelled = cancellationToken.get();
+            mDone.countDown();
+        }
+
+        void awaitStarted() throws InterruptedException {
+            Assert.assertTrue("task must start", mStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        void finish() {
+            mFinish.countDown();
+        }
+
+        /** @return whether the task saw its token set when it finished */
+        boolean awaitCancelled() throws InterruptedException {
+            Assert.assertTrue("task must finish", mDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            return mCancelled;
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui;
+
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+@RunWith(KeychainTestRunner.class)
+public class SharedCryptoInputTest {
+
+    private static final long SUBKEY_ID = 0x1234L;
+
+    @Test
+    public void testSharesSubkeyPassphrase() throws Exception {
+        SharedCryptoInput sharedInput = new SharedCryptoInput();
+        Passphrase passphrase = new Passphrase("abcde");
+        sharedInput.remember(CryptoInputParcel.createCryptoInputParcel(new Date())
+                .withPassphrase(passphrase, SUBKEY_ID));
+
+        CryptoInputParcel cryptoInput = sharedInput.applyTo(CryptoInputParcel.createCryptoInputParcel(new Date()));
+        Assert.assertEquals(passphrase, cryptoInput.getPassphrase());
+        Assert.assertEquals(Long.valueOf(SUBKEY_ID), cryptoInput.getPassphraseSubkey());
+    }
+
+    @Test
+    public void testDoesNotShareUncachedPassphrase() throws Exception {
+        SharedCryptoInput sharedInput = new SharedCryptoInput();
+        sharedInput.remember(CryptoInputParcel.createCryptoInputParcel(new Date())
+                .withPassphrase(new Passphrase("abcde"), SUBKEY_ID).withNoCachePassphrase());
+
+        CryptoInputParcel cryptoInput = sharedInput.applyTo(CryptoInputParcel.createCryptoInputParcel(new Date()));
+        Assert.assertNull("passphrase must not be shared if it may not be cached", cryptoInput.getPassphrase());
+    }
+
+    @Test
+    public void testDoesNotShareSymmetricPassphrase() throws Exception {
+        SharedCryptoInput sharedInput = new SharedCryptoInput();
+        sharedInput.remember(CryptoInputParcel.createCryptoInputParcel(new Passphrase("abcde")));
+
+        CryptoInputParcel cryptoInput = sharedInput.applyTo(CryptoInputParcel.createCryptoInputParcel(new Date()));
+        Assert.assertNull("symmetric passphrase must not be shared", cryptoInput.getPassphrase());
+    }
+
+    @Test
+    public void testSharesCryptoData() throws Exception {
+        SharedCryptoInput sharedInput = new SharedCryptoInput();
+        ByteBuffer key = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+        byte[] sessionKey = new byte[] { 4, 5, 6 };
+        sharedInput.remember(CryptoInputParcel.createCryptoInputParcel(new Date())
+                .withCryptoData(Collections.singletonMap(key, sessionKey)));
+
+        CryptoInputParcel cryptoInput = sharedInput.applyTo(CryptoInputParcel.createCryptoInputParcel(new Date()));
+        Assert.assertArrayEquals(sessionKey, cryptoInput.getCryptoData().get(key));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        SharedCryptoInput sharedInput = new SharedCryptoInput();
+        Passphrase passphrase = new Passphrase("abcde");
+        ByteBuffer key = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+        sharedInput.remember(CryptoInputParcel.createCryptoInputParcel(new Date())
+                .withPassphrase(passphrase, SUBKEY_ID)
+                .withCryptoData(Collections.singletonMap(key, new byte[] { 4, 5, 6 })));
+
+        sharedInput.clear();
+
+        CryptoInputParcel cryptoInput = sharedInput.applyTo(CryptoInputParcel.createCryptoInputParcel(new Date()));
+        Assert.assertNull("passphrase must be gone after clear", cryptoInput.getPassphrase());
+        Assert.assertTrue("crypto data must be gone after clear", cryptoInput.getCryptoData().isEmpty());
+        Assert.assertArrayEquals("passphrase must be removed from memory",
+                "     ".toCharArray(), passphrase.getCharArray());
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.base;
+
+
+import java.util.ArrayList;
+
+import android.os.Bundle;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.OperationResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.SingletonResult;
+
+
+@RunWith(KeychainTestRunner.class)
+public class QueueingCryptoOperationFragmentTest {
+
+    @Test
+    public void testResultsAreQueuedWhileDetached() throws Exception {
+        RecordingFragment fragment = new RecordingFragment();
+        fragment.onCreate(null);
+
+        fragment.onCryptoOperationSuccess(new SingletonResult(OperationResult.RESULT_OK, LogType.MSG_BACKUP_SUCCESS));
+        fragment.onCryptoOperationError(new SingletonResult(OperationResult.RESULT_ERROR, LogType.MSG_BACKUP_ERROR_IO));
+        fragment.onCryptoOperationSuccess(new SingletonResult(OperationResult.RESULT_OK, LogType.MSG_BACKUP_SUCCESS));
+        Assert.assertTrue("results must not be delivered while detached", fragment.mDelivered.isEmpty());
+
+        // the fragment is recreated, queued results must survive that
+        Bundle state = new Bundle();
+        fragment.onSaveInstanceState(state);
+        RecordingFragment restoredFragment = new RecordingFragment();
+        restoredFragment.onCreate(state);
+        restoredFragment.onViewStateRestored(state);
+
+        Assert.assertEquals("all results must be delivered, in order", 3, restoredFragment.mDelivered.size());
+        Assert.assertEquals("success", restoredFragment.mDelivered.get(0));
+        Assert.assertEquals("error", restoredFragment.mDelivered.get(1));
+        Assert.assertEquals("success", restoredFragment.mDelivered.get(2));
+
+        restoredFragment.mDelivered.clear();
+        restoredFragment.onViewStateRestored(state);
+        Assert.assertTrue("results must be delivered only once", restoredFragment.mDelivered.isEmpty());
+    }
+
+    public static class RecordingFragment extends QueueingCryptoOperationFragment<Bundle, OperationResult> {
+        final ArrayList<String> mDelivered = new ArrayList<>();
+
+        @Override
+        public Bundle createOperationInput() {
+            return null;
+        }
+
+        @Override
+        public void onQueuedOperationSuccess(OperationResult result) {
+            mDelivered.add("success");
+        }
+
+        @Override
+        public void onQueuedOperationError(OperationResult result) {
+            mDelivered.add("error");
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+@RunWith(KeychainTestRunner.class)
+public class BufferPoolTest {
+    @Test
+    public void testReuse() throws Exception {
+        BufferPool pool = new BufferPool(1024, 2);
+
+        byte[] first = pool.obtain();
+        pool.release(first);
+        byte[] second = pool.obtain();
+
+        Assert.assertSame("released buffer should be reused", first, second);
+        Assert.assertEquals(2, pool.getObtainCount());
+        Assert.assertEquals(1, pool.getAllocationCount());
+        Assert.assertEquals(1024, pool.getAllocatedBytes());
+        Assert.assertEquals(0.5f, pool.getReuseRate(), 0.001f);
+    }
+
+    @Test
+    public void testZeroedOnRelease() throws Exception {
+        BufferPool pool = new BufferPool(1024, 2);
+
+        byte[] buffer = pool.obtain();
+        Arrays.fill(buffer, (byte) 0x42);
+        pool.release(buffer);
+
+        Assert.assertArrayEquals("released buffer must be zeroed", new byte[1024], pool.obtain());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        BufferPool pool = new BufferPool(1024, 2);
+
+        byte[][] buffers = { pool.obtain(), pool.obtain(), pool.obtain() };
+        for (byte[] buffer : buffers) {
+            pool.release(buffer);
+        }
+        pool.release(new byte[17]);
+        pool.release(null);
+
+        Assert.assertEquals("pool must not grow beyond its limit", 2, pool.getPooledCount());
+    }
+
+    @Test
+    public void testPipelinedOutputStreamReturnsChunks() throws Exception {
+        BufferPool pool = BufferPool.getInstance();
+
+        OutputStream out = new PipelinedOutputStream(new ByteArrayOutputStream(), "test-writer");
+        out.write(new byte[3 * BufferPool.BUFFER_SIZE]);
+        out.close();
+        long allocationCount = pool.getAllocationCount();
+
+        out = new PipelinedOutputStream(new ByteArrayOutputStream(), "test-writer");
+        out.write(new byte[3 * BufferPool.BUFFER_SIZE]);
+        out.close();
+
+        Assert.assertEquals("second stream should use pooled chunks only",
+                allocationCount, pool.getAllocationCount());
+    }
+
+    @Test
+    public void testPipelinedInputStreamReturnsChunks() throws Exception {
+        BufferPool pool = BufferPool.getInstance();
+
+        InputStream in = new PipelinedInputStream(
+                new ByteArrayInputStream(new byte[3 * BufferPool.BUFFER_SIZE]), "test-reader");
+        in.read(new byte[BufferPool.BUFFER_SIZE]);
+        in.close();
+        long allocationCount = pool.getAllocationCount();
+
+        // closed early again, with chunks still filled and one being consumed
+        in = new PipelinedInputStream(
+                new ByteArrayInputStream(new byte[3 * BufferPool.BUFFER_SIZE]), "test-reader");
+        in.read(new byte[BufferPool.BUFFER_SIZE / 2]);
+        in.close();
+
+        Assert.assertEquals("second stream should use pooled chunks only",
+                allocationCount, pool.getAllocationCount());
+    }
+}
@@ -0,0 +1,100 @@
+package org.sufficientlysecure.keychain.util;
+
+import android.os.Parcel;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.util.ParcelableCache.EvictionPolicy;
+
+@RunWith(KeychainTestRunner.class)
+public class ParcelableCacheTest {
+
+    private static final String FALLBACK = "fallback";
+
+    private static final EvictionPolicy<String> TRUNCATING_POLICY = new EvictionPolicy<String>() {
+        @Override
+        public int getWeight(String object) {
+            return object.length();
+        }
+
+        @Override
+        public String truncate(String object) {
+            return object.substring(0, 1);
+        }
+
+        @Override
+        public String createFallback() {
+            return FALLBACK;
+        }
+    };
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ParcelableCache<String> cache = new ParcelableCache<>(TRUNCATING_POLICY, 100, 60 * 1000);
+
+        Parcel parcel = Parcel.obtain();
+        cache.cacheAndWriteToParcel("hello", parcel);
+        cache.cacheAndWriteToParcel(null, parcel);
+        parcel.setDataPosition(0);
+
+        Assert.assertEquals("hello", cache.readFromParcelAndGetFromCache(parcel));
+        Assert.assertNull("null must stay null", cache.readFromParcelAndGetFromCache(parcel));
+        Assert.assertEquals("read objects must be removed", 0, cache.size());
+        Assert.assertEquals(0, cache.getTotalWeight());
+        parcel.recycle();
+    }
+
+    @Test
+    public void testTruncateBeforeDrop() throws Exception {
+        ParcelableCache<String> cache = new ParcelableCache<>(TRUNCATING_POLICY, 10, 60 * 1000);
+
+        Parcel parcel = Parcel.obtain();
+        cache.cacheAndWriteToParcel("aaaaaa", parcel);
+        cache.cacheAndWriteToParcel("bbbbbb", parcel);
+        parcel.setDataPosition(0);
+
+        Assert.assertEquals("eldest entry should be truncated", "a", cache.readFromParcelAndGetFromCache(parcel));
+        Assert.assertEquals("bbbbbb", cache.readFromParcelAndGetFromCache(parcel));
+        Assert.assertEquals(1, cache.getTruncatedCount());
+        Assert.assertEquals(0, cache.getOrphanedCount());
+        parcel.recycle();
+    }
+
+    @Test
+    public void testNewestIsNeverTruncated() throws Exception {
+        ParcelableCache<String> cache = new ParcelableCache<>(TRUNCATING_POLICY, 10, 60 * 1000);
+
+        Parcel parcel = Parcel.obtain();
+        cache.cacheAndWriteToParcel("aaaaaa", parcel);
+        cache.cacheAndWriteToParcel("bbbbbbbbbbbbbbbbbbbb", parcel);
+        parcel.setDataPosition(0);
+
+        Assert.assertEquals("older entry should be evicted first",
+                FALLBACK, cache.readFromParcelAndGetFromCache(parcel));
+        Assert.assertEquals("newest entry must be kept whole, even if over weight",
+                "bbbbbbbbbbbbbbbbbbbb", cache.readFromParcelAndGetFromCache(parcel));
+        Assert.assertEquals(1, cache.getTruncatedCount());
+        Assert.assertEquals(1, cache.getOrphanedCount());
+        parcel.recycle();
+    }
+
+    @Test
+    public void testOrphansAreDropped() throws Exception {
+        ParcelableCache<String> cache = new ParcelableCache<>(TRUNCATING_POLICY, 5, 60 * 1000);
+
+        Parcel parcel = Parcel.obtain();
+        for (int i = 0; i < 10; i++) {
+            cache.cacheAndWriteToParcel("xyz" + i, parcel);
+        }
+        parcel.setDataPosition(0);
+
+        Assert.assertTrue("cache must stay bounded", cache.getTotalWeight() <= 5);
+        Assert.assertTrue(cache.getOrphanedCount() > 0);
+        Assert.assertEquals("dropped entries should yield the fallback",
+                FALLBACK, cache.readFromParcelAndGetFromCache(parcel));
+        parcel.recycle();
+    }
+
+}
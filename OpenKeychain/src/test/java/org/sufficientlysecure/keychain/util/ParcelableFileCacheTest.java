@@ -19,6 +19,7 @@
 package org.sufficientlysecure.keychain.util;
 
 import android.os.Bundle;
+import android.os.Parcel;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -28,7 +29,11 @@ import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
+import java.util.List;
 
 @RunWith(KeychainTestRunner.class)
 public class ParcelableFileCacheTest {
@@ -70,4 +75,108 @@ public class ParcelableFileCacheTest {
 
     }
 
+    @Test
+    public void testRandomAccess() throws Exception {
+        ParcelableFileCache<Bundle> cache = new ParcelableFileCache<>(RuntimeEnvironment.application, "test.pcl");
+        ArrayList<Bundle> list = createBundles(50);
+        cache.writeCache(list.size(), list.iterator());
+
+        ParcelableFileCache.CacheReader<Bundle> reader = cache.openCache();
+        Assert.assertEquals("number of entries must be correct", list.size(), reader.getSize());
+        for (int i : new int[] { 49, 0, 17, 17, 3 }) {
+            Assert.assertEquals("random access must return the right entry", i, reader.get(i).getInt("key1"));
+        }
+
+        IteratorWithSize<Bundle> it = reader.iterator(10, 13);
+        Assert.assertEquals(3, it.getSize());
+        Assert.assertEquals(10, it.next().getInt("key1"));
+        Assert.assertEquals(11, it.next().getInt("key1"));
+        Assert.assertEquals(12, it.next().getInt("key1"));
+        Assert.assertFalse(it.hasNext());
+
+        Assert.assertTrue("file must not be deleted by random access", cache.delete());
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        ParcelableFileCache<Bundle> cache = new ParcelableFileCache<>(RuntimeEnvironment.application, "test.pcl");
+        ArrayList<Bundle> list = createBundles(50);
+        cache.writeCache(list.size(), list.iterator());
+
+        List<IteratorWithSize<Bundle>> ranges = cache.openCache().split(4);
+        Assert.assertEquals(4, ranges.size());
+
+        int expected = 0;
+        for (IteratorWithSize<Bundle> range : ranges) {
+            Assert.assertTrue("ranges should be about equal in size", range.getSize() >= 12);
+            int count = 0;
+            while (range.hasNext()) {
+                Assert.assertEquals("ranges must be disjoint and in order",
+                        expected++, range.next().getInt("key1"));
+                count++;
+            }
+            Assert.assertEquals(range.getSize(), count);
+        }
+        Assert.assertEquals("ranges must cover all entries", list.size(), expected);
+
+        Assert.assertEquals("no more ranges than entries", 2, cache.openCache().split(2).size());
+        cache.writeCache(1, createBundles(1).iterator());
+        Assert.assertEquals("no more ranges than entries", 1, cache.openCache().split(4).size());
+    }
+
+    @Test
+    public void testIteratorWithIndices() throws Exception {
+        ParcelableFileCache<Bundle> cache = new ParcelableFileCache<>(RuntimeEnvironment.application, "test.pcl");
+        ArrayList<Bundle> list = createBundles(10);
+        cache.writeCache(list.size(), list.iterator());
+
+        int[] indices = new int[] { 7, 2, 3, 9 };
+        IteratorWithSize<Bundle> it = cache.openCache().iterator(indices);
+        Assert.assertEquals(indices.length, it.getSize());
+        for (int index : indices) {
+            Assert.assertTrue(it.hasNext());
+            Assert.assertEquals("entries must be read in the given order", index, it.next().getInt("key1"));
+        }
+        Assert.assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testReadLegacyFormat() throws Exception {
+        ArrayList<Bundle> list = createBundles(5);
+
+        File file = new File(RuntimeEnvironment.application.getCacheDir(), "legacy.pcl");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(list.size());
+        for (Bundle b : list) {
+            Parcel p = Parcel.obtain();
+            p.writeParcelable(b, 0);
+            byte[] buf = p.marshall();
+            out.writeInt(buf.length);
+            out.write(buf);
+            p.recycle();
+        }
+        out.close();
+
+        ParcelableFileCache<Bundle> cache = new ParcelableFileCache<>(RuntimeEnvironment.application, "legacy.pcl");
+        IteratorWithSize<Bundle> it = cache.readCache();
+        Assert.assertEquals("number of entries must be correct", list.size(), it.getSize());
+        int i = 0;
+        while (it.hasNext()) {
+            Assert.assertEquals("entries must be read in order", i++, it.next().getInt("key1"));
+        }
+        Assert.assertEquals(list.size(), i);
+        Assert.assertFalse("file should be deleted after read", file.exists());
+    }
+
+    private static ArrayList<Bundle> createBundles(int num) {
+        ArrayList<Bundle> list = new ArrayList<>();
+        for (int i = 0; i < num; i++) {
+            Bundle b = new Bundle();
+            b.putInt("key1", i);
+            b.putString("key2", Integer.toString(i));
+            list.add(b);
+        }
+        return list;
+    }
+
 }
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+
+
+@RunWith(KeychainTestRunner.class)
+public class PipelinedStreamTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] data = new byte[1024 * 1024 + 17];
+        new Random(0).nextBytes(data);
+
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        // small chunks, so the ring wraps around a lot
+        InputStream in = new PipelinedInputStream(new ByteArrayInputStream(data), "test-reader", 1000, 3);
+        OutputStream out = new PipelinedOutputStream(sink, "test-writer", 1000, 3);
+
+        byte[] buf = new byte[777];
+        int read;
+        Assert.assertEquals("single byte reads must work", data[0] & 0xff, in.read());
+        out.write(data[0]);
+        while ((read = in.read(buf)) > 0) {
+            out.write(buf, 0, read);
+        }
+        Assert.assertEquals("end of stream must be sticky", -1, in.read());
+        in.close();
+        out.close();
+
+        Assert.assertArrayEquals(data, sink.toByteArray());
+    }
+
+    @Test
+    public void testReadErrorIsPropagated() throws Exception {
+        InputStream failing = new InputStream() {
+            int mCount;
+
+            @Override
+            public int read() throws IOException {
+                if (mCount++ < 10) {
+                    return 1;
+                }
+                throw new IOException("test");
+            }
+        };
+        InputStream in = new PipelinedInputStream(failing, "test-reader", 4, 2);
+
+        int read = 0;
+        try {
+            while (in.read() >= 0) {
+                read++;
+            }
+            Assert.fail("read error must be thrown to consumer");
+        } catch (IOException e) {
+            Assert.assertEquals("test", e.getMessage());
+        }
+        Assert.assertEquals("data before the error must be delivered", 10, read);
+        in.close();
+    }
+
+    @Test
+    public void testWriteErrorIsPropagated() throws Exception {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("test");
+            }
+        };
+        OutputStream out = new PipelinedOutputStream(failing, "test-writer", 4, 2);
+
+        out.write(new byte[4]);
+        try {
+            out.close();
+            Assert.fail("write error must be thrown on close at the latest");
+        } catch (IOException e) {
+            Assert.assertEquals("test", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        byte[][] data = new byte[3][];
+        InputStream[] sources = new InputStream[data.length];
+        ByteArrayOutputStream[] sinks = new ByteArrayOutputStream[data.length];
+        Random random = new Random(0);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = new byte[5000 + i];
+            random.nextBytes(data[i]);
+            sources[i] = new ByteArrayInputStream(data[i]);
+            sinks[i] = new ByteArrayOutputStream();
+        }
+        PipelinedInputStream in = new PipelinedInputStream(sources, "test-reader", 1000, 3);
+        PipelinedOutputStream out = new PipelinedOutputStream(sinks, "test-writer", 1000, 3);
+
+        byte[] buf = new byte[777];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            out.write(buf, 0, read);
+        }
+        Assert.assertEquals("end of segment must be sticky", -1, in.read());
+        out.finishSegment();
+        Assert.assertArrayEquals("finished segment must be complete", data[0], sinks[0].toByteArray());
+
+        Assert.assertTrue(in.nextSegment());
+        // only part of the second segment is consumed, and written through a view
+        Assert.assertEquals(buf.length, in.read(buf));
+        OutputStream segmentStream = out.segmentStream();
+        segmentStream.write(buf);
+        segmentStream.close();
+        segmentStream.close();
+        Assert.assertArrayEquals(Arrays.copyOf(data[1], buf.length), sinks[1].toByteArray());
+
+        Assert.assertTrue("rest of the second segment must be skipped", in.nextSegment());
+        Assert.assertEquals(data[2][0] & 0xff, in.read());
+        out.write(data[2][0]);
+        Assert.assertFalse("there must be no fourth segment", in.nextSegment());
+        in.close();
+        out.close();
+
+        Assert.assertArrayEquals("unfinished segment must be written on close",
+                new byte[] { data[2][0] }, sinks[2].toByteArray());
+        try {
+            out.write(0);
+            Assert.fail("writes after close must fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSegmentErrorsAreIsolated() throws Exception {
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("test");
+            }
+        };
+        byte[] data = new byte[] { 1, 2, 3 };
+        PipelinedInputStream in = new PipelinedInputStream(
+                new InputStream[] { failing, new ByteArrayInputStream(data) }, "test-reader", 4, 2);
+        try {
+            in.read();
+            Assert.fail("read error must be thrown to consumer");
+        } catch (IOException e) {
+            Assert.assertEquals("test", e.getMessage());
+        }
+        Assert.assertTrue("next segment must be readable after an error", in.nextSegment());
+        byte[] buf = new byte[4];
+        Assert.assertEquals(3, in.read(buf));
+        Assert.assertEquals(-1, in.read());
+        in.close();
+
+        OutputStream failingSink = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("test");
+            }
+        };
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        PipelinedOutputStream out = new PipelinedOutputStream(
+                new OutputStream[] { failingSink, sink }, "test-writer", 4, 2);
+        out.write(data);
+        try {
+            out.finishSegment();
+            Assert.fail("write error must be thrown when finishing its segment");
+        } catch (IOException e) {
+            Assert.assertEquals("test", e.getMessage());
+        }
+        out.write(data);
+        out.finishSegment();
+        out.close();
+        Assert.assertArrayEquals("next sink must be written after an error", data, sink.toByteArray());
+    }
+
+    /**
+     * Runs the sign/encrypt and decrypt/verify operations on a stream from a stand-in client, once
+     * on the client's pipes directly and once through pipelined streams, the way the remote API
+     * does. The client uses OS pipes like a real one, but runs in the same process.
+     */
+    @Test
+    @Ignore("Benchmark, takes a while")
+    public void benchmarkApiOperationThroughput() throws Exception {
+        long size = 256L * 1024 * 1024;
+        File ciphertextFile = File.createTempFile("benchmark", ".pgp");
+        try {
+            // produce the ciphertext for the decryption runs, which also warms up the crypto code
+            OutputStream ciphertextOut = new FileOutputStream(ciphertextFile);
+            runClientStandIn(new RepeatingInputStream(size), ciphertextOut, false, ENCRYPT);
+
+            long encryptDirect = runClientStandIn(new RepeatingInputStream(size), null, false, ENCRYPT);
+            long encryptPipelined = runClientStandIn(new RepeatingInputStream(size), null, true, ENCRYPT);
+            long decryptDirect = runClientStandIn(new FileInputStream(ciphertextFile), null, false, DECRYPT);
+            long decryptPipelined = runClientStandIn(new FileInputStream(ciphertextFile), null, true, DECRYPT);
+
+            System.out.println("encrypt direct:    " + formatThroughput(size, encryptDirect));
+            System.out.println("encrypt pipelined: " + formatThroughput(size, encryptPipelined));
+            System.out.println("decrypt direct:    " + formatThroughput(size, decryptDirect));
+            System.out.println("decrypt pipelined: " + formatThroughput(size, decryptPipelined));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            ciphertextFile.delete();
+        }
+    }
+
+    private interface ApiOperation {
+        void execute(InputStream in, OutputStream out);
+    }
+
+    private static final Passphrase BENCHMARK_PASSPHRASE = new Passphrase("benchmark");
+
+    private static final ApiOperation ENCRYPT = new ApiOperation() {
+        @Override
+        public void execute(InputStream in, OutputStream out) {
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.create(RuntimeEnvironment.application), null);
+            PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder()
+                    .setSymmetricPassphrase(BENCHMARK_PASSPHRASE)
+                    .setSymmetricEncryptionAlgorithm(OpenKeychainSymmetricKeyAlgorithmTags.AES_256);
+            PgpSignEncryptResult result = op.execute(pgpData.build(),
+                    CryptoInputParcel.createCryptoInputParcel(new Date()), new InputData(in, -1), out);
+            Assert.assertTrue("encryption must succeed", result.success());
+        }
+    };
+
+    private static final ApiOperation DECRYPT = new ApiOperation() {
+        @Override
+        public void execute(InputStream in, OutputStream out) {
+            PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.create(RuntimeEnvironment.application), null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                    .setAllowSymmetricDecryption(true)
+                    .build();
+            DecryptVerifyResult result = op.execute(input,
+                    CryptoInputParcel.createCryptoInputParcel(BENCHMARK_PASSPHRASE), new InputData(in, -1), out);
+            Assert.assertTrue("decryption must succeed", result.success());
+        }
+    };
+
+    /**
+     * @param clientSink receives the operation's output on the client side, or null to discard it
+     * @return elapsed time in nanoseconds, until the client received all output
+     */
+    private static long runClientStandIn(final InputStream clientData, final OutputStream clientSink,
+            boolean pipelined, ApiOperation operation) throws Exception {
+        Pipe inputPipe = Pipe.open();
+        Pipe outputPipe = Pipe.open();
+        final OutputStream clientIn = Channels.newOutputStream(inputPipe.sink());
+        final InputStream clientOut = Channels.newInputStream(outputPipe.source());
+
+        Thread clientWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[8192];
+                int read;
+                try {
+                    while ((read = clientData.read(buf)) > 0) {
+                        clientIn.write(buf, 0, read);
+                    }
+                    clientData.close();
+                    clientIn.close();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        Thread clientReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[8192];
+                int read;
+                try {
+                    while ((read = clientOut.read(buf)) > 0) {
+                        if (clientSink != null) {
+                            clientSink.write(buf, 0, read);
+                        }
+                    }
+                    if (clientSink != null) {
+                        clientSink.close();
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        clientWriter.start();
+        clientReader.start();
+
+        InputStream in = Channels.newInputStream(inputPipe.source());
+        OutputStream out = Channels.newOutputStream(outputPipe.sink());
+        if (pipelined) {
+            in = new PipelinedInputStream(in, "bench-reader");
+            out = new PipelinedOutputStream(out, "bench-writer");
+        }
+
+        operation.execute(in, out);
+        in.close();
+        out.close();
+        clientReader.join();
+        return System.nanoTime() - start;
+    }
+
+    /** Stands in for the client's plaintext, without holding it in memory. */
+    private static class RepeatingInputStream extends InputStream {
+        private long mRemaining;
+
+        RepeatingInputStream(long size) {
+            mRemaining = size;
+        }
+
+        @Override
+        public int read() {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            mRemaining -= 1;
+            return 'a';
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int count = (int) Math.min(len, mRemaining);
+            Arrays.fill(b, off, off + count, (byte) 'a');
+            mRemaining -= count;
+            return count;
+        }
+    }
+
+    private static String formatThroughput(long size, long nanos) {
+        double seconds = nanos / 1e9;
+        return String.format("%.0f MB/s (%.2fs)", size / seconds / 1024 / 1024, seconds);
+    }
+
+}
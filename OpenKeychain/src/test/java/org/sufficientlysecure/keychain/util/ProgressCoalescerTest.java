@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.shadows.ShadowLooper;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.util.ProgressCoalescer.ProgressReceiver;
+
+
+@RunWith(KeychainTestRunner.class)
+public class ProgressCoalescerTest {
+    // 20 frames per second, i.e. one update per 50ms
+    private static final int INTERVAL_MILLIS = 1000 / ProgressCoalescer.DEFAULT_FRAMES_PER_SECOND;
+
+    private List<Integer> mTrailingUpdates;
+    private ProgressCoalescer mCoalescer;
+
+    @Before
+    public void setUp() {
+        mTrailingUpdates = new ArrayList<>();
+        mCoalescer = new ProgressCoalescer(ProgressCoalescer.DEFAULT_FRAMES_PER_SECOND,
+                new ProgressReceiver() {
+                    @Override
+                    public void onProgress(Object message, int progress, int max) {
+                        mTrailingUpdates.add(progress);
+                    }
+                });
+    }
+
+    @Test
+    public void testRedundantAndRateLimited() throws Exception {
+        Assert.assertTrue("start is always reported", mCoalescer.shouldReport(null, 0, 100));
+        Assert.assertFalse("identical update is dropped", mCoalescer.shouldReport(null, 0, 100));
+        Assert.assertFalse("update within the interval is dropped", mCoalescer.shouldReport(null, 1, 100));
+        Assert.assertTrue("new message is always reported", mCoalescer.shouldReport("other", 2, 100));
+        Assert.assertTrue("completion is always reported", mCoalescer.shouldReport("other", 100, 100));
+
+        ShadowLooper.idleMainLooper(INTERVAL_MILLIS);
+        Assert.assertTrue("reported updates leave nothing pending", mTrailingUpdates.isEmpty());
+    }
+
+    @Test
+    public void testLatestDroppedUpdateIsDeliveredAfterInterval() throws Exception {
+        Assert.assertTrue(mCoalescer.shouldReport(null, 0, 100));
+        Assert.assertFalse(mCoalescer.shouldReport(null, 1, 100));
+        Assert.assertFalse(mCoalescer.shouldReport(null, 2, 100));
+        Assert.assertFalse(mCoalescer.shouldReport(null, 3, 100));
+
+        ShadowLooper.idleMainLooper(INTERVAL_MILLIS - 1);
+        Assert.assertTrue("nothing is delivered before the interval is over", mTrailingUpdates.isEmpty());
+
+        ShadowLooper.idleMainLooper(1);
+        Assert.assertEquals("only the latest dropped update is delivered", Collections.singletonList(3), mTrailingUpdates);
+
+        Assert.assertFalse("delivered update counts as reported", mCoalescer.shouldReport(null, 3, 100));
+        Assert.assertFalse("and starts a new interval", mCoalescer.shouldReport(null, 4, 100));
+        ShadowLooper.idleMainLooper(INTERVAL_MILLIS);
+        Assert.assertEquals(Arrays.asList(3, 4), mTrailingUpdates);
+    }
+
+    @Test
+    public void testReportedUpdateSupersedesPending() throws Exception {
+        Assert.assertTrue(mCoalescer.shouldReport(null, 0, 100));
+        Assert.assertFalse(mCoalescer.shouldReport(null, 1, 100));
+        Assert.assertTrue(mCoalescer.shouldReport(null, 100, 100));
+
+        ShadowLooper.idleMainLooper(INTERVAL_MILLIS);
+        Assert.assertTrue("pending update must not overtake a newer one", mTrailingUpdates.isEmpty());
+    }
+
+    @Test
+    public void testCancelPending() throws Exception {
+        Assert.assertTrue(mCoalescer.shouldReport(null, 0, 100));
+        Assert.assertFalse(mCoalescer.shouldReport(null, 1, 100));
+        mCoalescer.cancelPending();
+
+        ShadowLooper.idleMainLooper(INTERVAL_MILLIS);
+        Assert.assertTrue("cancelled update must not be delivered", mTrailingUpdates.isEmpty());
+    }
+
+    @Test
+    public void testWithoutFrameRate() throws Exception {
+        ProgressCoalescer coalescer = new ProgressCoalescer(0);
+
+        Assert.assertTrue(coalescer.shouldReport(null, 0, 100));
+        Assert.assertTrue("distinct updates are never dropped", coalescer.shouldReport(null, 1, 100));
+        Assert.assertFalse("identical update is dropped", coalescer.shouldReport(null, 1, 100));
+    }
+
+}
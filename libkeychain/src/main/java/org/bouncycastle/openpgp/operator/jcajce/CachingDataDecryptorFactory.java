@@ -21,10 +21,20 @@ import org.bouncycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
 
 public class CachingDataDecryptorFactory implements PublicKeyDataDecryptorFactory
 {
+    /**
+     * Chooses the provider for the symmetric cipher of integrity protected data. Data without
+     * integrity protection uses the OpenPGP CFB variant, which is left to the default provider.
+     */
+    public interface DataProviderChooser
+    {
+        String getDataProviderName(int encAlgorithm);
+    }
+
     private final PublicKeyDataDecryptorFactory mWrappedDecryptor;
     private final HashMap<ByteBuffer, byte[]> mSessionKeyCache;
 
     private OperatorHelper mOperatorHelper;
+    private DataProviderChooser mDataProviderChooser;
 
     public CachingDataDecryptorFactory(String providerName, Map<ByteBuffer, byte[]> sessionKeyCache)
     {
@@ -58,6 +68,11 @@ public class CachingDataDecryptorFactory implements PublicKeyDataDecryptorFactor
         return mWrappedDecryptor != null;
     }
 
+    public void setDataProviderChooser(DataProviderChooser dataProviderChooser)
+    {
+        mDataProviderChooser = dataProviderChooser;
+    }
+
     @Override
     public byte[] recoverSessionData(int keyAlgorithm, byte[][] secKeyData) throws PGPException {
         ByteBuffer bi = ByteBuffer.wrap(secKeyData[0]);  // encoded MPI
@@ -77,6 +92,11 @@ public class CachingDataDecryptorFactory implements PublicKeyDataDecryptorFactor
     @Override
     public PGPDataDecryptor createDataDecryptor(boolean withIntegrityPacket, int encAlgorithm, byte[] key)
             throws PGPException {
+        if (withIntegrityPacket && mDataProviderChooser != null) {
+            String providerName = mDataProviderChooser.getDataProviderName(encAlgorithm);
+            return new OperatorHelper(new NamedJcaJceHelper(providerName))
+                    .createDataDecryptor(true, encAlgorithm, key);
+        }
         if (mWrappedDecryptor != null) {
             return mWrappedDecryptor.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
         }